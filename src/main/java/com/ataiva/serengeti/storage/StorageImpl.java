@@ -1,12 +1,18 @@
 package com.ataiva.serengeti.storage;
 
 import com.ataiva.serengeti.helpers.Globals;
+import com.ataiva.serengeti.storage.wal.WALManager;
 import org.json.JSONObject;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -24,6 +30,9 @@ public class StorageImpl implements IStorage {
     private static final int DEFAULT_COMPACTION_THRESHOLD = 10;
     private static final int DEFAULT_THREAD_POOL_SIZE = 10;
     
+    // Number of table writes after which the table files are synced and the WAL they cover is deleted
+    private static final int WAL_CHECKPOINT_INTERVAL = 10000;
+    
     private final boolean enableCache;
     private final int cacheSize;
     private final int compactionThreshold;
@@ -32,6 +41,8 @@ public class StorageImpl implements IStorage {
     private final Map<String, Long> cacheAccessTimes;
     private final Path dataDirectory;
     private final WriteAheadLog wal;
+    private final Set<Path> unsyncedTableFiles = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger writesSinceCheckpoint = new AtomicInteger();
     private boolean isInitialized;
     private boolean isShutdown;
     
@@ -50,6 +61,18 @@ public class StorageImpl implements IStorage {
      * @param compactionThreshold The threshold for triggering compaction
      */
     public StorageImpl(boolean enableCache, int cacheSize, int compactionThreshold) {
+        this(enableCache, cacheSize, compactionThreshold, WALManager.SyncMode.GROUP);
+    }
+    
+    /**
+     * Creates a new StorageImpl with custom settings and WAL sync policy.
+     * 
+     * @param enableCache Whether to enable the cache
+     * @param cacheSize The maximum number of entries in the cache
+     * @param compactionThreshold The threshold for triggering compaction
+     * @param walSyncMode When logged operations are synced to disk
+     */
+    public StorageImpl(boolean enableCache, int cacheSize, int compactionThreshold, WALManager.SyncMode walSyncMode) {
         this.enableCache = enableCache;
         this.cacheSize = cacheSize;
         this.compactionThreshold = compactionThreshold;
@@ -57,7 +80,7 @@ public class StorageImpl implements IStorage {
         this.cache = enableCache ? new ConcurrentHashMap<>() : null;
         this.cacheAccessTimes = enableCache ? new ConcurrentHashMap<>() : null;
         this.dataDirectory = Paths.get(Globals.data_path);
-        this.wal = new WriteAheadLog(dataDirectory.resolve("wal"));
+        this.wal = new WriteAheadLog(dataDirectory.resolve("wal"), walSyncMode);
         this.isInitialized = false;
         this.isShutdown = false;
         
@@ -137,6 +160,7 @@ public class StorageImpl implements IStorage {
     public void flush() {
         try {
             wal.flush();
+            checkpointWAL();
             LOGGER.info("StorageImpl flushed");
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Error flushing StorageImpl", e);
@@ -149,13 +173,58 @@ public class StorageImpl implements IStorage {
     private void recoverFromWAL() {
         try {
             LOGGER.info("Recovering from WAL");
-            wal.recover();
+            wal.recover(entry -> {
+                // Process the log entry
+                // In a real implementation, this would replay the operation
+                LOGGER.fine("Recovered log entry " + entry);
+            });
             LOGGER.info("Recovery from WAL complete");
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Error recovering from WAL", e);
         }
     }
     
+    /**
+     * Records that an operation has written its table file, and checkpoints the
+     * WAL every {@link #WAL_CHECKPOINT_INTERVAL} writes.
+     *
+     * @param dataFile The table file that was written
+     * @param walMark The value returned when the operation was logged
+     */
+    private void tableWritten(Path dataFile, long walMark) {
+        unsyncedTableFiles.add(dataFile);
+        wal.applied(walMark);
+        if (writesSinceCheckpoint.incrementAndGet() >= WAL_CHECKPOINT_INTERVAL) {
+            try {
+                checkpointWAL();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error checkpointing WAL", e);
+            }
+        }
+    }
+    
+    /**
+     * Syncs the table files written since the last checkpoint, then deletes the
+     * WAL files that only hold operations whose table writes are now durable.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private synchronized void checkpointWAL() throws IOException {
+        writesSinceCheckpoint.set(0);
+        // Every operation up to here has added its table file to the set
+        long appliedSequence = wal.appliedSequence();
+        for (Iterator<Path> it = unsyncedTableFiles.iterator(); it.hasNext(); ) {
+            Path dataFile = it.next();
+            it.remove();
+            if (Files.exists(dataFile)) {
+                try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+        }
+        wal.checkpoint(appliedSequence);
+    }
+    
     /**
      * Schedules periodic compaction of the storage files.
      */
@@ -592,16 +661,19 @@ public class StorageImpl implements IStorage {
                 data.put("timestamp", System.currentTimeMillis());
             }
             
-            // Log the operation to WAL
-            wal.logOperation(WriteAheadLog.OperationType.INSERT, database, table, data);
+            // Log the operation to WAL, serializing the row once for the log and the table
+            String row = data.toString();
+            long walMark = wal.logOperation(WriteAheadLog.OperationType.INSERT, database, table, row);
             
             // Write the data to the table
             Path tablePath = getTablePath(database, table);
             Path dataFile = tablePath.resolve("data.lsm");
             
             try (BufferedWriter writer = Files.newBufferedWriter(dataFile, StandardOpenOption.APPEND)) {
-                writer.write(data.toString());
+                writer.write(row);
                 writer.newLine();
+            } finally {
+                tableWritten(dataFile, walMark);
             }
             
             // Update the cache
@@ -729,9 +801,6 @@ public class StorageImpl implements IStorage {
                 return false;
             }
             
-            // Log the operation to WAL
-            wal.logOperation(WriteAheadLog.OperationType.UPDATE, database, table, column, value, whereColumn, whereValue);
-            
             // Read the data from the table
             Path tablePath = getTablePath(database, table);
             Path dataFile = tablePath.resolve("data.lsm");
@@ -741,40 +810,47 @@ public class StorageImpl implements IStorage {
                 return false;
             }
             
+            // Log the operation to WAL
+            long walMark = wal.logOperation(WriteAheadLog.OperationType.UPDATE, database, table, column, value, whereColumn, whereValue);
+            
             boolean updated = false;
             
-            try (BufferedReader reader = Files.newBufferedReader(dataFile);
-                 BufferedWriter writer = Files.newBufferedWriter(tempFile)) {
+            try {
+                try (BufferedReader reader = Files.newBufferedReader(dataFile);
+                     BufferedWriter writer = Files.newBufferedWriter(tempFile)) {
                 
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    JSONObject record = new JSONObject(line);
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        JSONObject record = new JSONObject(line);
                     
-                    // Apply where clause if provided
-                    if (whereColumn != null && whereValue != null) {
-                        if (record.has(whereColumn) && record.get(whereColumn).toString().equals(whereValue)) {
-                            // Update the record
-                            record.put(column, value);
-                            record.put("timestamp", System.currentTimeMillis());
-                            updated = true;
+                        // Apply where clause if provided
+                        if (whereColumn != null && whereValue != null) {
+                            if (record.has(whereColumn) && record.get(whereColumn).toString().equals(whereValue)) {
+                                // Update the record
+                                record.put(column, value);
+                                record.put("timestamp", System.currentTimeMillis());
+                                updated = true;
                             
-                            // Invalidate cache if enabled
-                            if (enableCache) {
-                                String rowId = record.getString("id");
-                                String cacheKey = generateCacheKey(database, table, rowId);
-                                cache.remove(cacheKey);
-                                cacheAccessTimes.remove(cacheKey);
+                                // Invalidate cache if enabled
+                                if (enableCache) {
+                                    String rowId = record.getString("id");
+                                    String cacheKey = generateCacheKey(database, table, rowId);
+                                    cache.remove(cacheKey);
+                                    cacheAccessTimes.remove(cacheKey);
+                                }
                             }
                         }
-                    }
                     
-                    writer.write(record.toString());
-                    writer.newLine();
+                        writer.write(record.toString());
+                        writer.newLine();
+                    }
                 }
-            }
             
-            // Replace the data file with the temp file
-            Files.move(tempFile, dataFile, StandardCopyOption.REPLACE_EXISTING);
+                // Replace the data file with the temp file
+                Files.move(tempFile, dataFile, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tableWritten(dataFile, walMark);
+            }
             
             // Invalidate cache for the where clause
             if (enableCache && updated) {
@@ -809,9 +885,6 @@ public class StorageImpl implements IStorage {
                 return false;
             }
             
-            // Log the operation to WAL
-            wal.logOperation(WriteAheadLog.OperationType.DELETE, database, table, whereColumn, whereValue);
-            
             // Read the data from the table
             Path tablePath = getTablePath(database, table);
             Path dataFile = tablePath.resolve("data.lsm");
@@ -821,33 +894,40 @@ public class StorageImpl implements IStorage {
                 return false;
             }
             
+            // Log the operation to WAL
+            long walMark = wal.logOperation(WriteAheadLog.OperationType.DELETE, database, table, whereColumn, whereValue);
+            
             boolean deleted = false;
             List<String> deletedIds = new ArrayList<>();
             
-            try (BufferedReader reader = Files.newBufferedReader(dataFile);
-                 BufferedWriter writer = Files.newBufferedWriter(tempFile)) {
+            try {
+                try (BufferedReader reader = Files.newBufferedReader(dataFile);
+                     BufferedWriter writer = Files.newBufferedWriter(tempFile)) {
                 
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    JSONObject record = new JSONObject(line);
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        JSONObject record = new JSONObject(line);
                     
-                    // Apply where clause if provided
-                    if (whereColumn != null && whereValue != null) {
-                        if (record.has(whereColumn) && record.get(whereColumn).toString().equals(whereValue)) {
-                            // Skip this record (delete it)
-                            deleted = true;
-                            deletedIds.add(record.getString("id"));
-                            continue;
+                        // Apply where clause if provided
+                        if (whereColumn != null && whereValue != null) {
+                            if (record.has(whereColumn) && record.get(whereColumn).toString().equals(whereValue)) {
+                                // Skip this record (delete it)
+                                deleted = true;
+                                deletedIds.add(record.getString("id"));
+                                continue;
+                            }
                         }
-                    }
                     
-                    writer.write(record.toString());
-                    writer.newLine();
+                        writer.write(record.toString());
+                        writer.newLine();
+                    }
                 }
-            }
             
-            // Replace the data file with the temp file
-            Files.move(tempFile, dataFile, StandardCopyOption.REPLACE_EXISTING);
+                // Replace the data file with the temp file
+                Files.move(tempFile, dataFile, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tableWritten(dataFile, walMark);
+            }
             
             // Invalidate cache for the deleted records
             if (enableCache && deleted) {
@@ -1217,32 +1297,107 @@ public class StorageImpl implements IStorage {
     
     /**
      * Write-ahead logging implementation for the storage system.
+     *
+     * Operations are logged through a {@link WALManager} as binary records, each
+     * string a length-prefixed UTF-8 string. Inserts and updates are PUT records
+     * whose key holds the operation code, database and table, and whose value holds
+     * the operation's fields; deletes are DELETE records whose key holds all of
+     * them. The WALManager adds the sequence number, length prefix and CRC32 of each
+     * record, combines concurrent appends into group commits and syncs according to
+     * its {@link WALManager.SyncMode}. Replay decodes the strings straight from the
+     * records without building a JSON object for each one.
+     *
+     * An operation is pending from when it is logged until its table file has been
+     * written. Once the table files are synced, {@link #checkpoint(long)} deletes
+     * the WAL files that only hold operations up to {@link #appliedSequence()}.
      */
-    private static class WriteAheadLog {
+    static class WriteAheadLog {
         
         private static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
         
         /**
-         * The types of operations that can be logged.
+         * The types of operations that can be logged. Each type is stored in the
+         * log by its code, which must never change.
          */
         public enum OperationType {
-            INSERT,
-            UPDATE,
-            DELETE
+            INSERT(1),
+            UPDATE(2),
+            DELETE(3);
+            
+            private final byte code;
+            
+            OperationType(int code) {
+                this.code = (byte) code;
+            }
+            
+            /**
+             * @return The code stored in the log for this type
+             */
+            public byte getCode() {
+                return code;
+            }
+            
+            /**
+             * Finds the type stored in the log with a code.
+             *
+             * @param code The code read from the log
+             * @return The type, or null if no type has the code
+             */
+            public static OperationType fromCode(byte code) {
+                for (OperationType type : values()) {
+                    if (type.code == code) {
+                        return type;
+                    }
+                }
+                return null;
+            }
+        }
+        
+        /**
+         * An operation read back from the WAL.
+         */
+        static final class LogEntry {
+            
+            final long sequenceNumber;
+            final OperationType type;
+            final String database;
+            final String table;
+            final List<String> fields;
+            
+            LogEntry(long sequenceNumber, OperationType type, String database, String table, List<String> fields) {
+                this.sequenceNumber = sequenceNumber;
+                this.type = type;
+                this.database = database;
+                this.table = table;
+                this.fields = fields;
+            }
+            
+            @Override
+            public String toString() {
+                return sequenceNumber + ": " + type + " " + database + "." + table + " " + fields;
+            }
         }
         
         private final Path walDirectory;
-        private final Path walFile;
-        private BufferedWriter writer;
+        private final WALManager.SyncMode syncMode;
+        
+        // The JSON text log written by earlier versions, read during recovery
+        private final Path legacyWalFile;
+        private WALManager walManager;
+        
+        // The last sequence number when each pending operation was logged, with the number of such operations
+        private final TreeMap<Long, Integer> pending = new TreeMap<>();
         
         /**
          * Creates a new WriteAheadLog.
          *
          * @param walDirectory The directory for the WAL files
+         * @param syncMode When appended records are synced to disk
          */
-        public WriteAheadLog(Path walDirectory) {
+        public WriteAheadLog(Path walDirectory, WALManager.SyncMode syncMode) {
             this.walDirectory = walDirectory;
-            this.walFile = walDirectory.resolve("wal.log");
+            this.syncMode = syncMode;
+            this.legacyWalFile = walDirectory.resolve("wal.log");
         }
         
         /**
@@ -1251,14 +1406,8 @@ public class StorageImpl implements IStorage {
          * @throws IOException if an I/O error occurs
          */
         public void init() throws IOException {
-            Files.createDirectories(walDirectory);
-            
-            if (!Files.exists(walFile)) {
-                Files.createFile(walFile);
-            }
-            
-            writer = Files.newBufferedWriter(walFile, StandardOpenOption.APPEND);
-            LOGGER.info("WAL initialized at " + walFile);
+            walManager = new WALManager(walDirectory, 64 * 1024 * 1024, syncMode, 100, 1000);
+            LOGGER.info("WAL initialized at " + walDirectory + " with sync mode " + syncMode);
         }
         
         /**
@@ -1266,19 +1415,12 @@ public class StorageImpl implements IStorage {
          *
          * @param database The database name
          * @param table The table name
-         * @param data The data to insert
+         * @param row The row to insert, as JSON text
+         * @return The mark to pass to {@link #applied(long)} once the table file is written
          * @throws IOException if an I/O error occurs
          */
-        public void logOperation(OperationType type, String database, String table, JSONObject data) throws IOException {
-            JSONObject log = new JSONObject();
-            log.put("type", type.name());
-            log.put("database", database);
-            log.put("table", table);
-            log.put("data", data);
-            log.put("timestamp", System.currentTimeMillis());
-            
-            writer.write(log.toString());
-            writer.newLine();
+        public long logOperation(OperationType type, String database, String table, String row) throws IOException {
+            return append(type, database, table, row);
         }
         
         /**
@@ -1290,22 +1432,12 @@ public class StorageImpl implements IStorage {
          * @param value The new value
          * @param whereColumn The column to filter on
          * @param whereValue The value to filter on
+         * @return The mark to pass to {@link #applied(long)} once the table file is written
          * @throws IOException if an I/O error occurs
          */
-        public void logOperation(OperationType type, String database, String table, String column, String value,
+        public long logOperation(OperationType type, String database, String table, String column, String value,
                                 String whereColumn, String whereValue) throws IOException {
-            JSONObject log = new JSONObject();
-            log.put("type", type.name());
-            log.put("database", database);
-            log.put("table", table);
-            log.put("column", column);
-            log.put("value", value);
-            log.put("whereColumn", whereColumn);
-            log.put("whereValue", whereValue);
-            log.put("timestamp", System.currentTimeMillis());
-            
-            writer.write(log.toString());
-            writer.newLine();
+            return append(type, database, table, column, value, whereColumn, whereValue);
         }
         
         /**
@@ -1315,30 +1447,136 @@ public class StorageImpl implements IStorage {
          * @param table The table name
          * @param whereColumn The column to filter on
          * @param whereValue The value to filter on
+         * @return The mark to pass to {@link #applied(long)} once the table file is written
          * @throws IOException if an I/O error occurs
          */
-        public void logOperation(OperationType type, String database, String table, String whereColumn,
+        public long logOperation(OperationType type, String database, String table, String whereColumn,
                                 String whereValue) throws IOException {
-            JSONObject log = new JSONObject();
-            log.put("type", type.name());
-            log.put("database", database);
-            log.put("table", table);
-            log.put("whereColumn", whereColumn);
-            log.put("whereValue", whereValue);
-            log.put("timestamp", System.currentTimeMillis());
-            
-            writer.write(log.toString());
-            writer.newLine();
+            return append(type, database, table, whereColumn, whereValue);
+        }
+        
+        private long append(OperationType type, String database, String table, String... fields) throws IOException {
+            byte[] header = encode(type.getCode(), database, table);
+            byte[] body = encode((byte) fields.length, fields);
+            long mark = begin();
+            try {
+                if (type == OperationType.DELETE) {
+                    byte[] key = Arrays.copyOf(header, header.length + body.length);
+                    System.arraycopy(body, 0, key, header.length, body.length);
+                    walManager.logDelete(key);
+                } else {
+                    walManager.logPut(header, body);
+                }
+            } catch (IOException | RuntimeException e) {
+                applied(mark);
+                throw e;
+            }
+            return mark;
+        }
+        
+        /**
+         * Registers an operation as pending. It is assigned a sequence number after
+         * the one returned.
+         */
+        private synchronized long begin() {
+            long mark = walManager.getLastSequenceNumber();
+            pending.merge(mark, 1, Integer::sum);
+            return mark;
+        }
+        
+        /**
+         * Marks a logged operation as written to its table file, whether or not the
+         * write succeeded.
+         *
+         * @param mark The value returned when the operation was logged
+         */
+        public synchronized void applied(long mark) {
+            pending.computeIfPresent(mark, (sequence, count) -> count > 1 ? count - 1 : null);
+        }
+        
+        /**
+         * Gets the sequence number up to which every logged operation has been
+         * written to its table file.
+         *
+         * @return The highest sequence number with no pending operation at or before it
+         */
+        public synchronized long appliedSequence() {
+            long last = walManager.getLastSequenceNumber();
+            return pending.isEmpty() ? last : Math.min(last, pending.firstKey());
         }
         
         /**
-         * Flushes the WAL to disk.
+         * Deletes the WAL files that only hold operations up to a sequence
+         * number. The table files written by those operations must have been synced.
+         *
+         * @param appliedSequence A value returned by {@link #appliedSequence()}
+         * @throws IOException if an I/O error occurs
+         */
+        public void checkpoint(long appliedSequence) throws IOException {
+            walManager.cleanupWAL(appliedSequence);
+        }
+        
+        /**
+         * Encodes a leading byte followed by length-prefixed UTF-8 strings, with a
+         * length of -1 for null.
+         */
+        private static byte[] encode(byte first, String... strings) {
+            byte[][] encoded = new byte[strings.length][];
+            int size = 1;
+            for (int i = 0; i < strings.length; i++) {
+                encoded[i] = strings[i] != null ? strings[i].getBytes(StandardCharsets.UTF_8) : null;
+                size += 4 + (encoded[i] != null ? encoded[i].length : 0);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.put(first);
+            for (byte[] string : encoded) {
+                buffer.putInt(string != null ? string.length : -1);
+                if (string != null) {
+                    buffer.put(string);
+                }
+            }
+            return buffer.array();
+        }
+        
+        private static String decodeString(ByteBuffer buffer) {
+            int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            String string = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return string;
+        }
+        
+        /**
+         * Decodes an operation from the header written by {@link #encode} and the
+         * fields that follow in {@code fields}, which may be the same buffer.
+         */
+        private static LogEntry decode(long sequenceNumber, ByteBuffer header, ByteBuffer fields) {
+            byte code = header.get();
+            OperationType type = OperationType.fromCode(code);
+            if (type == null) {
+                LOGGER.warning("Unknown operation type in WAL: " + code);
+                return null;
+            }
+            String database = decodeString(header);
+            String table = decodeString(header);
+            int fieldCount = fields.get();
+            List<String> values = new ArrayList<>(fieldCount);
+            for (int i = 0; i < fieldCount; i++) {
+                values.add(decodeString(fields));
+            }
+            return new LogEntry(sequenceNumber, type, database, table, values);
+        }
+        
+        /**
+         * Syncs the WAL to disk.
          *
          * @throws IOException if an I/O error occurs
          */
         public void flush() throws IOException {
-            if (writer != null) {
-                writer.flush();
+            if (walManager != null) {
+                walManager.sync();
             }
         }
         
@@ -1348,24 +1586,59 @@ public class StorageImpl implements IStorage {
          * @throws IOException if an I/O error occurs
          */
         public void close() throws IOException {
-            if (writer != null) {
-                writer.close();
+            if (walManager != null) {
+                walManager.close();
             }
         }
         
         /**
          * Recovers the storage system from the WAL.
          *
+         * @param consumer Receives the logged operations, in log order
+         * @return The number of operations recovered
          * @throws IOException if an I/O error occurs
          */
-        public void recover() throws IOException {
-            if (!Files.exists(walFile)) {
+        public int recover(final Consumer<LogEntry> consumer) throws IOException {
+            recoverLegacyLog();
+            
+            final int[] recovered = new int[1];
+            walManager.recover(new WALManager.WALRecoveryConsumer() {
+                @Override
+                public void onPut(long sequenceNumber, byte[] key, byte[] value) {
+                    accept(decode(sequenceNumber, ByteBuffer.wrap(key), ByteBuffer.wrap(value)));
+                }
+                
+                @Override
+                public void onDelete(long sequenceNumber, byte[] key) {
+                    ByteBuffer buffer = ByteBuffer.wrap(key);
+                    accept(decode(sequenceNumber, buffer, buffer));
+                }
+                
+                private void accept(LogEntry entry) {
+                    if (entry != null) {
+                        consumer.accept(entry);
+                        recovered[0]++;
+                    }
+                }
+            });
+            
+            LOGGER.info("Recovered " + recovered[0] + " log entries from WAL");
+            return recovered[0];
+        }
+        
+        /**
+         * Reads the JSON text log left by an earlier version. Its entries are not
+         * replayed into the tables yet, so the file is left in place for the
+         * version that does; new operations go to the binary log.
+         */
+        private void recoverLegacyLog() throws IOException {
+            if (!Files.exists(legacyWalFile)) {
                 return;
             }
             
-            LOGGER.info("Recovering from WAL: " + walFile);
+            LOGGER.info("Recovering from legacy WAL: " + legacyWalFile);
             
-            try (BufferedReader reader = Files.newBufferedReader(walFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(legacyWalFile)) {
                 String line;
                 while ((line = reader.readLine()) != null) {
                     JSONObject log = new JSONObject(line);
@@ -1375,8 +1648,6 @@ public class StorageImpl implements IStorage {
                     LOGGER.fine("Recovered log entry: " + log);
                 }
             }
-            
-            LOGGER.info("Recovery from WAL complete");
         }
     }
     
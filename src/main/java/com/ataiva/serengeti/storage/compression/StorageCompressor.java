@@ -3,6 +3,9 @@ package com.ataiva.serengeti.storage.compression;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -10,14 +13,21 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
 import net.jpountz.lz4.LZ4Factory;
 import net.jpountz.lz4.LZ4FastDecompressor;
+import net.jpountz.lz4.LZ4SafeDecompressor;
 import org.xerial.snappy.Snappy;
 
 /**
  * Provides compression and decompression functionality for the storage system.
  * This class supports multiple compression algorithms (GZIP, LZ4, and Snappy)
  * to reduce the size of stored data with different performance characteristics.
+ *
+ * <p>Besides the String API, binary data can be compressed from one
+ * {@link ByteBuffer} into another with {@link #compress(ByteBuffer, ByteBuffer)}
+ * and {@link #decompress(ByteBuffer, ByteBuffer)}. For LZ4 and Snappy these work
+ * on the buffers directly, without intermediate copies.</p>
  */
 public class StorageCompressor {
 
@@ -51,6 +61,10 @@ public class StorageCompressor {
     private final CompressionAlgorithm algorithm;
     private final int compressionLevel;
     
+    // LZ4 codecs for the ByteBuffer API; both are thread-safe
+    private final LZ4Compressor lz4Compressor;
+    private final LZ4SafeDecompressor lz4Decompressor;
+    
     /**
      * Creates a new StorageCompressor with the specified algorithm and default compression level.
      * 
@@ -69,6 +83,15 @@ public class StorageCompressor {
     public StorageCompressor(CompressionAlgorithm algorithm, int compressionLevel) {
         this.algorithm = algorithm;
         this.compressionLevel = Math.max(1, Math.min(9, compressionLevel)); // Ensure level is between 1 and 9
+        
+        if (algorithm == CompressionAlgorithm.LZ4) {
+            LZ4Factory factory = LZ4Factory.fastestInstance();
+            this.lz4Compressor = this.compressionLevel >= 7 ? factory.highCompressor() : factory.fastCompressor();
+            this.lz4Decompressor = factory.safeDecompressor();
+        } else {
+            this.lz4Compressor = null;
+            this.lz4Decompressor = null;
+        }
     }
     
     /**
@@ -137,6 +160,268 @@ public class StorageCompressor {
         }
     }
     
+    /**
+     * Gets the maximum size that data of the given length can have once compressed
+     * with {@link #compress(ByteBuffer, ByteBuffer)}.
+     *
+     * @param length The uncompressed length in bytes
+     * @return The maximum compressed length in bytes
+     */
+    public int maxCompressedLength(int length) {
+        switch (algorithm) {
+            case NONE:
+                return length;
+            case LZ4:
+                return lz4Compressor.maxCompressedLength(length);
+            case SNAPPY:
+                return Snappy.maxCompressedLength(length);
+            default:
+                // Deflate bound plus the GZIP header and trailer
+                return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 18;
+        }
+    }
+    
+    /**
+     * Compresses the remaining bytes of {@code src} into {@code dst}. On return the
+     * position of {@code src} is at its limit and the position of {@code dst} has
+     * advanced past the compressed data.
+     *
+     * <p>The output is the plain format of the algorithm. Unlike
+     * {@link #compress(String)}, LZ4 output does not record the uncompressed length,
+     * so callers must provide a large enough buffer when decompressing.</p>
+     *
+     * @param src The data to compress
+     * @param dst The buffer to write to, with at least {@link #maxCompressedLength(int)}
+     *            bytes remaining
+     * @return The number of compressed bytes written
+     * @throws IOException If the data cannot be compressed or does not fit in {@code dst}
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int length = src.remaining();
+        switch (algorithm) {
+            case NONE:
+                if (dst.remaining() < length) {
+                    throw new IOException("Destination buffer too small: " + dst.remaining() + " < " + length);
+                }
+                dst.put(src);
+                return length;
+            case LZ4:
+                try {
+                    int written = lz4Compressor.compress(src, src.position(), length, dst, dst.position(), dst.remaining());
+                    src.position(src.limit());
+                    dst.position(dst.position() + written);
+                    return written;
+                } catch (LZ4Exception e) {
+                    throw new IOException("LZ4 compression failed", e);
+                }
+            case SNAPPY:
+                return compressSnappy(src, dst);
+            default:
+                return compressGzip(src, dst);
+        }
+    }
+    
+    /**
+     * Decompresses the remaining bytes of {@code src} into {@code dst}. On return the
+     * position of {@code src} is at its limit and the position of {@code dst} has
+     * advanced past the decompressed data.
+     *
+     * @param src The compressed data
+     * @param dst The buffer to write to, with room for all of the decompressed data
+     * @return The number of decompressed bytes written
+     * @throws IOException If the data is corrupt or does not fit in {@code dst}
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        switch (algorithm) {
+            case NONE:
+                return compress(src, dst);
+            case LZ4:
+                try {
+                    int written = lz4Decompressor.decompress(src, src.position(), src.remaining(),
+                            dst, dst.position(), dst.remaining());
+                    src.position(src.limit());
+                    dst.position(dst.position() + written);
+                    return written;
+                } catch (LZ4Exception e) {
+                    throw new IOException("LZ4 decompression failed", e);
+                }
+            case SNAPPY:
+                return decompressSnappy(src, dst);
+            default:
+                return decompressGzip(src, dst);
+        }
+    }
+    
+    /**
+     * Compresses a buffer with Snappy. Snappy's buffer API only accepts direct
+     * buffers, so heap buffers go through the array API instead.
+     */
+    private int compressSnappy(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int length = src.remaining();
+        if (dst.remaining() < Snappy.maxCompressedLength(length)) {
+            throw new IOException("Destination buffer too small for Snappy compression");
+        }
+        int written;
+        if (src.isDirect() && dst.isDirect()) {
+            int limit = dst.limit();
+            written = Snappy.compress(src, dst);
+            dst.limit(limit);
+        } else {
+            ByteBuffer input = onHeap(src);
+            if (dst.hasArray()) {
+                written = Snappy.compress(input.array(), input.arrayOffset() + input.position(), length,
+                        dst.array(), dst.arrayOffset() + dst.position());
+            } else {
+                byte[] output = Snappy.compress(copyOf(input));
+                dst.duplicate().put(output);
+                written = output.length;
+            }
+        }
+        src.position(src.limit());
+        dst.position(dst.position() + written);
+        return written;
+    }
+    
+    /**
+     * Decompresses a buffer with Snappy, going through the array API for heap buffers.
+     */
+    private int decompressSnappy(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int written;
+        if (src.isDirect() && dst.isDirect()) {
+            if (Snappy.uncompressedLength(src) > dst.remaining()) {
+                throw new IOException("Destination buffer too small for Snappy decompression");
+            }
+            int limit = dst.limit();
+            written = Snappy.uncompress(src, dst);
+            dst.limit(limit);
+        } else {
+            ByteBuffer input = onHeap(src);
+            int offset = input.arrayOffset() + input.position();
+            int length = input.remaining();
+            if (Snappy.uncompressedLength(input.array(), offset, length) > dst.remaining()) {
+                throw new IOException("Destination buffer too small for Snappy decompression");
+            }
+            if (dst.hasArray()) {
+                written = Snappy.uncompress(input.array(), offset, length, dst.array(), dst.arrayOffset() + dst.position());
+            } else {
+                byte[] output = Snappy.uncompress(copyOf(input));
+                dst.duplicate().put(output);
+                written = output.length;
+            }
+        }
+        src.position(src.limit());
+        dst.position(dst.position() + written);
+        return written;
+    }
+    
+    /**
+     * Compresses a buffer with GZIP. GZIP is only offered for completeness here and
+     * goes through streams.
+     */
+    private int compressGzip(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(new BufferOutputStream(dst)) {
+            {
+                def.setLevel(compressionLevel);
+            }
+        }) {
+            ByteBuffer input = onHeap(src);
+            gzipStream.write(input.array(), input.arrayOffset() + input.position(), input.remaining());
+        }
+        src.position(src.limit());
+        return dst.position() - start;
+    }
+    
+    /**
+     * Decompresses a buffer with GZIP.
+     */
+    private int decompressGzip(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        try (GZIPInputStream gzipStream = new GZIPInputStream(new BufferInputStream(src))) {
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = gzipStream.read(buffer)) > 0) {
+                if (dst.remaining() < len) {
+                    throw new IOException("Destination buffer too small for GZIP decompression");
+                }
+                dst.put(buffer, 0, len);
+            }
+        }
+        src.position(src.limit());
+        return dst.position() - start;
+    }
+    
+    /**
+     * Returns the buffer itself if it is backed by an accessible array, or a heap copy
+     * of its remaining bytes otherwise.
+     */
+    private static ByteBuffer onHeap(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return buffer;
+        }
+        return ByteBuffer.wrap(copyOf(buffer));
+    }
+    
+    private static byte[] copyOf(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+    
+    /**
+     * An output stream that writes into a ByteBuffer.
+     */
+    private static class BufferOutputStream extends OutputStream {
+        private final ByteBuffer buffer;
+        
+        BufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (buffer.remaining() < len) {
+                throw new IOException("Destination buffer too small for GZIP compression");
+            }
+            buffer.put(b, off, len);
+        }
+    }
+    
+    /**
+     * An input stream that reads the remaining bytes of a ByteBuffer.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+        
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+    }
+    
     /**
      * Compresses a string using GZIP compression.
      * 
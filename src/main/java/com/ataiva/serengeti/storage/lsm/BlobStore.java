@@ -0,0 +1,378 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * BlobStore keeps large values in append-only blob files next to the SSTables.
+ *
+ * <p>When key-value separation is enabled, flushes and compactions write each value
+ * above a size threshold to a blob file. The SSTable holds only a 20-byte pointer
+ * to it: the blob file number(8), the offset of the record(8) and the value
+ * length(4). Compactions then copy the pointer instead of the value, so large
+ * values are written once rather than once per compaction.</p>
+ *
+ * <p>A blob file starts with a magic number(8) and format version(4), followed by
+ * records of a CRC32 of the value(4) and the value. Blob files are immutable once
+ * written and are read through a memory mapping. A blob file is deleted when no
+ * open SSTable points into it any more; see {@link #deleteObsoleteFiles}.</p>
+ */
+public class BlobStore implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(BlobStore.class.getName());
+
+    /**
+     * Default size above which values are written to blob files, once enabled.
+     */
+    public static final int DEFAULT_MIN_BLOB_SIZE = 4 * 1024;
+
+    /**
+     * Default size at which a new blob file is started.
+     */
+    public static final long DEFAULT_MAX_FILE_SIZE = 256L * 1024 * 1024;
+
+    static final long MAGIC = 0x5345524E424C4F42L; // "SERNBLOB"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 8 + 4;
+    static final int RECORD_HEADER_SIZE = 4; // CRC32
+    static final int POINTER_SIZE = 8 + 8 + 4;
+    static final String FILE_PREFIX = "blob-";
+    static final String FILE_SUFFIX = ".blob";
+
+    private final Path directory;
+    private final long maxFileSize;
+    private final AtomicLong fileNumberGenerator = new AtomicLong();
+
+    // Mappings of finished blob files, opened on first read
+    private final ConcurrentHashMap<Long, ByteBuffer> mappings = new ConcurrentHashMap<>();
+
+    // Mappings of files deleted by the last collection, kept for scans that started before it
+    private volatile Map<Long, ByteBuffer> retiredMappings = new HashMap<>();
+
+    /**
+     * Creates a BlobStore with the default maximum file size.
+     *
+     * @param directory Directory holding the blob files
+     * @throws IOException If the directory cannot be listed
+     */
+    public BlobStore(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_FILE_SIZE);
+    }
+
+    /**
+     * Creates a BlobStore.
+     *
+     * @param directory Directory holding the blob files
+     * @param maxFileSize Size at which a writer starts a new blob file, at most 2GB
+     * @throws IOException If the directory cannot be listed
+     */
+    public BlobStore(Path directory, long maxFileSize) throws IOException {
+        if (maxFileSize <= HEADER_SIZE || maxFileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Blob file size must be between " + HEADER_SIZE + " and 2GB");
+        }
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        for (long fileNumber : listFiles().keySet()) {
+            fileNumberGenerator.accumulateAndGet(fileNumber, Math::max);
+        }
+    }
+
+    /**
+     * Starts writing values to new blob files.
+     *
+     * @param rateLimiter Limits the rate of writes, or null for none
+     * @return The writer
+     */
+    public Writer newWriter(RateLimiter rateLimiter) {
+        return new Writer(rateLimiter);
+    }
+
+    /**
+     * Reads the value a pointer refers to and verifies its checksum.
+     *
+     * @param pointer A pointer returned by {@link Writer#add(byte[])}
+     * @return The value
+     * @throws IOException If the blob file is missing or the record is corrupt
+     */
+    public byte[] read(byte[] pointer) throws IOException {
+        ByteBuffer decoded = ByteBuffer.wrap(pointer);
+        long fileNumber = decoded.getLong();
+        long offset = decoded.getLong();
+        int length = decoded.getInt();
+
+        ByteBuffer file = mapping(fileNumber);
+        if (offset < HEADER_SIZE || offset + RECORD_HEADER_SIZE + length > file.capacity()) {
+            throw new IOException("Blob pointer out of range in " + fileName(fileNumber));
+        }
+        int storedCrc = file.getInt((int) offset);
+        byte[] value = new byte[length];
+        ByteBuffer view = file.duplicate();
+        view.position((int) offset + RECORD_HEADER_SIZE);
+        view.get(value);
+
+        CRC32 crc = new CRC32();
+        crc.update(value);
+        if ((int) crc.getValue() != storedCrc) {
+            throw new IOException("Checksum mismatch in " + fileName(fileNumber) + " at offset " + offset);
+        }
+        return value;
+    }
+
+    private ByteBuffer mapping(long fileNumber) throws IOException {
+        ByteBuffer file = mappings.get(fileNumber);
+        if (file == null) {
+            file = retiredMappings.get(fileNumber);
+        }
+        if (file != null) {
+            return file;
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve(fileName(fileNumber)), StandardOpenOption.READ)) {
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            throw new IOException("Blob file is missing: " + fileName(fileNumber), e);
+        }
+        if (file.capacity() < HEADER_SIZE || file.getLong(0) != MAGIC) {
+            throw new IOException("Not a blob file (bad magic): " + fileName(fileNumber));
+        }
+        if (file.getInt(8) != FORMAT_VERSION) {
+            throw new IOException("Unsupported blob file format version " + file.getInt(8) + ": " + fileName(fileNumber));
+        }
+        ByteBuffer existing = mappings.putIfAbsent(fileNumber, file);
+        return existing != null ? existing : file;
+    }
+
+    /**
+     * Gets the blob file a pointer refers to.
+     *
+     * @param pointer A blob pointer
+     * @return The blob file number
+     */
+    static long fileNumber(byte[] pointer) {
+        return ByteBuffer.wrap(pointer).getLong();
+    }
+
+    /**
+     * Gets the bytes a pointer's record takes up in its blob file.
+     *
+     * @param pointer A blob pointer
+     * @return The record size in bytes
+     */
+    static long recordSize(byte[] pointer) {
+        return RECORD_HEADER_SIZE + ByteBuffer.wrap(pointer).getInt(16);
+    }
+
+    /**
+     * Deletes the blob files that no open SSTable points into. The caller must make
+     * sure that no flush or compaction is writing blob files meanwhile, and must
+     * count the SSTables that readers still hold after a compaction replaced them.
+     * Reads that mapped a file before it was deleted can still read it until the
+     * next call.
+     *
+     * @param liveFiles Numbers of the blob files referenced by open SSTables
+     * @return The number of files deleted
+     * @throws IOException If the directory cannot be listed or a file cannot be deleted
+     */
+    public int deleteObsoleteFiles(Collection<Long> liveFiles) throws IOException {
+        Map<Long, ByteBuffer> retired = new HashMap<>();
+        int deleted = 0;
+        for (Map.Entry<Long, Path> file : listFiles().entrySet()) {
+            if (liveFiles.contains(file.getKey())) {
+                continue;
+            }
+            ByteBuffer mapping = mappings.remove(file.getKey());
+            if (mapping != null) {
+                retired.put(file.getKey(), mapping);
+            }
+            LOGGER.info("Deleting obsolete blob file: " + file.getValue().getFileName());
+            Files.deleteIfExists(file.getValue());
+            deleted++;
+        }
+        retiredMappings = retired;
+        return deleted;
+    }
+
+    /**
+     * Gets the size of every blob file.
+     *
+     * @return Sizes in bytes by blob file number, in file number order
+     * @throws IOException If the directory cannot be listed
+     */
+    public Map<Long, Long> getFileSizes() throws IOException {
+        Map<Long, Long> sizes = new TreeMap<>();
+        for (Map.Entry<Long, Path> file : listFiles().entrySet()) {
+            try {
+                sizes.put(file.getKey(), Files.size(file.getValue()));
+            } catch (NoSuchFileException e) {
+                // Deleted meanwhile
+            }
+        }
+        return sizes;
+    }
+
+    private Map<Long, Path> listFiles() throws IOException {
+        Map<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    files.put(Long.parseUnsignedLong(
+                            name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()), 16), path);
+                } catch (NumberFormatException e) {
+                    LOGGER.fine("Blob file number is not numeric: " + name);
+                }
+            }
+        }
+        return files;
+    }
+
+    static String fileName(long fileNumber) {
+        return String.format("%s%016x%s", FILE_PREFIX, fileNumber, FILE_SUFFIX);
+    }
+
+    /**
+     * Releases the mappings of all blob files.
+     */
+    @Override
+    public void close() {
+        mappings.clear();
+        retiredMappings = new HashMap<>();
+    }
+
+    /**
+     * Appends values to new blob files, starting another file whenever one reaches
+     * the maximum file size. The files only become durable with {@link #finish()};
+     * a writer closed before that deletes its files.
+     */
+    public class Writer implements Closeable {
+        private final RateLimiter rateLimiter;
+        private final List<Path> files = new ArrayList<>();
+        private final CRC32 crc = new CRC32();
+        private FileChannel channel;
+        private long fileNumber;
+        private long position;
+        private boolean finished;
+
+        Writer(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+        }
+
+        /**
+         * Appends a value.
+         *
+         * @param value The value
+         * @return A pointer to the value
+         * @throws IOException If an I/O error occurs
+         */
+        public byte[] add(byte[] value) throws IOException {
+            if (finished) {
+                throw new IllegalStateException("Blob writer already finished");
+            }
+            long recordSize = RECORD_HEADER_SIZE + value.length;
+            if (channel == null || (position > HEADER_SIZE && position + recordSize > maxFileSize)) {
+                startFile();
+            }
+
+            crc.reset();
+            crc.update(value);
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            header.putInt((int) crc.getValue());
+            header.flip();
+            write(header, ByteBuffer.wrap(value));
+
+            ByteBuffer pointer = ByteBuffer.allocate(POINTER_SIZE);
+            pointer.putLong(fileNumber);
+            pointer.putLong(position);
+            pointer.putInt(value.length);
+            position += recordSize;
+            return pointer.array();
+        }
+
+        private void startFile() throws IOException {
+            if (channel != null) {
+                channel.force(true);
+                channel.close();
+            }
+            fileNumber = fileNumberGenerator.incrementAndGet();
+            Path path = directory.resolve(fileName(fileNumber));
+            files.add(path);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.flip();
+            write(header);
+            position = HEADER_SIZE;
+        }
+
+        private void write(ByteBuffer... buffers) throws IOException {
+            if (rateLimiter != null) {
+                long bytes = 0;
+                for (ByteBuffer buffer : buffers) {
+                    bytes += buffer.remaining();
+                }
+                rateLimiter.request(bytes);
+            }
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+
+        /**
+         * Syncs and closes the current blob file.
+         *
+         * @throws IOException If an I/O error occurs
+         */
+        public void finish() throws IOException {
+            finished = true;
+            if (channel != null) {
+                channel.force(true);
+                channel.close();
+                channel = null;
+            }
+        }
+
+        /**
+         * @return The number of blob files written so far
+         */
+        public int getFileCount() {
+            return files.size();
+        }
+
+        /**
+         * Abandons the files if the writer has not been finished.
+         *
+         * @throws IOException If an I/O error occurs
+         */
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            if (!finished) {
+                finished = true;
+                for (Path path : files) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,704 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import com.ataiva.serengeti.performance.PerformanceProfiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * BlockCache keeps SSTable data blocks that have already been read, verified and
+ * decompressed in off-heap memory, so hot blocks are not decoded again on every read.
+ * Blocks are keyed by the cache ID of their SSTable and the block offset.
+ *
+ * <p>The cache is split into shards, each with its own lock. Every shard evicts
+ * with W-TinyLFU: new blocks enter a small LRU window, and a block leaving the
+ * window only displaces a block in the main area if a frequency sketch shows it
+ * has been requested more often. One-off scans and compactions therefore cannot
+ * flush the working set out of the cache.</p>
+ *
+ * <p>Block contents live in direct buffers that are recycled through per-shard
+ * free lists, one per size class. Readers pin a block while they use it, so a
+ * buffer is reused only once no reader is looking at it.</p>
+ */
+public class BlockCache {
+
+    /**
+     * Default capacity of a block cache in bytes.
+     */
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    private static final int MAX_SHARDS = 16;
+    private static final long MIN_SHARD_CAPACITY = 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 1024;
+    private static final int TYPICAL_BLOCK_SIZE = SSTableWriter.DEFAULT_BLOCK_SIZE;
+
+    private static final AtomicLong TABLE_IDS = new AtomicLong();
+
+    private final long capacity;
+    private final Shard[] shards;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Loads a block from its SSTable when it is not in the cache.
+     */
+    public interface BlockLoader {
+        /**
+         * @return The verified block contents
+         * @throws IOException If the block cannot be read
+         */
+        ByteBuffer load() throws IOException;
+    }
+
+    /**
+     * Reads from a block while it is pinned in the cache. The buffer is only valid
+     * for the duration of the call and must not be kept.
+     *
+     * @param <T> The result type
+     */
+    public interface BlockReader<T> {
+        /**
+         * @param block Read-only view of the block contents
+         * @return The result of reading the block
+         * @throws IOException If the block contents are invalid
+         */
+        T read(ByteBuffer block) throws IOException;
+    }
+
+    /**
+     * Creates a new BlockCache with a shard count chosen from the capacity.
+     *
+     * @param capacity Maximum size of the cached blocks in bytes
+     */
+    public BlockCache(long capacity) {
+        this(capacity, defaultShardCount(capacity));
+    }
+
+    /**
+     * Creates a new BlockCache.
+     *
+     * @param capacity Maximum size of the cached blocks in bytes
+     * @param shardCount Number of shards, which must be a power of two
+     */
+    public BlockCache(long capacity, int shardCount) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Block cache capacity must be positive");
+        }
+        if (shardCount <= 0 || Integer.bitCount(shardCount) != 1) {
+            throw new IllegalArgumentException("Shard count must be a power of two");
+        }
+        this.capacity = capacity;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(capacity / shardCount, evictions);
+        }
+    }
+
+    private static int defaultShardCount(long capacity) {
+        int shardCount = 1;
+        while (shardCount < MAX_SHARDS && capacity / (shardCount * 2) >= MIN_SHARD_CAPACITY) {
+            shardCount *= 2;
+        }
+        return shardCount;
+    }
+
+    /**
+     * Allocates an ID that identifies one opened SSTable in the cache. IDs are never
+     * reused within a process, so blocks of different SSTables cannot be confused
+     * even if their file names are.
+     *
+     * @return A new table ID
+     */
+    static long newTableId() {
+        return TABLE_IDS.incrementAndGet();
+    }
+
+    /**
+     * Reads a block, loading it into the cache first if it is not cached.
+     *
+     * @param tableId Cache ID of the SSTable
+     * @param blockOffset Offset of the block in the SSTable file
+     * @param loader Loads the block on a cache miss
+     * @param reader Reads from the block while it is pinned
+     * @param <T> The result type
+     * @return The result of the reader
+     * @throws IOException If the block has to be loaded and cannot be read
+     */
+    public <T> T read(long tableId, long blockOffset, BlockLoader loader, BlockReader<T> reader) throws IOException {
+        BlockKey key = new BlockKey(tableId, blockOffset);
+        Shard shard = shards[key.hash & (shards.length - 1)];
+
+        Node node = shard.acquire(key);
+        if (node != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            ByteBuffer block = loader.load();
+            node = shard.insert(key, block);
+            if (node == null) {
+                // Too large to cache
+                return reader.read(block.asReadOnlyBuffer());
+            }
+        }
+
+        try {
+            return reader.read(node.data.duplicate());
+        } finally {
+            shard.release(node);
+        }
+    }
+
+    /**
+     * Checks whether a block is cached, without counting a hit or a miss.
+     *
+     * @param tableId Cache ID of the SSTable
+     * @param blockOffset Offset of the block in the SSTable file
+     * @return true if the block is cached
+     */
+    public boolean contains(long tableId, long blockOffset) {
+        BlockKey key = new BlockKey(tableId, blockOffset);
+        return shards[key.hash & (shards.length - 1)].contains(key);
+    }
+
+    /**
+     * Removes all blocks of an SSTable, for example after it has been compacted away.
+     *
+     * @param tableId Cache ID of the SSTable
+     */
+    public void invalidate(long tableId) {
+        for (Shard shard : shards) {
+            shard.invalidate(tableId);
+        }
+    }
+
+    /**
+     * Gets the capacity of the cache.
+     *
+     * @return The capacity in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the off-heap memory currently held by cached blocks.
+     *
+     * @return The usage in bytes
+     */
+    public long getUsage() {
+        long usage = 0;
+        for (Shard shard : shards) {
+            usage += shard.getUsage();
+        }
+        return usage;
+    }
+
+    /**
+     * Gets the number of blocks in the cache.
+     *
+     * @return The block count
+     */
+    public long getBlockCount() {
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.getBlockCount();
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of lookups that found their block in the cache.
+     *
+     * @return The hit count
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that had to load their block.
+     *
+     * @return The miss count
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of blocks evicted to make room for others.
+     *
+     * @return The eviction count
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Reports the cache counters to the profiler.
+     *
+     * @param profiler The profiler to report to
+     * @param component Component name to report the metrics under
+     */
+    public void reportMetrics(PerformanceProfiler profiler, String component) {
+        long hitCount = getHitCount();
+        long missCount = getMissCount();
+        long lookups = hitCount + missCount;
+        profiler.recordCustomMetric(component, "block-cache", "block-cache.hits", hitCount, "count");
+        profiler.recordCustomMetric(component, "block-cache", "block-cache.misses", missCount, "count");
+        profiler.recordCustomMetric(component, "block-cache", "block-cache.evictions", getEvictionCount(), "count");
+        profiler.recordCustomMetric(component, "block-cache", "block-cache.hit-ratio",
+                lookups == 0 ? 0.0 : (double) hitCount / lookups, "ratio");
+        profiler.recordMemoryUsage(component, "block-cache", "block-cache.usage", getUsage());
+    }
+
+    @Override
+    public String toString() {
+        return "BlockCache{" +
+               "capacity=" + capacity +
+               ", shards=" + shards.length +
+               ", usage=" + getUsage() +
+               ", hits=" + getHitCount() +
+               ", misses=" + getMissCount() +
+               ", evictions=" + getEvictionCount() +
+               '}';
+    }
+
+    /**
+     * Rounds a block size up to its size class. Size classes are spaced a quarter of
+     * a power of two apart, so at most a fifth of a chunk is wasted.
+     */
+    static int sizeClass(int size) {
+        if (size <= MIN_CHUNK_SIZE) {
+            return MIN_CHUNK_SIZE;
+        }
+        int step = Integer.highestOneBit(size - 1) / 4;
+        return (size + step - 1) / step * step;
+    }
+
+    /**
+     * Identifies a block by its SSTable and offset.
+     */
+    private static final class BlockKey {
+        private final long tableId;
+        private final long offset;
+        private final int hash;
+
+        BlockKey(long tableId, long offset) {
+            this.tableId = tableId;
+            this.offset = offset;
+            long h = tableId * 0x9E3779B97F4A7C15L + offset;
+            h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+            h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+            this.hash = (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) o;
+            return tableId == other.tableId && offset == other.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A cached block and its place in one of the shard's LRU lists.
+     */
+    private static final class Node {
+        private static final byte WINDOW = 0;
+        private static final byte PROBATION = 1;
+        private static final byte PROTECTED = 2;
+
+        private final BlockKey key;
+        private final ByteBuffer chunk;
+        private final ByteBuffer data;
+        private byte segment;
+        private int pins;
+        private boolean evicted;
+        private Node prev;
+        private Node next;
+
+        Node(BlockKey key, ByteBuffer chunk, int size) {
+            this.key = key;
+            this.chunk = chunk;
+            ByteBuffer view = chunk.duplicate();
+            view.position(0).limit(size);
+            this.data = view.slice().asReadOnlyBuffer();
+        }
+
+        int weight() {
+            return chunk.capacity();
+        }
+    }
+
+    /**
+     * A doubly linked LRU list of nodes, least recently used first.
+     */
+    private static final class Segment {
+        private final Node head = new Node(null, ByteBuffer.allocate(0), 0);
+        private long weight;
+
+        Segment() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        Node first() {
+            return head.next == head ? null : head.next;
+        }
+
+        void addLast(Node node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            weight += node.weight();
+        }
+
+        void remove(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight();
+        }
+
+        void moveToLast(Node node) {
+            remove(node);
+            addLast(node);
+        }
+    }
+
+    /**
+     * One lock-protected part of the cache with its own W-TinyLFU policy.
+     */
+    private static final class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<BlockKey, Node> nodes = new HashMap<>();
+        private final Segment window = new Segment();
+        private final Segment probation = new Segment();
+        private final Segment protectedSegment = new Segment();
+        private final FrequencySketch sketch;
+        private final LongAdder evictions;
+
+        private final long capacity;
+        private final long windowCapacity;
+        private final long mainCapacity;
+        private final long protectedCapacity;
+
+        // Recycled chunks by size class
+        private final Map<Integer, ArrayDeque<ByteBuffer>> freeChunks = new HashMap<>();
+        private long liveBytes;
+        private long pooledBytes;
+
+        Shard(long capacity, LongAdder evictions) {
+            this.capacity = capacity;
+            this.windowCapacity = Math.max(capacity / 100, Math.min(capacity, 2 * TYPICAL_BLOCK_SIZE));
+            this.mainCapacity = capacity - windowCapacity;
+            this.protectedCapacity = mainCapacity * 8 / 10;
+            this.sketch = new FrequencySketch(capacity / TYPICAL_BLOCK_SIZE);
+            this.evictions = evictions;
+        }
+
+        /**
+         * Looks up and pins a block, recording the access.
+         */
+        Node acquire(BlockKey key) {
+            lock.lock();
+            try {
+                sketch.increment(key.hash);
+                Node node = nodes.get(key);
+                if (node == null) {
+                    return null;
+                }
+                onHit(node);
+                node.pins++;
+                return node;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean contains(BlockKey key) {
+            lock.lock();
+            try {
+                return nodes.containsKey(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Copies a block into the cache and pins it. If another reader cached the
+         * block in the meantime, that copy is pinned instead.
+         *
+         * @return The pinned node, or null if the block is too large to cache
+         */
+        Node insert(BlockKey key, ByteBuffer block) {
+            int chunkSize = sizeClass(block.remaining());
+            if (chunkSize > mainCapacity) {
+                return null;
+            }
+            lock.lock();
+            try {
+                Node existing = nodes.get(key);
+                if (existing != null) {
+                    existing.pins++;
+                    return existing;
+                }
+
+                ByteBuffer chunk = allocate(chunkSize);
+                chunk.clear();
+                chunk.put(block.duplicate());
+                Node node = new Node(key, chunk, block.remaining());
+                node.pins = 1;
+                node.segment = Node.WINDOW;
+                nodes.put(key, node);
+                window.addLast(node);
+                liveBytes += chunkSize;
+
+                evictFromWindow();
+                return node;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(Node node) {
+            lock.lock();
+            try {
+                node.pins--;
+                if (node.evicted && node.pins == 0) {
+                    recycle(node.chunk);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void invalidate(long tableId) {
+            lock.lock();
+            try {
+                Iterator<Node> iterator = nodes.values().iterator();
+                while (iterator.hasNext()) {
+                    Node node = iterator.next();
+                    if (node.key.tableId == tableId) {
+                        iterator.remove();
+                        unlink(node);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getBlockCount() {
+            lock.lock();
+            try {
+                return nodes.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long getUsage() {
+            lock.lock();
+            try {
+                return liveBytes + pooledBytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void onHit(Node node) {
+            switch (node.segment) {
+                case Node.WINDOW:
+                    window.moveToLast(node);
+                    break;
+                case Node.PROBATION:
+                    // A second access promotes the block to the protected segment
+                    probation.remove(node);
+                    node.segment = Node.PROTECTED;
+                    protectedSegment.addLast(node);
+                    while (protectedSegment.weight > protectedCapacity) {
+                        Node demoted = protectedSegment.first();
+                        protectedSegment.remove(demoted);
+                        demoted.segment = Node.PROBATION;
+                        probation.addLast(demoted);
+                    }
+                    break;
+                default:
+                    protectedSegment.moveToLast(node);
+                    break;
+            }
+        }
+
+        /**
+         * Moves blocks that overflow the window into the main area, where each one
+         * has to beat the main area's eviction candidate on frequency to stay.
+         */
+        private void evictFromWindow() {
+            while (window.weight > windowCapacity) {
+                Node candidate = window.first();
+                window.remove(candidate);
+
+                boolean admitted = true;
+                while (probation.weight + protectedSegment.weight + candidate.weight() > mainCapacity) {
+                    Node victim = probation.first() != null ? probation.first() : protectedSegment.first();
+                    if (victim == null || sketch.frequency(candidate.key.hash) <= sketch.frequency(victim.key.hash)) {
+                        admitted = false;
+                        break;
+                    }
+                    evict(victim);
+                }
+
+                if (admitted) {
+                    candidate.segment = Node.PROBATION;
+                    probation.addLast(candidate);
+                } else {
+                    nodes.remove(candidate.key);
+                    discard(candidate);
+                    evictions.increment();
+                }
+            }
+        }
+
+        private void evict(Node node) {
+            nodes.remove(node.key);
+            unlink(node);
+            evictions.increment();
+        }
+
+        private void unlink(Node node) {
+            switch (node.segment) {
+                case Node.WINDOW:
+                    window.remove(node);
+                    break;
+                case Node.PROBATION:
+                    probation.remove(node);
+                    break;
+                default:
+                    protectedSegment.remove(node);
+                    break;
+            }
+            discard(node);
+        }
+
+        /**
+         * Releases the memory of a node that is no longer in the cache, deferring
+         * the reuse of its chunk while readers still have it pinned.
+         */
+        private void discard(Node node) {
+            node.evicted = true;
+            liveBytes -= node.weight();
+            if (node.pins == 0) {
+                recycle(node.chunk);
+            }
+        }
+
+        private void recycle(ByteBuffer chunk) {
+            freeChunks.computeIfAbsent(chunk.capacity(), size -> new ArrayDeque<>()).push(chunk);
+            pooledBytes += chunk.capacity();
+        }
+
+        private ByteBuffer allocate(int chunkSize) {
+            ArrayDeque<ByteBuffer> free = freeChunks.get(chunkSize);
+            if (free != null && !free.isEmpty()) {
+                pooledBytes -= chunkSize;
+                return free.pop();
+            }
+
+            // Drop pooled chunks of other sizes to stay within capacity; the
+            // garbage collector frees their memory
+            Iterator<ArrayDeque<ByteBuffer>> pools = freeChunks.values().iterator();
+            while (liveBytes + pooledBytes + chunkSize > capacity && pools.hasNext()) {
+                ArrayDeque<ByteBuffer> pool = pools.next();
+                while (!pool.isEmpty() && liveBytes + pooledBytes + chunkSize > capacity) {
+                    pooledBytes -= pool.pop().capacity();
+                }
+            }
+            return ByteBuffer.allocateDirect(chunkSize);
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters estimating how often each block has
+     * been requested recently. Counters are halved periodically so the sketch
+     * follows changes in the access pattern.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {
+            0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L
+        };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int counterMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long expectedEntries) {
+            int entries = (int) Math.max(16, Math.min(expectedEntries, 1 << 24));
+            int length = Integer.highestOneBit(entries - 1) << 1;
+            this.table = new long[length];
+            this.counterMask = length * 16 - 1;
+            this.sampleSize = 10 * entries;
+        }
+
+        int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, counter(index(hash, i)));
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = index(hash, i);
+                if (counter(index) < 15) {
+                    table[index >>> 4] += 1L << ((index & 15) << 2);
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private int index(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & counterMask;
+        }
+
+        private int counter(int index) {
+            return (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 15);
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * BlockIterator decodes the entries of one SSTable data block.
+ *
+ * <p>Keys in a data block are prefix compressed: each entry stores only the part
+ * of its key that differs from the previous key. Every few entries a restart
+ * point stores the full key, and the block ends with the offsets of all restart
+ * points followed by their count:</p>
+ * <pre>
+ * entry: type(1) shared(varint) unshared(varint) valueLength(varint) sequence(varint64) keySuffix value
+ * block: entry ... entry restartOffset(4) ... restartOffset(4) restartCount(4)
+ * </pre>
+ * <p>The sequence field holds the entry's WAL sequence number plus one, or zero if
+ * the entry has none of its own. Versions of the same key follow each other,
+ * newest first.</p>
+ * <p>{@link #seek(byte[])} binary searches the restart points and then scans
+ * forward from the closest one, so it decodes at most one restart interval.</p>
+ *
+ * <p>An iterator is not thread-safe, and reads the block with absolute gets so it
+ * never moves the position of the buffer it was given.</p>
+ */
+class BlockIterator {
+
+    private final ByteBuffer block;
+    private final ByteBuffer view;
+    private final int restartsOffset;
+    private final int restartCount;
+
+    // Offset of the entry after the current one
+    private int nextOffset;
+
+    // Current entry
+    private boolean valid;
+    private byte type;
+    private byte[] key = new byte[32];
+    private int keyLength;
+    private int valueOffset;
+    private int valueLength;
+    private long sequence;
+
+    // Offset just past the varint most recently read
+    private int varintEnd;
+
+    /**
+     * Creates an iterator over a data block. The iterator starts out unpositioned;
+     * call {@link #seekToFirst()} or {@link #seek(byte[])} before reading.
+     *
+     * @param block The uncompressed block contents
+     * @throws IOException If the block has no valid restart array
+     */
+    BlockIterator(ByteBuffer block) throws IOException {
+        this.block = block;
+        this.view = block.duplicate();
+        int limit = block.limit();
+        if (limit < 4) {
+            throw new IOException("Data block is too small");
+        }
+        int count = block.getInt(limit - 4);
+        long offset = limit - 4 - 4L * count;
+        if (count < 1 || offset < 0) {
+            throw new IOException("Data block has an invalid restart array");
+        }
+        this.restartCount = count;
+        this.restartsOffset = (int) offset;
+    }
+
+    /**
+     * Positions the iterator at the first entry of the block.
+     *
+     * @throws IOException If the block is corrupt
+     */
+    void seekToFirst() throws IOException {
+        nextOffset = 0;
+        keyLength = 0;
+        next();
+    }
+
+    /**
+     * Positions the iterator at the first entry with a key greater than or equal
+     * to the target. The iterator is invalid afterwards if there is no such entry.
+     *
+     * @param target The key to seek to
+     * @throws IOException If the block is corrupt
+     */
+    void seek(byte[] target) throws IOException {
+        // Find the last restart point whose key is less than the target
+        int left = 0;
+        int right = restartCount - 1;
+        while (left < right) {
+            int mid = (left + right + 1) >>> 1;
+            if (compareRestartKey(restartPoint(mid), target) < 0) {
+                left = mid;
+            } else {
+                right = mid - 1;
+            }
+        }
+
+        nextOffset = restartPoint(left);
+        keyLength = 0;
+        while (next()) {
+            if (compareKey(target) >= 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves to the next entry.
+     *
+     * @return true if there is a next entry, false if the end of the block was reached
+     * @throws IOException If the block is corrupt
+     */
+    boolean next() throws IOException {
+        if (nextOffset >= restartsOffset) {
+            valid = false;
+            return false;
+        }
+
+        int offset = nextOffset;
+        type = block.get(offset++);
+        int shared = readVarint(offset);
+        offset = varintEnd;
+        int unshared = readVarint(offset);
+        offset = varintEnd;
+        int length = readVarint(offset);
+        offset = varintEnd;
+        long encodedSequence = readVarlong(offset);
+        offset = varintEnd;
+
+        if (shared > keyLength || (long) offset + unshared + length > restartsOffset) {
+            throw new IOException("Corrupt entry in data block at offset " + nextOffset);
+        }
+        if (shared + unshared > key.length) {
+            key = Arrays.copyOf(key, Math.max(shared + unshared, key.length * 2));
+        }
+        view.limit(offset + unshared).position(offset);
+        view.get(key, shared, unshared);
+        view.limit(block.limit());
+
+        keyLength = shared + unshared;
+        valueOffset = offset + unshared;
+        valueLength = length;
+        sequence = encodedSequence - 1;
+        nextOffset = valueOffset + valueLength;
+        valid = true;
+        return true;
+    }
+
+    /**
+     * @return true if the iterator is positioned at an entry
+     */
+    boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return true if the current entry is a tombstone
+     */
+    boolean isDeleted() {
+        return type == SSTable.TYPE_DELETE;
+    }
+
+    /**
+     * @return true if the current value is a pointer into a blob file
+     */
+    boolean isBlobIndex() {
+        return type == SSTable.TYPE_BLOB_INDEX;
+    }
+
+    /**
+     * @return The WAL sequence number of the current entry, or -1 if it has none
+     *         and takes the sequence number of its SSTable
+     */
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return A copy of the current key
+     */
+    byte[] key() {
+        return Arrays.copyOf(key, keyLength);
+    }
+
+    /**
+     * @return A copy of the current value, empty for a tombstone
+     */
+    byte[] value() {
+        byte[] value = new byte[valueLength];
+        view.limit(valueOffset + valueLength).position(valueOffset);
+        view.get(value);
+        view.limit(block.limit());
+        return value;
+    }
+
+    /**
+     * Compares the current key with another key, using the same ordering as
+     * {@link ByteArrayComparator}.
+     *
+     * @param other The key to compare with
+     * @return A negative number, zero or a positive number as the current key is
+     *         less than, equal to or greater than the other key
+     */
+    int compareKey(byte[] other) {
+        int minLength = Math.min(keyLength, other.length);
+        for (int i = 0; i < minLength; i++) {
+            int cmp = Byte.compare(key[i], other[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(keyLength, other.length);
+    }
+
+    private int restartPoint(int index) throws IOException {
+        int offset = block.getInt(restartsOffset + 4 * index);
+        if (offset < 0 || offset >= restartsOffset) {
+            throw new IOException("Invalid restart point in data block: " + offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Compares the key stored at a restart point, which shares no prefix with the
+     * entry before it, with the target key.
+     */
+    private int compareRestartKey(int offset, byte[] target) throws IOException {
+        readVarint(offset + 1);
+        int unshared = readVarint(varintEnd);
+        readVarint(varintEnd);
+        readVarlong(varintEnd);
+        int keyOffset = varintEnd;
+        if ((long) keyOffset + unshared > restartsOffset) {
+            throw new IOException("Corrupt restart entry in data block at offset " + offset);
+        }
+
+        int minLength = Math.min(unshared, target.length);
+        for (int i = 0; i < minLength; i++) {
+            int cmp = Byte.compare(block.get(keyOffset + i), target[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(unshared, target.length);
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint of at most five bytes.
+     */
+    private int readVarint(int offset) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (offset >= restartsOffset) {
+                throw new IOException("Truncated varint in data block");
+            }
+            byte b = block.get(offset++);
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                varintEnd = offset;
+                if (result < 0) {
+                    throw new IOException("Varint out of range in data block");
+                }
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint in data block");
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint of at most ten bytes.
+     */
+    private long readVarlong(int offset) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            if (offset >= restartsOffset) {
+                throw new IOException("Truncated varint in data block");
+            }
+            byte b = block.get(offset++);
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                varintEnd = offset;
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint in data block");
+    }
+}
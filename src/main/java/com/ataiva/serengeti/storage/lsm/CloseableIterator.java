@@ -0,0 +1,25 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.util.Iterator;
+
+/**
+ * CloseableIterator is an iterator that holds on to resources until it is
+ * exhausted or closed, whichever comes first.
+ *
+ * <p>A scan of an {@link LSMStorageEngine} keeps the MemTables and SSTables it
+ * started with, and the blob files they point into, so that it reads a
+ * consistent state however much is flushed or compacted meanwhile. A scan that
+ * is not read to the end should therefore be closed, or the files that
+ * compactions replaced stay on disk until the engine is closed. Closing more
+ * than once has no effect.</p>
+ *
+ * @param <T> The type of the elements
+ */
+public interface CloseableIterator<T> extends Iterator<T>, AutoCloseable {
+
+    /**
+     * Releases the resources of the iterator. It has no further elements afterwards.
+     */
+    @Override
+    void close();
+}
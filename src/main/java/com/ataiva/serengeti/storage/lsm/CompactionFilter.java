@@ -0,0 +1,25 @@
+package com.ataiva.serengeti.storage.lsm;
+
+/**
+ * CompactionFilter lets an application drop or rewrite entries while compactions
+ * copy them, for example to expire rows whose value holds a timestamp, without
+ * writing a delete for each of them.
+ *
+ * <p>The filter is called with the newest version of each key that a compaction
+ * keeps, unless a live snapshot can read that version, in which case it is kept
+ * as it is. It is not called for deleted keys. Compactions run on several threads
+ * at once, so a filter must be thread-safe, and it must be quick, since it is
+ * called for every entry a compaction writes.</p>
+ */
+public interface CompactionFilter {
+
+    /**
+     * Decides what happens to an entry.
+     *
+     * @param key The key
+     * @param value The value, read from its blob file if it was separated
+     * @return {@code value} itself to keep the entry, another value to write in its
+     *         place, or null or an empty array to delete the key
+     */
+    byte[] filter(byte[] key, byte[] value);
+}
@@ -613,6 +613,12 @@ public class CompactionStrategy {
     public enum CompactionType {
         SIZE_TIERED,
         LEVELED,
-        HYBRID
+        HYBRID,
+        /**
+         * Merges only SSTables whose newest data falls in the same time window, for
+         * data with a time to live. The SSTables are picked by
+         * {@link LSMStorageEngine}; this class leaves them as they are.
+         */
+        TIME_WINDOW
     }
 }
\ No newline at end of file
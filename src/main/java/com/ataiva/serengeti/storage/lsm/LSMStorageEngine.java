@@ -1,16 +1,29 @@
 package com.ataiva.serengeti.storage.lsm;
 
+import com.ataiva.serengeti.storage.compression.StorageCompressor.CompressionAlgorithm;
 import com.ataiva.serengeti.storage.wal.WALManager;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,30 +36,101 @@ public class LSMStorageEngine implements AutoCloseable {
     
     private static final Logger LOGGER = Logger.getLogger(LSMStorageEngine.class.getName());
     
+    /**
+     * Default size at which compaction output is split into a new SSTable file.
+     */
+    public static final long DEFAULT_COMPACTION_TARGET_FILE_SIZE = 64L * 1024 * 1024;
+    
+    /**
+     * Default for the most key ranges a compaction is split into.
+     */
+    public static final int DEFAULT_MAX_SUBCOMPACTIONS = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    
+    /**
+     * Default share of a blob file's bytes that must be garbage before compactions
+     * move its remaining values to new blob files.
+     */
+    public static final double DEFAULT_BLOB_GARBAGE_COLLECTION_THRESHOLD = 0.5;
+    
+    /**
+     * Default span of a time window for time-window compaction.
+     */
+    public static final long DEFAULT_COMPACTION_TIME_WINDOW = 60L * 60 * 1000;
+    
+    // Runs the subcompactions of all engines; its daemon workers end when idle
+    private static final ForkJoinPool SUBCOMPACTION_POOL = new ForkJoinPool(DEFAULT_MAX_SUBCOMPACTIONS, pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("lsm-subcompaction-thread-" + thread.getPoolIndex());
+        return thread;
+    }, null, false);
+    
     // Configuration
     private final Path dataDirectory;
     private final long memTableMaxSize;
+    private final MemTable.Type memTableType;
     private final int maxImmutableMemTables;
     
     // Compaction configuration
     private final int compactionTriggerThreshold;
     private final int compactionMaxSSTablesToMerge;
     private final long compactionIntervalMs;
+    private volatile long compactionTargetFileSize = DEFAULT_COMPACTION_TARGET_FILE_SIZE;
+    
+    // Most key ranges a compaction is split into
+    private volatile int maxSubcompactions = DEFAULT_MAX_SUBCOMPACTIONS;
+    
+    // How SSTables are picked for compaction, and the span of a time window
+    private volatile CompactionStrategy.CompactionType compactionType = CompactionStrategy.CompactionType.SIZE_TIERED;
+    private volatile long compactionTimeWindow = DEFAULT_COMPACTION_TIME_WINDOW;
+    
+    // Drops or rewrites entries as compactions copy them, if set
+    private volatile CompactionFilter compactionFilter;
+    
+    // SSTables whose newest write is older than this are deleted, or 0 to keep them
+    private volatile long timeToLive = 0;
+    
+    // Compression of SSTable data blocks written from now on
+    private volatile CompressionAlgorithm compression = SSTableWriter.DEFAULT_COMPRESSION;
     
     // WAL configuration
     private final WALManager walManager;
     private final Path walDirectory;
     private final WALManager.SyncMode walSyncMode;
     
+    // Cache of SSTable data blocks, possibly shared with other engines
+    private final BlockCache blockCache;
+    
+    // Large values kept outside the SSTables, and the size from which values are kept there
+    private final BlobStore blobStore;
+    private volatile int minBlobSize = 0;
+    private volatile double blobGarbageCollectionThreshold = DEFAULT_BLOB_GARBAGE_COLLECTION_THRESHOLD;
+    
+    // Flushes and compactions hold the read lock while they write blob files, until
+    // their SSTables are installed; deleting unreferenced blob files takes the write lock
+    private final ReentrantReadWriteLock blobFileLock = new ReentrantReadWriteLock();
+    private volatile boolean obsoleteBlobFilesPending = false;
+    
+    // Number of open SSTables pointing into each blob file, including the ones that
+    // compactions replaced but that readers still hold
+    private final Map<Long, Integer> blobFileReferences = new HashMap<>();
+    
     // Active MemTable for writes
     private volatile MemTable activeMemTable;
     
-    // Immutable MemTables waiting to be flushed to disk
-    private final Queue<MemTable> immutableMemTables;
+    // Immutable MemTables waiting to be flushed to disk, oldest first
+    private final Deque<MemTable> immutableMemTables;
     
-    // SSTables on disk
+    // SSTables on disk, ordered from oldest to newest. The list holds a reference
+    // to each of them.
     private final List<SSTable> ssTables;
     
+    // What reads look at, republished whenever the MemTables or SSTables change
+    private volatile SuperVersion superVersion;
+    private final Object superVersionLock = new Object();
+    
+    // Durable record of the live SSTables
+    private final VersionSet versionSet;
+    
     // SSTable ID generator
     private final AtomicLong ssTableIdGenerator;
     
@@ -60,6 +144,29 @@ public class LSMStorageEngine implements AutoCloseable {
     
     // List to track MemTables and their checkpoints
     private final List<MemTableWithCheckpoint> memTablesWithCheckpoints = new ArrayList<>();
+    private final AtomicLong checkpointIdGenerator = new AtomicLong();
+    
+    // Write path locking: writers share the read lock while they update the active
+    // MemTable, and switching the active MemTable or placing ingested SSTables
+    // takes the write lock
+    private final ReentrantReadWriteLock memTableLock = new ReentrantReadWriteLock();
+    private final ReentrantLock[] keyLocks;
+    private static final int KEY_LOCK_STRIPES = 256;
+    
+    // Slows down writers when flushes or compactions fall behind
+    private final WriteController writeController;
+    
+    // Limits the rate at which flushes and compactions write SSTables
+    private volatile RateLimiter ioRateLimiter = new RateLimiter(0);
+    
+    // Sequence numbers of the live snapshots, with the number of snapshots at each
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    
+    // Sequence number of the oldest live snapshot, or Long.MAX_VALUE if there is none
+    private volatile long oldestSnapshot = Long.MAX_VALUE;
+    
+    // Number of WAL files read at once during recovery
+    private static final int RECOVERY_PARALLELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
     
     /**
      * Creates a new LSMStorageEngine.
@@ -106,6 +213,52 @@ public class LSMStorageEngine implements AutoCloseable {
     public LSMStorageEngine(Path dataDirectory, long memTableMaxSize, int maxImmutableMemTables,
                            int compactionTriggerThreshold, int compactionMaxSSTablesToMerge,
                            long compactionIntervalMs, WALManager.SyncMode walSyncMode) throws IOException {
+        this(dataDirectory, memTableMaxSize, maxImmutableMemTables, compactionTriggerThreshold,
+             compactionMaxSSTablesToMerge, compactionIntervalMs, walSyncMode,
+             new BlockCache(BlockCache.DEFAULT_CAPACITY));
+    }
+    
+    /**
+     * Creates a new LSMStorageEngine with custom compaction and WAL settings and a
+     * block cache for SSTable reads.
+     *
+     * @param dataDirectory Directory to store SSTable files
+     * @param memTableMaxSize Maximum size of a MemTable before flushing
+     * @param maxImmutableMemTables Maximum number of immutable MemTables to keep in memory
+     * @param compactionTriggerThreshold Number of SSTables that triggers compaction
+     * @param compactionMaxSSTablesToMerge Maximum number of SSTables to merge in one compaction
+     * @param compactionIntervalMs Time between compaction checks in milliseconds
+     * @param walSyncMode WAL sync mode (SYNC, ASYNC, GROUP)
+     * @param blockCache Cache for SSTable data blocks, or null to read blocks straight from the files
+     * @throws IOException If an I/O error occurs
+     */
+    public LSMStorageEngine(Path dataDirectory, long memTableMaxSize, int maxImmutableMemTables,
+                           int compactionTriggerThreshold, int compactionMaxSSTablesToMerge,
+                           long compactionIntervalMs, WALManager.SyncMode walSyncMode,
+                           BlockCache blockCache) throws IOException {
+        this(dataDirectory, memTableMaxSize, maxImmutableMemTables, compactionTriggerThreshold,
+             compactionMaxSSTablesToMerge, compactionIntervalMs, walSyncMode, blockCache, MemTable.Type.HEAP);
+    }
+    
+    /**
+     * Creates a new LSMStorageEngine with custom compaction and WAL settings, a
+     * block cache for SSTable reads and a choice of MemTable implementation.
+     *
+     * @param dataDirectory Directory to store SSTable files
+     * @param memTableMaxSize Maximum size of a MemTable before flushing
+     * @param maxImmutableMemTables Maximum number of immutable MemTables to keep in memory
+     * @param compactionTriggerThreshold Number of SSTables that triggers compaction
+     * @param compactionMaxSSTablesToMerge Maximum number of SSTables to merge in one compaction
+     * @param compactionIntervalMs Time between compaction checks in milliseconds
+     * @param walSyncMode WAL sync mode (SYNC, ASYNC, GROUP)
+     * @param blockCache Cache for SSTable data blocks, or null to read blocks straight from the files
+     * @param memTableType HEAP, or OFF_HEAP to keep MemTable data in direct buffers
+     * @throws IOException If an I/O error occurs
+     */
+    public LSMStorageEngine(Path dataDirectory, long memTableMaxSize, int maxImmutableMemTables,
+                           int compactionTriggerThreshold, int compactionMaxSSTablesToMerge,
+                           long compactionIntervalMs, WALManager.SyncMode walSyncMode,
+                           BlockCache blockCache, MemTable.Type memTableType) throws IOException {
         this.dataDirectory = dataDirectory;
         this.memTableMaxSize = memTableMaxSize;
         this.maxImmutableMemTables = maxImmutableMemTables;
@@ -113,6 +266,8 @@ public class LSMStorageEngine implements AutoCloseable {
         this.compactionMaxSSTablesToMerge = compactionMaxSSTablesToMerge;
         this.compactionIntervalMs = compactionIntervalMs;
         this.walSyncMode = walSyncMode;
+        this.blockCache = blockCache;
+        this.memTableType = memTableType;
         
         // Create data directory if it doesn't exist
         Files.createDirectories(dataDirectory);
@@ -123,17 +278,31 @@ public class LSMStorageEngine implements AutoCloseable {
         this.walManager = new WALManager(walDirectory, 64 * 1024 * 1024, walSyncMode, 100, 1000);
         
         // Initialize data structures
-        this.activeMemTable = new MemTable(memTableMaxSize);
+        this.activeMemTable = MemTable.create(memTableType, memTableMaxSize);
         this.immutableMemTables = new LinkedList<>();
         this.ssTables = new ArrayList<>();
+        this.versionSet = new VersionSet(dataDirectory);
+        this.blobStore = new BlobStore(dataDirectory);
         this.ssTableIdGenerator = new AtomicLong(System.currentTimeMillis());
         this.compactionRunning = false;
-        
-        // Recover from WAL if needed
-        recoverFromWAL();
+        this.keyLocks = new ReentrantLock[KEY_LOCK_STRIPES];
+        for (int i = 0; i < keyLocks.length; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
+        int slowdownMemTables = Math.max(1, maxImmutableMemTables);
+        int slowdownL0Files = 2 * Math.max(1, compactionTriggerThreshold);
+        this.writeController = new WriteController(slowdownMemTables, slowdownMemTables + 1,
+                slowdownL0Files, 2 * slowdownL0Files,
+                WriteController.DEFAULT_SLOWDOWN_PENDING_COMPACTION_BYTES,
+                WriteController.DEFAULT_STOP_PENDING_COMPACTION_BYTES,
+                WriteController.DEFAULT_DELAYED_WRITE_RATE);
         
         // Load existing SSTables
         loadExistingSSTables();
+        installSuperVersion();
+        
+        // Recover from WAL if needed
+        recoverFromWAL();
         
         // Start background threads
         this.running = true;
@@ -146,191 +315,967 @@ public class LSMStorageEngine implements AutoCloseable {
         this.compactionThread.setName("lsm-compaction-thread");
         this.compactionThread.setDaemon(true);
         this.compactionThread.start();
+        
+        // Slow writers down at once if files were left behind by an earlier run
+        updateWriteState();
     }
     
     /**
      * Puts a key-value pair into the storage engine.
+     * Safe to call from many threads at once.
      * 
      * @param key The key as a byte array
      * @param value The value as a byte array
      * @throws IOException If an I/O error occurs
      */
-    public synchronized void put(byte[] key, byte[] value) throws IOException {
+    public void put(byte[] key, byte[] value) throws IOException {
         // Check if key is null
         if (key == null) {
             return;
         }
-        
-        // Log to WAL first
-        walManager.logPut(key, value);
-        
-        // Put in active MemTable
-        boolean shouldFlush = activeMemTable.put(key, value);
-        
-        // If MemTable is full, make it immutable and create a new active MemTable
-        if (shouldFlush) {
-            makeActiveMemTableImmutable();
-        }
+        applyWrite(key, value, false);
     }
     
     /**
      * Deletes a key from the storage engine.
+     * Safe to call from many threads at once.
      * 
      * @param key The key to delete
      * @throws IOException If an I/O error occurs
      */
-    public synchronized void delete(byte[] key) throws IOException {
+    public void delete(byte[] key) throws IOException {
         // Check if key is null
         if (key == null) {
             return;
         }
+        applyWrite(key, null, true);
+    }
+    
+    /**
+     * Deletes every key from a start key (inclusive) to an end key (exclusive)
+     * with a single range tombstone. It costs one WAL record and one MemTable entry
+     * however many keys the range holds. Reads skip the versions it hides,
+     * compactions drop them, and SSTables it covers entirely are deleted without
+     * being read. Writes made after it are not affected.
+     * Safe to call from many threads at once.
+     * 
+     * @param startKey The first key to delete, or null to start at the first key
+     * @param endKey The key to stop before, or null to delete to the last key
+     * @throws IOException If an I/O error occurs
+     */
+    public void deleteRange(byte[] startKey, byte[] endKey) throws IOException {
+        byte[] start = startKey != null ? startKey : new byte[0];
+        if (endKey != null && new ByteArrayComparator().compare(start, endKey) >= 0) {
+            return; // Empty range
+        }
+        writeController.beforeWrite(start.length + (endKey != null ? endKey.length : 0));
         
-        // Log to WAL first
-        walManager.logDelete(key);
-        
-        // Mark as deleted in active MemTable
-        boolean shouldFlush = activeMemTable.delete(key);
+        MemTable target;
+        boolean shouldFlush;
+        memTableLock.readLock().lock();
+        try {
+            // Range tombstones hide older versions by sequence number, so unlike
+            // puts they need no key lock
+            long sequence = walManager.logDeleteRange(start, endKey);
+            target = activeMemTable;
+            shouldFlush = target.deleteRange(start, endKey, sequence);
+        } finally {
+            memTableLock.readLock().unlock();
+        }
         
-        // If MemTable is full, make it immutable and create a new active MemTable
         if (shouldFlush) {
-            makeActiveMemTableImmutable();
+            makeActiveMemTableImmutable(target);
         }
     }
     
     /**
-     * Gets the value for a given key.
+     * Deletes every key that starts with a prefix with a single range tombstone,
+     * such as all rows of a table whose keys start with the table name.
      * 
-     * @param key The key to look up
-     * @return The value, or null if the key doesn't exist or has been deleted
+     * @param prefix The key prefix; an empty prefix deletes everything
      * @throws IOException If an I/O error occurs
+     * @see #deleteRange(byte[], byte[])
      */
-    public byte[] get(byte[] key) throws IOException {
-        // Check if key is null
-        if (key == null) {
-            return null;
+    public void deletePrefix(byte[] prefix) throws IOException {
+        if (prefix == null) {
+            throw new IllegalArgumentException("Prefix cannot be null");
         }
-        
-        // Check active MemTable first
-        byte[] value = activeMemTable.get(key);
-        if (value != null) {
-            return value;
+        deleteRange(prefix, prefixEnd(prefix));
+    }
+    
+    /**
+     * Gets the smallest key that sorts after every key with a prefix, in the
+     * signed byte order of {@link ByteArrayComparator}.
+     * 
+     * @return The key, or null if no key sorts after the prefix's keys
+     */
+    static byte[] prefixEnd(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != Byte.MAX_VALUE) {
+                byte[] end = Arrays.copyOf(prefix, i + 1);
+                end[i]++;
+                return end;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Applies a batch of puts and deletes. The batch is logged as a single WAL
+     * record, so it costs one write and at most one sync however many operations
+     * it holds, and it is recovered after a crash either completely or not at all.
+     * All operations land in the same MemTable. Readers may see some operations of
+     * a batch before others while it is being applied.
+     * Safe to call from many threads at once.
+     * 
+     * @param batch The operations to apply
+     * @throws IOException If an I/O error occurs
+     */
+    public void write(WriteBatch batch) throws IOException {
+        if (batch == null || batch.isEmpty()) {
+            return;
         }
+        writeController.beforeWrite(batch.getApproximateSize());
+        List<byte[]> keys = batch.keys();
+        List<byte[]> values = batch.values();
         
-        // Check immutable MemTables
-        synchronized (immutableMemTables) {
-            for (MemTable memTable : immutableMemTables) {
-                value = memTable.get(key);
-                if (value != null) {
-                    return value;
+        // Take the stripe lock of every key in stripe order, so batches with
+        // overlapping keys cannot deadlock
+        boolean[] stripes = new boolean[keyLocks.length];
+        for (byte[] key : keys) {
+            stripes[Math.floorMod(Arrays.hashCode(key), keyLocks.length)] = true;
+        }
+        int locked = 0;
+        MemTable target;
+        boolean shouldFlush = false;
+        try {
+            for (; locked < stripes.length; locked++) {
+                if (stripes[locked]) {
+                    keyLocks[locked].lock();
+                }
+            }
+            memTableLock.readLock().lock();
+            try {
+                // The operations have consecutive sequence numbers
+                long sequence = walManager.logBatch(keys, values);
+                
+                target = activeMemTable;
+                for (int i = 0; i < keys.size(); i++) {
+                    byte[] value = values.get(i);
+                    long operationSequence = sequence + i;
+                    boolean keepPrevious = oldestSnapshot < operationSequence;
+                    shouldFlush |= value != null
+                            ? target.put(keys.get(i), value, operationSequence, keepPrevious)
+                            : target.delete(keys.get(i), operationSequence, keepPrevious);
+                }
+            } finally {
+                memTableLock.readLock().unlock();
+            }
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                if (stripes[i]) {
+                    keyLocks[i].unlock();
                 }
             }
         }
         
-        // Check SSTables from newest to oldest
-        synchronized (ssTables) {
-            for (int i = ssTables.size() - 1; i >= 0; i--) {
-                SSTable ssTable = ssTables.get(i);
-                if (ssTable.mightContain(key)) {
-                    value = ssTable.get(new String(key));
-                    if (value != null) {
-                        return value;
+        if (shouldFlush) {
+            makeActiveMemTableImmutable(target);
+        }
+    }
+    
+    /**
+     * Loads pre-sorted entries by writing them straight to new SSTables, bypassing
+     * the WAL and the MemTables. Each byte is written once instead of once to the
+     * WAL, once by the flush and again by every compaction, so this is the way to
+     * load initial data or restore a snapshot.
+     * 
+     * The output is split into files of the compaction target size. They are
+     * placed on top of all other SSTables, as if the entries had just been written,
+     * after flushing any MemTable that overlaps their key range. Writes to the range
+     * made while ingesting may end up ordered either side of the ingested entries.
+     * Nothing is visible until every file has been written, and snapshots taken
+     * before do not see the ingested entries.
+     * 
+     * @param entries Entries in strictly increasing key order; a null or empty value is a delete
+     * @return The number of entries ingested
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the keys are not in strictly increasing order
+     */
+    public long ingestSorted(Iterator<Map.Entry<byte[], byte[]>> entries) throws IOException {
+        List<SSTable> ingested = new ArrayList<>();
+        long entryCount = 0;
+        blobFileLock.readLock().lock();
+        try {
+            ByteArrayComparator comparator = new ByteArrayComparator();
+            SSTableWriter writer = null;
+            String fileId = null;
+            byte[] lastKey = null;
+            try {
+                while (entries.hasNext()) {
+                    Map.Entry<byte[], byte[]> entry = entries.next();
+                    
+                    // The writer checks the order within a file, this across files
+                    if (lastKey != null && comparator.compare(entry.getKey(), lastKey) <= 0) {
+                        throw new IllegalArgumentException("Keys must be in strictly increasing order");
                     }
+                    lastKey = entry.getKey();
+                    
+                    if (writer != null && writer.getEstimatedSize() >= compactionTargetFileSize) {
+                        ingested.add(finishIngestedFile(writer, fileId));
+                        writer.close();
+                        writer = null;
+                    }
+                    if (writer == null) {
+                        fileId = String.format("%016x", ssTableIdGenerator.incrementAndGet());
+                        writer = newSSTableWriter(fileId, null);
+                    }
+                    writer.add(entry.getKey(), entry.getValue());
+                    entryCount++;
+                }
+                if (writer != null) {
+                    ingested.add(finishIngestedFile(writer, fileId));
+                }
+            } finally {
+                if (writer != null) {
+                    writer.close();
                 }
             }
+            installIngestedFiles(ingested);
+        } catch (IOException | RuntimeException e) {
+            discardIngestedFiles(ingested);
+            throw e;
+        } finally {
+            blobFileLock.readLock().unlock();
         }
-        
-        // Key not found
-        return null;
+        LOGGER.info("Ingested " + entryCount + " entries into " + ingested.size() + " SSTables");
+        return entryCount;
     }
     
     /**
-     * Makes the active MemTable immutable and creates a new active MemTable.
+     * Ingests an SSTable written outside the engine, for example with
+     * {@link SSTableWriter} by a bulk export. The file is hard linked into the data
+     * directory, or copied if it cannot be linked, and is then placed like the
+     * output of {@link #ingestSorted(Iterator)}. The original file is left in place.
      * 
-     * @throws IOException If an I/O error occurs
+     * @param file The SSTable file to ingest
+     * @throws IOException If the file is not a valid SSTable, points into blob
+     *         files, or cannot be linked or copied
      */
-    private synchronized void makeActiveMemTableImmutable() throws IOException {
-        // Create a checkpoint in the WAL for this MemTable
-        String checkpointName = "memtable-" + System.currentTimeMillis();
-        long checkpointSeq = walManager.checkpoint(checkpointName);
+    public void ingestExternalFile(Path file) throws IOException {
+        // Validate the file before it is linked into the data directory
+        SSTable external = new SSTable(file);
+        try {
+            if (!external.getBlobReferences().isEmpty()) {
+                throw new IOException("Cannot ingest an SSTable that points into blob files: " + file);
+            }
+        } finally {
+            external.close();
+        }
         
-        // Add current active MemTable to immutable list with its checkpoint info
-        MemTableWithCheckpoint memTableWithCheckpoint = new MemTableWithCheckpoint(activeMemTable, checkpointName, checkpointSeq);
-        synchronized (immutableMemTables) {
-            immutableMemTables.add(activeMemTable);
+        String fileId = String.format("%016x", ssTableIdGenerator.incrementAndGet());
+        Path target = dataDirectory.resolve(SSTable.fileName(fileId));
+        try {
+            Files.createLink(target, file);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Different file system, or no hard links
+            Path temp = dataDirectory.resolve(SSTable.fileName(fileId) + ".tmp");
+            Files.copy(file, temp);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
         }
         
-        // Add to checkpoint tracking
-        memTablesWithCheckpoints.add(memTableWithCheckpoint);
+        List<SSTable> ingested = new ArrayList<>();
+        try {
+            SSTable ssTable = new SSTable(target);
+            ssTable.setBlockCache(blockCache);
+            ssTable.setBlobStore(blobStore);
+            ingested.add(ssTable);
+            installIngestedFiles(ingested);
+        } catch (IOException | RuntimeException e) {
+            discardIngestedFiles(ingested);
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        LOGGER.info("Ingested external SSTable " + file.getFileName() + " as " + target.getFileName());
+    }
+    
+    private SSTable finishIngestedFile(SSTableWriter writer, String fileId) throws IOException {
+        SSTable ssTable = writer.finish(fileId, 0);
+        ssTable.setBlockCache(blockCache);
+        ssTable.setBlobStore(blobStore);
+        return ssTable;
+    }
+    
+    /**
+     * Logs ingested SSTables to the MANIFEST and makes them visible on top of all
+     * other SSTables. They get a new sequence number, which hides them from
+     * snapshots taken before and keeps them in the same place after a restart.
+     * They cannot go below older SSTables even when no key overlaps: a restart
+     * orders SSTables by sequence number, and so would a compaction merging them
+     * with older ones.
+     */
+    private void installIngestedFiles(List<SSTable> ingested) throws IOException {
+        if (ingested.isEmpty()) {
+            return;
+        }
+        byte[] minKey = ingested.get(0).getMinKeyBytes();
+        byte[] maxKey = ingested.get(ingested.size() - 1).getMaxKeyBytes();
         
-        // Create a new active MemTable
-        activeMemTable = new MemTable(memTableMaxSize);
+        // Entries in a MemTable are newer than the ingested ones, so they must be in
+        // SSTables below the ingested files first. No write may reach a MemTable
+        // between the flush and the reservation of the ingested files' sequence
+        // number, or it would sort below them, so both happen under the write lock.
+        memTableLock.writeLock().lock();
+        try {
+            flushOverlappingMemTables(minKey, maxKey);
+            
+            // The reserved sequence number sorts after every SSTable, including the
+            // ones just flushed, and before the SSTables of later writes
+            long sequence = walManager.reserveSequence();
+            VersionEdit edit = new VersionEdit();
+            for (SSTable ssTable : ingested) {
+                ssTable.setMaxSequence(sequence);
+                edit.addFile(ssTable);
+            }
+            edit.setLastFileId(ssTableIdGenerator.get());
+            versionSet.logAndApply(edit);
+            
+            for (SSTable ssTable : ingested) {
+                addSSTableReference(ssTable);
+            }
+            synchronized (ssTables) {
+                ssTables.addAll(ingested);
+            }
+            installSuperVersion();
+            LOGGER.info("Installed " + ingested.size() + " ingested SSTables on top of the existing ones");
+        } finally {
+            memTableLock.writeLock().unlock();
+        }
         
-        // Notify flush thread
-        synchronized (flushThread) {
-            flushThread.notify();
+        synchronized (compactionThread) {
+            compactionThread.notify();
+        }
+        updateWriteState();
+    }
+    
+    private void discardIngestedFiles(List<SSTable> ingested) throws IOException {
+        for (SSTable ssTable : ingested) {
+            if (!versionSet.contains(ssTable.getId())) {
+                ssTable.close();
+                Files.deleteIfExists(ssTable.getFilePath());
+            }
         }
     }
     
     /**
-     * Background thread that flushes immutable MemTables to disk as SSTables.
+     * Flushes the MemTables holding keys in a range and waits until their
+     * SSTables have been added.
      */
-    private void flushLoop() {
-        while (running) {
+    private void flushOverlappingMemTables(byte[] minKey, byte[] maxKey) throws IOException {
+        MemTable active = activeMemTable;
+        if (memTableOverlaps(active, minKey, maxKey)) {
+            makeActiveMemTableImmutable(active);
+        }
+        
+        synchronized (immutableMemTables) {
+            List<MemTable> pending = new ArrayList<>();
+            for (MemTable memTable : immutableMemTables) {
+                if (memTableOverlaps(memTable, minKey, maxKey)) {
+                    pending.add(memTable);
+                }
+            }
             try {
-                // Wait if no immutable MemTables
-                synchronized (flushThread) {
-                    while (running && immutableMemTables.isEmpty()) {
-                        flushThread.wait();
+                while (!pending.isEmpty()) {
+                    if (!running) {
+                        throw new IOException("Storage engine closed while flushing for ingestion");
                     }
+                    immutableMemTables.wait(100);
+                    pending.retainAll(immutableMemTables);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while flushing for ingestion");
+            }
+        }
+    }
+    
+    private static boolean memTableOverlaps(MemTable memTable, byte[] minKey, byte[] maxKey) {
+        if (rangeTombstonesOverlap(memTable.getRangeTombstones(), minKey, maxKey)) {
+            return true;
+        }
+        Iterator<Map.Entry<byte[], byte[]>> iterator = memTable.iterator(minKey, null);
+        return iterator.hasNext() && new ByteArrayComparator().compare(iterator.next().getKey(), maxKey) <= 0;
+    }
+    
+    /**
+     * Checks whether any of the range tombstones has keys from minKey to maxKey, both inclusive.
+     */
+    private static boolean rangeTombstonesOverlap(List<RangeTombstone> tombstones, byte[] minKey, byte[] maxKey) {
+        for (RangeTombstone tombstone : tombstones) {
+            if (tombstone.overlaps(minKey, maxKey) || tombstone.contains(maxKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Logs a write to the WAL and applies it to the active MemTable.
+     * 
+     * Writers to different keys run in parallel: their WAL records are combined
+     * into group writes by the WALManager, and the MemTable is a concurrent skip
+     * list. Writers to the same key are ordered by a striped lock, so the MemTable
+     * always ends up with the value of the highest sequence number, as replay would.
+     * The MemTable read lock keeps the active MemTable from being switched between
+     * the WAL write and the MemTable update.
+     * 
+     * @param key The key
+     * @param value The value, or null for a delete
+     * @param delete Whether this is a delete
+     * @throws IOException If an I/O error occurs
+     */
+    private void applyWrite(byte[] key, byte[] value, boolean delete) throws IOException {
+        writeController.beforeWrite(key.length + (value != null ? value.length : 0));
+        
+        MemTable target;
+        boolean shouldFlush;
+        
+        ReentrantLock keyLock = keyLocks[Math.floorMod(Arrays.hashCode(key), keyLocks.length)];
+        keyLock.lock();
+        try {
+            memTableLock.readLock().lock();
+            try {
+                // Log to WAL first
+                long sequence = delete ? walManager.logDelete(key) : walManager.logPut(key, value);
                 
-                if (!running) {
-                    break;
+                // Snapshots taken before this write still read the version it replaces
+                boolean keepPrevious = oldestSnapshot < sequence;
+                target = activeMemTable;
+                shouldFlush = delete
+                        ? target.delete(key, sequence, keepPrevious)
+                        : target.put(key, value, sequence, keepPrevious);
+            } finally {
+                memTableLock.readLock().unlock();
+            }
+        } finally {
+            keyLock.unlock();
+        }
+        
+        // If MemTable is full, make it immutable and create a new active MemTable
+        if (shouldFlush) {
+            makeActiveMemTableImmutable(target);
+        }
+    }
+    
+    /**
+     * Gets the value for a given key.
+     * 
+     * @param key The key to look up
+     * @return The value, or null if the key doesn't exist or has been deleted
+     * @throws IOException If an I/O error occurs
+     */
+    public byte[] get(byte[] key) throws IOException {
+        return get(key, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Gets the value a key had when a snapshot was taken.
+     * 
+     * @param key The key to look up
+     * @param snapshot The snapshot to read
+     * @return The value, or null if the key didn't exist or had been deleted
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalStateException If the snapshot has been released
+     */
+    public byte[] get(byte[] key, Snapshot snapshot) throws IOException {
+        return get(key, checkSnapshot(snapshot));
+    }
+    
+    /**
+     * Looks up the newest version of a key with a sequence number no higher than
+     * the given one.
+     */
+    private byte[] get(byte[] key, long snapshotSequence) throws IOException {
+        // Check if key is null
+        if (key == null) {
+            return null;
+        }
+        
+        SuperVersion version = acquireSuperVersion();
+        try {
+            SequencedEntry entry = find(version, key, snapshotSequence);
+            
+            // A tombstone (empty value) hides any older versions, and so does a
+            // newer range tombstone
+            if (entry == null || entry.getValue().length == 0
+                    || version.newestRangeTombstone(key, snapshotSequence) > entry.getSequence()) {
+                return null;
+            }
+            return entry.getValue();
+        } finally {
+            releaseSuperVersion(version);
+        }
+    }
+    
+    /**
+     * Finds the newest version of a key a snapshot can see, regardless of range
+     * tombstones. The newest entry for a key wins, so the active MemTable is
+     * checked first, then the immutable MemTables and then the SSTables, each
+     * from newest to oldest.
+     */
+    private static SequencedEntry find(SuperVersion version, byte[] key, long snapshotSequence) throws IOException {
+        SequencedEntry entry = version.getActiveMemTable().find(key, snapshotSequence);
+        if (entry != null) {
+            return entry;
+        }
+        for (MemTable memTable : version.getImmutableMemTables()) {
+            entry = memTable.find(key, snapshotSequence);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        for (SSTable ssTable : version.getSSTables()) {
+            if (ssTable.mightContain(key)) {
+                entry = ssTable.find(key, snapshotSequence);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the live entries in a key range, in key order.
+     * 
+     * The iterator is lazy: it merges the active MemTable, the immutable MemTables
+     * and the SSTables as it advances, returning only the newest version of each key
+     * and skipping deleted keys. Writes made while iterating may or may not be seen.
+     * The MemTables and SSTables it reads are kept until the iterator is exhausted
+     * or closed, so one that is not read to the end should be closed.
+     * 
+     * @param startKey The first key to return (inclusive), or null to start at the first key
+     * @param endKey The key to stop before (exclusive), or null to scan to the last key
+     * @return Iterator over the key-value pairs in the range
+     */
+    public CloseableIterator<Map.Entry<byte[], byte[]>> scan(byte[] startKey, byte[] endKey) {
+        return newScanIterator(startKey, endKey, null, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Returns the entries in a key range that were live when a snapshot was taken,
+     * in key order. Later writes are never seen.
+     * 
+     * @param startKey The first key to return (inclusive), or null to start at the first key
+     * @param endKey The key to stop before (exclusive), or null to scan to the last key
+     * @param snapshot The snapshot to read
+     * @return Iterator over the key-value pairs in the range
+     * @throws IllegalStateException If the snapshot has been released
+     */
+    public CloseableIterator<Map.Entry<byte[], byte[]>> scan(byte[] startKey, byte[] endKey, Snapshot snapshot) {
+        return newScanIterator(startKey, endKey, null, checkSnapshot(snapshot));
+    }
+    
+    /**
+     * Returns the live entries whose keys start with the given prefix, in key order.
+     * 
+     * @param prefix The key prefix
+     * @return Iterator over the key-value pairs with the prefix
+     * @see #scan(byte[], byte[])
+     */
+    public CloseableIterator<Map.Entry<byte[], byte[]>> prefixScan(byte[] prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("Prefix cannot be null");
+        }
+        return newScanIterator(prefix, null, prefix, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Returns the entries whose keys start with the given prefix that were live
+     * when a snapshot was taken, in key order.
+     * 
+     * @param prefix The key prefix
+     * @param snapshot The snapshot to read
+     * @return Iterator over the key-value pairs with the prefix
+     * @throws IllegalStateException If the snapshot has been released
+     * @see #scan(byte[], byte[], Snapshot)
+     */
+    public CloseableIterator<Map.Entry<byte[], byte[]>> prefixScan(byte[] prefix, Snapshot snapshot) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("Prefix cannot be null");
+        }
+        return newScanIterator(prefix, null, prefix, checkSnapshot(snapshot));
+    }
+    
+    /**
+     * Starts a scan of the current SuperVersion, which the iterator holds until it
+     * is exhausted or closed.
+     * 
+     * @param startKey The first key to return (inclusive), or null to start at the first key
+     * @param endKey The key to stop before (exclusive), or null
+     * @param prefix The prefix of the keys to return, or null
+     * @param snapshotSequence The sequence number of the scan's snapshot, or Long.MAX_VALUE
+     */
+    private ScanIterator newScanIterator(byte[] startKey, byte[] endKey, byte[] prefix, long snapshotSequence) {
+        SuperVersion version = acquireSuperVersion();
+        try {
+            List<RangeTombstone> rangeTombstones = new ArrayList<>();
+            List<Iterator<Map.Entry<byte[], byte[]>>> sources = collectScanSources(version, startKey,
+                    prefix != null ? prefixEnd(prefix) : endKey, snapshotSequence, rangeTombstones);
+            // A snapshot needs every version, to find the newest one it can see
+            MergingIterator merged = new MergingIterator(sources, snapshotSequence != Long.MAX_VALUE);
+            return new ScanIterator(merged, endKey, prefix, snapshotSequence, rangeTombstones,
+                    () -> releaseSuperVersion(version));
+        } catch (RuntimeException e) {
+            releaseSuperVersion(version);
+            throw e;
+        }
+    }
+    
+    /**
+     * Takes a snapshot of the current contents. Reads through the snapshot see
+     * every write that completed before this call and none that starts after it.
+     * The snapshot must be closed when it is no longer needed, since the engine
+     * keeps the older versions of keys that it may read until then.
+     * 
+     * @return The snapshot
+     */
+    public Snapshot getSnapshot() {
+        // No write is between its WAL record and its MemTable update while the
+        // write lock is held
+        memTableLock.writeLock().lock();
+        try {
+            long sequence = walManager.getLastSequenceNumber();
+            synchronized (snapshots) {
+                snapshots.merge(sequence, 1, Integer::sum);
+                oldestSnapshot = snapshots.firstKey();
+            }
+            return new Snapshot(this, sequence);
+        } finally {
+            memTableLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Releases a snapshot, allowing the versions that only it could read to be
+     * dropped by the next flush or compaction. Releasing a snapshot more than once
+     * has no effect.
+     * 
+     * @param snapshot The snapshot to release
+     * @throws IllegalArgumentException If the snapshot belongs to another engine
+     */
+    public void releaseSnapshot(Snapshot snapshot) {
+        if (snapshot.getEngine() != this) {
+            throw new IllegalArgumentException("Snapshot belongs to another storage engine");
+        }
+        if (!snapshot.markReleased()) {
+            return;
+        }
+        synchronized (snapshots) {
+            snapshots.computeIfPresent(snapshot.getSequence(), (sequence, count) -> count > 1 ? count - 1 : null);
+            oldestSnapshot = snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.firstKey();
+        }
+    }
+    
+    /**
+     * Gets the number of live snapshots.
+     * 
+     * @return The snapshot count
+     */
+    public int getSnapshotCount() {
+        synchronized (snapshots) {
+            int count = 0;
+            for (int snapshotsAtSequence : snapshots.values()) {
+                count += snapshotsAtSequence;
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * Checks that a snapshot can be read through this engine.
+     * 
+     * @return The snapshot's sequence number
+     */
+    private long checkSnapshot(Snapshot snapshot) {
+        if (snapshot == null) {
+            throw new IllegalArgumentException("Snapshot cannot be null");
+        }
+        if (snapshot.getEngine() != this) {
+            throw new IllegalArgumentException("Snapshot belongs to another storage engine");
+        }
+        if (snapshot.isReleased()) {
+            throw new IllegalStateException("Snapshot has been released: " + snapshot);
+        }
+        return snapshot.getSequence();
+    }
+    
+    /**
+     * Gets the sequence numbers of the live snapshots in ascending order.
+     */
+    private long[] liveSnapshots() {
+        synchronized (snapshots) {
+            long[] sequences = new long[snapshots.size()];
+            int i = 0;
+            for (long sequence : snapshots.keySet()) {
+                sequences[i++] = sequence;
+            }
+            return sequences;
+        }
+    }
+    
+    /**
+     * Collects iterators over the MemTables and SSTables of a SuperVersion that may
+     * hold keys in the range, ordered from newest to oldest, and the range
+     * tombstones over the range that the scan's snapshot can see.
+     */
+    private static List<Iterator<Map.Entry<byte[], byte[]>>> collectScanSources(SuperVersion version,
+                                                                               byte[] startKey, byte[] endKey,
+                                                                               long snapshotSequence,
+                                                                               List<RangeTombstone> rangeTombstones) {
+        ByteArrayComparator comparator = new ByteArrayComparator();
+        List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>();
+        
+        rangeTombstones.addAll(version.rangeTombstones(startKey, endKey, snapshotSequence));
+        sources.add(version.getActiveMemTable().iterator(startKey, endKey));
+        for (MemTable memTable : version.getImmutableMemTables()) {
+            sources.add(memTable.iterator(startKey, endKey));
+        }
+        for (SSTable ssTable : version.getSSTables()) {
+            if (ssTable.getMetadata().getEntryCount() == 0
+                    || (startKey != null && comparator.compare(ssTable.getMaxKeyBytes(), startKey) < 0)
+                    || (endKey != null && comparator.compare(ssTable.getMinKeyBytes(), endKey) >= 0)) {
+                continue; // No overlap with the range
+            }
+            sources.add(ssTable.iterator(startKey));
+        }
+        return sources;
+    }
+    
+    /**
+     * Publishes a SuperVersion of the current MemTables and SSTables and releases
+     * the one it replaces. Called after every change to them, without holding the
+     * immutableMemTables or ssTables monitors.
+     * 
+     * Entries only move from the active MemTable to the immutable ones and on to
+     * SSTables, and each move adds them to the next place before removing them from
+     * the previous one. Reading the three in that order therefore finds every entry
+     * at least once, even while a move is under way.
+     */
+    private void installSuperVersion() {
+        SuperVersion previous;
+        synchronized (superVersionLock) {
+            MemTable active = activeMemTable;
+            List<MemTable> immutable;
+            synchronized (immutableMemTables) {
+                immutable = new ArrayList<>(immutableMemTables);
+            }
+            List<SSTable> tables;
+            synchronized (ssTables) {
+                tables = new ArrayList<>(ssTables);
+            }
+            previous = superVersion;
+            superVersion = new SuperVersion(active, immutable, tables);
+        }
+        if (previous != null) {
+            releaseSuperVersion(previous);
+        }
+    }
+    
+    /**
+     * Takes a reference to the current SuperVersion without locking.
+     * 
+     * @return The SuperVersion, to be released with {@link #releaseSuperVersion}
+     */
+    private SuperVersion acquireSuperVersion() {
+        while (true) {
+            SuperVersion version = superVersion;
+            if (version.tryRef()) {
+                return version;
+            }
+            // It was replaced and released meanwhile; its successor is already published
+        }
+    }
+    
+    /**
+     * Releases a reference to a SuperVersion, and its SSTables with the last one.
+     */
+    private void releaseSuperVersion(SuperVersion version) {
+        if (version.unref()) {
+            for (SSTable ssTable : version.getSSTables()) {
+                releaseSSTable(ssTable);
+            }
+        }
+    }
+    
+    /**
+     * Takes the reference of the engine's list to an SSTable that is added to it,
+     * and counts it against the blob files it points into.
+     */
+    private void addSSTableReference(SSTable ssTable) {
+        ssTable.ref();
+        synchronized (blobFileReferences) {
+            for (Long blobFile : ssTable.getBlobReferences().keySet()) {
+                blobFileReferences.merge(blobFile, 1, Integer::sum);
+            }
+        }
+    }
+    
+    /**
+     * Releases a reference to an SSTable. Once the engine's list and every
+     * SuperVersion have let go of it, it has been replaced by a compaction, and
+     * is closed and deleted. The blob files that only it still pointed into are
+     * deleted then too.
+     */
+    private void releaseSSTable(SSTable ssTable) {
+        if (ssTable.unref()) {
+            try {
+                ssTable.close();
+                Files.deleteIfExists(ssTable.getFilePath());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close or delete old SSTable", e);
+            }
+            boolean unreferenced = false;
+            synchronized (blobFileReferences) {
+                for (Long blobFile : ssTable.getBlobReferences().keySet()) {
+                    if (blobFileReferences.merge(blobFile, -1, Integer::sum) == 0) {
+                        blobFileReferences.remove(blobFile);
+                        unreferenced = true;
+                    }
+                }
+            }
+            if (unreferenced) {
+                deleteObsoleteBlobFiles();
+            }
+        }
+    }
+    
+    /**
+     * Makes the active MemTable immutable and creates a new active MemTable.
+     * 
+     * @param fullMemTable The MemTable that filled up
+     * @throws IOException If an I/O error occurs
+     */
+    private void makeActiveMemTableImmutable(MemTable fullMemTable) throws IOException {
+        memTableLock.writeLock().lock();
+        try {
+            // Another writer may already have switched it
+            if (activeMemTable != fullMemTable) {
+                return;
+            }
+            
+            // Create a checkpoint in the WAL for this MemTable. No writes are in
+            // flight, so every sequence number up to the checkpoint is in the MemTable.
+            String checkpointName = "memtable-" + checkpointIdGenerator.incrementAndGet();
+            long checkpointSeq = walManager.checkpoint(checkpointName);
+            
+            // Add current active MemTable to immutable list with its checkpoint info
+            MemTableWithCheckpoint memTableWithCheckpoint = new MemTableWithCheckpoint(activeMemTable, checkpointName, checkpointSeq);
+            synchronized (immutableMemTables) {
+                immutableMemTables.add(activeMemTable);
+                
+                // Add to checkpoint tracking
+                memTablesWithCheckpoints.add(memTableWithCheckpoint);
+            }
+            
+            // Create a new active MemTable
+            activeMemTable = MemTable.create(memTableType, memTableMaxSize);
+            installSuperVersion();
+        } finally {
+            memTableLock.writeLock().unlock();
+        }
+        
+        // Notify flush thread
+        synchronized (flushThread) {
+            flushThread.notify();
+        }
+        updateWriteState();
+    }
+    
+    /**
+     * Background thread that flushes immutable MemTables to disk as SSTables.
+     */
+    private void flushLoop() {
+        while (running) {
+            try {
+                // Wait if no immutable MemTables
+                synchronized (flushThread) {
+                    while (running && immutableMemTables.isEmpty()) {
+                        flushThread.wait();
+                    }
+                }
+                
+                if (!running) {
+                    break;
                 }
                 
-                // Get the oldest immutable MemTable
+                // Get the oldest immutable MemTable. It stays readable in the queue
+                // until its SSTable has been added.
                 MemTable memTableToFlush;
                 String checkpointName = null;
                 long checkpointSeq = -1;
                 
                 synchronized (immutableMemTables) {
-                    memTableToFlush = immutableMemTables.poll();
+                    memTableToFlush = immutableMemTables.peek();
                     // Find the checkpoint info for this MemTable
-                    Iterator<MemTableWithCheckpoint> iterator = memTablesWithCheckpoints.iterator();
-                    while (iterator.hasNext()) {
-                        MemTableWithCheckpoint mtc = iterator.next();
+                    for (MemTableWithCheckpoint mtc : memTablesWithCheckpoints) {
                         if (mtc.memTable == memTableToFlush) {
                             checkpointName = mtc.checkpointName;
                             checkpointSeq = mtc.checkpointSeq;
-                            iterator.remove();
                             break;
                         }
                     }
                 }
                 
-                if (memTableToFlush != null && !memTableToFlush.isEmpty()) {
+                if (memTableToFlush == null) {
+                    continue;
+                }
+                
+                if (!memTableToFlush.isEmpty()) {
                     // Flush to disk
                     String fileId = String.format("%016x", ssTableIdGenerator.incrementAndGet());
-                    SSTable ssTable = SSTable.create(memTableToFlush, dataDirectory, fileId);
-                    
-                    // Add to list of SSTables
-                    synchronized (ssTables) {
-                        ssTables.add(ssTable);
+                    blobFileLock.readLock().lock();
+                    try {
+                        SSTable ssTable = writeSSTable(memTableToFlush, fileId, checkpointSeq, ioRateLimiter);
+                        logFlush(ssTable, checkpointSeq);
+                        
+                        // Add to list of SSTables before the MemTable is dropped, so readers
+                        // always find the data in one place or the other
+                        addSSTableReference(ssTable);
+                        synchronized (ssTables) {
+                            ssTables.add(ssTable);
+                        }
+                        installSuperVersion();
+                    } finally {
+                        blobFileLock.readLock().unlock();
                     }
                     
                     LOGGER.info("Flushed MemTable to SSTable: " + fileId);
-                    
-                    // Remove WAL checkpoint and clean up WAL files
-                    if (checkpointName != null) {
-                        walManager.removeCheckpoint(checkpointName);
-                        walManager.cleanupWAL(checkpointSeq);
-                    }
-                    
-                    // Notify compaction thread
-                    synchronized (compactionThread) {
-                        compactionThread.notify();
-                    }
                 }
+                
+                synchronized (immutableMemTables) {
+                    immutableMemTables.remove(memTableToFlush);
+                    memTablesWithCheckpoints.removeIf(mtc -> mtc.memTable == memTableToFlush);
+                }
+                installSuperVersion();
+                synchronized (immutableMemTables) {
+                    immutableMemTables.notifyAll();
+                }
+                
+                // Remove WAL checkpoint and clean up WAL files
+                if (checkpointName != null) {
+                    walManager.removeCheckpoint(checkpointName);
+                    walManager.cleanupWAL(checkpointSeq);
+                }
+                
+                // Notify compaction thread
+                synchronized (compactionThread) {
+                    compactionThread.notify();
+                }
+                updateWriteState();
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, "Error in flush thread", e);
             }
@@ -338,170 +1283,1101 @@ public class LSMStorageEngine implements AutoCloseable {
     }
     
     /**
-     * Triggers a compaction check by notifying the compaction thread.
-     * This is called by the LSMStorageScheduler to suggest that compaction
-     * might be needed.
+     * Sets the compression algorithm for data blocks of SSTables written from now
+     * on. Existing SSTables keep their compression until they are compacted.
+     *
+     * @param compression The compression algorithm
+     */
+    public void setCompression(CompressionAlgorithm compression) {
+        this.compression = compression;
+    }
+    
+    /**
+     * Gets the block cache used for SSTable reads.
+     *
+     * @return The block cache, or null if blocks are read straight from the files
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+    
+    /**
+     * Sets the size at which compaction output is split into a new SSTable file.
+     * 
+     * @param targetFileSize Target SSTable file size in bytes
+     */
+    public void setCompactionTargetFileSize(long targetFileSize) {
+        if (targetFileSize <= 0) {
+            throw new IllegalArgumentException("Target file size must be positive");
+        }
+        this.compactionTargetFileSize = targetFileSize;
+    }
+    
+    /**
+     * Sets the most key ranges a compaction is split into. Ranges are merged in
+     * parallel, and small compactions are split into fewer ranges or none.
+     *
+     * @param maxSubcompactions The most subcompactions per compaction, 1 to disable
+     */
+    public void setMaxSubcompactions(int maxSubcompactions) {
+        if (maxSubcompactions <= 0) {
+            throw new IllegalArgumentException("Max subcompactions must be positive");
+        }
+        this.maxSubcompactions = maxSubcompactions;
+    }
+    
+    /**
+     * Enables key-value separation: flushes and compactions write values of at
+     * least this size to blob files and keep only pointers to them in SSTables,
+     * so compactions no longer copy the values. Values already written stay where
+     * they are until a compaction rewrites them.
+     *
+     * @param minBlobSize Smallest value written to a blob file, or 0 to keep every value inline
+     */
+    public void setMinBlobSize(int minBlobSize) {
+        if (minBlobSize < 0) {
+            throw new IllegalArgumentException("Min blob size cannot be negative");
+        }
+        this.minBlobSize = minBlobSize;
+    }
+    
+    /**
+     * Sets the share of a blob file's bytes that must be garbage before compactions
+     * move its remaining values to new blob files.
+     *
+     * @param threshold A share between 0 and 1; above 1 values are never moved
+     */
+    public void setBlobGarbageCollectionThreshold(double threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold cannot be negative");
+        }
+        this.blobGarbageCollectionThreshold = threshold;
+    }
+    
+    /**
+     * Sets how SSTables are picked for compaction. {@code SIZE_TIERED}, the default,
+     * merges the oldest SSTables below the target file size once there are enough
+     * of them, and the sorted runs of earlier compactions once there are enough of a
+     * similar size. {@code TIME_WINDOW} only merges SSTables whose newest writes fall in
+     * the same time window, so that data expiring together stays together.
+     *
+     * @param compactionType SIZE_TIERED or TIME_WINDOW
+     */
+    public void setCompactionType(CompactionStrategy.CompactionType compactionType) {
+        if (compactionType != CompactionStrategy.CompactionType.SIZE_TIERED
+                && compactionType != CompactionStrategy.CompactionType.TIME_WINDOW) {
+            throw new IllegalArgumentException("Unsupported compaction type: " + compactionType);
+        }
+        this.compactionType = compactionType;
+    }
+    
+    /**
+     * Gets how SSTables are picked for compaction.
+     *
+     * @return The compaction type
+     */
+    public CompactionStrategy.CompactionType getCompactionType() {
+        return compactionType;
+    }
+    
+    /**
+     * Sets the span of a time window for time-window compaction.
+     *
+     * @param timeWindow The time window in milliseconds
+     */
+    public void setCompactionTimeWindow(long timeWindow) {
+        if (timeWindow <= 0) {
+            throw new IllegalArgumentException("Time window must be positive");
+        }
+        this.compactionTimeWindow = timeWindow;
+    }
+    
+    /**
+     * Sets the filter that compactions run on the entries they copy, to drop or
+     * rewrite them. Entries already compacted are only filtered again by the next
+     * compaction that includes them.
+     *
+     * @param compactionFilter The filter, or null to copy every entry unchanged
+     */
+    public void setCompactionFilter(CompactionFilter compactionFilter) {
+        this.compactionFilter = compactionFilter;
+    }
+    
+    /**
+     * Sets the time to live of the data. The oldest SSTables are deleted whole once
+     * their newest write is older than that, without reading them, so expired data
+     * can still be read until its SSTable goes, and snapshots do not keep it.
+     * Time-window compaction keeps old and new data in separate SSTables, which
+     * lets them expire sooner.
+     *
+     * @param timeToLive The time to live in milliseconds, or 0 to keep data forever
+     */
+    public void setTimeToLive(long timeToLive) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("Time to live cannot be negative");
+        }
+        this.timeToLive = timeToLive;
+    }
+    
+    /**
+     * Gets the time to live of the data.
+     *
+     * @return The time to live in milliseconds, or 0 if data is kept forever
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+    
+    /**
+     * Gets the store of values separated from the SSTables.
+     *
+     * @return The blob store
+     */
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+    
+    /**
+     * Triggers a compaction check by notifying the compaction thread.
+     * This is called by the LSMStorageScheduler to suggest that compaction
+     * might be needed.
+     */
+    public void triggerCompactionCheck() {
+        synchronized (compactionThread) {
+            compactionThread.notify();
+        }
+        LOGGER.info("Compaction check triggered");
+    }
+    
+    /**
+     * Background thread that compacts SSTables.
+     * This implements a size-tiered compaction strategy where multiple SSTables
+     * are merged into a single larger SSTable when the number of SSTables exceeds
+     * a threshold, or a time-window one (see {@link #setCompactionType}).
+     */
+    private void compactionLoop() {
+        boolean compacted = false;
+        while (running) {
+            try {
+                // Wait for a while or until notified, unless compaction is holding
+                // back writers and should carry on at once
+                if (!compacted || writeController.getState() == WriteController.State.NORMAL) {
+                    synchronized (compactionThread) {
+                        compactionThread.wait(compactionIntervalMs);
+                    }
+                }
+                compacted = false;
+                
+                if (!running) {
+                    break;
+                }
+                
+                // SSTables whose data has all been deleted or has expired go first
+                dropCoveredSSTables();
+                dropExpiredSSTables();
+                if (obsoleteBlobFilesPending) {
+                    deleteObsoleteBlobFiles();
+                }
+                
+                // Check if compaction is needed
+                List<SSTable> tablesToCompact = null;
+                Set<Long> garbageBlobFiles = blobFilesToRelocate();
+                synchronized (ssTables) {
+                    if (!compactionRunning) {
+                        if (compactionType == CompactionStrategy.CompactionType.TIME_WINDOW) {
+                            tablesToCompact = timeWindowCompactionInputs();
+                        } else {
+                            tablesToCompact = sizeTieredCompactionInputs();
+                            if (tablesToCompact == null) {
+                                tablesToCompact = sortedRunCompactionInputs();
+                            }
+                        }
+                        if (tablesToCompact == null) {
+                            tablesToCompact = blobGarbageCompactionInputs(garbageBlobFiles);
+                        }
+                        if (tablesToCompact != null) {
+                            compactionRunning = true;
+                            LOGGER.info("Starting compaction of " + tablesToCompact.size() + " SSTables");
+                        }
+                    }
+                }
+                
+                // Perform compaction if needed
+                if (tablesToCompact != null && !tablesToCompact.isEmpty()) {
+                    try {
+                        compactSSTables(tablesToCompact);
+                        compacted = true;
+                    } finally {
+                        compactionRunning = false;
+                    }
+                    updateWriteState();
+                    deleteObsoleteBlobFiles();
+                } else if (writeController.getState() != WriteController.State.NORMAL) {
+                    // Time windows pass without any SSTable changing
+                    updateWriteState();
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Error in compaction thread", e);
+                compactionRunning = false;
+            }
+        }
+    }
+    
+    /**
+     * Deletes the SSTables that a range tombstone in a newer SSTable covers
+     * entirely, without reading them: the tombstone must be newer than the whole
+     * table, hold its key range and any range tombstones of its own, and every
+     * live snapshot must see it. Range tombstones still in MemTables are not used,
+     * so nothing is deleted before the range delete is in an SSTable.
+     * 
+     * @throws IOException If the MANIFEST cannot be written
+     */
+    private void dropCoveredSSTables() throws IOException {
+        long oldestSnapshotSequence = oldestSnapshot;
+        List<SSTable> covered = new ArrayList<>();
+        synchronized (ssTables) {
+            List<RangeTombstone> tombstones = new ArrayList<>();
+            for (SSTable ssTable : ssTables) {
+                for (RangeTombstone tombstone : ssTable.getRangeTombstones()) {
+                    if (tombstone.getSequence() <= oldestSnapshotSequence) {
+                        tombstones.add(tombstone);
+                    }
+                }
+            }
+            if (tombstones.isEmpty()) {
+                return;
+            }
+            for (SSTable ssTable : ssTables) {
+                for (RangeTombstone tombstone : tombstones) {
+                    if (coversSSTable(tombstone, ssTable)) {
+                        covered.add(ssTable);
+                        break;
+                    }
+                }
+            }
+        }
+        if (covered.isEmpty()) {
+            return;
+        }
+        
+        dropSSTables(covered);
+        LOGGER.info("Dropped " + covered.size() + " SSTables covered by range tombstones");
+    }
+    
+    private static boolean coversSSTable(RangeTombstone tombstone, SSTable ssTable) {
+        // Every version in the table, and every range tombstone, is at most its maximum sequence number
+        if (tombstone.getSequence() <= ssTable.getMaxSequence()
+                || (ssTable.getMetadata().getEntryCount() > 0
+                        && !tombstone.covers(ssTable.getMinKeyBytes(), ssTable.getMaxKeyBytes()))) {
+            return false;
+        }
+        for (RangeTombstone own : ssTable.getRangeTombstones()) {
+            if (!tombstone.includes(own)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Deletes the oldest SSTables whose newest write is older than the time to
+     * live, without reading them. SSTables are only deleted along with every
+     * older one, so that no older version of a key outlives a newer one.
+     * 
+     * @throws IOException If the MANIFEST cannot be written
+     */
+    private void dropExpiredSSTables() throws IOException {
+        long ttl = timeToLive;
+        if (ttl <= 0) {
+            return;
+        }
+        long expiry = System.currentTimeMillis() - ttl;
+        List<SSTable> expired = new ArrayList<>();
+        synchronized (ssTables) {
+            for (SSTable ssTable : ssTables) {
+                if (ssTable.getNewestWriteTime() >= expiry) {
+                    break;
+                }
+                expired.add(ssTable);
+            }
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+        
+        dropSSTables(expired);
+        LOGGER.info("Dropped " + expired.size() + " SSTables older than the time to live");
+    }
+    
+    /**
+     * Removes SSTables from the MANIFEST and the list of live SSTables. Their
+     * files are deleted once no reader is using them.
+     * 
+     * @param dropped The SSTables to remove
+     * @throws IOException If the MANIFEST cannot be written
+     */
+    private void dropSSTables(List<SSTable> dropped) throws IOException {
+        VersionEdit edit = new VersionEdit();
+        for (SSTable ssTable : dropped) {
+            edit.deleteFile(ssTable.getId());
+        }
+        versionSet.logAndApply(edit);
+        synchronized (ssTables) {
+            ssTables.removeAll(dropped);
+        }
+        installSuperVersion();
+        for (SSTable ssTable : dropped) {
+            releaseSSTable(ssTable);
+        }
+        updateWriteState();
+        deleteObsoleteBlobFiles();
+    }
+    
+    /**
+     * Compacts a list of SSTables into new SSTables.
+     * 
+     * The inputs are merged with a streaming k-way merge, so only the current
+     * block of each input is held in memory. Output is written block by block and
+     * split into a new file whenever it reaches the target file size.
+     *
+     * @param tablesToCompact List of adjacent SSTables to compact, oldest first
+     * @throws IOException If an I/O error occurs
+     */
+    private void compactSSTables(List<SSTable> tablesToCompact) throws IOException {
+        if (tablesToCompact == null || tablesToCompact.isEmpty()) {
+            return;
+        }
+        
+        LOGGER.info("Compacting " + tablesToCompact.size() + " SSTables");
+        
+        // Tombstones can only be dropped when there is no older SSTable that
+        // could still hold a value for the deleted key
+        boolean includesOldest;
+        synchronized (ssTables) {
+            includesOldest = !ssTables.isEmpty() && ssTables.get(0) == tablesToCompact.get(0);
+        }
+        
+        long maxSequence = 0;
+        for (SSTable ssTable : tablesToCompact) {
+            maxSequence = Math.max(maxSequence, ssTable.getMaxSequence());
+        }
+        
+        // Outputs stay at the deepest level of their inputs
+        int level = 0;
+        for (SSTable ssTable : tablesToCompact) {
+            level = Math.max(level, ssTable.getLevel());
+        }
+        
+        blobFileLock.readLock().lock();
+        try {
+            installCompaction(tablesToCompact, includesOldest, maxSequence, level, liveSnapshots());
+        } finally {
+            blobFileLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Merges the SSTables of a compaction and replaces them with the output.
+     * Snapshots taken later see only the newest versions of the inputs, so the
+     * snapshots live at the start decide which older versions are kept.
+     */
+    private void installCompaction(List<SSTable> tablesToCompact, boolean includesOldest,
+                                   long maxSequence, int level, long[] snapshotSequences) throws IOException {
+        // Values in mostly dead blob files are moved to new ones
+        Set<Long> relocatedBlobFiles = blobFilesToRelocate();
+        
+        // Split the key space into ranges that are merged in parallel
+        List<byte[]> boundaries = subcompactionBoundaries(tablesToCompact);
+        List<Subcompaction> subcompactions = new ArrayList<>();
+        for (int i = 0; i <= boundaries.size(); i++) {
+            subcompactions.add(new Subcompaction(tablesToCompact, includesOldest,
+                    i > 0 ? boundaries.get(i - 1) : null,
+                    i < boundaries.size() ? boundaries.get(i) : null,
+                    maxSequence, level, relocatedBlobFiles, snapshotSequences));
+        }
+        
+        List<SSTable> outputs = new ArrayList<>();
+        long entryCount = 0;
+        try {
+            runSubcompactions(subcompactions);
+            for (Subcompaction subcompaction : subcompactions) {
+                outputs.addAll(subcompaction.outputs);
+                entryCount += subcompaction.entryCount;
+            }
+            
+            // Swap the inputs for the outputs of every range in the MANIFEST in one atomic edit
+            VersionEdit edit = new VersionEdit();
+            for (SSTable ssTable : tablesToCompact) {
+                edit.deleteFile(ssTable.getId());
+            }
+            for (SSTable output : outputs) {
+                edit.addFile(output);
+            }
+            versionSet.logAndApply(edit);
+        } catch (IOException | RuntimeException e) {
+            // Abandon the output of every range; the input SSTables are still intact
+            for (Subcompaction subcompaction : subcompactions) {
+                for (SSTable output : subcompaction.outputs) {
+                    output.close();
+                    Files.deleteIfExists(output.getFilePath());
+                }
+            }
+            throw e;
+        }
+        
+        // Update the list of SSTables
+        for (SSTable output : outputs) {
+            addSSTableReference(output);
+        }
+        synchronized (ssTables) {
+            // Replace the old SSTables, keeping the new ones in their position
+            int position = ssTables.indexOf(tablesToCompact.get(0));
+            ssTables.removeAll(tablesToCompact);
+            ssTables.addAll(Math.max(position, 0), outputs);
+        }
+        installSuperVersion();
+        
+        // The old SSTables are closed and deleted once no reader is using them
+        for (SSTable ssTable : tablesToCompact) {
+            releaseSSTable(ssTable);
+        }
+        
+        LOGGER.info("Compaction completed: " + tablesToCompact.size() +
+                   " SSTables merged into " + outputs.size() + " in " + subcompactions.size() +
+                   " subcompactions, " + entryCount + " entries");
+    }
+    
+    /**
+     * Finds the blob files in which at least the garbage collection threshold of
+     * the bytes is no longer referenced by any live SSTable. Compactions copy the
+     * values they still hold to new blob files, so that the files can be deleted
+     * once the remaining SSTables pointing into them have been compacted too.
+     *
+     * @return Numbers of the blob files whose values are to be moved
+     * @throws IOException If the blob files cannot be listed
+     */
+    private Set<Long> blobFilesToRelocate() throws IOException {
+        Map<Long, Long> liveBytes = new HashMap<>();
+        synchronized (ssTables) {
+            for (SSTable ssTable : ssTables) {
+                for (Map.Entry<Long, Long> reference : ssTable.getBlobReferences().entrySet()) {
+                    liveBytes.merge(reference.getKey(), reference.getValue(), Long::sum);
+                }
+            }
+        }
+        if (liveBytes.isEmpty()) {
+            return Collections.emptySet();
+        }
+        
+        Set<Long> relocated = new HashSet<>();
+        for (Map.Entry<Long, Long> file : blobStore.getFileSizes().entrySet()) {
+            Long live = liveBytes.get(file.getKey());
+            long recordBytes = file.getValue() - BlobStore.HEADER_SIZE;
+            if (live != null && recordBytes > 0
+                    && 1.0 - (double) live / recordBytes >= blobGarbageCollectionThreshold) {
+                relocated.add(file.getKey());
+            }
+        }
+        return relocated;
+    }
+    
+    /**
+     * Deletes the blob files that no open SSTable points into, whether it is live
+     * or a compaction replaced it and a read or scan still holds it. This is
+     * skipped if a flush or compaction is writing blob files, and tried again when
+     * the compaction thread next wakes up.
+     */
+    private void deleteObsoleteBlobFiles() {
+        if (!blobFileLock.writeLock().tryLock()) {
+            obsoleteBlobFilesPending = true;
+            return;
+        }
+        try {
+            obsoleteBlobFilesPending = false;
+            Set<Long> liveFiles;
+            synchronized (blobFileReferences) {
+                liveFiles = new HashSet<>(blobFileReferences.keySet());
+            }
+            blobStore.deleteObsoleteFiles(liveFiles);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete obsolete blob files", e);
+        } finally {
+            blobFileLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Chooses the keys at which a compaction is split into subcompactions. The
+     * candidates are the smallest and largest keys of the inputs and the last key
+     * of each of their data blocks, so the ranges between evenly spaced candidates
+     * hold about the same amount of data.
+     *
+     * <p>Overwritten keys make the output smaller than the input, and the last file
+     * of each range is usually below the target size, so it is compacted again.
+     * A compaction is therefore only split into one range per two target-size files
+     * of input, and into fewer ranges than trigger a compaction, so that the small
+     * files of one split compaction cannot on their own trigger the next.</p>
+     *
+     * @param inputs The SSTables to compact
+     * @return The split keys in ascending order, empty if the compaction is not split
+     */
+    private List<byte[]> subcompactionBoundaries(List<SSTable> inputs) {
+        long inputSize = 0;
+        for (SSTable ssTable : inputs) {
+            inputSize += ssTable.getSize();
+        }
+        int ranges = (int) Math.min(Math.min(maxSubcompactions, compactionTriggerThreshold - 1),
+                inputSize / (2 * compactionTargetFileSize));
+        if (ranges <= 1) {
+            return Collections.emptyList();
+        }
+        
+        TreeSet<byte[]> keys = new TreeSet<>(new ByteArrayComparator());
+        for (SSTable ssTable : inputs) {
+            keys.add(ssTable.getMinKeyBytes());
+            keys.add(ssTable.getMaxKeyBytes());
+            keys.addAll(ssTable.getBlockLastKeys());
+        }
+        if (keys.size() < 2) {
+            return Collections.emptyList();
+        }
+        
+        // The smallest key cannot start a range, since nothing would come before it
+        List<byte[]> candidates = new ArrayList<>(keys);
+        ranges = Math.min(ranges, candidates.size());
+        List<byte[]> boundaries = new ArrayList<>();
+        for (int i = 1; i < ranges; i++) {
+            boundaries.add(candidates.get((int) ((long) i * candidates.size() / ranges)));
+        }
+        return boundaries;
+    }
+    
+    /**
+     * Runs subcompactions on the subcompaction pool and waits for all of them,
+     * even if one fails, so that none is still writing when the caller cleans up.
+     * A single subcompaction runs on the calling thread.
+     *
+     * @param subcompactions The subcompactions to run
+     * @throws IOException If any subcompaction fails
+     */
+    private static void runSubcompactions(List<Subcompaction> subcompactions) throws IOException {
+        if (subcompactions.size() == 1) {
+            subcompactions.get(0).call();
+            return;
+        }
+        
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        for (Subcompaction subcompaction : subcompactions) {
+            tasks.add(SUBCOMPACTION_POOL.submit(subcompaction));
+        }
+        Throwable failure = null;
+        for (ForkJoinTask<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                // Keep waiting; the subcompactions are still writing files
+                Thread.currentThread().interrupt();
+                task.quietlyJoin();
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new IOException("Subcompaction failed", failure);
+        }
+    }
+    
+    /**
+     * Merges the entries of the input SSTables within one key range into output
+     * files of the target size.
+     */
+    private class Subcompaction implements Callable<Void> {
+        private final List<SSTable> inputs;
+        private final boolean dropTombstones;
+        private final byte[] startKey;
+        private final byte[] endKey;
+        private final long maxSequence;
+        private final int level;
+        private final Set<Long> relocatedBlobFiles;
+        private final long[] snapshotSequences;
+        private final CompactionFilter compactionFilter;
+        private final long newestWriteTime;
+        
+        // Completed output files, in key order
+        final List<SSTable> outputs = new ArrayList<>();
+        long entryCount;
+        
+        /**
+         * @param startKey The first key of the range, or null to start at the beginning
+         * @param endKey The key after the range, or null to run to the end
+         */
+        Subcompaction(List<SSTable> inputs, boolean dropTombstones, byte[] startKey, byte[] endKey,
+                      long maxSequence, int level, Set<Long> relocatedBlobFiles, long[] snapshotSequences) {
+            this.inputs = inputs;
+            this.dropTombstones = dropTombstones;
+            this.startKey = startKey;
+            this.endKey = endKey;
+            this.maxSequence = maxSequence;
+            this.level = level;
+            this.relocatedBlobFiles = relocatedBlobFiles;
+            this.snapshotSequences = snapshotSequences;
+            this.compactionFilter = LSMStorageEngine.this.compactionFilter;
+            
+            // The output is as old as the newest of its inputs
+            long newest = 0;
+            for (SSTable input : inputs) {
+                newest = Math.max(newest, input.getNewestWriteTime());
+            }
+            this.newestWriteTime = newest;
+        }
+        
+        @Override
+        public Void call() throws IOException {
+            // Merge every version, newest first within each key
+            List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>();
+            for (int i = inputs.size() - 1; i >= 0; i--) {
+                sources.add(inputs.get(i).rawIterator(startKey));
+            }
+            MergingIterator merged = new MergingIterator(sources, true);
+            VersionFilter filter = new VersionFilter(snapshotSequences, dropTombstones);
+            ByteArrayComparator comparator = new ByteArrayComparator();
+            
+            // Range tombstones of the inputs hide versions in all of them
+            List<RangeTombstone> rangeTombstones = new ArrayList<>();
+            for (SSTable input : inputs) {
+                for (RangeTombstone tombstone : input.getRangeTombstones()) {
+                    if (tombstone.overlaps(startKey, endKey)) {
+                        rangeTombstones.add(tombstone);
+                    }
+                }
+            }
+            
+            SSTableWriter writer = null;
+            String fileId = null;
+            byte[] lastKey = null;
+            try {
+                while (merged.hasNext()) {
+                    Map.Entry<byte[], byte[]> entry = merged.next();
+                    if (endKey != null && comparator.compare(entry.getKey(), endKey) >= 0) {
+                        break;
+                    }
+                    if (!filter.keep(entry) || filter.hidden(entry, rangeTombstones)) {
+                        continue;
+                    }
+                    if (compactionFilter != null && entry.getValue().length > 0 && filter.unpinned(entry)) {
+                        entry = applyCompactionFilter(entry, filter);
+                        if (entry == null) {
+                            continue;
+                        }
+                    }
+                    
+                    // Output files are only split between keys, never between versions
+                    if (writer != null && writer.getEstimatedSize() >= compactionTargetFileSize
+                            && comparator.compare(entry.getKey(), lastKey) != 0) {
+                        outputs.add(finishOutput(writer, fileId, maxSequence, level));
+                        writer.close();
+                        writer = null;
+                    }
+                    if (writer == null) {
+                        fileId = String.format("%016x", ssTableIdGenerator.incrementAndGet());
+                        writer = newSSTableWriter(fileId, ioRateLimiter);
+                        writer.setNewestWriteTime(newestWriteTime);
+                    }
+                    long sequence = SequencedEntry.sequenceOf(entry);
+                    if (!(entry instanceof SSTable.BlobIndexEntry)) {
+                        writer.add(entry.getKey(), entry.getValue(), sequence);
+                    } else if (relocatedBlobFiles.contains(BlobStore.fileNumber(entry.getValue()))) {
+                        writer.add(entry.getKey(), blobStore.read(entry.getValue()), sequence);
+                    } else {
+                        // The value stays where it is; only the pointer is copied
+                        writer.addBlobIndex(entry.getKey(), entry.getValue(), sequence);
+                    }
+                    lastKey = entry.getKey();
+                    entryCount++;
+                }
+                
+                // The range tombstones still needed go to the last output, cut to this
+                // range, even if nothing else is left
+                for (RangeTombstone tombstone : rangeTombstones) {
+                    if (filter.drops(tombstone)) {
+                        continue;
+                    }
+                    if (writer == null) {
+                        fileId = String.format("%016x", ssTableIdGenerator.incrementAndGet());
+                        writer = newSSTableWriter(fileId, ioRateLimiter);
+                        writer.setNewestWriteTime(newestWriteTime);
+                    }
+                    writer.addRangeTombstone(tombstone.clip(startKey, endKey));
+                }
+                if (writer != null) {
+                    outputs.add(finishOutput(writer, fileId, maxSequence, level));
+                }
+            } finally {
+                // Deletes the file of an unfinished output
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Runs the compaction filter on a version that no snapshot reads.
+         *
+         * @return The version to write, a tombstone in its place, or null to drop it
+         */
+        private Map.Entry<byte[], byte[]> applyCompactionFilter(Map.Entry<byte[], byte[]> entry,
+                                                               VersionFilter filter) throws IOException {
+            byte[] value = entry instanceof SSTable.BlobIndexEntry ? blobStore.read(entry.getValue()) : entry.getValue();
+            byte[] filtered = compactionFilter.filter(entry.getKey(), value);
+            if (filtered == value) {
+                return entry;
+            }
+            long sequence = SequencedEntry.sequenceOf(entry);
+            if (filtered == null || filtered.length == 0) {
+                // The tombstone still hides older versions in SSTables outside the compaction
+                return filter.dropsTombstone(sequence) ? null : new SequencedEntry(entry.getKey(), new byte[0], sequence);
+            }
+            return new SequencedEntry(entry.getKey(), filtered, sequence);
+        }
+    }
+    
+    /**
+     * Picks the SSTables of a size-tiered compaction: the oldest SSTables below
+     * the target size, once there are enough of them. Must be called while holding
+     * the ssTables lock.
+     *
+     * @return Adjacent SSTables to compact, oldest first, or null if none need it
+     */
+    private List<SSTable> sizeTieredCompactionInputs() {
+        int first = firstCompactionCandidate();
+        int candidates = ssTables.size() - first;
+        if (candidates < compactionTriggerThreshold) {
+            return null;
+        }
+        int numTablesToCompact = Math.min(compactionMaxSSTablesToMerge, candidates);
+        return new ArrayList<>(ssTables.subList(first, first + numTablesToCompact));
+    }
+    
+    /**
+     * Picks the SSTables of a compaction that merges whole sorted runs, so that the
+     * SSTables that reached the target size, which size-tiered compaction leaves
+     * alone, drop the old versions and blob values they hold too. The outputs of a
+     * compaction make up one run: adjacent SSTables with the same highest sequence.
+     * Going from the newest run to older ones, a run is taken while it is at most
+     * twice the size of the newer ones taken, so that each entry is merged again a
+     * logarithmic number of times. Once that gives enough runs to trigger a
+     * compaction, the oldest of them are merged. Must be called while holding the
+     * ssTables lock.
+     *
+     * @return Adjacent SSTables to compact, oldest first, or null if none need it
+     */
+    private List<SSTable> sortedRunCompactionInputs() {
+        // Runs as [start, end) indexes into ssTables, newest first
+        List<int[]> runs = new ArrayList<>();
+        int runEnd = ssTables.size();
+        for (int i = runEnd - 1; i >= 0; i--) {
+            if (i == 0 || ssTables.get(i - 1).getMaxSequence() != ssTables.get(i).getMaxSequence()) {
+                runs.add(new int[] {i, runEnd});
+                runEnd = i;
+            }
+        }
+        int minRuns = Math.max(2, compactionTriggerThreshold);
+        for (int newest = 0; newest < runs.size(); newest++) {
+            long size = runSize(runs.get(newest));
+            int oldest = newest;
+            while (oldest + 1 < runs.size() && runSize(runs.get(oldest + 1)) <= 2 * size) {
+                oldest++;
+                size += runSize(runs.get(oldest));
+            }
+            if (oldest - newest + 1 >= minRuns) {
+                int newestTaken = Math.max(newest, oldest - compactionMaxSSTablesToMerge + 1);
+                return new ArrayList<>(ssTables.subList(runs.get(oldest)[0], runs.get(newestTaken)[1]));
+            }
+        }
+        return null;
+    }
+    
+    private long runSize(int[] run) {
+        long size = 0;
+        for (int i = run[0]; i < run[1]; i++) {
+            size += ssTables.get(i).getSize();
+        }
+        return size;
+    }
+    
+    /**
+     * Picks the SSTables of a time-window compaction: the oldest run of adjacent
+     * SSTables below the target size whose newest writes fall in the same time
+     * window. A window is compacted once it has passed, or earlier once it has
+     * enough SSTables to trigger a compaction, and is never merged with another
+     * one. Must be called while holding the ssTables lock.
+     *
+     * @return Adjacent SSTables to compact, oldest first, or null if none need it
+     */
+    private List<SSTable> timeWindowCompactionInputs() {
+        long window = compactionTimeWindow;
+        long currentWindow = System.currentTimeMillis() / window;
+        int start = 0;
+        while (start < ssTables.size()) {
+            long startWindow = ssTables.get(start).getNewestWriteTime() / window;
+            int end = start;
+            while (end < ssTables.size() && ssTables.get(end).getSize() < compactionTargetFileSize
+                    && ssTables.get(end).getNewestWriteTime() / window == startWindow) {
+                end++;
+            }
+            int run = end - start;
+            if (run > 1 && (startWindow < currentWindow || run >= compactionTriggerThreshold)) {
+                return new ArrayList<>(ssTables.subList(start, start + Math.min(run, compactionMaxSSTablesToMerge)));
+            }
+            start = Math.max(end, start + 1);
+        }
+        return null;
+    }
+    
+    /**
+     * Picks the SSTables of a compaction that collects blob garbage: the oldest run
+     * of adjacent SSTables that point into blob files that are mostly garbage,
+     * whatever their size. SSTables that reached the target size are only merged
+     * again once their sorted run has newer ones of a similar size, so without this
+     * the live values they point to would stay in those files until then. A
+     * time-window run stays within one window. Must be called while holding the
+     * ssTables lock.
+     *
+     * @param garbageBlobFiles Numbers of the blob files whose values are to be moved
+     * @return Adjacent SSTables to compact, oldest first, or null if none need it
      */
-    public void triggerCompactionCheck() {
-        synchronized (compactionThread) {
-            compactionThread.notify();
+    private List<SSTable> blobGarbageCompactionInputs(Set<Long> garbageBlobFiles) {
+        if (garbageBlobFiles.isEmpty()) {
+            return null;
         }
-        LOGGER.info("Compaction check triggered");
+        boolean timeWindows = compactionType == CompactionStrategy.CompactionType.TIME_WINDOW;
+        long window = compactionTimeWindow;
+        for (int start = 0; start < ssTables.size(); start++) {
+            if (!pointsInto(ssTables.get(start), garbageBlobFiles)) {
+                continue;
+            }
+            long startWindow = ssTables.get(start).getNewestWriteTime() / window;
+            int end = start + 1;
+            while (end < ssTables.size() && end - start < compactionMaxSSTablesToMerge
+                    && pointsInto(ssTables.get(end), garbageBlobFiles)
+                    && (!timeWindows || ssTables.get(end).getNewestWriteTime() / window == startWindow)) {
+                end++;
+            }
+            return new ArrayList<>(ssTables.subList(start, end));
+        }
+        return null;
+    }
+    
+    private static boolean pointsInto(SSTable ssTable, Set<Long> blobFiles) {
+        for (Long blobFile : ssTable.getBlobReferences().keySet()) {
+            if (blobFiles.contains(blobFile)) {
+                return true;
+            }
+        }
+        return false;
     }
     
     /**
-     * Background thread that compacts SSTables.
-     * This implements a size-tiered compaction strategy where multiple SSTables
-     * are merged into a single larger SSTable when the number of SSTables exceeds
-     * a threshold.
+     * Finds the oldest SSTable that is still to be compacted. The leading SSTables
+     * that already reached the target size are only compacted again as whole
+     * sorted runs. Must be called while holding the ssTables lock.
+     *
+     * @return The index of the first compaction candidate in ssTables
      */
-    private void compactionLoop() {
-        while (running) {
-            try {
-                // Wait for a while or until notified
-                synchronized (compactionThread) {
-                    compactionThread.wait(compactionIntervalMs);
-                }
-                
-                if (!running) {
-                    break;
-                }
-                
-                // Check if compaction is needed
-                List<SSTable> tablesToCompact = null;
-                synchronized (ssTables) {
-                    if (ssTables.size() >= compactionTriggerThreshold && !compactionRunning) {
-                        compactionRunning = true;
-                        
-                        // Select SSTables to compact - for now, just take the oldest ones
-                        // In a more sophisticated implementation, we would select based on size and overlap
-                        int numTablesToCompact = Math.min(compactionMaxSSTablesToMerge, ssTables.size());
-                        tablesToCompact = new ArrayList<>(ssTables.subList(0, numTablesToCompact));
-                        
-                        LOGGER.info("Starting compaction of " + numTablesToCompact + " SSTables");
-                    }
-                }
-                
-                // Perform compaction if needed
-                if (tablesToCompact != null && !tablesToCompact.isEmpty()) {
-                    try {
-                        compactSSTables(tablesToCompact);
-                    } finally {
-                        compactionRunning = false;
-                    }
-                }
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Error in compaction thread", e);
-                compactionRunning = false;
-            }
+    private int firstCompactionCandidate() {
+        int first = 0;
+        while (first < ssTables.size() && ssTables.get(first).getSize() >= compactionTargetFileSize) {
+            first++;
         }
+        return first;
     }
     
     /**
-     * Compacts a list of SSTables into a single new SSTable.
+     * Lists the SSTables still to be compacted, which are this engine's level-0
+     * files. In time-window mode, a window that has passed is never merged with
+     * another one, so its last SSTable below the target size stays there for
+     * good. Only the SSTables of the current window and of the runs that
+     * {@link #timeWindowCompactionInputs()} can still merge are counted then. Must
+     * be called while holding the ssTables lock.
      *
-     * @param tablesToCompact List of SSTables to compact
-     * @throws IOException If an I/O error occurs
+     * @return The SSTables still to be compacted, oldest first
      */
-    private void compactSSTables(List<SSTable> tablesToCompact) throws IOException {
-        if (tablesToCompact == null || tablesToCompact.isEmpty()) {
-            return;
+    private List<SSTable> levelZeroSSTables() {
+        if (compactionType != CompactionStrategy.CompactionType.TIME_WINDOW) {
+            return new ArrayList<>(ssTables.subList(firstCompactionCandidate(), ssTables.size()));
         }
-        
-        LOGGER.info("Compacting " + tablesToCompact.size() + " SSTables");
-        
-        // Create a map to hold the merged data
-        NavigableMap<byte[], byte[]> mergedData = new ConcurrentSkipListMap<>(new ByteArrayComparator());
-        
-        // Process each SSTable, newer tables overwrite older ones
-        for (SSTable ssTable : tablesToCompact) {
-            // Get all keys from this SSTable
-            for (String keyStr : ssTable.getIndex().keySet()) {
-                byte[] key = keyStr.getBytes();
-                // Skip if we already have a newer version of this key
-                if (mergedData.containsKey(key)) {
-                    continue;
-                }
-                
-                // Read the value
-                byte[] value = ssTable.get(keyStr);
-                
-                // Add to merged data if not a tombstone, or if it's the newest tombstone
-                if (value != null) {
-                    mergedData.put(key, value);
-                } else if (!keyExistsInNewerSSTables(key, tablesToCompact, ssTable)) {
-                    // This is a tombstone and there's no newer version of this key
-                    // We need to keep it to indicate deletion
-                    mergedData.put(key, new byte[0]);
-                }
+        long window = compactionTimeWindow;
+        long currentWindow = System.currentTimeMillis() / window;
+        List<SSTable> levelZero = new ArrayList<>();
+        int start = 0;
+        while (start < ssTables.size()) {
+            long startWindow = ssTables.get(start).getNewestWriteTime() / window;
+            int end = start;
+            while (end < ssTables.size() && ssTables.get(end).getSize() < compactionTargetFileSize
+                    && ssTables.get(end).getNewestWriteTime() / window == startWindow) {
+                end++;
             }
+            if (end - start > 1 || (end > start && startWindow >= currentWindow)) {
+                levelZero.addAll(ssTables.subList(start, end));
+            }
+            start = Math.max(end, start + 1);
         }
-        
-        // Skip compaction if no data to write
-        if (mergedData.isEmpty()) {
-            LOGGER.info("No data to compact, skipping");
-            return;
-        }
-        
-        // Create a new MemTable with the merged data
-        MemTable compactionMemTable = new MemTable(Long.MAX_VALUE); // No size limit for compaction
-        for (Map.Entry<byte[], byte[]> entry : mergedData.entrySet()) {
-            compactionMemTable.put(entry.getKey(), entry.getValue());
+        return levelZero;
+    }
+    
+    /**
+     * Reports the backlog of flushes and compactions to the write controller. The
+     * SSTables still to be compacted are this engine's level-0 files, and their
+     * bytes count as pending once there are enough of them to trigger a compaction.
+     */
+    private void updateWriteState() {
+        int immutable;
+        synchronized (immutableMemTables) {
+            immutable = immutableMemTables.size();
         }
-        
-        // Create a new SSTable with the merged data
-        String fileId = String.format("%016x", ssTableIdGenerator.incrementAndGet());
-        SSTable newSSTable = SSTable.create(compactionMemTable, dataDirectory, fileId);
-        
-        // Update the list of SSTables
+        int l0Files;
+        long pendingBytes = 0;
         synchronized (ssTables) {
-            // Remove the old SSTables
-            ssTables.removeAll(tablesToCompact);
-            
-            // Add the new SSTable
-            ssTables.add(newSSTable);
-            
-            // Close the old SSTables
-            for (SSTable ssTable : tablesToCompact) {
-                try {
-                    ssTable.close();
-                    
-                    // Delete the old SSTable file
-                    Files.deleteIfExists(ssTable.getFilePath());
-                } catch (IOException e) {
-                    LOGGER.log(Level.WARNING, "Failed to close or delete old SSTable", e);
+            List<SSTable> levelZero = levelZeroSSTables();
+            l0Files = levelZero.size();
+            if (l0Files >= compactionTriggerThreshold) {
+                for (SSTable ssTable : levelZero) {
+                    pendingBytes += ssTable.getSize();
                 }
             }
         }
-        
-        LOGGER.info("Compaction completed: " + tablesToCompact.size() +
-                   " SSTables merged into 1, " + mergedData.size() + " entries");
+        Thread compactor = compactionThread;
+        if (writeController.update(immutable, l0Files, pendingBytes) != WriteController.State.NORMAL
+                && l0Files >= compactionTriggerThreshold && compactor != null) {
+            synchronized (compactor) {
+                compactionThread.notify();
+            }
+        }
     }
     
     /**
-     * Checks if a key exists in any SSTable that is newer than the specified SSTable.
+     * Gets the controller that slows down writers when flushes or compactions
+     * fall behind.
      *
-     * @param key The key to check
-     * @param allTables All tables being compacted
-     * @param currentTable The current table being processed
-     * @return true if the key exists in a newer table, false otherwise
-     * @throws IOException If an I/O error occurs
+     * @return The write controller
      */
-    private boolean keyExistsInNewerSSTables(byte[] key, List<SSTable> allTables, SSTable currentTable) throws IOException {
-        int currentIndex = allTables.indexOf(currentTable);
-        
-        // Check all newer tables (higher index)
-        for (int i = currentIndex + 1; i < allTables.size(); i++) {
-            SSTable newerTable = allTables.get(i);
-            if (newerTable.mightContain(key)) {
-                byte[] value = newerTable.get(new String(key));
-                if (value != null) {
-                    return true;
+    public WriteController getWriteController() {
+        return writeController;
+    }
+    
+    /**
+     * Gets the rate limiter for SSTable writes by flushes and compactions.
+     *
+     * @return The rate limiter
+     */
+    public RateLimiter getIoRateLimiter() {
+        return ioRateLimiter;
+    }
+    
+    /**
+     * Sets the rate limiter for SSTable writes by flushes and compactions. Engines
+     * sharing a disk can share a limiter.
+     *
+     * @param ioRateLimiter The rate limiter
+     */
+    public void setIoRateLimiter(RateLimiter ioRateLimiter) {
+        if (ioRateLimiter == null) {
+            throw new IllegalArgumentException("Rate limiter cannot be null");
+        }
+        this.ioRateLimiter = ioRateLimiter;
+    }
+    
+    /**
+     * Completes a compaction output file and opens it through the block cache.
+     */
+    private SSTable finishOutput(SSTableWriter writer, String fileId, long maxSequence, int level) throws IOException {
+        SSTable ssTable = writer.finish(fileId, maxSequence);
+        ssTable.setBlockCache(blockCache);
+        ssTable.setBlobStore(blobStore);
+        ssTable.setLevel(level);
+        return ssTable;
+    }
+    
+    /**
+     * Creates a writer for a new SSTable with the engine's compression and
+     * key-value separation settings.
+     *
+     * @param fileId The ID for the new SSTable
+     * @param rateLimiter Limits the rate of writes, or null for none
+     * @return The writer
+     * @throws IOException If the file cannot be created
+     */
+    private SSTableWriter newSSTableWriter(String fileId, RateLimiter rateLimiter) throws IOException {
+        SSTableWriter writer = new SSTableWriter(dataDirectory.resolve(SSTable.fileName(fileId)),
+                SSTableWriter.DEFAULT_BLOCK_SIZE, compression);
+        writer.setRateLimiter(rateLimiter);
+        writer.setBlobStore(blobStore, minBlobSize);
+        return writer;
+    }
+    
+    /**
+     * Writes a MemTable to a new SSTable and opens it for reading.
+     *
+     * @param memTable The MemTable to write
+     * @param fileId The ID for the new SSTable
+     * @param maxSequence Highest WAL sequence number contained in the MemTable
+     * @param rateLimiter Limits the rate of writes, or null for none
+     * @return The new SSTable
+     * @throws IOException If the SSTable cannot be written
+     */
+    private SSTable writeSSTable(MemTable memTable, String fileId, long maxSequence,
+                                 RateLimiter rateLimiter) throws IOException {
+        try (SSTableWriter writer = newSSTableWriter(fileId, rateLimiter)) {
+            // Older versions are written only if a live snapshot still reads them
+            // Versions hidden by the MemTable's own range tombstones are dropped
+            VersionFilter filter = new VersionFilter(liveSnapshots(), false);
+            List<RangeTombstone> rangeTombstones = memTable.getRangeTombstones();
+            Iterator<Map.Entry<byte[], byte[]>> entries = memTable.iterator();
+            while (entries.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = entries.next();
+                if (filter.keep(entry) && !filter.hidden(entry, rangeTombstones)) {
+                    writer.add(entry.getKey(), entry.getValue(), SequencedEntry.sequenceOf(entry));
                 }
             }
+            for (RangeTombstone tombstone : rangeTombstones) {
+                writer.addRangeTombstone(tombstone);
+            }
+            SSTable ssTable = writer.finish(fileId, maxSequence);
+            ssTable.setBlockCache(blockCache);
+            ssTable.setBlobStore(blobStore);
+            return ssTable;
+        }
+    }
+    
+    /**
+     * Logs a flushed SSTable to the MANIFEST. If that fails the SSTable is
+     * deleted again; its MemTable is still covered by the WAL.
+     *
+     * @param ssTable The new SSTable
+     * @param flushedSequence The WAL sequence number the SSTable covers up to
+     * @throws IOException If the MANIFEST cannot be written
+     */
+    private void logFlush(SSTable ssTable, long flushedSequence) throws IOException {
+        VersionEdit edit = new VersionEdit();
+        edit.addFile(ssTable);
+        edit.setFlushedSequence(flushedSequence);
+        try {
+            versionSet.logAndApply(edit);
+        } catch (IOException e) {
+            ssTable.close();
+            Files.deleteIfExists(ssTable.getFilePath());
+            throw e;
         }
-        
-        return false;
     }
     
     /**
@@ -513,12 +2389,26 @@ public class LSMStorageEngine implements AutoCloseable {
     private void recoverFromWAL() throws IOException {
         LOGGER.info("Starting recovery from WAL");
         
+        // Operations up to this sequence number are already in SSTables
+        final long flushedSequence = versionSet.getFlushedSequence();
+        walManager.ensureSequenceAtLeast(flushedSequence);
+        
+        // Ingested SSTables reserve a sequence number that is not in the WAL
+        synchronized (ssTables) {
+            for (SSTable ssTable : ssTables) {
+                walManager.ensureSequenceAtLeast(ssTable.getMaxSequence());
+            }
+        }
+        
         // Create a recovery consumer that applies operations to the active MemTable
         WALManager.WALRecoveryConsumer recoveryConsumer = new WALManager.WALRecoveryConsumer() {
             @Override
             public void onPut(long sequenceNumber, byte[] key, byte[] value) {
+                if (sequenceNumber <= flushedSequence) {
+                    return;
+                }
                 try {
-                    activeMemTable.put(key, value);
+                    activeMemTable.put(key, value, sequenceNumber, false);
                     LOGGER.fine("Recovered PUT operation: seq=" + sequenceNumber);
                 } catch (Exception e) {
                     LOGGER.log(Level.WARNING, "Error recovering PUT operation", e);
@@ -527,42 +2417,148 @@ public class LSMStorageEngine implements AutoCloseable {
             
             @Override
             public void onDelete(long sequenceNumber, byte[] key) {
+                if (sequenceNumber <= flushedSequence) {
+                    return;
+                }
                 try {
-                    activeMemTable.delete(key);
+                    activeMemTable.delete(key, sequenceNumber, false);
                     LOGGER.fine("Recovered DELETE operation: seq=" + sequenceNumber);
                 } catch (Exception e) {
                     LOGGER.log(Level.WARNING, "Error recovering DELETE operation", e);
                 }
             }
+            
+            @Override
+            public void onDeleteRange(long sequenceNumber, byte[] startKey, byte[] endKey) {
+                if (sequenceNumber <= flushedSequence) {
+                    return;
+                }
+                try {
+                    activeMemTable.deleteRange(startKey, endKey, sequenceNumber);
+                    LOGGER.fine("Recovered DELETE_RANGE operation: seq=" + sequenceNumber);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error recovering DELETE_RANGE operation", e);
+                }
+            }
         };
         
-        // Replay the WAL
-        walManager.recover(recoveryConsumer);
+        // Replay the WAL, skipping what is already in SSTables
+        walManager.recover(recoveryConsumer, flushedSequence, RECOVERY_PARALLELISM);
         
         LOGGER.info("WAL recovery completed");
     }
     
     /**
-     * Loads existing SSTables from the data directory.
+     * Loads the live SSTables listed in the MANIFEST. A data directory written
+     * before the MANIFEST existed is scanned once instead, and a MANIFEST is
+     * created from what the scan finds.
      * 
      * @throws IOException If an I/O error occurs
      */
     private void loadExistingSSTables() throws IOException {
+        List<SSTable> loaded = new ArrayList<>();
+        
+        if (versionSet.recover()) {
+            for (VersionEdit.FileMetadata file : versionSet.getFiles()) {
+                Path path = dataDirectory.resolve(SSTable.fileName(file.getId()));
+                if (!Files.exists(path)) {
+                    throw new IOException("SSTable listed in MANIFEST is missing: " + path);
+                }
+                SSTable ssTable = new SSTable(path);
+                ssTable.setBlockCache(blockCache);
+                ssTable.setBlobStore(blobStore);
+                ssTable.setLevel(file.getLevel());
+                ssTable.setMaxSequence(file.getMaxSequence());
+                loaded.add(ssTable);
+            }
+            ssTableIdGenerator.accumulateAndGet(versionSet.getLastFileId(), Math::max);
+            LOGGER.info("Loaded " + loaded.size() + " SSTables from MANIFEST");
+        } else {
+            loaded = scanSSTables();
+            VersionEdit edit = new VersionEdit();
+            for (SSTable ssTable : loaded) {
+                edit.addFile(ssTable);
+                edit.setFlushedSequence(Math.max(edit.getFlushedSequence(), ssTable.getMaxSequence()));
+            }
+            versionSet.logAndApply(edit);
+        }
+        
+        deleteObsoleteFiles();
+        
+        for (SSTable ssTable : loaded) {
+            addSSTableReference(ssTable);
+        }
+        synchronized (ssTables) {
+            ssTables.addAll(loaded);
+        }
+        
+        // Blob files of flushes and compactions that did not complete
+        deleteObsoleteBlobFiles();
+    }
+    
+    /**
+     * Opens every SSTable file in the data directory, ordered from oldest to
+     * newest by the sequence numbers they contain.
+     */
+    private List<SSTable> scanSSTables() throws IOException {
+        List<SSTable> loaded = new ArrayList<>();
+        
         // Find all SSTable files
-        Files.list(dataDirectory)
-            .filter(path -> path.toString().endsWith(".db"))
-            .forEach(path -> {
-                // Open SSTable
-                SSTable ssTable = new SSTable();
-                ssTable.setFilePath(path);
-                
-                // Add to list
-                synchronized (ssTables) {
-                    ssTables.add(ssTable);
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dataDirectory, "sstable-*.db")) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        
+        for (Path path : paths) {
+            // Open SSTable
+            SSTable ssTable = new SSTable(path);
+            ssTable.setBlockCache(blockCache);
+            ssTable.setBlobStore(blobStore);
+            loaded.add(ssTable);
+            
+            // Make sure new SSTable IDs do not collide with existing ones
+            try {
+                long id = Long.parseUnsignedLong(ssTable.getId(), 16);
+                ssTableIdGenerator.accumulateAndGet(id, Math::max);
+            } catch (NumberFormatException e) {
+                LOGGER.fine("SSTable ID is not numeric: " + ssTable.getId());
+            }
+            
+            LOGGER.info("Loaded SSTable: " + path.getFileName());
+        }
+        
+        // Order from oldest to newest by the sequence numbers they contain
+        loaded.sort(Comparator.comparingLong(SSTable::getMaxSequence).thenComparing(SSTable::getId));
+        return loaded;
+    }
+    
+    /**
+     * Deletes SSTable files that are not in the MANIFEST: temporary files of a
+     * flush or compaction that did not complete, flush output whose edit was not
+     * logged, and compaction inputs that were replaced but not yet deleted. Only
+     * file names are listed; no SSTable is opened.
+     */
+    private void deleteObsoleteFiles() throws IOException {
+        List<Path> obsolete = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dataDirectory, "sstable-*")) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                if (fileName.endsWith(".tmp")) {
+                    obsolete.add(path);
+                } else if (fileName.endsWith(".db")) {
+                    String id = fileName.substring("sstable-".length(), fileName.length() - ".db".length());
+                    if (!versionSet.contains(id)) {
+                        obsolete.add(path);
+                    }
                 }
-                
-                LOGGER.info("Loaded SSTable: " + path.getFileName());
-            });
+            }
+        }
+        for (Path path : obsolete) {
+            LOGGER.info("Deleting obsolete SSTable file: " + path.getFileName());
+            Files.deleteIfExists(path);
+        }
     }
     
     /**
@@ -572,8 +2568,9 @@ public class LSMStorageEngine implements AutoCloseable {
      */
     @Override
     public void close() throws IOException {
-        // Stop background threads
+        // Stop background threads, letting stalled writers through
         running = false;
+        writeController.close();
         
         // Notify threads to wake up
         synchronized (flushThread) {
@@ -592,23 +2589,16 @@ public class LSMStorageEngine implements AutoCloseable {
         }
         
         try {
-            // Flush active MemTable if not empty
-            if (!activeMemTable.isEmpty()) {
-                try {
-                    String fileId = String.format("%016x", ssTableIdGenerator.incrementAndGet());
-                    SSTable.create(activeMemTable, dataDirectory, fileId);
-                } catch (IOException e) {
-                    LOGGER.log(Level.WARNING, "Failed to flush active MemTable", e);
-                }
-            }
-            
-            // Flush immutable MemTables
+            // Flush immutable MemTables, oldest first
             synchronized (immutableMemTables) {
                 for (MemTable memTable : immutableMemTables) {
                     if (!memTable.isEmpty()) {
                         try {
                             String fileId = String.format("%016x", ssTableIdGenerator.incrementAndGet());
-                            SSTable.create(memTable, dataDirectory, fileId);
+                            long sequence = checkpointSequenceOf(memTable);
+                            SSTable ssTable = writeSSTable(memTable, fileId, sequence, null);
+                            logFlush(ssTable, sequence);
+                            ssTable.close();
                         } catch (IOException e) {
                             LOGGER.log(Level.WARNING, "Failed to flush immutable MemTable", e);
                         }
@@ -617,6 +2607,19 @@ public class LSMStorageEngine implements AutoCloseable {
                 immutableMemTables.clear();
             }
             
+            // Flush active MemTable if not empty
+            if (!activeMemTable.isEmpty()) {
+                try {
+                    String fileId = String.format("%016x", ssTableIdGenerator.incrementAndGet());
+                    long sequence = walManager.getLastSequenceNumber();
+                    SSTable ssTable = writeSSTable(activeMemTable, fileId, sequence, null);
+                    logFlush(ssTable, sequence);
+                    ssTable.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to flush active MemTable", e);
+                }
+            }
+            
             // Close SSTables
             synchronized (ssTables) {
                 for (SSTable ssTable : ssTables) {
@@ -629,6 +2632,9 @@ public class LSMStorageEngine implements AutoCloseable {
                 ssTables.clear();
             }
             
+            versionSet.close();
+            blobStore.close();
+            
             // Close WAL manager
             if (walManager != null) {
                 walManager.close();
@@ -638,6 +2644,21 @@ public class LSMStorageEngine implements AutoCloseable {
         }
     }
     
+    /**
+     * Gets the WAL sequence number recorded when a MemTable was made immutable.
+     * 
+     * @param memTable The immutable MemTable
+     * @return The checkpoint sequence number, or the last logged sequence number if unknown
+     */
+    private long checkpointSequenceOf(MemTable memTable) {
+        for (MemTableWithCheckpoint mtc : memTablesWithCheckpoints) {
+            if (mtc.memTable == memTable) {
+                return mtc.checkpointSeq;
+            }
+        }
+        return walManager.getLastSequenceNumber();
+    }
+    
     /**
      * Simple demonstration of the LSM storage engine.
      */
@@ -739,6 +2760,190 @@ public class LSMStorageEngine implements AutoCloseable {
         }
     }
     
+    /**
+     * Decides which versions of each key a flush or compaction keeps. The live
+     * snapshots split the sequence numbers into stripes, each ending at a
+     * snapshot, plus a last stripe above the newest snapshot. No reader tells the
+     * versions within one stripe apart, so only the newest of them is kept. A
+     * tombstone in the lowest stripe hides nothing any reader can see, and is
+     * dropped too where no older data can exist below the output.
+     */
+    private static class VersionFilter {
+        private final long[] snapshotSequences;
+        private final boolean dropTombstones;
+        private byte[] lastKey;
+        private int lastStripe;
+        
+        /**
+         * @param snapshotSequences Sequence numbers of the live snapshots, ascending
+         * @param dropTombstones Whether tombstones that hide nothing may be dropped
+         */
+        VersionFilter(long[] snapshotSequences, boolean dropTombstones) {
+            this.snapshotSequences = snapshotSequences;
+            this.dropTombstones = dropTombstones;
+        }
+        
+        /**
+         * @param entry The next version, in key order and newest first within a key
+         * @return true if the version is to be written
+         */
+        boolean keep(Map.Entry<byte[], byte[]> entry) {
+            int stripe = stripe(SequencedEntry.sequenceOf(entry));
+            if (lastKey != null && stripe == lastStripe && Arrays.equals(lastKey, entry.getKey())) {
+                return false;
+            }
+            lastKey = entry.getKey();
+            lastStripe = stripe;
+            return !(dropTombstones && stripe == 0 && entry.getValue().length == 0);
+        }
+        
+        /**
+         * Checks whether range tombstones hide a version from every reader that
+         * could otherwise see it: the oldest of them, at the top of the version's
+         * stripe, must see a newer range tombstone over the key.
+         * 
+         * @param entry A version kept by {@link #keep}
+         * @param rangeTombstones The range tombstones that may hide it
+         * @return true if the version can be dropped
+         */
+        boolean hidden(Map.Entry<byte[], byte[]> entry, List<RangeTombstone> rangeTombstones) {
+            if (rangeTombstones.isEmpty()) {
+                return false;
+            }
+            long sequence = SequencedEntry.sequenceOf(entry);
+            int stripe = stripe(sequence);
+            long stripeEnd = stripe < snapshotSequences.length ? snapshotSequences[stripe] : Long.MAX_VALUE;
+            return RangeTombstone.newestCovering(rangeTombstones, entry.getKey(), stripeEnd) > sequence;
+        }
+        
+        /**
+         * Checks whether a range tombstone can be dropped: it is in the lowest
+         * stripe, where it hides nothing any reader can see once the versions below
+         * it are gone, and there is no older data it could still hide.
+         * 
+         * @param tombstone The range tombstone
+         * @return true if the range tombstone need not be written
+         */
+        boolean drops(RangeTombstone tombstone) {
+            return dropTombstones && stripe(tombstone.getSequence()) == 0;
+        }
+        
+        /**
+         * @param entry A version kept by {@link #keep}
+         * @return true if no snapshot reads the version, so it may be changed
+         */
+        boolean unpinned(Map.Entry<byte[], byte[]> entry) {
+            return stripe(SequencedEntry.sequenceOf(entry)) == snapshotSequences.length;
+        }
+        
+        /**
+         * @param sequence The sequence number of a tombstone
+         * @return true if the tombstone need not be written
+         */
+        boolean dropsTombstone(long sequence) {
+            return dropTombstones && stripe(sequence) == 0;
+        }
+        
+        /**
+         * Gets the index of the oldest snapshot that sees a sequence number, or the
+         * snapshot count if none does.
+         */
+        private int stripe(long sequence) {
+            int index = Arrays.binarySearch(snapshotSequences, sequence);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+    
+    /**
+     * Filters merged entries down to the live entries of a scan: tombstones are
+     * skipped, and iteration stops at the end key or at the end of the prefix.
+     * Of the versions of each key, newest first, the first one the scan's
+     * snapshot can see is returned, unless a newer range tombstone hides it.
+     * The SuperVersion the scan reads is released once it is exhausted or closed.
+     */
+    private static class ScanIterator implements CloseableIterator<Map.Entry<byte[], byte[]>> {
+        private static final ByteArrayComparator COMPARATOR = new ByteArrayComparator();
+        
+        private final Iterator<Map.Entry<byte[], byte[]>> source;
+        private final byte[] endKey;
+        private final byte[] prefix;
+        private final long snapshotSequence;
+        private final List<RangeTombstone> rangeTombstones;
+        private Runnable release;
+        private Map.Entry<byte[], byte[]> nextEntry;
+        private byte[] lastKey;
+        private boolean finished;
+        
+        ScanIterator(Iterator<Map.Entry<byte[], byte[]>> source, byte[] endKey, byte[] prefix,
+                     long snapshotSequence, List<RangeTombstone> rangeTombstones, Runnable release) {
+            this.source = source;
+            this.endKey = endKey;
+            this.prefix = prefix;
+            this.snapshotSequence = snapshotSequence;
+            this.rangeTombstones = rangeTombstones;
+            this.release = release;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            while (nextEntry == null && !finished && source.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = source.next();
+                byte[] key = entry.getKey();
+                if ((endKey != null && COMPARATOR.compare(key, endKey) >= 0)
+                        || (prefix != null && !startsWith(key, prefix))) {
+                    finished = true;
+                } else if (SequencedEntry.sequenceOf(entry) > snapshotSequence
+                        || (lastKey != null && COMPARATOR.compare(key, lastKey) == 0)) {
+                    continue; // Too new for the snapshot, or an older version
+                } else {
+                    lastKey = key;
+                    if (entry.getValue().length > 0 && (rangeTombstones.isEmpty()
+                            || RangeTombstone.newestCovering(rangeTombstones, key, snapshotSequence)
+                                    < SequencedEntry.sequenceOf(entry))) {
+                        nextEntry = entry;
+                    }
+                }
+            }
+            if (nextEntry == null) {
+                close();
+                return false;
+            }
+            return true;
+        }
+        
+        @Override
+        public synchronized void close() {
+            finished = true;
+            nextEntry = null;
+            if (release != null) {
+                release.run();
+                release = null;
+            }
+        }
+        
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<byte[], byte[]> entry = nextEntry;
+            nextEntry = null;
+            return entry;
+        }
+        
+        private static boolean startsWith(byte[] key, byte[] prefix) {
+            if (key.length < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (key[i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
     /**
      * Class to track MemTables and their associated WAL checkpoints.
      */
@@ -1,13 +1,16 @@
 package com.ataiva.serengeti.storage.lsm;
 
+import com.ataiva.serengeti.performance.PerformanceProfiler;
 import com.ataiva.serengeti.storage.StorageScheduler;
 import com.ataiva.serengeti.storage.wal.WALManager;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
@@ -15,15 +18,25 @@ import java.util.logging.Logger;
 
 /**
  * LSMStorageScheduler extends the base StorageScheduler to add LSM-specific
- * functionality, particularly compaction scheduling and management.
+ * functionality, particularly compaction scheduling and management. A database
+ * is served either by a single engine or, for busy databases, by several engines
+ * that each hold a hash partition of its keys.
  */
 public class LSMStorageScheduler extends StorageScheduler {
     
     private static final Logger LOGGER = Logger.getLogger(LSMStorageScheduler.class.getName());
     
+    /**
+     * Number of compaction time windows a time to live spans.
+     */
+    public static final int TIME_WINDOWS_PER_TIME_TO_LIVE = 8;
+    
     // Map of LSM storage engines by database name
     private final Map<String, LSMStorageEngine> lsmEngines;
     
+    // Databases split into several engines by key hash, by database name
+    private final Map<String, PartitionedLSMStorageEngine> partitionedEngines = new ConcurrentHashMap<>();
+    
     // Compaction configuration
     private final int compactionTriggerThreshold;
     private final int compactionMaxSSTablesToMerge;
@@ -35,6 +48,15 @@ public class LSMStorageScheduler extends StorageScheduler {
     private final int walGroupCommitSize;
     private final long walGroupCommitIntervalMs;
     
+    // Block cache shared by all LSM engines of this scheduler
+    private final BlockCache blockCache;
+    
+    // Rate limit for flush and compaction writes, shared by all LSM engines
+    private final RateLimiter ioRateLimiter = new RateLimiter(0);
+    
+    // Time to live in milliseconds of the databases whose data expires
+    private final Map<String, Long> timeToLive = new ConcurrentHashMap<>();
+    
     // Base directory for LSM data
     private final Path lsmBaseDirectory;
     
@@ -71,6 +93,26 @@ public class LSMStorageScheduler extends StorageScheduler {
     public LSMStorageScheduler(int compactionTriggerThreshold, int compactionMaxSSTablesToMerge,
                               long compactionIntervalMs, WALManager.SyncMode walSyncMode,
                               long walMaxSize, int walGroupCommitSize, long walGroupCommitIntervalMs) {
+        this(compactionTriggerThreshold, compactionMaxSSTablesToMerge, compactionIntervalMs, walSyncMode,
+             walMaxSize, walGroupCommitSize, walGroupCommitIntervalMs, BlockCache.DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Creates a new LSMStorageScheduler with custom compaction, WAL and block cache settings.
+     *
+     * @param compactionTriggerThreshold Number of SSTables that triggers compaction
+     * @param compactionMaxSSTablesToMerge Maximum number of SSTables to merge in one compaction
+     * @param compactionIntervalMs Time between compaction checks in milliseconds
+     * @param walSyncMode WAL sync mode (SYNC, ASYNC, GROUP)
+     * @param walMaxSize Maximum size of a WAL file before rotation
+     * @param walGroupCommitSize Number of writes before syncing in GROUP mode
+     * @param walGroupCommitIntervalMs Time interval for syncing in GROUP mode
+     * @param blockCacheCapacity Capacity in bytes of the block cache shared by all databases
+     */
+    public LSMStorageScheduler(int compactionTriggerThreshold, int compactionMaxSSTablesToMerge,
+                              long compactionIntervalMs, WALManager.SyncMode walSyncMode,
+                              long walMaxSize, int walGroupCommitSize, long walGroupCommitIntervalMs,
+                              long blockCacheCapacity) {
         super();
         this.lsmEngines = new ConcurrentHashMap<>();
         this.compactionTriggerThreshold = compactionTriggerThreshold;
@@ -80,6 +122,7 @@ public class LSMStorageScheduler extends StorageScheduler {
         this.walMaxSize = walMaxSize;
         this.walGroupCommitSize = walGroupCommitSize;
         this.walGroupCommitIntervalMs = walGroupCommitIntervalMs;
+        this.blockCache = new BlockCache(blockCacheCapacity);
         this.lsmBaseDirectory = Paths.get("data", "lsm");
     }
     
@@ -99,6 +142,7 @@ public class LSMStorageScheduler extends StorageScheduler {
                     Thread.sleep(compactionIntervalMs);
                     System.out.println("LSMStorageScheduler checking compaction needs...");
                     checkCompactionNeeds();
+                    reportMetrics(PerformanceProfiler.getInstance());
                     System.out.println("LSMStorageScheduler compaction check completed\n");
                 }
             } catch (InterruptedException ie) {
@@ -116,18 +160,16 @@ public class LSMStorageScheduler extends StorageScheduler {
      * @throws IOException If an I/O error occurs
      */
     public LSMStorageEngine getLSMEngine(String dbName) throws IOException {
+        if (partitionedEngines.containsKey(dbName)) {
+            throw new IllegalStateException("Database is partitioned: " + dbName);
+        }
         return lsmEngines.computeIfAbsent(dbName, name -> {
             try {
                 Path dbPath = lsmBaseDirectory.resolve(name);
-                return new LSMStorageEngine(
-                    dbPath,
-                    1024 * 1024, // 1MB memtable size
-                    2, // Max immutable memtables
-                    compactionTriggerThreshold,
-                    compactionMaxSSTablesToMerge,
-                    compactionIntervalMs,
-                    walSyncMode
-                );
+                if (Files.exists(dbPath.resolve(PartitionedLSMStorageEngine.PARTITIONS_FILE))) {
+                    throw new IOException("Database was created partitioned: " + name);
+                }
+                return openEngine(dbPath, name);
             } catch (IOException e) {
                 LOGGER.log(Level.SEVERE, "Failed to create LSM engine for database: " + name, e);
                 throw new RuntimeException("Failed to create LSM engine", e);
@@ -135,6 +177,120 @@ public class LSMStorageScheduler extends StorageScheduler {
         });
     }
     
+    /**
+     * Gets or creates a database split into the default number of partitions.
+     * 
+     * @param dbName The database name
+     * @return The partitioned LSM storage engine
+     * @throws IOException If an I/O error occurs
+     * @see #getPartitionedLSMEngine(String, int)
+     */
+    public PartitionedLSMStorageEngine getPartitionedLSMEngine(String dbName) throws IOException {
+        return getPartitionedLSMEngine(dbName, PartitionedLSMStorageEngine.DEFAULT_PARTITIONS);
+    }
+    
+    /**
+     * Gets or creates a database split by key hash into several LSM storage engines,
+     * each with its own WAL, flush thread and compaction thread, so that a busy
+     * database is not limited by the locks of a single engine. The partitions share
+     * the block cache and background I/O rate limit of the other databases.
+     * 
+     * @param dbName The database name
+     * @param partitions The number of partitions if the database is new; an
+     *        existing database keeps the number it was created with
+     * @return The partitioned LSM storage engine
+     * @throws IOException If an I/O error occurs
+     */
+    public PartitionedLSMStorageEngine getPartitionedLSMEngine(String dbName, int partitions) throws IOException {
+        if (lsmEngines.containsKey(dbName)) {
+            throw new IllegalStateException("Database is not partitioned: " + dbName);
+        }
+        return partitionedEngines.computeIfAbsent(dbName, name -> {
+            try {
+                return new PartitionedLSMStorageEngine(lsmBaseDirectory.resolve(name), partitions,
+                        directory -> openEngine(directory, name));
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to create partitioned LSM engine for database: " + name, e);
+                throw new RuntimeException("Failed to create partitioned LSM engine", e);
+            }
+        });
+    }
+    
+    /**
+     * Opens an LSM storage engine with this scheduler's settings.
+     * 
+     * @param directory The engine's data directory
+     * @param dbName The database the engine belongs to
+     * @return The engine
+     * @throws IOException If an I/O error occurs
+     */
+    private LSMStorageEngine openEngine(Path directory, String dbName) throws IOException {
+        LSMStorageEngine engine = new LSMStorageEngine(
+            directory,
+            1024 * 1024, // 1MB memtable size
+            2, // Max immutable memtables
+            compactionTriggerThreshold,
+            compactionMaxSSTablesToMerge,
+            compactionIntervalMs,
+            walSyncMode,
+            blockCache
+        );
+        engine.setIoRateLimiter(ioRateLimiter);
+        applyTimeToLive(engine, timeToLive.getOrDefault(dbName, 0L));
+        return engine;
+    }
+    
+    /**
+     * Sets the time to live of a database's data. Data older than that is deleted
+     * a whole SSTable at a time, without any deletes being written, and the
+     * database switches to time-window compaction so that old and new data are
+     * kept in separate SSTables. Expired data may still be read until its SSTable
+     * is deleted, up to a time window later.
+     * 
+     * @param dbName The database name
+     * @param timeToLiveMs The time to live in milliseconds, or 0 to keep the data forever
+     */
+    public void setTimeToLive(String dbName, long timeToLiveMs) {
+        if (timeToLiveMs < 0) {
+            throw new IllegalArgumentException("Time to live cannot be negative");
+        }
+        if (timeToLiveMs > 0) {
+            timeToLive.put(dbName, timeToLiveMs);
+        } else {
+            timeToLive.remove(dbName);
+        }
+        LSMStorageEngine engine = lsmEngines.get(dbName);
+        if (engine != null) {
+            applyTimeToLive(engine, timeToLiveMs);
+        }
+        PartitionedLSMStorageEngine partitioned = partitionedEngines.get(dbName);
+        if (partitioned != null) {
+            for (LSMStorageEngine partition : partitioned.getPartitions()) {
+                applyTimeToLive(partition, timeToLiveMs);
+            }
+        }
+    }
+    
+    /**
+     * Gets the time to live of a database's data.
+     * 
+     * @param dbName The database name
+     * @return The time to live in milliseconds, or 0 if the data is kept forever
+     */
+    public long getTimeToLive(String dbName) {
+        return timeToLive.getOrDefault(dbName, 0L);
+    }
+    
+    private static void applyTimeToLive(LSMStorageEngine engine, long timeToLiveMs) {
+        engine.setTimeToLive(timeToLiveMs);
+        if (timeToLiveMs > 0) {
+            engine.setCompactionTimeWindow(Math.max(1, timeToLiveMs / TIME_WINDOWS_PER_TIME_TO_LIVE));
+            engine.setCompactionType(CompactionStrategy.CompactionType.TIME_WINDOW);
+        } else {
+            engine.setCompactionType(CompactionStrategy.CompactionType.SIZE_TIERED);
+        }
+    }
+    
     /**
      * Checks if any LSM engines need compaction and triggers it if necessary.
      */
@@ -154,6 +310,32 @@ public class LSMStorageScheduler extends StorageScheduler {
                 LOGGER.log(Level.SEVERE, "Error triggering compaction for database: " + dbName, e);
             }
         }
+        
+        for (Map.Entry<String, PartitionedLSMStorageEngine> entry : partitionedEngines.entrySet()) {
+            try {
+                System.out.println(" * Triggering compaction check for partitioned database: " + entry.getKey());
+                entry.getValue().triggerCompactionCheck();
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Error triggering compaction for database: " + entry.getKey(), e);
+            }
+        }
+    }
+    
+    /**
+     * Reports the block cache, background I/O and write stall metrics of all engines.
+     */
+    private void reportMetrics(PerformanceProfiler profiler) {
+        blockCache.reportMetrics(profiler, "lsm");
+        ioRateLimiter.reportMetrics(profiler, "lsm", "background-io");
+        for (Map.Entry<String, LSMStorageEngine> entry : lsmEngines.entrySet()) {
+            entry.getValue().getWriteController().reportMetrics(profiler, "lsm." + entry.getKey());
+        }
+        for (Map.Entry<String, PartitionedLSMStorageEngine> entry : partitionedEngines.entrySet()) {
+            List<LSMStorageEngine> partitions = entry.getValue().getPartitions();
+            for (int i = 0; i < partitions.size(); i++) {
+                partitions.get(i).getWriteController().reportMetrics(profiler, "lsm." + entry.getKey() + ".p" + i);
+            }
+        }
     }
     
     /**
@@ -171,6 +353,43 @@ public class LSMStorageScheduler extends StorageScheduler {
                 LOGGER.log(Level.SEVERE, "Error closing LSM engine for database: " + dbName, e);
             }
         }
+        
+        for (Map.Entry<String, PartitionedLSMStorageEngine> entry : partitionedEngines.entrySet()) {
+            try {
+                System.out.println(" * Closing partitioned LSM engine for database: " + entry.getKey());
+                entry.getValue().close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error closing LSM engine for database: " + entry.getKey(), e);
+            }
+        }
+    }
+    
+    /**
+     * Gets the block cache shared by the LSM engines of this scheduler.
+     *
+     * @return The block cache
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+    
+    /**
+     * Gets the rate limiter shared by the flushes and compactions of all engines.
+     *
+     * @return The background I/O rate limiter
+     */
+    public RateLimiter getIoRateLimiter() {
+        return ioRateLimiter;
+    }
+    
+    /**
+     * Limits the rate at which flushes and compactions of all engines write SSTables,
+     * so that background work leaves disk bandwidth for reads and WAL writes.
+     *
+     * @param bytesPerSecond The rate limit, or zero or less for no limit
+     */
+    public void setBackgroundIoRate(long bytesPerSecond) {
+        ioRateLimiter.setBytesPerSecond(bytesPerSecond);
     }
     
     /**
@@ -1,8 +1,13 @@
 package com.ataiva.serengeti.storage.lsm;
 
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 
@@ -10,15 +15,34 @@ import java.util.function.BiConsumer;
  * MemTable is an in-memory data structure that stores key-value pairs in sorted order.
  * It's the first component in the LSM-Tree architecture where writes are initially stored.
  * Once it reaches a certain size, it's flushed to disk as an immutable SSTable.
+ *
+ * <p>Every entry is tagged with the WAL sequence number of its write. A key maps to
+ * its newest version, which links to the older versions that snapshots may still
+ * read. Iterators return every version of a key, newest first.</p>
+ *
+ * <p>Range deletes are kept as {@link RangeTombstone}s next to the entries rather
+ * than as a tombstone per key, and readers check them separately.</p>
  */
 public class MemTable {
     
-    // The actual data structure storing the key-value pairs
-    private final NavigableMap<byte[], byte[]> data;
+    /**
+     * Where a MemTable keeps its keys and values.
+     */
+    public enum Type {
+        HEAP,       // Key and value arrays in a skip list on the Java heap
+        OFF_HEAP    // Keys and values in direct buffer arenas (see OffHeapMemTable)
+    }
+    
+    // The actual data structure storing the newest version of each key
+    private final NavigableMap<byte[], Version> data;
     
     // Tracks the current size of the MemTable in bytes
     private final AtomicLong sizeInBytes;
     
+    // Range deletes in the order they were written, and the bytes their keys take
+    private final List<RangeTombstone> rangeTombstones = new CopyOnWriteArrayList<>();
+    private final AtomicLong rangeTombstoneBytes = new AtomicLong();
+    
     // Maximum size before flushing to disk
     private final long maxSizeInBytes;
     
@@ -36,6 +60,17 @@ public class MemTable {
         this.maxSizeInBytes = maxSizeInBytes;
     }
     
+    /**
+     * Creates a MemTable of the given type.
+     * 
+     * @param type Where the MemTable keeps its keys and values
+     * @param maxSizeInBytes Maximum size in bytes before flushing to disk
+     * @return A new, empty MemTable
+     */
+    public static MemTable create(Type type, long maxSizeInBytes) {
+        return type == Type.OFF_HEAP ? new OffHeapMemTable(maxSizeInBytes) : new MemTable(maxSizeInBytes);
+    }
+    
     /**
      * Puts a key-value pair into the MemTable.
      * 
@@ -44,31 +79,54 @@ public class MemTable {
      * @return true if the MemTable should be flushed to disk, false otherwise
      */
     public boolean put(byte[] key, byte[] value) {
+        return put(key, value, 0, false);
+    }
+    
+    /**
+     * Puts a version of a key into the MemTable. Writes to the same key must not
+     * race; a version older than the key's newest one is ignored.
+     * 
+     * @param key The key as a byte array
+     * @param value The value as a byte array, or null for a tombstone
+     * @param sequence The WAL sequence number of the write
+     * @param keepPrevious Whether a snapshot may still read the versions this one replaces
+     * @return true if the MemTable should be flushed to disk, false otherwise
+     */
+    public boolean put(byte[] key, byte[] value, long sequence, boolean keepPrevious) {
         // Check if key is null
         if (key == null) {
             return false;
         }
         
-        // Calculate the size of this entry
-        long entrySize = key.length + (value != null ? value.length : 0);
-        
-        // Update the data structure
         // Handle null value case for tombstones
-        byte[] oldValue = value != null ? data.put(key, value) : data.put(key, new byte[0]);
+        byte[] stored = value != null ? value : new byte[0];
         
-        // Update the size tracking
-        if (oldValue != null) {
-            // If we're replacing an existing value, subtract the old value's size and add the new value's size
-            long oldValueSize = oldValue.length;
-            long sizeDifference = (value != null ? value.length : 0) - oldValueSize;
-            sizeInBytes.addAndGet(sizeDifference);
-        } else {
-            // If it's a new key, add the full entry size
-            sizeInBytes.addAndGet(entrySize);
-        }
+        // Keys count once and every version kept counts its value. The function
+        // may run more than once, so it only computes the size difference.
+        long[] sizeDifference = new long[1];
+        data.compute(key, (k, current) -> {
+            if (current == null) {
+                sizeDifference[0] = key.length + stored.length;
+                return new Version(stored, sequence, null);
+            }
+            if (sequence < current.sequence) {
+                sizeDifference[0] = 0;
+                return current;
+            }
+            // A version written at the same sequence number replaces the old one
+            boolean keep = keepPrevious && sequence > current.sequence;
+            long dropped = 0;
+            if (!keep) {
+                for (Version version = current; version != null; version = version.previous) {
+                    dropped += version.value.length;
+                }
+            }
+            sizeDifference[0] = stored.length - dropped;
+            return new Version(stored, sequence, keep ? current : null);
+        });
         
         // Check if we've exceeded the size limit
-        return sizeInBytes.get() >= maxSizeInBytes;
+        return sizeInBytes.addAndGet(sizeDifference[0]) + rangeTombstoneBytes.get() >= maxSizeInBytes;
     }
     
     /**
@@ -87,6 +145,50 @@ public class MemTable {
         return put(key, new byte[0]);
     }
     
+    /**
+     * Marks a key as deleted by storing a tombstone version.
+     * 
+     * @param key The key to delete
+     * @param sequence The WAL sequence number of the delete
+     * @param keepPrevious Whether a snapshot may still read the versions this one replaces
+     * @return true if the MemTable should be flushed to disk, false otherwise
+     */
+    public boolean delete(byte[] key, long sequence, boolean keepPrevious) {
+        return put(key, new byte[0], sequence, keepPrevious);
+    }
+    
+    /**
+     * Deletes every key from a start key (inclusive) to an end key (exclusive)
+     * with a single range tombstone. Versions the tombstone hides stay in the
+     * MemTable; readers skip them.
+     * 
+     * @param startKey The first key to delete
+     * @param endKey The key to stop before, or null to delete to the last key
+     * @param sequence The WAL sequence number of the delete
+     * @return true if the MemTable should be flushed to disk, false otherwise
+     */
+    public boolean deleteRange(byte[] startKey, byte[] endKey, long sequence) {
+        rangeTombstones.add(new RangeTombstone(startKey, endKey, sequence));
+        rangeTombstoneBytes.addAndGet(startKey.length + (endKey != null ? endKey.length : 0));
+        return getSizeInBytes() >= maxSizeInBytes;
+    }
+    
+    /**
+     * Returns the range tombstones of this MemTable, oldest first.
+     * 
+     * @return An unmodifiable view of the range tombstones
+     */
+    public List<RangeTombstone> getRangeTombstones() {
+        return Collections.unmodifiableList(rangeTombstones);
+    }
+    
+    /**
+     * @return The bytes taken by the keys of the range tombstones
+     */
+    long getRangeTombstoneBytes() {
+        return rangeTombstoneBytes.get();
+    }
+    
     /**
      * Gets the value for a given key.
      * 
@@ -94,7 +196,7 @@ public class MemTable {
      * @return The value, or null if the key doesn't exist or has been deleted
      */
     public byte[] get(byte[] key) {
-        byte[] value = data.get(key);
+        byte[] value = lookup(key);
         // If the value is an empty byte array (tombstone), return null
         if (value != null && value.length == 0) {
             return null;
@@ -102,6 +204,49 @@ public class MemTable {
         return value;
     }
     
+    /**
+     * Looks up a key, distinguishing deleted keys from missing ones.
+     * 
+     * @param key The key to look up
+     * @return The value, an empty array if the key has been deleted, or null if
+     *         the MemTable has no entry for the key
+     */
+    byte[] lookup(byte[] key) {
+        Version version = data.get(key);
+        return version != null ? version.value : null;
+    }
+    
+    /**
+     * Looks up the version of a key that a snapshot reads.
+     * 
+     * @param key The key to look up
+     * @param snapshotSequence The snapshot's sequence number
+     * @return The value, an empty array if the key was deleted at the snapshot, or
+     *         null if the MemTable has no version of the key the snapshot can see
+     */
+    byte[] lookup(byte[] key, long snapshotSequence) {
+        SequencedEntry entry = find(key, snapshotSequence);
+        return entry != null ? entry.getValue() : null;
+    }
+    
+    /**
+     * Finds the version of a key that a snapshot reads. Range tombstones are not
+     * taken into account.
+     * 
+     * @param key The key to look up
+     * @param snapshotSequence The snapshot's sequence number
+     * @return The version, with an empty value for a tombstone, or null if the
+     *         MemTable has no version of the key the snapshot can see
+     */
+    SequencedEntry find(byte[] key, long snapshotSequence) {
+        for (Version version = data.get(key); version != null; version = version.previous) {
+            if (version.sequence <= snapshotSequence) {
+                return new SequencedEntry(key, version.value, version.sequence);
+            }
+        }
+        return null;
+    }
+    
     /**
      * Checks if the MemTable contains a given key.
      * 
@@ -118,7 +263,7 @@ public class MemTable {
      * @return The size in bytes
      */
     public long getSizeInBytes() {
-        return sizeInBytes.get();
+        return sizeInBytes.get() + rangeTombstoneBytes.get();
     }
     
     /**
@@ -133,10 +278,10 @@ public class MemTable {
     /**
      * Returns whether the MemTable is empty.
      * 
-     * @return true if empty, false otherwise
+     * @return true if it holds neither entries nor range tombstones, false otherwise
      */
     public boolean isEmpty() {
-        return data.isEmpty();
+        return data.isEmpty() && rangeTombstones.isEmpty();
     }
     
     /**
@@ -145,11 +290,47 @@ public class MemTable {
      * @param consumer A function that processes each key-value pair
      */
     public void forEach(BiConsumer<byte[], byte[]> consumer) {
-        for (Map.Entry<byte[], byte[]> entry : data.entrySet()) {
-            consumer.accept(entry.getKey(), entry.getValue());
+        for (Map.Entry<byte[], Version> entry : data.entrySet()) {
+            consumer.accept(entry.getKey(), entry.getValue().value);
         }
     }
     
+    /**
+     * Returns an iterator over all entries in sorted order, including tombstones.
+     * Each version is a {@link SequencedEntry}, and the versions of a key follow
+     * each other newest first. The iterator is weakly consistent and does not copy
+     * the data.
+     * 
+     * @return An iterator over the entries
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+        return new VersionIterator(data.entrySet().iterator());
+    }
+    
+    /**
+     * Returns an iterator over the entries in a key range, in sorted order,
+     * including tombstones and older versions. The iterator is weakly consistent
+     * and does not copy the data.
+     * 
+     * @param startKey The first key to include, or null to start at the beginning
+     * @param endKey The key to stop before (exclusive), or null to run to the end
+     * @return An iterator over the entries in the range
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> iterator(byte[] startKey, byte[] endKey) {
+        NavigableMap<byte[], Version> range = data;
+        if (startKey != null && endKey != null) {
+            if (COMPARATOR.compare(startKey, endKey) >= 0) {
+                return Collections.emptyIterator();
+            }
+            range = data.subMap(startKey, true, endKey, false);
+        } else if (startKey != null) {
+            range = data.tailMap(startKey, true);
+        } else if (endKey != null) {
+            range = data.headMap(endKey, false);
+        }
+        return new VersionIterator(range.entrySet().iterator());
+    }
+    
     /**
      * Returns a snapshot of the current data as a NavigableMap.
      * This is used when flushing the MemTable to disk.
@@ -159,8 +340,8 @@ public class MemTable {
     public NavigableMap<byte[], byte[]> getSnapshot() {
         // Create a new map with the same comparator
         NavigableMap<byte[], byte[]> snapshot = new ConcurrentSkipListMap<>(COMPARATOR);
-        // Copy all entries
-        snapshot.putAll(data);
+        // Copy the newest version of every key
+        forEach(snapshot::put);
         return snapshot;
     }
     
@@ -171,7 +352,55 @@ public class MemTable {
     public void clear() {
         data.clear();
         sizeInBytes.set(0);
+        rangeTombstones.clear();
+        rangeTombstoneBytes.set(0);
     }
     
-    // No inner ByteArrayComparator class needed anymore as we use the standalone one
+    /**
+     * One version of a key, linking to the next older version that is kept.
+     */
+    private static final class Version {
+        final byte[] value;
+        final long sequence;
+        final Version previous;
+        
+        Version(byte[] value, long sequence, Version previous) {
+            this.value = value;
+            this.sequence = sequence;
+            this.previous = previous;
+        }
+    }
+    
+    /**
+     * Returns every version of each key, newest first.
+     */
+    private static final class VersionIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+        private final Iterator<Map.Entry<byte[], Version>> keys;
+        private byte[] key;
+        private Version version;
+        
+        VersionIterator(Iterator<Map.Entry<byte[], Version>> keys) {
+            this.keys = keys;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            if (version == null && keys.hasNext()) {
+                Map.Entry<byte[], Version> entry = keys.next();
+                key = entry.getKey();
+                version = entry.getValue();
+            }
+            return version != null;
+        }
+        
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<byte[], byte[]> entry = new SequencedEntry(key, version.value, version.sequence);
+            version = version.previous;
+            return entry;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * MergingIterator merges several sorted entry iterators into one sorted stream.
+ * The sources are given from newest to oldest; when the same key appears in
+ * more than one source, only the entry from the newest source is returned.
+ * Tombstones (empty values) are returned like any other entry so that callers
+ * can decide whether to keep or drop them.
+ *
+ * <p>A merge over all versions returns every entry instead, and orders the
+ * versions of a key newest first by sequence number, so that compactions can
+ * keep the older versions that snapshots still read.</p>
+ *
+ * <p>Only the current entry of each source is held in memory, so merging
+ * SSTables needs memory proportional to the number of sources, not to the
+ * amount of data being merged.</p>
+ */
+public class MergingIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+
+    private static final ByteArrayComparator COMPARATOR = new ByteArrayComparator();
+
+    private final PriorityQueue<Cursor> heap;
+    private final boolean allVersions;
+
+    /**
+     * Creates a new MergingIterator that returns the newest entry of each key.
+     *
+     * @param sources Sorted entry iterators, ordered from newest to oldest
+     */
+    public MergingIterator(List<? extends Iterator<Map.Entry<byte[], byte[]>>> sources) {
+        this(sources, false);
+    }
+
+    /**
+     * Creates a new MergingIterator.
+     *
+     * @param sources Sorted entry iterators, ordered from newest to oldest
+     * @param allVersions Whether to return every version of a key rather than the newest
+     */
+    public MergingIterator(List<? extends Iterator<Map.Entry<byte[], byte[]>>> sources, boolean allVersions) {
+        this.allVersions = allVersions;
+        this.heap = new PriorityQueue<>(Math.max(1, sources.size()));
+        for (int i = 0; i < sources.size(); i++) {
+            Cursor cursor = new Cursor(sources.get(i), i, allVersions);
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> next() {
+        Cursor top = heap.poll();
+        if (top == null) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<byte[], byte[]> result = top.current;
+        if (top.advance()) {
+            heap.add(top);
+        }
+        if (allVersions) {
+            return result;
+        }
+
+        // Skip older versions of the same key, in this source and the others
+        while (!heap.isEmpty() && COMPARATOR.compare(heap.peek().current.getKey(), result.getKey()) == 0) {
+            Cursor older = heap.poll();
+            if (older.advance()) {
+                heap.add(older);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The position within one source. Cursors order by their current key, and
+     * for equal keys the newer source comes first, or the newer version when
+     * merging all versions.
+     */
+    private static class Cursor implements Comparable<Cursor> {
+        private final Iterator<Map.Entry<byte[], byte[]>> source;
+        private final int age;
+        private final boolean bySequence;
+        private Map.Entry<byte[], byte[]> current;
+
+        Cursor(Iterator<Map.Entry<byte[], byte[]>> source, int age, boolean bySequence) {
+            this.source = source;
+            this.age = age;
+            this.bySequence = bySequence;
+        }
+
+        boolean advance() {
+            if (source.hasNext()) {
+                current = source.next();
+                return true;
+            }
+            current = null;
+            return false;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int cmp = COMPARATOR.compare(current.getKey(), other.current.getKey());
+            if (cmp == 0 && bySequence) {
+                cmp = Long.compare(SequencedEntry.sequenceOf(other.current), SequencedEntry.sequenceOf(current));
+            }
+            return cmp != 0 ? cmp : Integer.compare(age, other.age);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * OffHeapMemTable is a MemTable that keeps its keys and values outside the Java heap.
+ *
+ * <p>Every put appends an entry of key length (4 bytes), value length (4 bytes),
+ * sequence number (8 bytes), the address of the previous version of the key that
+ * is kept for snapshots (8 bytes, -1 if none), key and value to an arena of large
+ * direct buffers. A concurrent skip list orders the entries; it holds only the
+ * arena address of each key's newest entry, packed into a long as the chunk index
+ * and the offset in the chunk. The garbage collector therefore traces a few
+ * objects per entry, none of them holding data, instead of a key array and a
+ * value array per entry. The arena chunks are released together once the MemTable
+ * has been flushed and is no longer referenced.</p>
+ *
+ * <p>Updating a key appends a new entry and points the skip list at it; the old
+ * entry stays in the arena until the MemTable is dropped. The size reported by
+ * {@link #getSizeInBytes()} is the arena space used, so overwrites count towards
+ * the flush threshold. Keys and values are copied onto the heap when they are read.
+ * Range tombstones, which are few, are kept on the heap by the base class.</p>
+ */
+public class OffHeapMemTable extends MemTable {
+
+    /**
+     * Default size of an arena chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int ENTRY_HEADER_SIZE = 24; // Key length(4) + Value length(4) + Sequence(8) + Previous(8)
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int PREVIOUS_OFFSET = 16;
+    private static final long NO_PREVIOUS = -1;
+    private static final ByteArrayComparator COMPARATOR = new ByteArrayComparator();
+
+    private final int chunkSize;
+
+    // Arena chunks; the array is replaced when it grows
+    private volatile ByteBuffer[] chunks = new ByteBuffer[16];
+    private int chunkCount;
+    private int chunkPosition;
+
+    // Keys are the addresses of entries, or byte arrays when looking up a key.
+    // Values are the address of the entry holding the key's current value.
+    private final ConcurrentSkipListMap<Object, Long> index;
+
+    private final AtomicLong arenaBytes = new AtomicLong();
+    private final long maxSizeInBytes;
+
+    /**
+     * Creates a new OffHeapMemTable with the default chunk size.
+     *
+     * @param maxSizeInBytes Maximum arena size in bytes before flushing to disk
+     */
+    public OffHeapMemTable(long maxSizeInBytes) {
+        this(maxSizeInBytes, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a new OffHeapMemTable.
+     *
+     * @param maxSizeInBytes Maximum arena size in bytes before flushing to disk
+     * @param chunkSize Size of each arena chunk; larger entries get a chunk of their own
+     */
+    public OffHeapMemTable(long maxSizeInBytes, int chunkSize) {
+        super(maxSizeInBytes);
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.chunkSize = chunkSize;
+        this.index = new ConcurrentSkipListMap<>(new EntryComparator());
+    }
+
+    @Override
+    public boolean put(byte[] key, byte[] value) {
+        return put(key, value, 0, false);
+    }
+
+    @Override
+    public boolean put(byte[] key, byte[] value, long sequence, boolean keepPrevious) {
+        // Check if key is null
+        if (key == null) {
+            return false;
+        }
+        if (value == null) {
+            value = new byte[0];
+        }
+
+        // Copy the entry into the arena before it becomes visible through the index
+        int entrySize = ENTRY_HEADER_SIZE + key.length + value.length;
+        long address = allocate(entrySize);
+        ByteBuffer buffer = chunk(address).duplicate();
+        buffer.position(offset(address));
+        buffer.putInt(key.length);
+        buffer.putInt(value.length);
+        buffer.putLong(sequence);
+        buffer.putLong(NO_PREVIOUS);
+        buffer.put(key);
+        buffer.put(value);
+
+        // A key that is already present keeps its first entry as the index key.
+        // An entry older than the key's newest one stays unreferenced in the arena.
+        Long entry = address;
+        index.compute(entry, (k, current) -> {
+            if (current == null) {
+                return entry;
+            }
+            long currentSequence = readSequence(current);
+            if (sequence < currentSequence) {
+                return current;
+            }
+            // A version written at the same sequence number replaces the old one
+            boolean keep = keepPrevious && sequence > currentSequence;
+            buffer.putLong(offset(address) + PREVIOUS_OFFSET, keep ? current : NO_PREVIOUS);
+            return entry;
+        });
+
+        // Check if we've exceeded the size limit
+        return arenaBytes.addAndGet(entrySize) + getRangeTombstoneBytes() >= maxSizeInBytes;
+    }
+
+    @Override
+    public boolean delete(byte[] key) {
+        // Check if key is null
+        if (key == null) {
+            return false;
+        }
+
+        // Use an empty byte array as a tombstone to mark deletion
+        return put(key, new byte[0]);
+    }
+
+    @Override
+    public boolean delete(byte[] key, long sequence, boolean keepPrevious) {
+        return put(key, new byte[0], sequence, keepPrevious);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        byte[] value = lookup(key);
+        // If the value is an empty byte array (tombstone), return null
+        if (value != null && value.length == 0) {
+            return null;
+        }
+        return value;
+    }
+
+    @Override
+    byte[] lookup(byte[] key) {
+        Long address = index.get(key);
+        return address != null ? readValue(address) : null;
+    }
+
+    @Override
+    SequencedEntry find(byte[] key, long snapshotSequence) {
+        Long newest = index.get(key);
+        for (long address = newest != null ? newest : NO_PREVIOUS; address != NO_PREVIOUS;
+                address = readPrevious(address)) {
+            long sequence = readSequence(address);
+            if (sequence <= snapshotSequence) {
+                return new SequencedEntry(key, readValue(address), sequence);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(byte[] key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        return arenaBytes.get() + getRangeTombstoneBytes();
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.isEmpty() && getRangeTombstones().isEmpty();
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> consumer) {
+        for (Map.Entry<Object, Long> entry : index.entrySet()) {
+            consumer.accept(readKey(entry.getValue()), readValue(entry.getValue()));
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+        return new EntryIterator(index.entrySet().iterator());
+    }
+
+    @Override
+    public Iterator<Map.Entry<byte[], byte[]>> iterator(byte[] startKey, byte[] endKey) {
+        ConcurrentNavigableMap<Object, Long> range = index;
+        if (startKey != null && endKey != null) {
+            if (COMPARATOR.compare(startKey, endKey) >= 0) {
+                return Collections.emptyIterator();
+            }
+            range = index.subMap(startKey, true, endKey, false);
+        } else if (startKey != null) {
+            range = index.tailMap(startKey, true);
+        } else if (endKey != null) {
+            range = index.headMap(endKey, false);
+        }
+        return new EntryIterator(range.entrySet().iterator());
+    }
+
+    @Override
+    public NavigableMap<byte[], byte[]> getSnapshot() {
+        NavigableMap<byte[], byte[]> snapshot = new ConcurrentSkipListMap<>(COMPARATOR);
+        forEach(snapshot::put);
+        return snapshot;
+    }
+
+    /**
+     * Clears all data from the MemTable and drops its arena.
+     */
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        index.clear();
+        chunks = new ByteBuffer[16];
+        chunkCount = 0;
+        chunkPosition = 0;
+        arenaBytes.set(0);
+    }
+
+    /**
+     * @return The number of arena chunks allocated
+     */
+    synchronized int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Reserves space for an entry in the arena.
+     *
+     * @param size The entry size in bytes
+     * @return The address of the reserved space
+     */
+    private synchronized long allocate(int size) {
+        if (chunkCount == 0 || chunkPosition + size > chunks[chunkCount - 1].capacity()) {
+            ByteBuffer[] current = chunks;
+            if (chunkCount == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[chunkCount++] = ByteBuffer.allocateDirect(Math.max(chunkSize, size));
+            chunks = current;
+            chunkPosition = 0;
+        }
+        long address = ((long) (chunkCount - 1) << 32) | chunkPosition;
+        chunkPosition += size;
+        return address;
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks[(int) (address >>> 32)];
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private byte[] readKey(long address) {
+        ByteBuffer buffer = chunk(address).duplicate();
+        int offset = offset(address);
+        byte[] key = new byte[buffer.getInt(offset)];
+        buffer.position(offset + ENTRY_HEADER_SIZE);
+        buffer.get(key);
+        return key;
+    }
+
+    private byte[] readValue(long address) {
+        ByteBuffer buffer = chunk(address).duplicate();
+        int offset = offset(address);
+        byte[] value = new byte[buffer.getInt(offset + 4)];
+        buffer.position(offset + ENTRY_HEADER_SIZE + buffer.getInt(offset));
+        buffer.get(value);
+        return value;
+    }
+
+    private long readSequence(long address) {
+        return chunk(address).getLong(offset(address) + SEQUENCE_OFFSET);
+    }
+
+    private long readPrevious(long address) {
+        return chunk(address).getLong(offset(address) + PREVIOUS_OFFSET);
+    }
+
+    /**
+     * Compares the key of an arena entry with another entry's key or a byte array,
+     * reading the arena in place. Bytes compare as signed, as in
+     * {@link ByteArrayComparator}.
+     */
+    private int compareKey(long address, Object other) {
+        ByteBuffer chunk = chunk(address);
+        int offset = offset(address);
+        int length = chunk.getInt(offset);
+        int start = offset + ENTRY_HEADER_SIZE;
+
+        if (other instanceof byte[]) {
+            byte[] key = (byte[]) other;
+            int minLength = Math.min(length, key.length);
+            for (int i = 0; i < minLength; i++) {
+                int cmp = Byte.compare(chunk.get(start + i), key[i]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return Integer.compare(length, key.length);
+        }
+
+        long otherAddress = (Long) other;
+        ByteBuffer otherChunk = chunk(otherAddress);
+        int otherOffset = offset(otherAddress);
+        int otherLength = otherChunk.getInt(otherOffset);
+        int otherStart = otherOffset + ENTRY_HEADER_SIZE;
+        int minLength = Math.min(length, otherLength);
+        for (int i = 0; i < minLength; i++) {
+            int cmp = Byte.compare(chunk.get(start + i), otherChunk.get(otherStart + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, otherLength);
+    }
+
+    /**
+     * Orders index keys, which are entry addresses or byte arrays, by key.
+     */
+    private class EntryComparator implements Comparator<Object> {
+        @Override
+        public int compare(Object a, Object b) {
+            if (a instanceof Long) {
+                return compareKey((Long) a, b);
+            }
+            if (b instanceof Long) {
+                return -compareKey((Long) b, a);
+            }
+            return COMPARATOR.compare((byte[]) a, (byte[]) b);
+        }
+    }
+
+    /**
+     * Copies each version onto the heap as it is returned, newest first per key.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+        private final Iterator<Map.Entry<Object, Long>> entries;
+        private long address = NO_PREVIOUS;
+        private byte[] key;
+
+        EntryIterator(Iterator<Map.Entry<Object, Long>> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (address == NO_PREVIOUS && entries.hasNext()) {
+                address = entries.next().getValue();
+                key = readKey(address);
+            }
+            return address != NO_PREVIOUS;
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<byte[], byte[]> entry = new SequencedEntry(key, readValue(address), readSequence(address));
+            address = readPrevious(address);
+            return entry;
+        }
+    }
+}
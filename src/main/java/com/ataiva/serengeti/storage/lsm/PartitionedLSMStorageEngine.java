@@ -0,0 +1,403 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PartitionedLSMStorageEngine spreads one database over several
+ * {@link LSMStorageEngine}s by the hash of the key. Each partition has its own
+ * WAL, MemTables, flush thread and compaction thread, so writes to different
+ * partitions never wait for each other's locks and a busy database can keep
+ * every core busy.
+ *
+ * <p>Point operations go to the partition of their key. Scans read every
+ * partition and merge them in key order, and range deletes are applied to every
+ * partition. Partitions are independent engines: a {@link WriteBatch} is atomic
+ * within each partition but not across them, and snapshots can only be taken of
+ * single partitions.</p>
+ *
+ * <p>The partitions live in subdirectories of the data directory. The number of
+ * partitions is stored next to them and cannot change once the database has been
+ * created, since it decides where every key is.</p>
+ */
+public class PartitionedLSMStorageEngine implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(PartitionedLSMStorageEngine.class.getName());
+
+    /**
+     * Default number of partitions: one per two cores, up to eight.
+     */
+    public static final int DEFAULT_PARTITIONS = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors() / 2));
+
+    static final String PARTITIONS_FILE = "PARTITIONS";
+    private static final String PARTITION_PREFIX = "partition-";
+
+    private final LSMStorageEngine[] partitions;
+
+    /**
+     * Opens the engine of one partition.
+     */
+    public interface PartitionOpener {
+
+        /**
+         * @param directory The data directory of the partition
+         * @return The partition's engine
+         * @throws IOException If the engine cannot be opened
+         */
+        LSMStorageEngine open(Path directory) throws IOException;
+    }
+
+    /**
+     * Creates or opens a PartitionedLSMStorageEngine with default engine settings.
+     *
+     * @param dataDirectory Directory holding the partitions
+     * @param partitionCount Number of partitions of a new database
+     * @param memTableMaxSize Maximum size of a partition's MemTable before flushing
+     * @param maxImmutableMemTables Maximum number of immutable MemTables of a partition
+     * @throws IOException If an I/O error occurs
+     */
+    public PartitionedLSMStorageEngine(Path dataDirectory, int partitionCount, long memTableMaxSize,
+                                       int maxImmutableMemTables) throws IOException {
+        this(dataDirectory, partitionCount,
+             directory -> new LSMStorageEngine(directory, memTableMaxSize, maxImmutableMemTables));
+    }
+
+    /**
+     * Creates or opens a PartitionedLSMStorageEngine. An existing database keeps
+     * the number of partitions it was created with.
+     *
+     * @param dataDirectory Directory holding the partitions
+     * @param partitionCount Number of partitions of a new database
+     * @param opener Opens the engine of each partition
+     * @throws IOException If an I/O error occurs
+     */
+    public PartitionedLSMStorageEngine(Path dataDirectory, int partitionCount,
+                                       PartitionOpener opener) throws IOException {
+        if (partitionCount <= 0) {
+            throw new IllegalArgumentException("Partition count must be positive");
+        }
+        Files.createDirectories(dataDirectory);
+        int count = readPartitionCount(dataDirectory, partitionCount);
+
+        this.partitions = new LSMStorageEngine[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                partitions[i] = opener.open(dataDirectory.resolve(PARTITION_PREFIX + i));
+            }
+        } catch (IOException | RuntimeException e) {
+            closePartitions();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the number of partitions of an existing database, or records the
+     * requested number for a new one.
+     */
+    private static int readPartitionCount(Path dataDirectory, int partitionCount) throws IOException {
+        Path path = dataDirectory.resolve(PARTITIONS_FILE);
+        if (Files.exists(path)) {
+            String contents = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+            int stored;
+            try {
+                stored = Integer.parseInt(contents);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid " + PARTITIONS_FILE + " file: " + contents, e);
+            }
+            if (stored <= 0) {
+                throw new IOException("Invalid " + PARTITIONS_FILE + " file: " + contents);
+            }
+            if (stored != partitionCount) {
+                LOGGER.warning("Database in " + dataDirectory + " has " + stored
+                        + " partitions, not " + partitionCount + "; keeping " + stored);
+            }
+            return stored;
+        }
+
+        // Data of an unpartitioned engine would be hidden by the partitions
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dataDirectory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (!name.startsWith(PARTITION_PREFIX) && !name.equals(PARTITIONS_FILE + ".tmp")) {
+                    throw new IOException("Directory holds an unpartitioned database: " + dataDirectory);
+                }
+            }
+        }
+
+        Path tempPath = dataDirectory.resolve(PARTITIONS_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer contents = ByteBuffer.wrap((partitionCount + "\n").getBytes(StandardCharsets.UTF_8));
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+            channel.force(true);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return partitionCount;
+    }
+
+    /**
+     * Finds the partition a key belongs to.
+     *
+     * @param key The key
+     * @return The index of the key's partition
+     */
+    public int partitionOf(byte[] key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        // Spread the bits of the hash, which barely differs for keys that only differ at the end
+        int hash = Arrays.hashCode(key);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, partitions.length);
+    }
+
+    /**
+     * @return The number of partitions
+     */
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * Gets the engines of the partitions, for example to configure them.
+     *
+     * @return The partitions, by index
+     */
+    public List<LSMStorageEngine> getPartitions() {
+        return Collections.unmodifiableList(Arrays.asList(partitions));
+    }
+
+    /**
+     * Puts a key-value pair into the key's partition. A null key is ignored, as
+     * in {@link LSMStorageEngine#put(byte[], byte[])}.
+     *
+     * @param key The key
+     * @param value The value
+     * @throws IOException If an I/O error occurs
+     */
+    public void put(byte[] key, byte[] value) throws IOException {
+        if (key == null) {
+            return;
+        }
+        partitions[partitionOf(key)].put(key, value);
+    }
+
+    /**
+     * Deletes a key from its partition. A null key is ignored, as in
+     * {@link LSMStorageEngine#delete(byte[])}.
+     *
+     * @param key The key
+     * @throws IOException If an I/O error occurs
+     */
+    public void delete(byte[] key) throws IOException {
+        if (key == null) {
+            return;
+        }
+        partitions[partitionOf(key)].delete(key);
+    }
+
+    /**
+     * Gets the value of a key from its partition.
+     *
+     * @param key The key
+     * @return The value, or null if the key does not exist or is null
+     * @throws IOException If an I/O error occurs
+     */
+    public byte[] get(byte[] key) throws IOException {
+        if (key == null) {
+            return null;
+        }
+        return partitions[partitionOf(key)].get(key);
+    }
+
+    /**
+     * Applies a batch of writes. The batch is split by partition, and the writes
+     * of each partition are applied together as one batch; a crash may leave the
+     * writes to some partitions applied and those to others not.
+     *
+     * @param batch The writes
+     * @throws IOException If an I/O error occurs
+     */
+    public void write(WriteBatch batch) throws IOException {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        WriteBatch[] split = new WriteBatch[partitions.length];
+        List<byte[]> keys = batch.keys();
+        List<byte[]> values = batch.values();
+        for (int i = 0; i < keys.size(); i++) {
+            int partition = partitionOf(keys.get(i));
+            if (split[partition] == null) {
+                split[partition] = new WriteBatch();
+            }
+            if (values.get(i) != null) {
+                split[partition].put(keys.get(i), values.get(i));
+            } else {
+                split[partition].delete(keys.get(i));
+            }
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            if (split[i] != null) {
+                partitions[i].write(split[i]);
+            }
+        }
+    }
+
+    /**
+     * Deletes every key in a range, in every partition.
+     *
+     * @param startKey The first key to delete (inclusive)
+     * @param endKey The key to stop before (exclusive), or null to delete to the last key
+     * @throws IOException If an I/O error occurs
+     * @see LSMStorageEngine#deleteRange(byte[], byte[])
+     */
+    public void deleteRange(byte[] startKey, byte[] endKey) throws IOException {
+        for (LSMStorageEngine partition : partitions) {
+            partition.deleteRange(startKey, endKey);
+        }
+    }
+
+    /**
+     * Deletes every key that starts with a prefix, in every partition.
+     *
+     * @param prefix The key prefix
+     * @throws IOException If an I/O error occurs
+     * @see LSMStorageEngine#deletePrefix(byte[])
+     */
+    public void deletePrefix(byte[] prefix) throws IOException {
+        for (LSMStorageEngine partition : partitions) {
+            partition.deletePrefix(prefix);
+        }
+    }
+
+    /**
+     * Returns the live entries in a key range of every partition, in key order.
+     *
+     * @param startKey The first key to return (inclusive), or null to start at the first key
+     * @param endKey The key to stop before (exclusive), or null to scan to the last key
+     * @return Iterator over the key-value pairs in the range
+     * @see LSMStorageEngine#scan(byte[], byte[])
+     */
+    public CloseableIterator<Map.Entry<byte[], byte[]>> scan(byte[] startKey, byte[] endKey) {
+        List<CloseableIterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>();
+        for (LSMStorageEngine partition : partitions) {
+            sources.add(partition.scan(startKey, endKey));
+        }
+        // A key is only ever in one partition, so the order of the sources does not matter
+        return new PartitionScanIterator(sources);
+    }
+
+    /**
+     * Returns the live entries whose keys start with a prefix, of every partition,
+     * in key order.
+     *
+     * @param prefix The key prefix
+     * @return Iterator over the key-value pairs with the prefix
+     * @see LSMStorageEngine#prefixScan(byte[])
+     */
+    public CloseableIterator<Map.Entry<byte[], byte[]>> prefixScan(byte[] prefix) {
+        List<CloseableIterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>();
+        for (LSMStorageEngine partition : partitions) {
+            sources.add(partition.prefixScan(prefix));
+        }
+        return new PartitionScanIterator(sources);
+    }
+
+    /**
+     * Triggers a compaction check in every partition.
+     */
+    public void triggerCompactionCheck() {
+        for (LSMStorageEngine partition : partitions) {
+            partition.triggerCompactionCheck();
+        }
+    }
+
+    /**
+     * Closes every partition, flushing its MemTables.
+     *
+     * @throws IOException If a partition cannot be closed; the others are closed anyway
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = closePartitions();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private IOException closePartitions() {
+        IOException failure = null;
+        for (LSMStorageEngine partition : partitions) {
+            if (partition == null) {
+                continue;
+            }
+            try {
+                partition.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error closing LSM partition", e);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Merges the scans of the partitions, and closes them all when closed. Each
+     * one already closes itself once it is exhausted.
+     */
+    private static class PartitionScanIterator implements CloseableIterator<Map.Entry<byte[], byte[]>> {
+        private final List<CloseableIterator<Map.Entry<byte[], byte[]>>> sources;
+        private final MergingIterator merged;
+        private volatile boolean closed;
+
+        PartitionScanIterator(List<CloseableIterator<Map.Entry<byte[], byte[]>>> sources) {
+            this.sources = sources;
+            this.merged = new MergingIterator(sources);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !closed && merged.hasNext();
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return merged.next();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            for (CloseableIterator<Map.Entry<byte[], byte[]>> source : sources) {
+                source.close();
+            }
+        }
+    }
+}
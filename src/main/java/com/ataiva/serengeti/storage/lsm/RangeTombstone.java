@@ -0,0 +1,139 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * RangeTombstone marks every key from a start key (inclusive) to an end key
+ * (exclusive), or to the last key, as deleted, as of the WAL sequence number of
+ * the delete.
+ *
+ * <p>It hides the versions of keys in its range that are older than itself,
+ * wherever they are stored, and leaves newer versions alone. MemTables and
+ * SSTables keep their range tombstones apart from their entries, in memory, since
+ * a single one stands for any number of deleted keys.</p>
+ */
+public final class RangeTombstone {
+
+    private static final ByteArrayComparator COMPARATOR = new ByteArrayComparator();
+
+    private final byte[] startKey;
+    private final byte[] endKey;
+    private final long sequence;
+
+    /**
+     * Creates a RangeTombstone.
+     *
+     * @param startKey The first key deleted (inclusive)
+     * @param endKey The key the range stops before (exclusive), or null to delete to the last key
+     * @param sequence The sequence number of the delete
+     */
+    public RangeTombstone(byte[] startKey, byte[] endKey, long sequence) {
+        this.startKey = startKey;
+        this.endKey = endKey;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return The first key deleted (inclusive)
+     */
+    public byte[] getStartKey() {
+        return startKey;
+    }
+
+    /**
+     * @return The key the range stops before (exclusive), or null if it runs to the last key
+     */
+    public byte[] getEndKey() {
+        return endKey;
+    }
+
+    /**
+     * @return The WAL sequence number of the delete
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Checks whether a key is in the range.
+     *
+     * @param key The key
+     * @return true if the key is at or after the start key and before the end key
+     */
+    public boolean contains(byte[] key) {
+        return COMPARATOR.compare(key, startKey) >= 0 && (endKey == null || COMPARATOR.compare(key, endKey) < 0);
+    }
+
+    /**
+     * Checks whether the range has keys in common with another one.
+     *
+     * @param from The first key of the other range (inclusive), or null for no lower bound
+     * @param to The key the other range stops before (exclusive), or null for no upper bound
+     * @return true if the ranges overlap
+     */
+    public boolean overlaps(byte[] from, byte[] to) {
+        return (from == null || endKey == null || COMPARATOR.compare(endKey, from) > 0)
+                && (to == null || COMPARATOR.compare(startKey, to) < 0);
+    }
+
+    /**
+     * Checks whether every key from one key to another, both inclusive, is in the range.
+     *
+     * @param first The first key
+     * @param last The last key
+     * @return true if the range covers both keys and everything between them
+     */
+    public boolean covers(byte[] first, byte[] last) {
+        return COMPARATOR.compare(first, startKey) >= 0 && (endKey == null || COMPARATOR.compare(last, endKey) < 0);
+    }
+
+    /**
+     * Checks whether every key of another range is in this one.
+     *
+     * @param other The other range tombstone
+     * @return true if this range includes the other one
+     */
+    public boolean includes(RangeTombstone other) {
+        return COMPARATOR.compare(other.startKey, startKey) >= 0
+                && (endKey == null || (other.endKey != null && COMPARATOR.compare(other.endKey, endKey) <= 0));
+    }
+
+    /**
+     * Restricts the range to the keys of another range.
+     *
+     * @param from The first key of the other range (inclusive), or null for no lower bound
+     * @param to The key the other range stops before (exclusive), or null for no upper bound
+     * @return The part of this range tombstone within the other range, which must overlap it
+     */
+    public RangeTombstone clip(byte[] from, byte[] to) {
+        byte[] start = from != null && COMPARATOR.compare(from, startKey) > 0 ? from : startKey;
+        byte[] end = to != null && (endKey == null || COMPARATOR.compare(to, endKey) < 0) ? to : endKey;
+        return start == startKey && end == endKey ? this : new RangeTombstone(start, end, sequence);
+    }
+
+    /**
+     * Finds the newest range tombstone holding a key that a snapshot can see.
+     *
+     * @param tombstones The range tombstones to search
+     * @param key The key
+     * @param snapshotSequence The snapshot's sequence number
+     * @return The sequence number of the newest such tombstone, or -1 if there is none
+     */
+    public static long newestCovering(List<RangeTombstone> tombstones, byte[] key, long snapshotSequence) {
+        long newest = -1;
+        for (RangeTombstone tombstone : tombstones) {
+            if (tombstone.sequence > newest && tombstone.sequence <= snapshotSequence && tombstone.contains(key)) {
+                newest = tombstone.sequence;
+            }
+        }
+        return newest;
+    }
+
+    @Override
+    public String toString() {
+        return "RangeTombstone{" + new String(startKey, StandardCharsets.UTF_8)
+                + ".." + (endKey != null ? new String(endKey, StandardCharsets.UTF_8) : "")
+                + ", sequence=" + sequence + '}';
+    }
+}
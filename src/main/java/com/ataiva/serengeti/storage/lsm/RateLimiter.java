@@ -0,0 +1,156 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import com.ataiva.serengeti.performance.PerformanceProfiler;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RateLimiter is a token bucket that limits the rate of bytes passed through it.
+ *
+ * <p>Tokens accumulate at the configured rate, up to a burst of a tenth of a second
+ * of traffic. A request takes its tokens at once, going into debt if there are not
+ * enough, and the caller then sleeps until the debt would have been paid off. Later
+ * requests queue behind that debt, so concurrent callers share the rate between
+ * them and large requests are never starved.</p>
+ *
+ * <p>A rate of zero or less means unlimited; requests are then only counted. The
+ * rate can be changed at any time.</p>
+ */
+public class RateLimiter {
+
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    private long bytesPerSecond;
+    private double available;
+    private long lastRefillNanos;
+
+    // Statistics
+    private long totalBytes;
+    private long totalRequests;
+    private long throttledNanos;
+
+    /**
+     * Creates a RateLimiter.
+     *
+     * @param bytesPerSecond The rate limit, or zero or less for no limit
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.lastRefillNanos = System.nanoTime();
+        this.available = burst();
+    }
+
+    /**
+     * Takes tokens for bytes about to be written, sleeping as long as needed to
+     * stay within the rate.
+     *
+     * @param bytes The number of bytes
+     * @throws InterruptedIOException If the thread is interrupted while waiting
+     */
+    public void request(long bytes) throws InterruptedIOException {
+        long waitNanos = 0;
+        synchronized (this) {
+            totalBytes += bytes;
+            totalRequests++;
+            if (bytesPerSecond > 0) {
+                refill(System.nanoTime());
+                available -= bytes;
+                if (available < 0) {
+                    waitNanos = (long) (-available * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+                    throttledNanos += waitNanos;
+                }
+            }
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rate limited");
+            }
+        }
+    }
+
+    /**
+     * Changes the rate limit. Tokens already accumulated are kept up to the new burst.
+     *
+     * @param bytesPerSecond The rate limit, or zero or less for no limit
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        refill(System.nanoTime());
+        this.bytesPerSecond = bytesPerSecond;
+        available = Math.min(available, burst());
+    }
+
+    /**
+     * @return The rate limit in bytes per second, or zero or less if unlimited
+     */
+    public synchronized long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return The total number of bytes requested
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return The number of requests made
+     */
+    public synchronized long getTotalRequests() {
+        return totalRequests;
+    }
+
+    /**
+     * @return The total time callers were made to wait, in nanoseconds
+     */
+    public synchronized long getThrottledNanos() {
+        return throttledNanos;
+    }
+
+    /**
+     * Reports the limiter's rate and counters to the profiler.
+     *
+     * @param profiler The profiler to report to
+     * @param component Component name to report the metrics under
+     * @param operation Operation name to report the metrics under
+     */
+    public void reportMetrics(PerformanceProfiler profiler, String component, String operation) {
+        long rate;
+        long bytes;
+        long throttled;
+        synchronized (this) {
+            rate = bytesPerSecond;
+            bytes = totalBytes;
+            throttled = throttledNanos;
+        }
+        profiler.recordCustomMetric(component, operation, operation + ".rate-limit", Math.max(rate, 0), "bytes/sec");
+        profiler.recordCustomMetric(component, operation, operation + ".bytes", bytes, "bytes");
+        profiler.recordCustomMetric(component, operation, operation + ".throttled-time",
+                TimeUnit.NANOSECONDS.toMillis(throttled), "ms");
+    }
+
+    private void refill(long now) {
+        if (bytesPerSecond > 0) {
+            double earned = (double) (now - lastRefillNanos) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+            available = Math.min(burst(), available + earned);
+        }
+        lastRefillNanos = now;
+    }
+
+    private double burst() {
+        return bytesPerSecond > 0 ? Math.max(MIN_BURST_BYTES, bytesPerSecond / 10.0) : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RateLimiter{" +
+               "bytesPerSecond=" + bytesPerSecond +
+               ", totalBytes=" + totalBytes +
+               ", throttledMs=" + TimeUnit.NANOSECONDS.toMillis(throttledNanos) +
+               '}';
+    }
+}
@@ -1,30 +1,136 @@
 package com.ataiva.serengeti.storage.lsm;
 
+import com.ataiva.serengeti.storage.compression.StorageCompressor;
+import com.ataiva.serengeti.storage.compression.StorageCompressor.CompressionAlgorithm;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 /**
  * SSTable represents a Sorted String Table in the LSM tree storage engine.
  * It is an immutable, sorted file of key-value pairs that is periodically
  * merged with other SSTables during compaction.
+ *
+ * <p>SSTables created with {@link #create(MemTable, Path, String)} live on disk and
+ * are read through a memory-mapped view of the file, so their data never occupies
+ * the Java heap. The file layout is:</p>
+ * <pre>
+ * [data block][trailer] ... [data block][trailer]
+ * [properties block][trailer]
+ * [index block][trailer]
+ * [meta index block][trailer]
+ * [footer]
+ * </pre>
+ * <p>Each data block holds sorted entries whose keys are prefix compressed against
+ * the previous key, with periodic restart points (see {@link BlockIterator}).
+ * Each entry carries the WAL sequence number of its write, and a key may have
+ * several versions, newest first. Every block is followed by
+ * a trailer holding its compression type and a CRC32 of the block as stored. Data
+ * blocks may be compressed, in which case they hold the uncompressed length(4)
+ * followed by the compressed contents. The index block
+ * maps the last key of each data block to the block's offset and size, and the meta
+ * index maps meta block names to their locations. The fixed-size footer points at
+ * the index and meta index and ends with the format version and a magic number.
+ * Range tombstones, if any, are kept in a meta block and loaded when the file is
+ * opened.</p>
+ *
+ * <p>The map-based constructors create a purely in-memory table, which is used by
+ * the tuning and benchmarking code.</p>
  */
 public class SSTable {
+    
+    // File format constants
+    public static final int FORMAT_VERSION = 3;
+    public static final long MAGIC = 0x5345524E53535442L; // "SERNSSTB"
+    public static final int FOOTER_SIZE = 8 + 4 + 8 + 4 + 4 + 8;
+    public static final int BLOCK_TRAILER_SIZE = 1 + 4; // compression type + CRC32
+    static final String FILE_PREFIX = "sstable-";
+    static final String FILE_SUFFIX = ".db";
+    static final String META_PROPERTIES = "serengeti.properties";
+    static final String META_FILTER = "serengeti.filter";
+    static final String META_BLOBS = "serengeti.blobs";
+    static final String META_RANGE_TOMBSTONES = "serengeti.rangedel";
+    
+    // Entry types
+    static final byte TYPE_DELETE = 0;
+    static final byte TYPE_PUT = 1;
+    static final byte TYPE_BLOB_INDEX = 2;
+    
+    // Block compression types
+    static final byte COMPRESSION_NONE = 0;
+    static final byte COMPRESSION_LZ4 = 1;
+    static final byte COMPRESSION_SNAPPY = 2;
+    static final byte COMPRESSION_GZIP = 3;
+    
+    // Decompressors by compression type
+    private static final StorageCompressor[] DECOMPRESSORS = {
+        null,
+        new StorageCompressor(CompressionAlgorithm.LZ4),
+        new StorageCompressor(CompressionAlgorithm.SNAPPY),
+        new StorageCompressor(CompressionAlgorithm.GZIP)
+    };
+    
+    // Returned by lookup() for deleted keys
+    private static final byte[] TOMBSTONE = new byte[0];
+    
+    private static final ByteArrayComparator COMPARATOR = new ByteArrayComparator();
+    
     private String id;
     private long size;
     private int level;
     private String minKey;
     private String maxKey;
     private long creationTime;
+    private long newestWriteTime;
     private Map<String, byte[]> data;
     private BitSet bloomFilter;
     private Path filePath;
     private ConcurrentSkipListMap<String, Long> index;
     
+    // State of a file-backed SSTable
+    private volatile ByteBuffer fileBuffer;
+    private byte[][] blockLastKeys;
+    private long[] blockOffsets;
+    private int[] blockSizes;
+    private long entryCount;
+    private long maxSequence;
+    private byte[] minKeyBytes;
+    private byte[] maxKeyBytes;
+    private BloomFilter filter;
+    
+    // Record bytes referenced in each blob file, and the store values are read from
+    private Map<Long, Long> blobReferences = Collections.emptyMap();
+    private volatile BlobStore blobStore;
+    
+    // Range deletes, held in memory while the table is open
+    private List<RangeTombstone> rangeTombstones = Collections.emptyList();
+    
+    // Cache of verified data blocks, shared with other SSTables
+    private final long cacheId = BlockCache.newTableId();
+    private volatile BlockCache blockCache;
+    
+    // References held by the engine's list of live SSTables and by SuperVersions
+    private final AtomicInteger refs = new AtomicInteger();
+    
     /**
      * Creates a new SSTable
      */
@@ -35,6 +141,7 @@ public class SSTable {
         this.minKey = "";
         this.maxKey = "";
         this.creationTime = System.currentTimeMillis();
+        this.newestWriteTime = creationTime;
         this.data = new HashMap<>();
     }
     
@@ -70,6 +177,328 @@ public class SSTable {
         this.size = totalSize;
         this.minKey = min != null ? min : "";
         this.maxKey = max != null ? max : "";
+        this.entryCount = data.size();
+    }
+    
+    /**
+     * Opens an existing SSTable file. The ID is taken from the file name.
+     *
+     * @param filePath Path of the SSTable file
+     * @throws IOException If the file cannot be read or is not a valid SSTable
+     */
+    public SSTable(Path filePath) throws IOException {
+        this(filePath, parseId(filePath));
+    }
+    
+    /**
+     * Opens an existing SSTable file with the given ID.
+     *
+     * @param filePath Path of the SSTable file
+     * @param id ID of the SSTable
+     * @throws IOException If the file cannot be read or is not a valid SSTable
+     */
+    SSTable(Path filePath, String id) throws IOException {
+        this.id = id;
+        this.filePath = filePath;
+        this.data = null;
+        
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < FOOTER_SIZE) {
+                throw new IOException("SSTable file is too small: " + filePath);
+            }
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new IOException("SSTable file is too large to map: " + filePath);
+            }
+            this.fileBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            this.size = fileSize;
+        }
+        
+        // Footer
+        int footerPos = (int) size - FOOTER_SIZE;
+        long metaIndexOffset = fileBuffer.getLong(footerPos);
+        int metaIndexSize = fileBuffer.getInt(footerPos + 8);
+        long indexOffset = fileBuffer.getLong(footerPos + 12);
+        int indexSize = fileBuffer.getInt(footerPos + 20);
+        int version = fileBuffer.getInt(footerPos + 24);
+        long magic = fileBuffer.getLong(footerPos + 28);
+        if (magic != MAGIC) {
+            throw new IOException("Not an SSTable file (bad magic): " + filePath);
+        }
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported SSTable format version " + version + ": " + filePath);
+        }
+        
+        // Meta index and properties
+        Map<String, long[]> metaHandles = new HashMap<>();
+        ByteBuffer metaIndex = readBlock(metaIndexOffset, metaIndexSize);
+        while (metaIndex.hasRemaining()) {
+            byte[] name = new byte[metaIndex.getInt()];
+            metaIndex.get(name);
+            metaHandles.put(new String(name, StandardCharsets.UTF_8),
+                    new long[] {metaIndex.getLong(), metaIndex.getInt()});
+        }
+        long[] propertiesHandle = metaHandles.get(META_PROPERTIES);
+        if (propertiesHandle == null) {
+            throw new IOException("SSTable is missing its properties block: " + filePath);
+        }
+        ByteBuffer properties = readBlock(propertiesHandle[0], (int) propertiesHandle[1]);
+        this.entryCount = properties.getLong();
+        this.maxSequence = properties.getLong();
+        this.creationTime = properties.getLong();
+        this.minKeyBytes = new byte[properties.getInt()];
+        properties.get(minKeyBytes);
+        this.maxKeyBytes = new byte[properties.getInt()];
+        properties.get(maxKeyBytes);
+        this.minKey = new String(minKeyBytes, StandardCharsets.UTF_8);
+        this.maxKey = new String(maxKeyBytes, StandardCharsets.UTF_8);
+        // Files written before the write time was recorded were written when they were created
+        this.newestWriteTime = properties.hasRemaining() ? properties.getLong() : creationTime;
+        
+        // Bloom filter, probed directly from the mapped file
+        long[] filterHandle = metaHandles.get(META_FILTER);
+        if (filterHandle != null) {
+            this.filter = BloomFilter.readFrom(readBlock(filterHandle[0], (int) filterHandle[1]));
+        }
+        
+        // Blob files this table points into
+        long[] blobsHandle = metaHandles.get(META_BLOBS);
+        if (blobsHandle != null) {
+            ByteBuffer blobs = readBlock(blobsHandle[0], (int) blobsHandle[1]);
+            Map<Long, Long> references = new TreeMap<>();
+            for (int i = blobs.getInt(); i > 0; i--) {
+                references.put(blobs.getLong(), blobs.getLong());
+            }
+            this.blobReferences = Collections.unmodifiableMap(references);
+        }
+        
+        // Range tombstones
+        long[] rangeTombstonesHandle = metaHandles.get(META_RANGE_TOMBSTONES);
+        if (rangeTombstonesHandle != null) {
+            ByteBuffer block = readBlock(rangeTombstonesHandle[0], (int) rangeTombstonesHandle[1]);
+            List<RangeTombstone> tombstones = new ArrayList<>();
+            for (int i = block.getInt(); i > 0; i--) {
+                byte[] startKey = new byte[block.getInt()];
+                block.get(startKey);
+                int endKeyLength = block.getInt();
+                byte[] endKey = endKeyLength >= 0 ? new byte[endKeyLength] : null;
+                if (endKey != null) {
+                    block.get(endKey);
+                }
+                tombstones.add(new RangeTombstone(startKey, endKey, block.getLong()));
+            }
+            this.rangeTombstones = Collections.unmodifiableList(tombstones);
+        }
+        
+        // Sparse block index
+        ByteBuffer indexBlock = readBlock(indexOffset, indexSize);
+        List<byte[]> keys = new ArrayList<>();
+        List<long[]> handles = new ArrayList<>();
+        while (indexBlock.hasRemaining()) {
+            byte[] key = new byte[indexBlock.getInt()];
+            indexBlock.get(key);
+            keys.add(key);
+            handles.add(new long[] {indexBlock.getLong(), indexBlock.getInt()});
+        }
+        this.blockLastKeys = keys.toArray(new byte[0][]);
+        this.blockOffsets = new long[handles.size()];
+        this.blockSizes = new int[handles.size()];
+        for (int i = 0; i < handles.size(); i++) {
+            blockOffsets[i] = handles.get(i)[0];
+            blockSizes[i] = (int) handles.get(i)[1];
+        }
+    }
+    
+    /**
+     * Reads a block from the mapped file and verifies its checksum.
+     *
+     * @param offset Offset of the block in the file
+     * @param blockSize Size of the block contents, excluding the trailer
+     * @return A read-only view of the block contents
+     * @throws IOException If the SSTable is closed or the block is corrupt
+     */
+    private ByteBuffer readBlock(long offset, int blockSize) throws IOException {
+        return readBlock(mappedFile(), offset, blockSize);
+    }
+    
+    /**
+     * Gets the mapped file contents.
+     *
+     * @return The mapped file
+     * @throws IOException If the SSTable has been closed
+     */
+    private ByteBuffer mappedFile() throws IOException {
+        ByteBuffer buffer = fileBuffer;
+        if (buffer == null) {
+            throw new IOException("SSTable is closed: " + id);
+        }
+        return buffer;
+    }
+    
+    /**
+     * Reads a block from the given mapping of the file and verifies its checksum.
+     *
+     * @param buffer The mapped file
+     * @param offset Offset of the block in the file
+     * @param blockSize Size of the block contents, excluding the trailer
+     * @return A read-only view of the block contents
+     * @throws IOException If the block is corrupt
+     */
+    private ByteBuffer readBlock(ByteBuffer buffer, long offset, int blockSize) throws IOException {
+        if (offset < 0 || offset + blockSize + BLOCK_TRAILER_SIZE > size) {
+            throw new IOException("Block handle out of range in SSTable " + id);
+        }
+        
+        ByteBuffer view = buffer.duplicate();
+        view.limit((int) offset + blockSize).position((int) offset);
+        ByteBuffer block = view.slice();
+        
+        byte compressionType = buffer.get((int) offset + blockSize);
+        int storedCrc = buffer.getInt((int) offset + blockSize + 1);
+        CRC32 crc = new CRC32();
+        crc.update(block.duplicate());
+        crc.update(compressionType);
+        if ((int) crc.getValue() != storedCrc) {
+            throw new IOException("Checksum mismatch in SSTable " + id + " at offset " + offset);
+        }
+        if (compressionType == COMPRESSION_NONE) {
+            return block.asReadOnlyBuffer();
+        }
+        return decompress(block, compressionType, offset);
+    }
+    
+    /**
+     * Decompresses a block into a new heap buffer.
+     *
+     * @param block The stored block: uncompressed length(4) then compressed contents
+     * @param compressionType Compression type from the block trailer
+     * @param offset Offset of the block, for error messages
+     * @return A read-only view of the uncompressed block
+     * @throws IOException If the compression type is unknown or the block is corrupt
+     */
+    private ByteBuffer decompress(ByteBuffer block, byte compressionType, long offset) throws IOException {
+        if (compressionType < 0 || compressionType >= DECOMPRESSORS.length) {
+            throw new IOException("Unknown block compression type " + compressionType + " in SSTable " + id);
+        }
+        if (block.remaining() < 4 || block.getInt(0) < 0) {
+            throw new IOException("Invalid compressed block in SSTable " + id + " at offset " + offset);
+        }
+        int rawLength = block.getInt(0);
+        ByteBuffer source = block.duplicate();
+        source.position(4);
+        ByteBuffer raw = ByteBuffer.allocate(rawLength);
+        if (DECOMPRESSORS[compressionType].decompress(source, raw) != rawLength) {
+            throw new IOException("Compressed block has the wrong length in SSTable " + id + " at offset " + offset);
+        }
+        raw.flip();
+        return raw.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Gets the block trailer code for a compression algorithm.
+     *
+     * @param algorithm The compression algorithm
+     * @return The compression type stored in block trailers
+     */
+    static byte compressionType(CompressionAlgorithm algorithm) {
+        switch (algorithm) {
+            case LZ4:
+                return COMPRESSION_LZ4;
+            case SNAPPY:
+                return COMPRESSION_SNAPPY;
+            case GZIP:
+                return COMPRESSION_GZIP;
+            default:
+                return COMPRESSION_NONE;
+        }
+    }
+    
+    /**
+     * Reads the data block with the given index.
+     */
+    private ByteBuffer readDataBlock(ByteBuffer buffer, int blockIndex) throws IOException {
+        return readBlock(buffer, blockOffsets[blockIndex], blockSizes[blockIndex]);
+    }
+    
+    /**
+     * Reads a data block through the block cache, if one is attached, and applies
+     * the reader to it while it is pinned.
+     */
+    private <T> T readDataBlock(ByteBuffer buffer, int blockIndex, BlockCache cache,
+                                BlockCache.BlockReader<T> reader) throws IOException {
+        if (cache == null) {
+            return reader.read(readDataBlock(buffer, blockIndex));
+        }
+        return cache.read(cacheId, blockOffsets[blockIndex], () -> readDataBlock(buffer, blockIndex), reader);
+    }
+    
+    /**
+     * Copies a block to the heap.
+     */
+    private static ByteBuffer copyOf(ByteBuffer block) {
+        ByteBuffer copy = ByteBuffer.allocate(block.remaining());
+        copy.put(block);
+        copy.flip();
+        return copy;
+    }
+    
+    /**
+     * Sets the cache that data blocks are read through. Blocks of this table are
+     * dropped from the cache when the table is closed.
+     *
+     * @param blockCache The block cache, or null to read blocks straight from the file
+     */
+    void setBlockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+    
+    /**
+     * Sets the store that values separated into blob files are read from.
+     *
+     * @param blobStore The blob store
+     */
+    void setBlobStore(BlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+    
+    /**
+     * Gets the blob files this table points into.
+     *
+     * @return Record bytes referenced by blob file number, empty if all values are inline
+     */
+    Map<Long, Long> getBlobReferences() {
+        return blobReferences;
+    }
+    
+    /**
+     * Reads a value that was separated into a blob file.
+     */
+    private byte[] readBlob(byte[] pointer) throws IOException {
+        BlobStore store = blobStore;
+        if (store == null) {
+            throw new IOException("SSTable " + id + " points into a blob file but has no blob store");
+        }
+        return store.read(pointer);
+    }
+    
+    /**
+     * Finds the first data block whose last key is greater than or equal to the key.
+     *
+     * @param key Key to look for
+     * @return Block index, or -1 if the key is beyond the last block
+     */
+    private int findBlock(byte[] key) {
+        int low = 0;
+        int high = blockLastKeys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (COMPARATOR.compare(blockLastKeys[mid], key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low < blockLastKeys.length ? low : -1;
     }
     
     /**
@@ -79,24 +508,241 @@ public class SSTable {
      * @return Value for the key, or null if not found
      */
     public byte[] get(String key) {
-        // Check bloom filter first if available
-        if (bloomFilter != null && !bloomFilterMightContain(key)) {
-            return null; // Definitely not in this SSTable
+        if (data == null) {
+            try {
+                return get(key.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read SSTable " + id, e);
+            }
         }
         
         return data.get(key);
     }
     
     /**
-     * Checks if the bloom filter indicates the key might be present
+     * Gets the value for a key
+     *
+     * @param key Key to look up
+     * @return Value for the key, or null if not found or deleted
+     * @throws IOException If the SSTable cannot be read
+     */
+    public byte[] get(byte[] key) throws IOException {
+        byte[] value = lookup(key);
+        return value != null && value.length > 0 ? value : null;
+    }
+    
+    /**
+     * Looks up a key, distinguishing deleted keys from missing ones.
+     *
+     * @param key Key to look up
+     * @return The value, an empty array if the key has been deleted, or null if
+     *         this SSTable has no entry for the key
+     * @throws IOException If the SSTable cannot be read
+     */
+    byte[] lookup(byte[] key) throws IOException {
+        if (data != null) {
+            return data.get(new String(key, StandardCharsets.UTF_8));
+        }
+        if (entryCount == 0 || !mightContain(key)) {
+            return null;
+        }
+        
+        int blockIndex = findBlock(key);
+        if (blockIndex < 0) {
+            return null;
+        }
+        
+        Map.Entry<byte[], byte[]> entry = readDataBlock(mappedFile(), blockIndex, blockCache,
+                block -> findInBlock(block, key));
+        if (entry == null) {
+            return null;
+        }
+        // The blob is read once the block is no longer pinned
+        return entry instanceof BlobIndexEntry ? readBlob(entry.getValue()) : entry.getValue();
+    }
+    
+    /**
+     * Looks up the version of a key that a snapshot reads.
+     *
+     * @param key Key to look up
+     * @param snapshotSequence The snapshot's sequence number
+     * @return The value, an empty array if the key was deleted at the snapshot, or
+     *         null if this SSTable has no version of the key the snapshot can see
+     * @throws IOException If the SSTable cannot be read
+     */
+    byte[] lookup(byte[] key, long snapshotSequence) throws IOException {
+        SequencedEntry entry = find(key, snapshotSequence);
+        return entry != null ? entry.getValue() : null;
+    }
+    
+    /**
+     * Finds the version of a key that a snapshot reads. Range tombstones are not
+     * taken into account.
+     *
+     * @param key Key to look up
+     * @param snapshotSequence The snapshot's sequence number
+     * @return The version, with its value read from the blob file if it is in one
+     *         and an empty value for a tombstone, or null if this SSTable has no
+     *         version of the key the snapshot can see
+     * @throws IOException If the SSTable cannot be read
+     */
+    SequencedEntry find(byte[] key, long snapshotSequence) throws IOException {
+        if (data != null) {
+            byte[] value = data.get(new String(key, StandardCharsets.UTF_8));
+            return value != null ? new SequencedEntry(key, value, 0) : null;
+        }
+        if (entryCount == 0 || !mightContain(key)) {
+            return null;
+        }
+        
+        if (snapshotSequence >= maxSequence) {
+            // Every version in the file is visible, so the newest one is read
+            int blockIndex = findBlock(key);
+            if (blockIndex < 0) {
+                return null;
+            }
+            Map.Entry<byte[], byte[]> entry = readDataBlock(mappedFile(), blockIndex, blockCache,
+                    block -> findInBlock(block, key));
+            return entry != null ? resolve(entry) : null;
+        }
+        
+        // The versions of a key may run on into the next block
+        Iterator<Map.Entry<byte[], byte[]>> entries = iterator(key, true, false);
+        while (entries.hasNext()) {
+            Map.Entry<byte[], byte[]> entry = entries.next();
+            if (COMPARATOR.compare(entry.getKey(), key) != 0) {
+                break;
+            }
+            if (SequencedEntry.sequenceOf(entry) <= snapshotSequence) {
+                return resolve(entry);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Reads the value of a version from its blob file, if it is in one. The blob
+     * is read once the block is no longer pinned.
+     */
+    private SequencedEntry resolve(Map.Entry<byte[], byte[]> entry) throws IOException {
+        long sequence = SequencedEntry.sequenceOf(entry);
+        if (entry instanceof BlobIndexEntry) {
+            return new SequencedEntry(entry.getKey(), readBlob(entry.getValue()), sequence);
+        }
+        return entry instanceof SequencedEntry
+                ? (SequencedEntry) entry
+                : new SequencedEntry(entry.getKey(), entry.getValue(), sequence);
+    }
+    
+    /**
+     * Searches a data block for the newest version of a key.
+     *
+     * @return The entry, with an empty value for a tombstone, or null if the key is absent
+     */
+    private Map.Entry<byte[], byte[]> findInBlock(ByteBuffer block, byte[] key) throws IOException {
+        BlockIterator entries = new BlockIterator(block);
+        entries.seek(key);
+        if (!entries.isValid() || entries.compareKey(key) != 0) {
+            return null;
+        }
+        long sequence = sequenceOf(entries);
+        if (entries.isBlobIndex()) {
+            return new BlobIndexEntry(key, entries.value(), sequence);
+        }
+        return new SequencedEntry(key, entries.isDeleted() ? TOMBSTONE : entries.value(), sequence);
+    }
+    
+    /**
+     * Gets the sequence number of the current entry of a block. Entries without
+     * one, as in ingested files, take the maximum sequence number of the SSTable.
+     */
+    private long sequenceOf(BlockIterator entries) {
+        long sequence = entries.sequence();
+        return sequence >= 0 ? sequence : maxSequence;
+    }
+    
+    /**
+     * Returns an iterator over all entries in key order. Deleted keys are returned
+     * with an empty value, matching the MemTable tombstone convention. Entries of
+     * file-backed tables are {@link SequencedEntry} objects, and older versions of
+     * a key follow its newest one.
+     *
+     * @return Iterator over the entries of this SSTable
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+        if (data != null) {
+            TreeMap<byte[], byte[]> sorted = new TreeMap<>(COMPARATOR);
+            for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+                sorted.put(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue());
+            }
+            return sorted.entrySet().iterator();
+        }
+        return new EntryIterator(0, null, blockCache, true);
+    }
+    
+    /**
+     * Returns an iterator over the entries with keys greater than or equal to the
+     * start key, in key order. Deleted keys are returned with an empty value.
      * 
-     * @param key Key to check
-     * @return true if the key might be present, false if definitely not present
+     * <p>The iterator keeps reading from the file mapping it started with, so it
+     * can be used to the end even if the SSTable is closed by a compaction.</p>
+     *
+     * @param startKey The first key to return, or null to start at the beginning
+     * @return Iterator over the entries of this SSTable from the start key
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> iterator(byte[] startKey) {
+        if (startKey == null) {
+            return iterator();
+        }
+        if (data != null) {
+            TreeMap<byte[], byte[]> sorted = new TreeMap<>(COMPARATOR);
+            Iterator<Map.Entry<byte[], byte[]>> entries = iterator();
+            while (entries.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = entries.next();
+                sorted.put(entry.getKey(), entry.getValue());
+            }
+            return sorted.tailMap(startKey, true).entrySet().iterator();
+        }
+        return iterator(startKey, true);
+    }
+    
+    /**
+     * Returns an iterator over the entries with keys greater than or equal to the
+     * start key. Compactions read every block once, so they pass
+     * {@code useCache = false} to keep the cache for blocks that are read again.
+     *
+     * @param startKey The first key to return, or null to start at the beginning
+     * @param useCache Whether to read blocks through the block cache
+     * @return Iterator over the entries of this SSTable from the start key
+     */
+    Iterator<Map.Entry<byte[], byte[]>> iterator(byte[] startKey, boolean useCache) {
+        return iterator(startKey, useCache, true);
+    }
+    
+    /**
+     * Returns an iterator over the entries with keys greater than or equal to the
+     * start key, without reading separated values from their blob files. Such
+     * entries are returned as {@link BlobIndexEntry} objects holding the pointer,
+     * so that compactions can copy the pointer rather than the value. Blocks are
+     * not read through the block cache.
+     *
+     * @param startKey The first key to return, or null to start at the beginning
+     * @return Iterator over the entries of this SSTable from the start key
      */
-    private boolean bloomFilterMightContain(String key) {
-        // This would use the actual bloom filter implementation
-        // For now, just return true to indicate it might be present
-        return true;
+    Iterator<Map.Entry<byte[], byte[]>> rawIterator(byte[] startKey) {
+        return iterator(startKey, false, false);
+    }
+    
+    private Iterator<Map.Entry<byte[], byte[]>> iterator(byte[] startKey, boolean useCache, boolean readBlobs) {
+        if (data != null) {
+            return iterator(startKey);
+        }
+        BlockCache cache = useCache ? blockCache : null;
+        if (startKey == null) {
+            return new EntryIterator(0, null, cache, readBlobs);
+        }
+        int firstBlock = findBlock(startKey);
+        return new EntryIterator(firstBlock < 0 ? blockOffsets.length : firstBlock, startKey, cache, readBlobs);
     }
     
     /**
@@ -189,17 +835,40 @@ public class SSTable {
         return creationTime;
     }
     
+    /**
+     * Gets the time of the newest write in this SSTable. Compactions carry it
+     * over from their inputs, so unlike the creation time it tells how old the
+     * data is.
+     * 
+     * @return Time of the newest write in milliseconds since epoch
+     */
+    public long getNewestWriteTime() {
+        return newestWriteTime;
+    }
+    
     /**
      * Gets the data in this SSTable
      * 
      * @return Map of keys to values
      */
     public Map<String, byte[]> getData() {
+        if (data == null) {
+            Map<String, byte[]> result = new HashMap<>();
+            Iterator<Map.Entry<byte[], byte[]>> entries = iterator();
+            while (entries.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = entries.next();
+                if (entry.getValue().length > 0) {
+                    result.put(new String(entry.getKey(), StandardCharsets.UTF_8), entry.getValue());
+                }
+            }
+            return result;
+        }
         return new HashMap<>(data);
     }
     
     /**
-     * Sets the bloom filter for this SSTable
+     * Sets the bloom filter for this SSTable. Lookups do not consult it; a
+     * file-backed SSTable checks the blocked Bloom filter stored in its file.
      * 
      * @param bloomFilter Bloom filter to use
      */
@@ -238,12 +907,13 @@ public class SSTable {
      * @return true if the key might be present, false if definitely not present
      */
     public boolean mightContain(byte[] key) {
-        if (bloomFilter == null) {
+        if (filter == null) {
             return true; // If no bloom filter, assume it might be present
         }
-        // Convert byte array to string for comparison
-        String keyStr = new String(key);
-        return bloomFilterMightContain(keyStr);
+        if (COMPARATOR.compare(key, minKeyBytes) < 0 || COMPARATOR.compare(key, maxKeyBytes) > 0) {
+            return false;
+        }
+        return filter.mightContain(key);
     }
     
     /**
@@ -256,29 +926,162 @@ public class SSTable {
      * @throws IOException If there's an error writing the SSTable to disk
      */
     public static SSTable create(MemTable memTable, Path filePath, String tableId) throws IOException {
-        // Get snapshot from MemTable (byte[] keys and values)
-        Map<byte[], byte[]> memTableData = memTable.getSnapshot();
-        
-        // Convert to String keys for SSTable
-        Map<String, byte[]> data = new HashMap<>();
-        for (Map.Entry<byte[], byte[]> entry : memTableData.entrySet()) {
-            String key = new String(entry.getKey());
-            data.put(key, entry.getValue());
+        return create(memTable, filePath, tableId, 0);
+    }
+    
+    /**
+     * Creates a new SSTable file from a MemTable
+     *
+     * @param memTable The MemTable to create SSTable from
+     * @param directory The directory where the SSTable file will be stored
+     * @param tableId The ID for the new SSTable
+     * @param maxSequence Highest WAL sequence number contained in the MemTable
+     * @return The new SSTable, opened for reading
+     * @throws IOException If there's an error writing the SSTable to disk
+     */
+    public static SSTable create(MemTable memTable, Path directory, String tableId, long maxSequence) throws IOException {
+        return create(memTable, directory, tableId, maxSequence, SSTableWriter.DEFAULT_COMPRESSION);
+    }
+    
+    /**
+     * Creates a new SSTable file from a MemTable with the given data block compression
+     *
+     * @param memTable The MemTable to create SSTable from
+     * @param directory The directory where the SSTable file will be stored
+     * @param tableId The ID for the new SSTable
+     * @param maxSequence Highest WAL sequence number contained in the MemTable
+     * @param compression Compression algorithm for data blocks
+     * @return The new SSTable, opened for reading
+     * @throws IOException If there's an error writing the SSTable to disk
+     */
+    public static SSTable create(MemTable memTable, Path directory, String tableId, long maxSequence,
+                                 CompressionAlgorithm compression) throws IOException {
+        return create(memTable, directory, tableId, maxSequence, compression, null);
+    }
+    
+    /**
+     * Creates a new SSTable file from a MemTable, writing it through a rate limiter
+     *
+     * @param memTable The MemTable to create SSTable from
+     * @param directory The directory where the SSTable file will be stored
+     * @param tableId The ID for the new SSTable
+     * @param maxSequence Highest WAL sequence number contained in the MemTable
+     * @param compression Compression algorithm for data blocks
+     * @param rateLimiter Limits the rate of writes to the file, or null for none
+     * @return The new SSTable, opened for reading
+     * @throws IOException If there's an error writing the SSTable to disk
+     */
+    public static SSTable create(MemTable memTable, Path directory, String tableId, long maxSequence,
+                                 CompressionAlgorithm compression, RateLimiter rateLimiter) throws IOException {
+        try (SSTableWriter writer = new SSTableWriter(directory.resolve(fileName(tableId)),
+                SSTableWriter.DEFAULT_BLOCK_SIZE, compression)) {
+            writer.setRateLimiter(rateLimiter);
+            Iterator<Map.Entry<byte[], byte[]>> entries = memTable.iterator();
+            while (entries.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = entries.next();
+                writer.add(entry.getKey(), entry.getValue(), SequencedEntry.sequenceOf(entry));
+            }
+            for (RangeTombstone tombstone : memTable.getRangeTombstones()) {
+                writer.addRangeTombstone(tombstone);
+            }
+            return writer.finish(tableId, maxSequence);
         }
-        
-        SSTable ssTable = new SSTable(data);
-        ssTable.id = tableId;
-        ssTable.filePath = filePath;
-        ssTable.index = new ConcurrentSkipListMap<>();
-        
-        // Build index
-        long offset = 0;
-        for (String key : data.keySet()) {
-            ssTable.index.put(key, offset);
-            offset += key.length() + data.get(key).length;
+    }
+    
+    /**
+     * Gets the file name used for an SSTable with the given ID
+     *
+     * @param tableId The SSTable ID
+     * @return The file name
+     */
+    public static String fileName(String tableId) {
+        return FILE_PREFIX + tableId + FILE_SUFFIX;
+    }
+    
+    /**
+     * Extracts the SSTable ID from a file path
+     *
+     * @param filePath Path of an SSTable file
+     * @return The SSTable ID
+     */
+    static String parseId(Path filePath) {
+        String name = filePath.getFileName().toString();
+        if (name.startsWith(FILE_PREFIX)) {
+            name = name.substring(FILE_PREFIX.length());
         }
-        
-        return ssTable;
+        if (name.endsWith(FILE_SUFFIX)) {
+            name = name.substring(0, name.length() - FILE_SUFFIX.length());
+        }
+        return name;
+    }
+    
+    /**
+     * Gets the metadata of this SSTable
+     *
+     * @return The metadata
+     */
+    public Metadata getMetadata() {
+        return new Metadata(FORMAT_VERSION, entryCount, size, maxSequence,
+                blockOffsets != null ? blockOffsets.length : 0);
+    }
+    
+    /**
+     * Gets the range tombstones of this SSTable. They are independent of its key
+     * range, and an SSTable may hold range tombstones and no entries.
+     *
+     * @return The range tombstones, in no particular order
+     */
+    public List<RangeTombstone> getRangeTombstones() {
+        return rangeTombstones;
+    }
+    
+    /**
+     * Gets the highest WAL sequence number covered by this SSTable.
+     * SSTables with a higher value contain newer data.
+     *
+     * @return The maximum sequence number
+     */
+    public long getMaxSequence() {
+        return maxSequence;
+    }
+
+    /**
+     * Overrides the sequence number recorded in the file. Ingested SSTables are
+     * given the place in the engine's order that their key range allows, which the
+     * MANIFEST records instead of the file.
+     *
+     * @param maxSequence The maximum sequence number
+     */
+    void setMaxSequence(long maxSequence) {
+        this.maxSequence = maxSequence;
+    }
+
+    /**
+     * Gets the minimum key as raw bytes
+     *
+     * @return Minimum key
+     */
+    public byte[] getMinKeyBytes() {
+        return minKeyBytes != null ? minKeyBytes : minKey.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Gets the maximum key as raw bytes
+     *
+     * @return Maximum key
+     */
+    public byte[] getMaxKeyBytes() {
+        return maxKeyBytes != null ? maxKeyBytes : maxKey.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Gets the last key of each data block in key order. The keys split the file
+     * into parts of about one block each.
+     *
+     * @return The last key of each data block, empty for an in-memory SSTable
+     */
+    List<byte[]> getBlockLastKeys() {
+        return blockLastKeys != null ? Arrays.asList(blockLastKeys) : Collections.<byte[]>emptyList();
     }
     
     /**
@@ -287,15 +1090,46 @@ public class SSTable {
      * @return The index mapping keys to file offsets
      */
     public ConcurrentSkipListMap<String, Long> getIndex() {
+        if (index == null && blockLastKeys != null) {
+            // Expose the sparse block index: last key of each block -> block offset
+            ConcurrentSkipListMap<String, Long> blockIndex = new ConcurrentSkipListMap<>();
+            for (int i = 0; i < blockLastKeys.length; i++) {
+                blockIndex.put(new String(blockLastKeys[i], StandardCharsets.UTF_8), blockOffsets[i]);
+            }
+            index = blockIndex;
+        }
         return index;
     }
     
+    /**
+     * Takes a reference, held by the engine while the SSTable is live and by each
+     * SuperVersion that lists it.
+     */
+    void ref() {
+        refs.incrementAndGet();
+    }
+    
+    /**
+     * Releases a reference.
+     *
+     * @return true if this was the last reference, after which nothing reads the
+     *         SSTable any more
+     */
+    boolean unref() {
+        return refs.decrementAndGet() == 0;
+    }
+    
     /**
      * Closes this SSTable and releases any resources
      */
     public void close() throws IOException {
-        // Close any open file handles or resources
-        // For now, just clear the data
+        // Drop the mapping; the OS releases it once the buffer is collected
+        fileBuffer = null;
+        filter = null;
+        BlockCache cache = blockCache;
+        if (cache != null) {
+            cache.invalidate(cacheId);
+        }
         if (data != null) {
             data.clear();
         }
@@ -328,8 +1162,337 @@ public class SSTable {
                "id='" + id + '\'' +
                ", size=" + size +
                ", level=" + level +
-               ", keys=" + data.size() +
+               ", keys=" + entryCount +
                ", range=[" + minKey + " to " + maxKey + "]" +
                '}';
     }
-}
\ No newline at end of file
+    
+    /**
+     * An entry whose value is still in a blob file, returned by {@link #rawIterator}.
+     * Its value is the blob pointer.
+     */
+    static final class BlobIndexEntry extends SequencedEntry {
+        private static final long serialVersionUID = 1L;
+        
+        BlobIndexEntry(byte[] key, byte[] pointer, long sequence) {
+            super(key, pointer, sequence);
+        }
+    }
+    
+    /**
+     * Iterates over the entries of a file-backed SSTable block by block.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+        private final ByteBuffer file;
+        private final BlockCache cache;
+        private final boolean readBlobs;
+        private int blockIndex;
+        private BlockIterator entries;
+        private byte[] seekKey;
+        
+        /**
+         * @param firstBlock Index of the first block to read
+         * @param seekKey Entries before this key are skipped, or null to skip nothing
+         * @param cache Cache to read blocks through, or null to read them from the file
+         * @param readBlobs Whether to return separated values rather than their pointers
+         */
+        EntryIterator(int firstBlock, byte[] seekKey, BlockCache cache, boolean readBlobs) {
+            this.file = fileBuffer;
+            this.cache = cache;
+            this.readBlobs = readBlobs;
+            if (file == null) {
+                throw new IllegalStateException("SSTable is closed: " + id);
+            }
+            this.blockIndex = firstBlock - 1;
+            this.seekKey = seekKey;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            while (entries == null || !entries.isValid()) {
+                if (blockIndex + 1 >= blockOffsets.length) {
+                    return false;
+                }
+                blockIndex++;
+                try {
+                    // Cached blocks are copied, since they are only valid while pinned
+                    ByteBuffer block = cache == null
+                            ? readDataBlock(file, blockIndex)
+                            : readDataBlock(file, blockIndex, cache, SSTable::copyOf);
+                    entries = new BlockIterator(block);
+                    if (seekKey != null) {
+                        // The first block is the one that may hold the seek key
+                        entries.seek(seekKey);
+                        seekKey = null;
+                    } else {
+                        entries.seekToFirst();
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to read block " + blockIndex + " of SSTable " + id, e);
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            byte[] key = entries.key();
+            byte[] value = entries.isDeleted() ? TOMBSTONE : entries.value();
+            long sequence = sequenceOf(entries);
+            boolean blobIndex = entries.isBlobIndex();
+            try {
+                entries.next();
+                if (blobIndex && readBlobs) {
+                    value = readBlob(value);
+                } else if (blobIndex) {
+                    return new BlobIndexEntry(key, value, sequence);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read block " + blockIndex + " of SSTable " + id, e);
+            }
+            return new SequencedEntry(key, value, sequence);
+        }
+    }
+    
+    /**
+     * A cache-line-blocked bloom filter over raw byte[] keys.
+     *
+     * <p>Each key is hashed once with a 64-bit hash. The high bits select a 512-bit
+     * block (one 64-byte cache line) and all probe bits for the key are set within that
+     * block, so a lookup touches a single cache line. The filter is sized with
+     * {@link BloomFilterOptimizer#optimizeParameters(int, double)}.</p>
+     *
+     * <p>Serialized form: numHashFunctions(4) numBlocks(4) followed by the bits as longs.</p>
+     */
+    public static class BloomFilter {
+        private static final int LONGS_PER_BLOCK = 8;
+        private static final int BITS_PER_BLOCK = LONGS_PER_BLOCK * 64;
+        private static final int HEADER_SIZE = 8;
+        
+        private final int numHashFunctions;
+        private final int numBlocks;
+        private final LongBuffer bits;
+        
+        /**
+         * Creates an empty bloom filter.
+         *
+         * @param expectedInsertions Expected number of keys
+         * @param falsePositiveRate Target false positive rate (0.0 to 1.0)
+         */
+        public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+            BloomFilterOptimizer optimizer = new BloomFilterOptimizer();
+            optimizer.optimizeParameters(Math.max(expectedInsertions, 1), falsePositiveRate);
+            long totalBits = (long) Math.max(expectedInsertions, 1) * optimizer.getBitsPerElement();
+            this.numHashFunctions = Math.max(1, optimizer.getNumHashFunctions());
+            this.numBlocks = (int) Math.max(1, (totalBits + BITS_PER_BLOCK - 1) / BITS_PER_BLOCK);
+            this.bits = LongBuffer.wrap(new long[numBlocks * LONGS_PER_BLOCK]);
+        }
+        
+        private BloomFilter(int numHashFunctions, int numBlocks, LongBuffer bits) {
+            this.numHashFunctions = numHashFunctions;
+            this.numBlocks = numBlocks;
+            this.bits = bits;
+        }
+        
+        /**
+         * Reads a bloom filter from its serialized form. The filter is backed by the
+         * given buffer rather than copied.
+         *
+         * @param buffer Buffer holding the serialized filter
+         * @return The bloom filter
+         * @throws IOException If the serialized filter is malformed
+         */
+        static BloomFilter readFrom(ByteBuffer buffer) throws IOException {
+            int numHashFunctions = buffer.getInt(0);
+            int numBlocks = buffer.getInt(4);
+            if (numHashFunctions <= 0 || numBlocks <= 0
+                    || buffer.limit() != HEADER_SIZE + (long) numBlocks * LONGS_PER_BLOCK * 8) {
+                throw new IOException("Malformed bloom filter block");
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(HEADER_SIZE);
+            return new BloomFilter(numHashFunctions, numBlocks, view.slice().asLongBuffer());
+        }
+        
+        /**
+         * Serializes the filter.
+         *
+         * @return The serialized filter
+         */
+        byte[] toByteArray() {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bits.capacity() * 8);
+            buffer.putInt(numHashFunctions);
+            buffer.putInt(numBlocks);
+            for (int i = 0; i < bits.capacity(); i++) {
+                buffer.putLong(bits.get(i));
+            }
+            return buffer.array();
+        }
+        
+        /**
+         * Adds a key to the filter.
+         *
+         * @param key The key
+         */
+        public void add(byte[] key) {
+            addHash(hash64(key));
+        }
+        
+        /**
+         * Adds a key to the filter by its {@link #hash64(byte[])} value.
+         *
+         * @param hash The 64-bit hash of the key
+         */
+        void addHash(long hash) {
+            int base = blockIndex(hash) * LONGS_PER_BLOCK;
+            int h = (int) hash;
+            int delta = (h >>> 17) | (h << 15);
+            for (int i = 0; i < numHashFunctions; i++) {
+                int bit = h & (BITS_PER_BLOCK - 1);
+                int index = base + (bit >>> 6);
+                bits.put(index, bits.get(index) | (1L << bit));
+                h += delta;
+            }
+        }
+        
+        /**
+         * Checks whether a key might have been added to the filter.
+         *
+         * @param key The key
+         * @return false if the key was definitely not added, true otherwise
+         */
+        public boolean mightContain(byte[] key) {
+            long hash = hash64(key);
+            int base = blockIndex(hash) * LONGS_PER_BLOCK;
+            int h = (int) hash;
+            int delta = (h >>> 17) | (h << 15);
+            for (int i = 0; i < numHashFunctions; i++) {
+                int bit = h & (BITS_PER_BLOCK - 1);
+                if ((bits.get(base + (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+                h += delta;
+            }
+            return true;
+        }
+        
+        /**
+         * Maps the high 32 bits of the hash onto a block without a division.
+         */
+        private int blockIndex(long hash) {
+            return (int) (((hash >>> 32) * numBlocks) >>> 32);
+        }
+        
+        /**
+         * Computes a 64-bit hash of a key (MurmurHash64A).
+         *
+         * @param key The key
+         * @return The hash
+         */
+        static long hash64(byte[] key) {
+            final long m = 0xc6a4a7935bd1e995L;
+            final int r = 47;
+            int length = key.length;
+            long h = 0x9747b28cL ^ (length * m);
+            
+            int blocks = length >>> 3;
+            for (int i = 0; i < blocks; i++) {
+                int offset = i << 3;
+                long k = (key[offset] & 0xffL)
+                        | (key[offset + 1] & 0xffL) << 8
+                        | (key[offset + 2] & 0xffL) << 16
+                        | (key[offset + 3] & 0xffL) << 24
+                        | (key[offset + 4] & 0xffL) << 32
+                        | (key[offset + 5] & 0xffL) << 40
+                        | (key[offset + 6] & 0xffL) << 48
+                        | (key[offset + 7] & 0xffL) << 56;
+                k *= m;
+                k ^= k >>> r;
+                k *= m;
+                h ^= k;
+                h *= m;
+            }
+            
+            // The last 1 to 7 bytes, little-endian like the blocks
+            int tail = blocks << 3;
+            if (tail < length) {
+                for (int i = tail; i < length; i++) {
+                    h ^= (key[i] & 0xffL) << ((i - tail) << 3);
+                }
+                h *= m;
+            }
+            
+            h ^= h >>> r;
+            h *= m;
+            h ^= h >>> r;
+            return h;
+        }
+    }
+    
+    /**
+     * Summary information about an SSTable file.
+     */
+    public static class Metadata {
+        private final int version;
+        private final long entryCount;
+        private final long fileSize;
+        private final long maxSequence;
+        private final int blockCount;
+        
+        Metadata(int version, long entryCount, long fileSize, long maxSequence, int blockCount) {
+            this.version = version;
+            this.entryCount = entryCount;
+            this.fileSize = fileSize;
+            this.maxSequence = maxSequence;
+            this.blockCount = blockCount;
+        }
+        
+        /**
+         * Gets the file format version
+         *
+         * @return Format version
+         */
+        public int getVersion() {
+            return version;
+        }
+        
+        /**
+         * Gets the number of entries, including tombstones
+         *
+         * @return Entry count
+         */
+        public long getEntryCount() {
+            return entryCount;
+        }
+        
+        /**
+         * Gets the size of the SSTable file in bytes
+         *
+         * @return File size
+         */
+        public long getFileSize() {
+            return fileSize;
+        }
+        
+        /**
+         * Gets the highest WAL sequence number covered by the SSTable
+         *
+         * @return Maximum sequence number
+         */
+        public long getMaxSequence() {
+            return maxSequence;
+        }
+        
+        /**
+         * Gets the number of data blocks
+         *
+         * @return Block count
+         */
+        public int getBlockCount() {
+            return blockCount;
+        }
+    }
+}
@@ -0,0 +1,699 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import com.ataiva.serengeti.storage.compression.StorageCompressor;
+import com.ataiva.serengeti.storage.compression.StorageCompressor.CompressionAlgorithm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * SSTableWriter builds an immutable SSTable file from keys supplied in sorted order.
+ * Entries are packed into data blocks of roughly {@code blockSize} bytes, which are
+ * written out as soon as they fill up, so memory use is bounded by a single block
+ * plus the sparse index. The file is written to a temporary path and only renamed
+ * into place once the index, meta blocks and footer have been synced to disk.
+ *
+ * <p>Keys within a data block are prefix compressed against the previous key, with
+ * a restart point holding the full key every {@link #DEFAULT_RESTART_INTERVAL}
+ * entries (see {@link BlockIterator} for the encoding).</p>
+ *
+ * <p>Entries may carry the WAL sequence number of their write, in which case a
+ * key may be added several times, newest version first, so that the file keeps
+ * the older versions that snapshots still read.</p>
+ *
+ * <p>Range tombstones are collected apart from the entries, in any order, and
+ * written to a meta block of their own.</p>
+ *
+ * <p>Each data block is compressed on its own, so a read only has to decompress
+ * the block it needs. A block that does not shrink by at least an eighth is
+ * stored uncompressed.</p>
+ */
+public class SSTableWriter implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(SSTableWriter.class.getName());
+
+    /**
+     * Default target size of an uncompressed data block in bytes.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+
+    /**
+     * Default target false positive rate of the bloom filter.
+     */
+    public static final double DEFAULT_BLOOM_FILTER_FPP = 0.01;
+
+    /**
+     * Default number of entries between restart points in a data block.
+     */
+    public static final int DEFAULT_RESTART_INTERVAL = 16;
+    
+    /**
+     * Default compression algorithm for data blocks.
+     */
+    public static final CompressionAlgorithm DEFAULT_COMPRESSION = CompressionAlgorithm.LZ4;
+
+    private static final ByteArrayComparator COMPARATOR = new ByteArrayComparator();
+
+    private final Path filePath;
+    private final Path tempPath;
+    private final int blockSize;
+    private final FileChannel channel;
+    
+    // Data block compression
+    private final StorageCompressor compressor;
+    private final byte compressionType;
+    private ByteBuffer compressedBuffer;
+
+    // Block currently being filled
+    private final BlockBuffer blockBuffer;
+    private final DataOutputStream blockOut;
+    private byte[] lastKeyInBlock;
+    private int[] restarts = new int[16];
+    private int restartCount;
+    private int entriesSinceRestart;
+
+    // Sparse index: last key of each block and its location in the file
+    private final List<byte[]> indexKeys;
+    private final List<long[]> indexHandles;
+
+    // Key hashes for the bloom filter, which is sized once the entry count is known
+    private long[] keyHashes;
+
+    // Limits the rate at which blocks are written, if set
+    private RateLimiter rateLimiter;
+
+    // Values of at least minBlobSize bytes go to blob files, if a blob store is set
+    private BlobStore blobStore;
+    private int minBlobSize;
+    private BlobStore.Writer blobWriter;
+
+    // Record bytes referenced in each blob file
+    private final Map<Long, Long> blobReferences = new TreeMap<>();
+
+    // Range deletes, written to their own meta block
+    private final List<RangeTombstone> rangeTombstones = new ArrayList<>();
+
+    private long offset;
+    private long entryCount;
+    private byte[] minKey;
+    private byte[] maxKey;
+    private long lastSequence;
+    private long newestWriteTime = -1;
+    private boolean finished;
+
+    /**
+     * Creates a new SSTableWriter with the default block size.
+     *
+     * @param filePath Final path of the SSTable file
+     * @throws IOException If the temporary file cannot be created
+     */
+    public SSTableWriter(Path filePath) throws IOException {
+        this(filePath, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new SSTableWriter.
+     *
+     * @param filePath Final path of the SSTable file
+     * @param blockSize Target size of a data block in bytes
+     * @throws IOException If the temporary file cannot be created
+     */
+    public SSTableWriter(Path filePath, int blockSize) throws IOException {
+        this(filePath, blockSize, DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a new SSTableWriter.
+     *
+     * @param filePath Final path of the SSTable file
+     * @param blockSize Target size of a data block in bytes
+     * @param compression Compression algorithm for data blocks
+     * @throws IOException If the temporary file cannot be created
+     */
+    public SSTableWriter(Path filePath, int blockSize, CompressionAlgorithm compression) throws IOException {
+        this.filePath = filePath;
+        this.tempPath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        this.blockSize = blockSize;
+        this.channel = FileChannel.open(tempPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.compressor = new StorageCompressor(compression);
+        this.compressionType = SSTable.compressionType(compression);
+        this.blockBuffer = new BlockBuffer(blockSize + 256);
+        this.blockOut = new DataOutputStream(blockBuffer);
+        this.indexKeys = new ArrayList<>();
+        this.indexHandles = new ArrayList<>();
+        this.keyHashes = new long[64];
+        this.offset = 0;
+        this.entryCount = 0;
+    }
+
+    /**
+     * Sets a rate limiter that every write to the file goes through, so that
+     * background work does not take all of the disk bandwidth.
+     *
+     * @param rateLimiter The rate limiter, or null for none
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Separates large values: values of at least {@code minBlobSize} bytes are
+     * appended to new blob files, which are synced when the SSTable is finished and
+     * deleted if it is abandoned, and the SSTable holds pointers to them.
+     *
+     * @param blobStore The blob store, or null to keep every value in the SSTable
+     * @param minBlobSize Smallest value written to a blob file, or 0 for none
+     */
+    public void setBlobStore(BlobStore blobStore, int minBlobSize) {
+        this.blobStore = blobStore;
+        this.minBlobSize = minBlobSize;
+    }
+
+    /**
+     * Appends an entry without a sequence number of its own; it takes the maximum
+     * sequence number of the SSTable. Keys must be supplied in strictly increasing
+     * order. An empty value is written as a tombstone, matching the MemTable
+     * convention.
+     *
+     * @param key The key
+     * @param value The value, or an empty array for a tombstone
+     * @throws IOException If an I/O error occurs
+     */
+    public void add(byte[] key, byte[] value) throws IOException {
+        addVersion(key, value, 0);
+    }
+
+    /**
+     * Appends a version of a key. Keys must be supplied in increasing order, and
+     * the versions of a key in decreasing sequence order.
+     *
+     * @param key The key
+     * @param value The value, or an empty array for a tombstone
+     * @param sequence The WAL sequence number of the write
+     * @throws IOException If an I/O error occurs
+     */
+    public void add(byte[] key, byte[] value, long sequence) throws IOException {
+        addVersion(key, value, encodeSequence(sequence));
+    }
+
+    private void addVersion(byte[] key, byte[] value, long encodedSequence) throws IOException {
+        if (value == null || value.length == 0) {
+            addEntry(key, SSTable.TYPE_DELETE, null, encodedSequence);
+        } else if (blobStore != null && minBlobSize > 0 && value.length >= minBlobSize) {
+            if (blobWriter == null) {
+                blobWriter = blobStore.newWriter(rateLimiter);
+            }
+            addBlobPointer(key, blobWriter.add(value), encodedSequence);
+        } else {
+            addEntry(key, SSTable.TYPE_PUT, value, encodedSequence);
+        }
+    }
+
+    /**
+     * Appends a version whose value is already in a blob file, as read by a
+     * compaction. Keys must be supplied in increasing order, and the versions of a
+     * key in decreasing sequence order.
+     *
+     * @param key The key
+     * @param pointer The blob pointer
+     * @param sequence The WAL sequence number of the write
+     * @throws IOException If an I/O error occurs
+     */
+    void addBlobIndex(byte[] key, byte[] pointer, long sequence) throws IOException {
+        addBlobPointer(key, pointer, encodeSequence(sequence));
+    }
+
+    private void addBlobPointer(byte[] key, byte[] pointer, long encodedSequence) throws IOException {
+        addEntry(key, SSTable.TYPE_BLOB_INDEX, pointer, encodedSequence);
+        blobReferences.merge(BlobStore.fileNumber(pointer), BlobStore.recordSize(pointer), Long::sum);
+    }
+
+    /**
+     * Adds a range tombstone, which deletes the versions of the keys in its range
+     * that are older than itself, in this SSTable and in older ones.
+     *
+     * @param tombstone The range tombstone
+     */
+    public void addRangeTombstone(RangeTombstone tombstone) {
+        if (finished) {
+            throw new IllegalStateException("SSTableWriter already finished");
+        }
+        encodeSequence(tombstone.getSequence());
+        rangeTombstones.add(tombstone);
+    }
+
+    /**
+     * Stores sequence numbers shifted up by one, leaving zero for entries that
+     * have none of their own.
+     */
+    private static long encodeSequence(long sequence) {
+        if (sequence < 0) {
+            throw new IllegalArgumentException("Sequence number must not be negative: " + sequence);
+        }
+        return sequence + 1;
+    }
+
+    private void addEntry(byte[] key, byte type, byte[] value, long encodedSequence) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("SSTableWriter already finished");
+        }
+        if (maxKey != null) {
+            int cmp = COMPARATOR.compare(key, maxKey);
+            // An older version of the last key may follow it
+            if (cmp < 0 || (cmp == 0 && (encodedSequence == 0 || encodedSequence >= lastSequence))) {
+                throw new IllegalArgumentException(cmp < 0
+                        ? "Keys must be added in strictly increasing order"
+                        : "Versions of a key must be added in decreasing sequence order");
+            }
+        }
+
+        // Store only the suffix that differs from the previous key, except at restart points
+        int shared = 0;
+        if (lastKeyInBlock != null && entriesSinceRestart < DEFAULT_RESTART_INTERVAL) {
+            int maxShared = Math.min(lastKeyInBlock.length, key.length);
+            while (shared < maxShared && lastKeyInBlock[shared] == key[shared]) {
+                shared++;
+            }
+            entriesSinceRestart++;
+        } else {
+            if (restartCount == restarts.length) {
+                restarts = Arrays.copyOf(restarts, restarts.length * 2);
+            }
+            restarts[restartCount++] = blockBuffer.size();
+            entriesSinceRestart = 1;
+        }
+
+        boolean tombstone = type == SSTable.TYPE_DELETE;
+        blockOut.writeByte(type);
+        writeVarint(shared);
+        writeVarint(key.length - shared);
+        writeVarint(tombstone ? 0 : value.length);
+        writeVarlong(encodedSequence);
+        blockOut.write(key, shared, key.length - shared);
+        if (!tombstone) {
+            blockOut.write(value);
+        }
+
+        if (minKey == null) {
+            minKey = key;
+        }
+        maxKey = key;
+        lastSequence = encodedSequence;
+        lastKeyInBlock = key;
+
+        if (entryCount == keyHashes.length) {
+            keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+        }
+        keyHashes[(int) entryCount] = SSTable.BloomFilter.hash64(key);
+        entryCount++;
+
+        if (blockBuffer.size() + 4 * (restartCount + 1) >= blockSize) {
+            flushBlock();
+        }
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            blockOut.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        blockOut.writeByte(value);
+    }
+
+    private void writeVarlong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            blockOut.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        blockOut.writeByte((int) value);
+    }
+
+    /**
+     * Writes the pending data block, if any, and records it in the sparse index.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    private void flushBlock() throws IOException {
+        if (blockBuffer.size() == 0) {
+            return;
+        }
+        for (int i = 0; i < restartCount; i++) {
+            blockOut.writeInt(restarts[i]);
+        }
+        blockOut.writeInt(restartCount);
+        blockOut.flush();
+        long[] handle = writeBlock(compress(blockBuffer.contents()));
+        indexKeys.add(lastKeyInBlock);
+        indexHandles.add(handle);
+        blockBuffer.reset();
+        lastKeyInBlock = null;
+        restartCount = 0;
+    }
+
+    /**
+     * Compresses a data block. The compressed form starts with the uncompressed
+     * length, so the reader can size its buffer before decompressing.
+     *
+     * @param contents Raw block contents
+     * @return The block to write, with its compression type
+     * @throws IOException If compression fails
+     */
+    private Block compress(ByteBuffer contents) throws IOException {
+        int rawLength = contents.remaining();
+        if (compressionType == SSTable.COMPRESSION_NONE) {
+            return new Block(contents, SSTable.COMPRESSION_NONE);
+        }
+
+        int maxLength = 4 + compressor.maxCompressedLength(rawLength);
+        if (compressedBuffer == null || compressedBuffer.capacity() < maxLength) {
+            compressedBuffer = ByteBuffer.allocate(maxLength);
+        }
+        compressedBuffer.clear();
+        compressedBuffer.putInt(rawLength);
+        compressor.compress(contents.duplicate(), compressedBuffer);
+        compressedBuffer.flip();
+
+        // Not worth paying for decompression on every read
+        if (compressedBuffer.remaining() > rawLength - rawLength / 8) {
+            return new Block(contents, SSTable.COMPRESSION_NONE);
+        }
+        return new Block(compressedBuffer, compressionType);
+    }
+
+    /**
+     * Writes an uncompressed block, used for the index and meta blocks.
+     */
+    private long[] writeBlock(byte[] contents) throws IOException {
+        return writeBlock(new Block(ByteBuffer.wrap(contents), SSTable.COMPRESSION_NONE));
+    }
+
+    /**
+     * Writes a block followed by its trailer (compression type and CRC32).
+     *
+     * @param block Block contents as stored, and their compression type
+     * @return The block handle as {offset, size}
+     * @throws IOException If an I/O error occurs
+     */
+    private long[] writeBlock(Block block) throws IOException {
+        ByteBuffer contents = block.contents;
+        int length = contents.remaining();
+
+        CRC32 crc = new CRC32();
+        crc.update(contents.duplicate());
+        crc.update(block.compressionType);
+
+        ByteBuffer trailer = ByteBuffer.allocate(SSTable.BLOCK_TRAILER_SIZE);
+        trailer.put(block.compressionType);
+        trailer.putInt((int) crc.getValue());
+        trailer.flip();
+        writeFully(contents.duplicate(), trailer);
+
+        long[] handle = new long[] {offset, length};
+        offset += length + SSTable.BLOCK_TRAILER_SIZE;
+        return handle;
+    }
+
+    private void writeFully(ByteBuffer... buffers) throws IOException {
+        if (rateLimiter != null) {
+            long bytes = 0;
+            for (ByteBuffer buffer : buffers) {
+                bytes += buffer.remaining();
+            }
+            rateLimiter.request(bytes);
+        }
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * Completes the file: writes the index, meta blocks and footer, syncs the file,
+     * moves it to its final path and opens it for reading. If this fails, the file
+     * is deleted, by {@link #close()} until it has been moved.
+     *
+     * @param id The ID for the new SSTable
+     * @param maxSequence Highest WAL sequence number covered by this SSTable
+     * @return The opened SSTable
+     * @throws IOException If an I/O error occurs
+     */
+    public SSTable finish(String id, long maxSequence) throws IOException {
+        flushBlock();
+
+        // The values must be durable before the pointers to them
+        if (blobWriter != null) {
+            blobWriter.finish();
+        }
+
+        // Sparse block index
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(indexBytes);
+        for (int i = 0; i < indexKeys.size(); i++) {
+            byte[] key = indexKeys.get(i);
+            long[] handle = indexHandles.get(i);
+            indexOut.writeInt(key.length);
+            indexOut.write(key);
+            indexOut.writeLong(handle[0]);
+            indexOut.writeInt((int) handle[1]);
+        }
+        indexOut.flush();
+
+        // Meta blocks, located through the meta index
+        Map<String, long[]> metaHandles = new LinkedHashMap<>();
+        metaHandles.put(SSTable.META_PROPERTIES, writeBlock(buildProperties(maxSequence)));
+        metaHandles.put(SSTable.META_FILTER, writeBlock(buildFilter()));
+        if (!blobReferences.isEmpty()) {
+            metaHandles.put(SSTable.META_BLOBS, writeBlock(buildBlobReferences()));
+        }
+        if (!rangeTombstones.isEmpty()) {
+            metaHandles.put(SSTable.META_RANGE_TOMBSTONES, writeBlock(buildRangeTombstones()));
+        }
+
+        long[] indexHandle = writeBlock(indexBytes.toByteArray());
+
+        ByteArrayOutputStream metaIndexBytes = new ByteArrayOutputStream();
+        DataOutputStream metaIndexOut = new DataOutputStream(metaIndexBytes);
+        for (Map.Entry<String, long[]> entry : metaHandles.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            metaIndexOut.writeInt(name.length);
+            metaIndexOut.write(name);
+            metaIndexOut.writeLong(entry.getValue()[0]);
+            metaIndexOut.writeInt((int) entry.getValue()[1]);
+        }
+        metaIndexOut.flush();
+        long[] metaIndexHandle = writeBlock(metaIndexBytes.toByteArray());
+
+        // Fixed-size footer
+        ByteBuffer footer = ByteBuffer.allocate(SSTable.FOOTER_SIZE);
+        footer.putLong(metaIndexHandle[0]);
+        footer.putInt((int) metaIndexHandle[1]);
+        footer.putLong(indexHandle[0]);
+        footer.putInt((int) indexHandle[1]);
+        footer.putInt(SSTable.FORMAT_VERSION);
+        footer.putLong(SSTable.MAGIC);
+        footer.flip();
+        writeFully(footer);
+        offset += SSTable.FOOTER_SIZE;
+
+        channel.force(true);
+        channel.close();
+        Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        finished = true;
+        syncDirectory();
+
+        try {
+            return new SSTable(filePath, id);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(filePath);
+            throw e;
+        }
+    }
+
+    /**
+     * Makes the rename of the finished file durable. Not every platform can open a
+     * directory for syncing, in which case the rename is left to the OS.
+     */
+    private void syncDirectory() {
+        Path directory = filePath.toAbsolutePath().getParent();
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not sync directory " + directory, e);
+        }
+    }
+
+    /**
+     * Builds and serializes the bloom filter over all keys added.
+     */
+    private byte[] buildFilter() {
+        SSTable.BloomFilter filter = new SSTable.BloomFilter((int) entryCount, DEFAULT_BLOOM_FILTER_FPP);
+        for (int i = 0; i < entryCount; i++) {
+            filter.addHash(keyHashes[i]);
+        }
+        keyHashes = null;
+        return filter.toByteArray();
+    }
+
+    /**
+     * Encodes the properties meta block.
+     */
+    private byte[] buildProperties(long maxSequence) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long now = System.currentTimeMillis();
+        out.writeLong(entryCount);
+        out.writeLong(maxSequence);
+        out.writeLong(now);
+        byte[] min = minKey != null ? minKey : new byte[0];
+        byte[] max = maxKey != null ? maxKey : new byte[0];
+        out.writeInt(min.length);
+        out.write(min);
+        out.writeInt(max.length);
+        out.write(max);
+        out.writeLong(newestWriteTime >= 0 ? newestWriteTime : now);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Sets the time of the newest write in the file, for files whose data was
+     * written before the file itself, such as compaction output. By default it is
+     * the time the file is finished.
+     *
+     * @param newestWriteTime The time in milliseconds since epoch
+     */
+    public void setNewestWriteTime(long newestWriteTime) {
+        this.newestWriteTime = newestWriteTime;
+    }
+
+    /**
+     * Encodes the blob references meta block: the number of blob files, then the
+     * number of each file and the record bytes this SSTable references in it.
+     */
+    private byte[] buildBlobReferences() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(blobReferences.size());
+        for (Map.Entry<Long, Long> reference : blobReferences.entrySet()) {
+            out.writeLong(reference.getKey());
+            out.writeLong(reference.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes the range tombstones meta block: their number, then the start key,
+     * end key and sequence number of each. A length of -1 marks a range without
+     * an end key.
+     */
+    private byte[] buildRangeTombstones() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(rangeTombstones.size());
+        for (RangeTombstone tombstone : rangeTombstones) {
+            out.writeInt(tombstone.getStartKey().length);
+            out.write(tombstone.getStartKey());
+            byte[] endKey = tombstone.getEndKey();
+            out.writeInt(endKey != null ? endKey.length : -1);
+            if (endKey != null) {
+                out.write(endKey);
+            }
+            out.writeLong(tombstone.getSequence());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Gets the number of range tombstones added so far.
+     *
+     * @return The range tombstone count
+     */
+    public int getRangeTombstoneCount() {
+        return rangeTombstones.size();
+    }
+
+    /**
+     * Gets the number of entries added so far.
+     *
+     * @return The entry count
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Gets an estimate of the file size so far, including the pending block.
+     *
+     * @return Estimated size in bytes
+     */
+    public long getEstimatedSize() {
+        return offset + blockBuffer.size();
+    }
+
+    /**
+     * Abandons the file if it has not been finished, deleting the temporary file.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.close();
+        }
+        if (!finished) {
+            Files.deleteIfExists(tempPath);
+        }
+        if (blobWriter != null) {
+            blobWriter.close();
+        }
+    }
+
+    /**
+     * Block contents as they are stored in the file.
+     */
+    private static class Block {
+        private final ByteBuffer contents;
+        private final byte compressionType;
+
+        Block(ByteBuffer contents, byte compressionType) {
+            this.contents = contents;
+            this.compressionType = compressionType;
+        }
+    }
+
+    /**
+     * A byte array output stream whose contents can be read without copying.
+     */
+    private static class BlockBuffer extends ByteArrayOutputStream {
+        BlockBuffer(int size) {
+            super(size);
+        }
+
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.util.AbstractMap;
+import java.util.Map;
+
+/**
+ * SequencedEntry is one version of a key: its value, or an empty value for a
+ * tombstone, tagged with the WAL sequence number of the write that produced it.
+ *
+ * <p>MemTables and SSTables keep older versions of a key as long as a snapshot
+ * may still read them, and return them newest first, right after the newest
+ * version. Readers at a snapshot take the first version whose sequence number is
+ * not above the snapshot's.</p>
+ */
+public class SequencedEntry extends AbstractMap.SimpleImmutableEntry<byte[], byte[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long sequence;
+
+    /**
+     * Creates a SequencedEntry.
+     *
+     * @param key The key
+     * @param value The value, or an empty array for a tombstone
+     * @param sequence The sequence number of the write
+     */
+    public SequencedEntry(byte[] key, byte[] value, long sequence) {
+        super(key, value);
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return The WAL sequence number of the write that produced this version
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the sequence number of an entry. Entries without one, such as those of
+     * in-memory SSTables, count as written before any snapshot was taken.
+     *
+     * @param entry The entry
+     * @return The entry's sequence number, or 0 if it has none
+     */
+    public static long sequenceOf(Map.Entry<byte[], byte[]> entry) {
+        return entry instanceof SequencedEntry ? ((SequencedEntry) entry).sequence : 0;
+    }
+}
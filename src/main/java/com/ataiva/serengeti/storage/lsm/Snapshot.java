@@ -0,0 +1,65 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Snapshot is a consistent, read-only view of an {@link LSMStorageEngine} as of
+ * a WAL sequence number. Reads through a snapshot see every write with a lower or
+ * equal sequence number and none after it, however much is written, flushed or
+ * compacted meanwhile.
+ *
+ * <p>While a snapshot is held, MemTables and compactions keep the older versions
+ * of keys that it may read, so snapshots should be closed as soon as they are no
+ * longer needed. Snapshots do not survive a restart.</p>
+ */
+public final class Snapshot implements AutoCloseable {
+
+    private final LSMStorageEngine engine;
+    private final long sequence;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    Snapshot(LSMStorageEngine engine, long sequence) {
+        this.engine = engine;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return The sequence number of the last write the snapshot sees
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return true if the snapshot has been released
+     */
+    public boolean isReleased() {
+        return released.get();
+    }
+
+    /**
+     * Releases the snapshot. Releasing it more than once has no effect.
+     */
+    @Override
+    public void close() {
+        engine.releaseSnapshot(this);
+    }
+
+    LSMStorageEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Marks the snapshot released.
+     *
+     * @return true if it was live until now
+     */
+    boolean markReleased() {
+        return released.compareAndSet(false, true);
+    }
+
+    @Override
+    public String toString() {
+        return "Snapshot{sequence=" + sequence + (released.get() ? ", released" : "") + '}';
+    }
+}
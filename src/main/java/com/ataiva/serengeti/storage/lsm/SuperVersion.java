@@ -0,0 +1,147 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SuperVersion is an immutable view of everything a read has to look at: the
+ * active MemTable, the immutable MemTables and the SSTables of an engine.
+ *
+ * <p>The engine publishes a new SuperVersion whenever one of them changes, and
+ * readers take the current one without locking. Each SuperVersion is reference
+ * counted: the engine holds one reference while it is current and every reader
+ * holds one while it reads. It references each of its SSTables in turn, so an
+ * SSTable that a compaction has replaced is only closed and deleted once the last
+ * SuperVersion listing it has been released.</p>
+ */
+final class SuperVersion {
+
+    private final MemTable activeMemTable;
+    private final List<MemTable> immutableMemTables;
+    private final List<SSTable> ssTables;
+
+    // Starts with the reference held by the engine while this is current
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * Creates a SuperVersion and references its SSTables.
+     *
+     * @param activeMemTable The active MemTable
+     * @param immutableMemTables The immutable MemTables, oldest first
+     * @param ssTables The SSTables, oldest first
+     */
+    SuperVersion(MemTable activeMemTable, List<MemTable> immutableMemTables, List<SSTable> ssTables) {
+        this.activeMemTable = activeMemTable;
+        this.immutableMemTables = newestFirst(immutableMemTables);
+        this.ssTables = newestFirst(ssTables);
+        for (SSTable ssTable : this.ssTables) {
+            ssTable.ref();
+        }
+    }
+
+    private static <T> List<T> newestFirst(List<T> oldestFirst) {
+        List<T> copy = new ArrayList<>(oldestFirst);
+        Collections.reverse(copy);
+        return Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * @return The active MemTable when this SuperVersion was published
+     */
+    MemTable getActiveMemTable() {
+        return activeMemTable;
+    }
+
+    /**
+     * @return The immutable MemTables, newest first
+     */
+    List<MemTable> getImmutableMemTables() {
+        return immutableMemTables;
+    }
+
+    /**
+     * @return The SSTables, newest first
+     */
+    List<SSTable> getSSTables() {
+        return ssTables;
+    }
+
+    /**
+     * Finds the newest range tombstone holding a key that a snapshot can see, in
+     * any of the MemTables or SSTables.
+     *
+     * @param key The key
+     * @param snapshotSequence The snapshot's sequence number
+     * @return The sequence number of the range tombstone, or -1 if there is none
+     */
+    long newestRangeTombstone(byte[] key, long snapshotSequence) {
+        long newest = RangeTombstone.newestCovering(activeMemTable.getRangeTombstones(), key, snapshotSequence);
+        for (MemTable memTable : immutableMemTables) {
+            newest = Math.max(newest,
+                    RangeTombstone.newestCovering(memTable.getRangeTombstones(), key, snapshotSequence));
+        }
+        for (SSTable ssTable : ssTables) {
+            newest = Math.max(newest,
+                    RangeTombstone.newestCovering(ssTable.getRangeTombstones(), key, snapshotSequence));
+        }
+        return newest;
+    }
+
+    /**
+     * Collects the range tombstones that overlap a key range and that a snapshot can see.
+     *
+     * @param startKey The first key of the range, or null to start at the beginning
+     * @param endKey The key after the range, or null to run to the end
+     * @param snapshotSequence The snapshot's sequence number
+     * @return The range tombstones, in no particular order
+     */
+    List<RangeTombstone> rangeTombstones(byte[] startKey, byte[] endKey, long snapshotSequence) {
+        List<RangeTombstone> found = new ArrayList<>();
+        addRangeTombstones(activeMemTable.getRangeTombstones(), startKey, endKey, snapshotSequence, found);
+        for (MemTable memTable : immutableMemTables) {
+            addRangeTombstones(memTable.getRangeTombstones(), startKey, endKey, snapshotSequence, found);
+        }
+        for (SSTable ssTable : ssTables) {
+            addRangeTombstones(ssTable.getRangeTombstones(), startKey, endKey, snapshotSequence, found);
+        }
+        return found;
+    }
+
+    private static void addRangeTombstones(List<RangeTombstone> tombstones, byte[] startKey, byte[] endKey,
+                                           long snapshotSequence, List<RangeTombstone> found) {
+        for (RangeTombstone tombstone : tombstones) {
+            if (tombstone.getSequence() <= snapshotSequence && tombstone.overlaps(startKey, endKey)) {
+                found.add(tombstone);
+            }
+        }
+    }
+
+    /**
+     * Takes a reference, unless the last one has already been released.
+     *
+     * @return true if a reference was taken
+     */
+    boolean tryRef() {
+        while (true) {
+            int count = refs.get();
+            if (count == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a reference.
+     *
+     * @return true if this was the last reference, in which case the caller
+     *         must release the SSTables
+     */
+    boolean unref() {
+        return refs.decrementAndGet() == 0;
+    }
+}
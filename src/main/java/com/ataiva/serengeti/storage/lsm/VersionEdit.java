@@ -0,0 +1,284 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * VersionEdit describes one change to the set of live SSTables: the files a
+ * flush or compaction added, the files it removed and how far the WAL is covered
+ * by SSTables. Edits are logged to the MANIFEST by {@link VersionSet} and applied
+ * atomically, so after a crash either the whole edit is visible or none of it is.
+ *
+ * <p>An edit is encoded as a sequence of tagged fields. All integers are
+ * big-endian:</p>
+ * <pre>
+ * LAST_FILE_ID(1)      id(8)
+ * FLUSHED_SEQUENCE(2)  sequence(8)
+ * DELETED_FILE(3)      idLength(2) id
+ * NEW_FILE(4)          idLength(2) id level(4) maxSequence(8) fileSize(8) entryCount(8)
+ *                      minKeyLength(4) minKey maxKeyLength(4) maxKey
+ * </pre>
+ */
+public class VersionEdit {
+
+    static final byte TAG_LAST_FILE_ID = 1;
+    static final byte TAG_FLUSHED_SEQUENCE = 2;
+    static final byte TAG_DELETED_FILE = 3;
+    static final byte TAG_NEW_FILE = 4;
+
+    private final List<FileMetadata> newFiles = new ArrayList<>();
+    private final List<String> deletedFiles = new ArrayList<>();
+    private long flushedSequence = -1;
+    private long lastFileId = -1;
+
+    /**
+     * Records an SSTable that becomes live with this edit.
+     *
+     * @param ssTable The new SSTable
+     */
+    public void addFile(SSTable ssTable) {
+        addFile(FileMetadata.of(ssTable));
+    }
+
+    /**
+     * Records an SSTable that becomes live with this edit.
+     *
+     * @param file Metadata of the new SSTable
+     */
+    public void addFile(FileMetadata file) {
+        newFiles.add(file);
+    }
+
+    /**
+     * Records an SSTable that is no longer live after this edit.
+     *
+     * @param id The SSTable ID
+     */
+    public void deleteFile(String id) {
+        deletedFiles.add(id);
+    }
+
+    /**
+     * Records that every WAL record up to a sequence number is now in SSTables.
+     *
+     * @param flushedSequence The highest flushed sequence number
+     */
+    public void setFlushedSequence(long flushedSequence) {
+        this.flushedSequence = flushedSequence;
+    }
+
+    /**
+     * Records the highest numeric SSTable ID handed out so far.
+     *
+     * @param lastFileId The highest SSTable ID
+     */
+    public void setLastFileId(long lastFileId) {
+        this.lastFileId = lastFileId;
+    }
+
+    public List<FileMetadata> getNewFiles() {
+        return Collections.unmodifiableList(newFiles);
+    }
+
+    public List<String> getDeletedFiles() {
+        return Collections.unmodifiableList(deletedFiles);
+    }
+
+    /**
+     * @return The flushed sequence number, or -1 if this edit does not change it
+     */
+    public long getFlushedSequence() {
+        return flushedSequence;
+    }
+
+    /**
+     * @return The highest SSTable ID, or -1 if this edit does not change it
+     */
+    public long getLastFileId() {
+        return lastFileId;
+    }
+
+    /**
+     * Encodes the edit.
+     *
+     * @return A buffer holding the encoded edit, positioned at its start
+     */
+    ByteBuffer encode() {
+        int size = 0;
+        if (lastFileId >= 0) {
+            size += 9;
+        }
+        if (flushedSequence >= 0) {
+            size += 9;
+        }
+        for (String id : deletedFiles) {
+            size += 3 + utf8(id).length;
+        }
+        for (FileMetadata file : newFiles) {
+            size += 3 + utf8(file.id).length + 4 + 8 + 8 + 8 + 4 + file.minKey.length + 4 + file.maxKey.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        if (lastFileId >= 0) {
+            buffer.put(TAG_LAST_FILE_ID).putLong(lastFileId);
+        }
+        if (flushedSequence >= 0) {
+            buffer.put(TAG_FLUSHED_SEQUENCE).putLong(flushedSequence);
+        }
+        for (String id : deletedFiles) {
+            buffer.put(TAG_DELETED_FILE);
+            putString(buffer, id);
+        }
+        for (FileMetadata file : newFiles) {
+            buffer.put(TAG_NEW_FILE);
+            putString(buffer, file.id);
+            buffer.putInt(file.level)
+                    .putLong(file.maxSequence)
+                    .putLong(file.fileSize)
+                    .putLong(file.entryCount)
+                    .putInt(file.minKey.length).put(file.minKey)
+                    .putInt(file.maxKey.length).put(file.maxKey);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes an edit written by {@link #encode()}.
+     *
+     * @param buffer The encoded edit
+     * @return The decoded edit
+     * @throws IOException If the edit is malformed
+     */
+    static VersionEdit decode(ByteBuffer buffer) throws IOException {
+        VersionEdit edit = new VersionEdit();
+        try {
+            while (buffer.hasRemaining()) {
+                byte tag = buffer.get();
+                switch (tag) {
+                    case TAG_LAST_FILE_ID:
+                        edit.lastFileId = buffer.getLong();
+                        break;
+                    case TAG_FLUSHED_SEQUENCE:
+                        edit.flushedSequence = buffer.getLong();
+                        break;
+                    case TAG_DELETED_FILE:
+                        edit.deletedFiles.add(getString(buffer));
+                        break;
+                    case TAG_NEW_FILE:
+                        String id = getString(buffer);
+                        int level = buffer.getInt();
+                        long maxSequence = buffer.getLong();
+                        long fileSize = buffer.getLong();
+                        long entryCount = buffer.getLong();
+                        byte[] minKey = getBytes(buffer);
+                        byte[] maxKey = getBytes(buffer);
+                        edit.newFiles.add(new FileMetadata(id, level, maxSequence, fileSize, entryCount, minKey, maxKey));
+                        break;
+                    default:
+                        throw new IOException("Unknown version edit tag: " + tag);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated version edit", e);
+        }
+        return edit;
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = utf8(value);
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid key length in version edit: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * What the MANIFEST records about a live SSTable: enough to place it in the
+     * tree and plan compactions without opening the file.
+     */
+    public static class FileMetadata {
+        private final String id;
+        private final int level;
+        private final long maxSequence;
+        private final long fileSize;
+        private final long entryCount;
+        private final byte[] minKey;
+        private final byte[] maxKey;
+
+        public FileMetadata(String id, int level, long maxSequence, long fileSize, long entryCount,
+                            byte[] minKey, byte[] maxKey) {
+            this.id = id;
+            this.level = level;
+            this.maxSequence = maxSequence;
+            this.fileSize = fileSize;
+            this.entryCount = entryCount;
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+        }
+
+        /**
+         * Describes an open SSTable.
+         *
+         * @param ssTable The SSTable
+         * @return Its metadata
+         */
+        public static FileMetadata of(SSTable ssTable) {
+            byte[] minKey = ssTable.getMinKeyBytes();
+            byte[] maxKey = ssTable.getMaxKeyBytes();
+            return new FileMetadata(ssTable.getId(), ssTable.getLevel(), ssTable.getMaxSequence(),
+                    ssTable.getSize(), ssTable.getMetadata().getEntryCount(),
+                    minKey != null ? minKey : new byte[0], maxKey != null ? maxKey : new byte[0]);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public long getMaxSequence() {
+            return maxSequence;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public long getEntryCount() {
+            return entryCount;
+        }
+
+        public byte[] getMinKey() {
+            return minKey;
+        }
+
+        public byte[] getMaxKey() {
+            return maxKey;
+        }
+    }
+}
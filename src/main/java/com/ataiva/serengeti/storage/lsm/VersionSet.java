@@ -0,0 +1,343 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import com.ataiva.serengeti.storage.lsm.VersionEdit.FileMetadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * VersionSet keeps the durable record of which SSTables make up the LSM tree.
+ *
+ * <p>Every flush and compaction is logged to a MANIFEST file as a
+ * {@link VersionEdit} before it takes effect, and the MANIFEST is replayed when
+ * the engine is opened. Startup therefore knows the live SSTables, their levels
+ * and key ranges, and the WAL position they cover without listing or reading
+ * the SSTable files themselves.</p>
+ *
+ * <p>The MANIFEST is a log of records, each holding the payload length (4 bytes),
+ * a CRC32 of the payload (4 bytes) and an encoded edit. A record that was torn by
+ * a crash fails its checksum and ends the replay, so an edit is either applied
+ * completely or not at all. The file named in {@code CURRENT} is the live
+ * MANIFEST. A new MANIFEST starting with a snapshot of the current state is
+ * written on every open and whenever the log grows past its size limit, and
+ * {@code CURRENT} is then switched to it with an atomic rename.</p>
+ *
+ * <p>All methods are synchronized; edits are rare compared to reads and writes.</p>
+ */
+public class VersionSet implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(VersionSet.class.getName());
+
+    /**
+     * Default size at which the MANIFEST is rewritten as a snapshot.
+     */
+    public static final long DEFAULT_MAX_MANIFEST_SIZE = 4L * 1024 * 1024;
+
+    static final String CURRENT_FILE = "CURRENT";
+    private static final String MANIFEST_PREFIX = "MANIFEST-";
+    private static final int RECORD_HEADER_SIZE = 8; // Length(4) + CRC(4)
+
+    private final Path directory;
+    private final long maxManifestSize;
+
+    // Live SSTables by ID
+    private final Map<String, FileMetadata> files = new LinkedHashMap<>();
+    private long flushedSequence;
+    private long lastFileId = -1;
+
+    private long manifestNumber;
+    private FileChannel manifest;
+    private long manifestSize;
+
+    /**
+     * Creates a VersionSet for a data directory. Nothing is read until
+     * {@link #recover()} is called.
+     *
+     * @param directory The data directory holding the MANIFEST and SSTables
+     */
+    public VersionSet(Path directory) {
+        this(directory, DEFAULT_MAX_MANIFEST_SIZE);
+    }
+
+    /**
+     * Creates a VersionSet for a data directory.
+     *
+     * @param directory The data directory holding the MANIFEST and SSTables
+     * @param maxManifestSize Size at which the MANIFEST is rewritten as a snapshot
+     */
+    public VersionSet(Path directory, long maxManifestSize) {
+        this.directory = directory;
+        this.maxManifestSize = maxManifestSize;
+    }
+
+    /**
+     * Replays the MANIFEST named in {@code CURRENT}, then starts a new MANIFEST
+     * holding a snapshot of the recovered state.
+     *
+     * @return true if a MANIFEST was found, false if the directory has none yet
+     * @throws IOException If the MANIFEST cannot be read
+     */
+    public synchronized boolean recover() throws IOException {
+        Path currentPath = directory.resolve(CURRENT_FILE);
+        if (!Files.exists(currentPath)) {
+            return false;
+        }
+
+        String manifestName = new String(Files.readAllBytes(currentPath), StandardCharsets.UTF_8).trim();
+        if (!manifestName.startsWith(MANIFEST_PREFIX)) {
+            throw new IOException("Invalid CURRENT file: " + manifestName);
+        }
+        try {
+            manifestNumber = Long.parseLong(manifestName.substring(MANIFEST_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid CURRENT file: " + manifestName, e);
+        }
+
+        int edits = 0;
+        try (FileChannel channel = FileChannel.open(directory.resolve(manifestName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (position < size) {
+                header.clear();
+                if (size - position < RECORD_HEADER_SIZE || !readFully(channel, header, position)) {
+                    LOGGER.warning("Ignoring truncated record at position " + position + " in " + manifestName);
+                    break;
+                }
+                int length = header.getInt(0);
+                int storedCrc = header.getInt(4);
+                if (length < 0 || length > size - position - RECORD_HEADER_SIZE) {
+                    LOGGER.warning("Ignoring truncated record at position " + position + " in " + manifestName);
+                    break;
+                }
+
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, position + RECORD_HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array(), 0, length);
+                if (storedCrc != (int) crc.getValue()) {
+                    LOGGER.warning("Ignoring record with CRC mismatch at position " + position + " in " + manifestName);
+                    break;
+                }
+
+                payload.flip();
+                apply(VersionEdit.decode(payload));
+                edits++;
+                position += RECORD_HEADER_SIZE + length;
+            }
+        } catch (NoSuchFileException e) {
+            throw new IOException("MANIFEST named in CURRENT is missing: " + manifestName, e);
+        }
+
+        LOGGER.info("Recovered " + files.size() + " SSTables from " + edits + " edits in " + manifestName);
+        writeSnapshot();
+        return true;
+    }
+
+    /**
+     * Logs an edit to the MANIFEST, syncs it and applies it to the live set.
+     * The edit takes effect only once it is durable; if logging fails the live
+     * set is unchanged and the next edit starts a new MANIFEST.
+     *
+     * @param edit The edit to apply
+     * @throws IOException If the edit cannot be logged
+     */
+    public synchronized void logAndApply(VersionEdit edit) throws IOException {
+        if (manifest == null || manifestSize >= maxManifestSize) {
+            writeSnapshot();
+        }
+        try {
+            manifestSize += appendRecord(manifest, edit.encode());
+            manifest.force(true);
+        } catch (IOException e) {
+            // The MANIFEST may now end with a partial record; abandon it
+            closeManifest();
+            throw e;
+        }
+        apply(edit);
+    }
+
+    /**
+     * Gets the live SSTables, ordered from oldest to newest by the sequence
+     * numbers they contain.
+     *
+     * @return Metadata of the live SSTables
+     */
+    public synchronized List<FileMetadata> getFiles() {
+        List<FileMetadata> result = new ArrayList<>(files.values());
+        result.sort(Comparator.comparingLong(FileMetadata::getMaxSequence).thenComparing(FileMetadata::getId));
+        return result;
+    }
+
+    /**
+     * Checks whether an SSTable is live.
+     *
+     * @param id The SSTable ID
+     * @return true if the SSTable is part of the current version
+     */
+    public synchronized boolean contains(String id) {
+        return files.containsKey(id);
+    }
+
+    /**
+     * @return The highest WAL sequence number covered by SSTables
+     */
+    public synchronized long getFlushedSequence() {
+        return flushedSequence;
+    }
+
+    /**
+     * @return The highest numeric SSTable ID handed out, or -1 if none
+     */
+    public synchronized long getLastFileId() {
+        return lastFileId;
+    }
+
+    /**
+     * @return The path of the live MANIFEST, or null if none has been written
+     */
+    public synchronized Path getManifestPath() {
+        return manifestNumber > 0 ? directory.resolve(manifestName(manifestNumber)) : null;
+    }
+
+    private void apply(VersionEdit edit) {
+        for (String id : edit.getDeletedFiles()) {
+            files.remove(id);
+        }
+        for (FileMetadata file : edit.getNewFiles()) {
+            files.put(file.getId(), file);
+            try {
+                lastFileId = Math.max(lastFileId, Long.parseUnsignedLong(file.getId(), 16));
+            } catch (NumberFormatException e) {
+                LOGGER.fine("SSTable ID is not numeric: " + file.getId());
+            }
+        }
+        flushedSequence = Math.max(flushedSequence, edit.getFlushedSequence());
+        lastFileId = Math.max(lastFileId, edit.getLastFileId());
+    }
+
+    /**
+     * Writes a new MANIFEST holding the current state, makes it current and
+     * deletes the previous one.
+     */
+    private void writeSnapshot() throws IOException {
+        VersionEdit snapshot = new VersionEdit();
+        snapshot.setFlushedSequence(flushedSequence);
+        if (lastFileId >= 0) {
+            snapshot.setLastFileId(lastFileId);
+        }
+        for (FileMetadata file : files.values()) {
+            snapshot.addFile(file);
+        }
+
+        long newNumber = manifestNumber + 1;
+        Path newPath = directory.resolve(manifestName(newNumber));
+        FileChannel channel = FileChannel.open(newPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        long size;
+        try {
+            size = appendRecord(channel, snapshot.encode());
+            channel.force(true);
+
+            // Point CURRENT at the new MANIFEST
+            Path tempPath = directory.resolve(CURRENT_FILE + ".tmp");
+            try (FileChannel current = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer contents = ByteBuffer.wrap((manifestName(newNumber) + "\n").getBytes(StandardCharsets.UTF_8));
+                while (contents.hasRemaining()) {
+                    current.write(contents);
+                }
+                current.force(true);
+            }
+            Files.move(tempPath, directory.resolve(CURRENT_FILE),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+        } catch (IOException e) {
+            channel.close();
+            Files.deleteIfExists(newPath);
+            throw e;
+        }
+
+        Path oldPath = manifestNumber > 0 ? directory.resolve(manifestName(manifestNumber)) : null;
+        closeManifest();
+        manifest = channel;
+        manifestSize = size;
+        manifestNumber = newNumber;
+        if (oldPath != null) {
+            Files.deleteIfExists(oldPath);
+        }
+    }
+
+    private static int appendRecord(FileChannel channel, ByteBuffer payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(payload.remaining()).putInt((int) crc.getValue()).flip();
+
+        int size = RECORD_HEADER_SIZE + payload.remaining();
+        ByteBuffer[] buffers = {header, payload};
+        while (payload.hasRemaining()) {
+            channel.write(buffers);
+        }
+        return size;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes the rename of CURRENT durable. Not every platform can open a
+     * directory for syncing, in which case the rename is left to the OS.
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not sync directory " + directory, e);
+        }
+    }
+
+    private static String manifestName(long number) {
+        return String.format("%s%06d", MANIFEST_PREFIX, number);
+    }
+
+    private void closeManifest() {
+        if (manifest != null) {
+            try {
+                manifest.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close MANIFEST", e);
+            }
+            manifest = null;
+        }
+    }
+
+    /**
+     * Closes the MANIFEST. Everything logged so far is already durable.
+     */
+    @Override
+    public synchronized void close() {
+        closeManifest();
+    }
+}
@@ -0,0 +1,98 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * WriteBatch collects puts and deletes that {@link LSMStorageEngine#write(WriteBatch)}
+ * applies together. The whole batch is logged as one WAL record, so it costs one
+ * write and at most one sync, and after a crash either every operation in the
+ * batch is recovered or none is. Operations on the same key are applied in the
+ * order they were added.
+ *
+ * <p>A batch is not thread-safe, and may be reused after {@link #clear()}.</p>
+ */
+public class WriteBatch {
+
+    private final List<byte[]> keys = new ArrayList<>();
+
+    // Null marks a delete
+    private final List<byte[]> values = new ArrayList<>();
+
+    private long approximateSize;
+
+    /**
+     * Adds a put to the batch.
+     *
+     * @param key The key
+     * @param value The value
+     * @return This batch
+     */
+    public WriteBatch put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Key and value cannot be null");
+        }
+        keys.add(key);
+        values.add(value);
+        approximateSize += key.length + value.length;
+        return this;
+    }
+
+    /**
+     * Adds a delete to the batch.
+     *
+     * @param key The key to delete
+     * @return This batch
+     */
+    public WriteBatch delete(byte[] key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        keys.add(key);
+        values.add(null);
+        approximateSize += key.length;
+        return this;
+    }
+
+    /**
+     * Removes all operations from the batch.
+     */
+    public void clear() {
+        keys.clear();
+        values.clear();
+        approximateSize = 0;
+    }
+
+    /**
+     * @return The number of operations in the batch
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * @return true if the batch has no operations
+     */
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * @return The total size of the keys and values in the batch in bytes
+     */
+    public long getApproximateSize() {
+        return approximateSize;
+    }
+
+    List<byte[]> keys() {
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * @return The values, with null for each delete
+     */
+    List<byte[]> values() {
+        return Collections.unmodifiableList(values);
+    }
+}
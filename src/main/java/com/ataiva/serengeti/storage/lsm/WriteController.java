@@ -0,0 +1,288 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import com.ataiva.serengeti.performance.PerformanceProfiler;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * WriteController slows down and stops writers when background work falls behind.
+ *
+ * <p>The engine reports the number of immutable MemTables waiting to be flushed,
+ * the number of level-0 SSTables waiting to be compacted and the bytes those
+ * SSTables hold. Each signal has a slowdown and a stop threshold. Once any signal
+ * reaches its slowdown threshold, writes are {@link State#DELAYED}: they pass
+ * through a token bucket whose rate falls from the delayed write rate towards a
+ * sixteenth of it as the worst signal approaches its stop threshold. Once any
+ * signal reaches its stop threshold, writes are {@link State#STOPPED} until flushes
+ * or compactions bring it back down. Writers therefore slow down gradually instead
+ * of letting MemTables and level-0 files pile up without bound.</p>
+ */
+public class WriteController {
+
+    private static final Logger LOGGER = Logger.getLogger(WriteController.class.getName());
+
+    /**
+     * Default write rate when writes are first delayed.
+     */
+    public static final long DEFAULT_DELAYED_WRITE_RATE = 16L * 1024 * 1024;
+
+    /**
+     * Default pending compaction bytes at which writes are delayed.
+     */
+    public static final long DEFAULT_SLOWDOWN_PENDING_COMPACTION_BYTES = 64L * 1024 * 1024 * 1024;
+
+    /**
+     * Default pending compaction bytes at which writes are stopped.
+     */
+    public static final long DEFAULT_STOP_PENDING_COMPACTION_BYTES = 256L * 1024 * 1024 * 1024;
+
+    // Lowest delayed write rate, as a fraction of the delayed write rate
+    private static final int MIN_RATE_DIVISOR = 16;
+
+    /**
+     * How writes are currently admitted.
+     */
+    public enum State {
+        NORMAL,     // Writes proceed at full speed
+        DELAYED,    // Writes are rate limited
+        STOPPED     // Writes wait until background work catches up
+    }
+
+    private final int slowdownImmutableMemTables;
+    private final int stopImmutableMemTables;
+    private final int slowdownL0Files;
+    private final int stopL0Files;
+    private final long slowdownPendingCompactionBytes;
+    private final long stopPendingCompactionBytes;
+    private final long delayedWriteRate;
+    private final RateLimiter delayLimiter;
+
+    private volatile State state = State.NORMAL;
+    private boolean closed;
+
+    // Last reported signals
+    private int immutableMemTables;
+    private int l0Files;
+    private long pendingCompactionBytes;
+
+    // Statistics
+    private long stopCount;
+    private long delayCount;
+    private long stoppedNanos;
+
+    /**
+     * Creates a WriteController.
+     *
+     * @param slowdownImmutableMemTables Immutable MemTables at which writes are delayed
+     * @param stopImmutableMemTables Immutable MemTables at which writes are stopped
+     * @param slowdownL0Files Level-0 SSTables at which writes are delayed
+     * @param stopL0Files Level-0 SSTables at which writes are stopped
+     * @param slowdownPendingCompactionBytes Pending compaction bytes at which writes are delayed
+     * @param stopPendingCompactionBytes Pending compaction bytes at which writes are stopped
+     * @param delayedWriteRate Write rate in bytes per second when writes are first delayed
+     */
+    public WriteController(int slowdownImmutableMemTables, int stopImmutableMemTables,
+                           int slowdownL0Files, int stopL0Files,
+                           long slowdownPendingCompactionBytes, long stopPendingCompactionBytes,
+                           long delayedWriteRate) {
+        if (stopImmutableMemTables <= slowdownImmutableMemTables || stopL0Files <= slowdownL0Files
+                || stopPendingCompactionBytes <= slowdownPendingCompactionBytes) {
+            throw new IllegalArgumentException("Stop thresholds must be above slowdown thresholds");
+        }
+        this.slowdownImmutableMemTables = slowdownImmutableMemTables;
+        this.stopImmutableMemTables = stopImmutableMemTables;
+        this.slowdownL0Files = slowdownL0Files;
+        this.stopL0Files = stopL0Files;
+        this.slowdownPendingCompactionBytes = slowdownPendingCompactionBytes;
+        this.stopPendingCompactionBytes = stopPendingCompactionBytes;
+        this.delayedWriteRate = delayedWriteRate;
+        this.delayLimiter = new RateLimiter(delayedWriteRate);
+    }
+
+    /**
+     * Admits a write, delaying or blocking the caller as the current state requires.
+     * Callers must not hold locks that background work needs.
+     *
+     * @param bytes The size of the write in bytes
+     * @throws InterruptedIOException If the thread is interrupted while waiting
+     */
+    public void beforeWrite(long bytes) throws InterruptedIOException {
+        State current = state;
+        if (current == State.NORMAL) {
+            return;
+        }
+        if (current == State.STOPPED) {
+            awaitNotStopped();
+        }
+        if (state == State.DELAYED) {
+            delayLimiter.request(bytes);
+        }
+    }
+
+    private synchronized void awaitNotStopped() throws InterruptedIOException {
+        long start = System.nanoTime();
+        try {
+            while (state == State.STOPPED && !closed) {
+                wait(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writes were stopped");
+        } finally {
+            stoppedNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Updates the signals and recomputes the state, waking stopped writers if
+     * writes may proceed again.
+     *
+     * @param immutableMemTables Immutable MemTables waiting to be flushed
+     * @param l0Files Level-0 SSTables waiting to be compacted
+     * @param pendingCompactionBytes Bytes held by SSTables waiting to be compacted
+     * @return The new state
+     */
+    public synchronized State update(int immutableMemTables, int l0Files, long pendingCompactionBytes) {
+        this.immutableMemTables = immutableMemTables;
+        this.l0Files = l0Files;
+        this.pendingCompactionBytes = pendingCompactionBytes;
+
+        State previous = state;
+        State next;
+        if (closed) {
+            next = State.NORMAL;
+        } else if (immutableMemTables >= stopImmutableMemTables || l0Files >= stopL0Files
+                || pendingCompactionBytes >= stopPendingCompactionBytes) {
+            next = State.STOPPED;
+        } else if (immutableMemTables >= slowdownImmutableMemTables || l0Files >= slowdownL0Files
+                || pendingCompactionBytes >= slowdownPendingCompactionBytes) {
+            next = State.DELAYED;
+        } else {
+            next = State.NORMAL;
+        }
+
+        if (next == State.DELAYED) {
+            // The closer the worst signal is to stopping, the slower writes go
+            double pressure = Math.max(
+                    fraction(immutableMemTables, slowdownImmutableMemTables, stopImmutableMemTables),
+                    Math.max(fraction(l0Files, slowdownL0Files, stopL0Files),
+                            fraction(pendingCompactionBytes, slowdownPendingCompactionBytes, stopPendingCompactionBytes)));
+            long rate = (long) (delayedWriteRate * (1.0 - pressure));
+            delayLimiter.setBytesPerSecond(Math.max(delayedWriteRate / MIN_RATE_DIVISOR, rate));
+        }
+
+        if (next != previous) {
+            state = next;
+            if (next == State.STOPPED) {
+                stopCount++;
+            } else if (next == State.DELAYED) {
+                delayCount++;
+            }
+            String message = "Writes " + next + ": immutableMemTables=" + immutableMemTables
+                    + ", l0Files=" + l0Files + ", pendingCompactionBytes=" + pendingCompactionBytes;
+            if (next == State.STOPPED) {
+                LOGGER.warning(message);
+            } else {
+                LOGGER.info(message);
+            }
+            if (previous == State.STOPPED) {
+                notifyAll();
+            }
+        }
+        return next;
+    }
+
+    private static double fraction(long value, long slowdown, long stop) {
+        return value < slowdown ? 0.0 : Math.min(1.0, (double) (value - slowdown) / (stop - slowdown));
+    }
+
+    /**
+     * Lets every waiting and future writer through, for shutdown.
+     */
+    public synchronized void close() {
+        closed = true;
+        state = State.NORMAL;
+        notifyAll();
+    }
+
+    /**
+     * @return The current state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return The current write rate limit while delayed, in bytes per second
+     */
+    public long getDelayedWriteRate() {
+        return delayLimiter.getBytesPerSecond();
+    }
+
+    /**
+     * @return The number of times writes were stopped
+     */
+    public synchronized long getStopCount() {
+        return stopCount;
+    }
+
+    /**
+     * @return The number of times writes were delayed
+     */
+    public synchronized long getDelayCount() {
+        return delayCount;
+    }
+
+    /**
+     * @return The total time writers spent stopped or delayed, in nanoseconds
+     */
+    public synchronized long getStalledNanos() {
+        return stoppedNanos + delayLimiter.getThrottledNanos();
+    }
+
+    /**
+     * Reports the state, signals and stall counters to the profiler.
+     *
+     * @param profiler The profiler to report to
+     * @param component Component name to report the metrics under
+     */
+    public void reportMetrics(PerformanceProfiler profiler, String component) {
+        State current;
+        int immutable;
+        int l0;
+        long pending;
+        long stops;
+        long delays;
+        synchronized (this) {
+            current = state;
+            immutable = immutableMemTables;
+            l0 = l0Files;
+            pending = pendingCompactionBytes;
+            stops = stopCount;
+            delays = delayCount;
+        }
+        String operation = "write-controller";
+        profiler.recordCustomMetric(component, operation, "write-controller.state", current.ordinal(), "state");
+        profiler.recordCustomMetric(component, operation, "write-controller.immutable-memtables", immutable, "count");
+        profiler.recordCustomMetric(component, operation, "write-controller.l0-files", l0, "count");
+        profiler.recordCustomMetric(component, operation, "write-controller.pending-compaction-bytes", pending, "bytes");
+        profiler.recordCustomMetric(component, operation, "write-controller.delayed-write-rate",
+                current == State.DELAYED ? getDelayedWriteRate() : 0, "bytes/sec");
+        profiler.recordCustomMetric(component, operation, "write-controller.stops", stops, "count");
+        profiler.recordCustomMetric(component, operation, "write-controller.delays", delays, "count");
+        profiler.recordCustomMetric(component, operation, "write-controller.stalled-time",
+                TimeUnit.NANOSECONDS.toMillis(getStalledNanos()), "ms");
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WriteController{" +
+               "state=" + state +
+               ", immutableMemTables=" + immutableMemTables +
+               ", l0Files=" + l0Files +
+               ", pendingCompactionBytes=" + pendingCompactionBytes +
+               '}';
+    }
+}
@@ -1,10 +1,19 @@
 package com.ataiva.serengeti.storage.wal;
 
+import com.ataiva.serengeti.performance.PerformanceProfiler;
+
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -21,12 +30,21 @@ public class WALManager implements AutoCloseable {
     
     // WAL file constants
     private static final int MAGIC = 0x57414C4F; // "WALO" in ASCII (WAL Operation)
-    private static final short VERSION = 1;
+    private static final short VERSION = 3; // Version 2 added batch records, version 3 range deletes
     private static final int HEADER_SIZE = 16; // Magic(4) + Version(2) + Flags(2) + Timestamp(8)
+    private static final short FLAG_PREALLOCATED = 1;
+    
+    // Segment mode: freed segments kept for reuse, named by the start sequence
+    // number of the WAL file they were
+    private static final int MAX_RECYCLED_SEGMENTS = 4;
+    private static final String RECYCLED_PREFIX = "recycled-";
+    private static final String RECYCLED_SUFFIX = ".wal";
     
     // Operation types
     public static final byte OP_PUT = 1;
     public static final byte OP_DELETE = 2;
+    public static final byte OP_BATCH = 3;
+    public static final byte OP_DELETE_RANGE = 4;
     
     // Sync modes
     public enum SyncMode {
@@ -41,10 +59,13 @@ public class WALManager implements AutoCloseable {
     private final SyncMode syncMode;
     private final int groupCommitSize;
     private final long groupCommitIntervalMs;
+    private final boolean preallocateSegments;
     
     // Current WAL file state
     private Path currentWalPath;
     private FileChannel walChannel;
+    private MappedByteBuffer segment;
+    private final Deque<Path> recycledSegments = new ArrayDeque<>();
     private final AtomicLong sequenceNumber;
     private long currentWalSize;
     private int uncommittedWrites;
@@ -53,6 +74,26 @@ public class WALManager implements AutoCloseable {
     // Checkpoint tracking
     private final Map<String, Long> checkpoints;
     
+    // Leader/follower group writing: writers queue their records here, and one of
+    // them (the leader) writes everything queued in a single write and sync
+    private final Object queueLock = new Object();
+    private List<PendingWrite> pendingWrites = new ArrayList<>();
+    private boolean leaderActive;
+    
+    // Reused by the group leader to encode records, guarded by this
+    private final WALRecordEncoder encoder = new WALRecordEncoder();
+    
+    // Group commit: in GROUP mode a dedicated thread syncs written records and
+    // completes the futures of callers waiting for them to become durable
+    private final Thread syncThread;
+    private final Object syncLock = new Object();
+    private boolean syncRequested;
+    private long unsyncedSince = -1;
+    private boolean closing;
+    private long writtenSequence;
+    private final AtomicLong durableSequence = new AtomicLong();
+    private final Deque<PendingWrite> durabilityWaiters = new ArrayDeque<>();
+    
     /**
      * Creates a new WALManager with default settings.
      * 
@@ -75,8 +116,35 @@ public class WALManager implements AutoCloseable {
      */
     public WALManager(Path walDirectory, long maxWalSize, SyncMode syncMode, 
                       int groupCommitSize, long groupCommitIntervalMs) throws IOException {
+        this(walDirectory, maxWalSize, syncMode, groupCommitSize, groupCommitIntervalMs, false);
+    }
+    
+    /**
+     * Creates a new WALManager, optionally writing through pre-allocated segments.
+     * 
+     * In segment mode every WAL file is created at its full size (maxWalSize)
+     * and filled with zeros up front, appends are copied into a memory mapping of
+     * the file, and files freed by {@link #cleanupWAL(long)} are recycled for
+     * later segments instead of being deleted. A commit then never grows a file,
+     * so a sync does not have to write file-size or block-allocation metadata.
+     * 
+     * @param walDirectory Directory to store WAL files
+     * @param maxWalSize Maximum size of a WAL file before rotation; the segment size in segment mode
+     * @param syncMode Mode for syncing WAL to disk
+     * @param groupCommitSize Number of writes before syncing in GROUP mode
+     * @param groupCommitIntervalMs Time interval for syncing in GROUP mode
+     * @param preallocateSegments Whether to write through pre-allocated, recycled segments
+     * @throws IOException If an I/O error occurs
+     */
+    public WALManager(Path walDirectory, long maxWalSize, SyncMode syncMode,
+                      int groupCommitSize, long groupCommitIntervalMs,
+                      boolean preallocateSegments) throws IOException {
+        if (preallocateSegments && (maxWalSize <= HEADER_SIZE || maxWalSize > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("Segment size must be between " + HEADER_SIZE + " bytes and 2GB");
+        }
         this.walDirectory = walDirectory;
         this.maxWalSize = maxWalSize;
+        this.preallocateSegments = preallocateSegments;
         this.syncMode = syncMode;
         this.groupCommitSize = groupCommitSize;
         this.groupCommitIntervalMs = groupCommitIntervalMs;
@@ -89,8 +157,30 @@ public class WALManager implements AutoCloseable {
         // Create WAL directory if it doesn't exist
         Files.createDirectories(walDirectory);
         
-        // Initialize WAL file
-        createNewWalFile();
+        // Segments recycled by an earlier run can be reused; without segment mode
+        // they are no longer needed
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(walDirectory, RECYCLED_PREFIX + "*" + RECYCLED_SUFFIX)) {
+            for (Path path : stream) {
+                if (preallocateSegments && recycledSegments.size() < MAX_RECYCLED_SEGMENTS
+                        && Files.size(path) == maxWalSize) {
+                    recycledSegments.add(path);
+                } else {
+                    Files.delete(path);
+                }
+            }
+        }
+        
+        // The first WAL file is created on the first write, once the starting
+        // sequence number is known (after recovery)
+        
+        if (syncMode == SyncMode.GROUP) {
+            this.syncThread = new Thread(this::syncLoop);
+            this.syncThread.setName("wal-sync-thread");
+            this.syncThread.setDaemon(true);
+            this.syncThread.start();
+        } else {
+            this.syncThread = null;
+        }
     }
     
     /**
@@ -101,53 +191,11 @@ public class WALManager implements AutoCloseable {
      * @return The sequence number assigned to this operation
      * @throws IOException If an I/O error occurs
      */
-    public synchronized long logPut(byte[] key, byte[] value) throws IOException {
+    public long logPut(byte[] key, byte[] value) throws IOException {
         if (key == null) {
             throw new IllegalArgumentException("Key cannot be null");
         }
-        
-        // Check if we need to rotate the WAL file
-        checkRotation();
-        
-        // Get next sequence number
-        long seqNum = sequenceNumber.incrementAndGet();
-        
-        // Calculate record size
-        int keyLength = key.length;
-        int valueLength = value != null ? value.length : -1;
-        int recordSize = 1 + 8 + 4 + 4 + keyLength + (valueLength > 0 ? valueLength : 0) + 4;
-        // op_type(1) + seq_num(8) + key_len(4) + val_len(4) + key + value + crc(4)
-        
-        // Prepare record buffer
-        ByteBuffer buffer = ByteBuffer.allocate(recordSize);
-        buffer.put(OP_PUT);
-        buffer.putLong(seqNum);
-        buffer.putInt(keyLength);
-        buffer.putInt(valueLength);
-        buffer.put(key);
-        if (valueLength > 0) {
-            buffer.put(value);
-        }
-        
-        // Calculate and add CRC
-        CRC32 crc = new CRC32();
-        buffer.flip();
-        byte[] dataForCrc = new byte[buffer.limit() - 4]; // Exclude space for CRC
-        buffer.get(dataForCrc);
-        crc.update(dataForCrc);
-        buffer.position(buffer.limit() - 4);
-        buffer.putInt((int) crc.getValue());
-        
-        // Write to WAL
-        buffer.flip();
-        walChannel.write(buffer);
-        currentWalSize += recordSize;
-        uncommittedWrites++;
-        
-        // Handle syncing based on mode
-        handleSync();
-        
-        return seqNum;
+        return append(new PendingWrite(OP_PUT, key, value, null));
     }
     
     /**
@@ -157,49 +205,315 @@ public class WALManager implements AutoCloseable {
      * @return The sequence number assigned to this operation
      * @throws IOException If an I/O error occurs
      */
-    public synchronized long logDelete(byte[] key) throws IOException {
+    public long logDelete(byte[] key) throws IOException {
         if (key == null) {
             throw new IllegalArgumentException("Key cannot be null");
         }
+        return append(new PendingWrite(OP_DELETE, key, null, null));
+    }
+    
+    /**
+     * Logs a DELETE_RANGE operation to the WAL.
+     * 
+     * @param startKey The first key to delete (inclusive)
+     * @param endKey The key to stop before (exclusive), or null to delete to the last key
+     * @return The sequence number assigned to this operation
+     * @throws IOException If an I/O error occurs
+     */
+    public long logDeleteRange(byte[] startKey, byte[] endKey) throws IOException {
+        if (startKey == null) {
+            throw new IllegalArgumentException("Start key cannot be null");
+        }
+        return append(new PendingWrite(OP_DELETE_RANGE, startKey, endKey, null));
+    }
+    
+    /**
+     * Logs a batch of operations as a single WAL record. The operations get
+     * consecutive sequence numbers, and are recovered either all together or not
+     * at all.
+     * 
+     * @param keys The keys, in the order the operations are applied
+     * @param values The values, with null marking a delete
+     * @return The sequence number assigned to the first operation
+     * @throws IOException If an I/O error occurs
+     */
+    public long logBatch(List<byte[]> keys, List<byte[]> values) throws IOException {
+        checkBatch(keys, values);
+        return append(new PendingWrite(keys, values, null));
+    }
+    
+    /**
+     * Logs a PUT operation and returns once it has been written, without waiting
+     * for it to be synced.
+     * 
+     * @param key The key as a byte array
+     * @param value The value as a byte array
+     * @return A future that completes with the sequence number once the record is durable
+     * @see #logBatchAsync(List, List)
+     */
+    public CompletableFuture<Long> logPutAsync(byte[] key, byte[] value) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        CompletableFuture<Long> durable = new CompletableFuture<>();
+        return appendAsync(new PendingWrite(OP_PUT, key, value, durable));
+    }
+    
+    /**
+     * Logs a DELETE operation and returns once it has been written, without
+     * waiting for it to be synced.
+     * 
+     * @param key The key as a byte array
+     * @return A future that completes with the sequence number once the record is durable
+     * @see #logBatchAsync(List, List)
+     */
+    public CompletableFuture<Long> logDeleteAsync(byte[] key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        CompletableFuture<Long> durable = new CompletableFuture<>();
+        return appendAsync(new PendingWrite(OP_DELETE, key, null, durable));
+    }
+    
+    /**
+     * Logs a batch of operations as a single WAL record and returns once it has
+     * been written, without waiting for it to be synced.
+     * 
+     * In GROUP mode the returned future completes when the sync thread has synced
+     * the record; every record written while a sync is in progress is covered by
+     * the next one, so concurrent writers share each fsync. In SYNC mode the
+     * record is synced before this method returns. In ASYNC mode the future
+     * completes as soon as the record is written, since nothing is synced
+     * explicitly. The future completes exceptionally if the record cannot be
+     * written or synced.
+     * 
+     * @param keys The keys, in the order the operations are applied
+     * @param values The values, with null marking a delete
+     * @return A future that completes with the first sequence number once the record is durable
+     */
+    public CompletableFuture<Long> logBatchAsync(List<byte[]> keys, List<byte[]> values) {
+        checkBatch(keys, values);
+        CompletableFuture<Long> durable = new CompletableFuture<>();
+        return appendAsync(new PendingWrite(keys, values, durable));
+    }
+    
+    private static void checkBatch(List<byte[]> keys, List<byte[]> values) {
+        if (keys.isEmpty() || keys.size() != values.size()) {
+            throw new IllegalArgumentException("Batch must have one value or null for each of at least one key");
+        }
+        for (byte[] key : keys) {
+            if (key == null) {
+                throw new IllegalArgumentException("Key cannot be null");
+            }
+        }
+    }
+    
+    private CompletableFuture<Long> appendAsync(PendingWrite write) {
+        try {
+            append(write);
+        } catch (IOException e) {
+            write.durable.completeExceptionally(e);
+        }
+        return write.durable;
+    }
+    
+    /**
+     * Appends a record holding one or more operations to the WAL. Many threads may
+     * call this concurrently: each queues its record, and the first thread to find
+     * no write in progress becomes the leader and writes all queued records with
+     * one write call. The other threads wait until the leader has written their
+     * records.
+     * 
+     * Once queued, a record is written whatever happens to its caller, so a
+     * caller interrupted while it waits keeps waiting for the outcome rather than
+     * reporting a failure for a record that is written after all. It returns with
+     * its interrupt status set.
+     * 
+     * @param write The record to append
+     * @return The first sequence number assigned to the record
+     * @throws IOException If the record could not be written
+     */
+    private long append(PendingWrite write) throws IOException {
+        List<PendingWrite> group;
+        boolean interrupted = false;
+        
+        synchronized (queueLock) {
+            // Sequence numbers are assigned in queue order, so the file stays sorted
+            write.lastSequenceNumber = sequenceNumber.addAndGet(write.count);
+            write.sequenceNumber = write.lastSequenceNumber - write.count + 1;
+            pendingWrites.add(write);
+            
+            while (!write.done && leaderActive) {
+                try {
+                    queueLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            
+            if (write.done) {
+                // Written by another leader
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (write.error != null) {
+                    throw new IOException("WAL write failed", write.error);
+                }
+                return write.sequenceNumber;
+            }
+            
+            // Become the leader for everything queued so far
+            leaderActive = true;
+            group = pendingWrites;
+            pendingWrites = new ArrayList<>();
+        }
+        
+        // The interrupt status is only restored after the write, since an
+        // interrupt closes the file channel of a write in progress
+        IOException error = null;
+        try {
+            writeGroup(group);
+        } catch (IOException e) {
+            error = e;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        synchronized (queueLock) {
+            for (PendingWrite pending : group) {
+                pending.error = error;
+                pending.done = true;
+            }
+            leaderActive = false;
+            queueLock.notifyAll();
+        }
         
+        // In GROUP mode the sync thread completes the futures once it has synced
+        if (error != null || syncMode != SyncMode.GROUP) {
+            for (PendingWrite pending : group) {
+                if (pending.durable == null) {
+                    continue;
+                }
+                if (error != null) {
+                    pending.durable.completeExceptionally(error);
+                } else {
+                    pending.durable.complete(pending.sequenceNumber);
+                }
+            }
+        }
+        
+        if (error != null) {
+            throw error;
+        }
+        return write.sequenceNumber;
+    }
+    
+    /**
+     * Passes the operations of a batch record to the consumer.
+     * 
+     * @return The number of operations, or -1 if the batch is malformed
+     */
+    private static int replayBatch(long firstSeqNum, byte[] batch, WALRecoveryConsumer consumer) {
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        int count = buffer.getInt();
+        
+        // Decode everything before applying anything, so a batch is all or nothing
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 9) {
+                return -1;
+            }
+            byte opType = buffer.get();
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            if (keyLength < 0 || valueLength < -1 || (opType != OP_PUT && opType != OP_DELETE)
+                    || (long) keyLength + Math.max(valueLength, 0) > buffer.remaining()) {
+                return -1;
+            }
+            byte[] key = new byte[keyLength];
+            buffer.get(key);
+            byte[] value = null;
+            if (opType == OP_PUT) {
+                value = new byte[Math.max(valueLength, 0)];
+                buffer.get(value);
+            }
+            keys.add(key);
+            values.add(value);
+        }
+        
+        for (int i = 0; i < count; i++) {
+            if (values.get(i) != null) {
+                consumer.onPut(firstSeqNum + i, keys.get(i), values.get(i));
+            } else {
+                consumer.onDelete(firstSeqNum + i, keys.get(i));
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Writes a group of records, then syncs according to the sync mode. The
+     * records are encoded into the reusable encode buffer, which is written to
+     * the mapped segment or the file channel in one piece, or again whenever the
+     * buffer or the segment is full.
+     * 
+     * @param group The records to write, in sequence order
+     * @throws IOException If an I/O error occurs
+     */
+    private synchronized void writeGroup(List<PendingWrite> group) throws IOException {
         // Check if we need to rotate the WAL file
-        checkRotation();
-        
-        // Get next sequence number
-        long seqNum = sequenceNumber.incrementAndGet();
-        
-        // Calculate record size
-        int keyLength = key.length;
-        int recordSize = 1 + 8 + 4 + 4 + keyLength + 4;
-        // op_type(1) + seq_num(8) + key_len(4) + val_len(4) + key + crc(4)
-        
-        // Prepare record buffer
-        ByteBuffer buffer = ByteBuffer.allocate(recordSize);
-        buffer.put(OP_DELETE);
-        buffer.putLong(seqNum);
-        buffer.putInt(keyLength);
-        buffer.putInt(-1); // Value length for delete is -1
-        buffer.put(key);
-        
-        // Calculate and add CRC
-        CRC32 crc = new CRC32();
-        buffer.flip();
-        byte[] dataForCrc = new byte[buffer.limit() - 4]; // Exclude space for CRC
-        buffer.get(dataForCrc);
-        crc.update(dataForCrc);
-        buffer.position(buffer.limit() - 4);
-        buffer.putInt((int) crc.getValue());
-        
-        // Write to WAL
-        buffer.flip();
-        walChannel.write(buffer);
-        currentWalSize += recordSize;
-        uncommittedWrites++;
+        checkRotation(group.get(0).sequenceNumber);
         
-        // Handle syncing based on mode
-        handleSync();
+        // Encode the group into the reusable buffer, writing it out whenever the
+        // next record does not fit
+        long groupSize = 0;
+        try {
+            for (PendingWrite write : group) {
+                int recordSize = write.recordSize();
+                if (segment != null && encoder.size() + recordSize > segment.remaining()) {
+                    // The segment is full: continue the group in a new one
+                    groupSize += writeEncoded();
+                    rotate(write.sequenceNumber, recordSize);
+                }
+                if (encoder.size() > 0 && encoder.remaining() < recordSize) {
+                    groupSize += writeEncoded();
+                }
+                write.encodeTo(encoder);
+            }
+            groupSize += writeEncoded();
+        } finally {
+            encoder.reset();
+        }
+        currentWalSize += groupSize;
+        uncommittedWrites += group.size();
+        writtenSequence = group.get(group.size() - 1).lastSequenceNumber;
         
-        return seqNum;
+        // Handle syncing based on mode
+        handleSync(group);
+    }
+    
+    /**
+     * Writes the records in the encode buffer to the current WAL file.
+     * 
+     * @return The number of bytes written
+     */
+    private int writeEncoded() throws IOException {
+        ByteBuffer records = encoder.flip();
+        int size = records.remaining();
+        if (segment != null) {
+            segment.put(records);
+        } else {
+            while (records.hasRemaining()) {
+                walChannel.write(records);
+            }
+        }
+        encoder.reset();
+        return size;
     }
     
     /**
@@ -207,14 +521,67 @@ public class WALManager implements AutoCloseable {
      * 
      * @throws IOException If an I/O error occurs
      */
-    public synchronized void sync() throws IOException {
+    public void sync() throws IOException {
+        forceChannel();
+        completeDurabilityWaiters();
+    }
+    
+    /**
+     * Syncs the current WAL file while holding the lock, so no records are
+     * written meanwhile.
+     */
+    private synchronized void forceChannel() throws IOException {
         if (walChannel != null && walChannel.isOpen()) {
-            walChannel.force(true);
+            if (segment != null) {
+                segment.force();
+            } else {
+                walChannel.force(true);
+            }
             uncommittedWrites = 0;
             lastSyncTime = System.currentTimeMillis();
+            durableSequence.accumulateAndGet(writtenSequence, Math::max);
         }
     }
     
+    /**
+     * Gets the sequence number up to which all records have been synced.
+     * 
+     * @return The highest durable sequence number
+     */
+    public long getDurableSequenceNumber() {
+        return durableSequence.get();
+    }
+    
+    /**
+     * Gets the sequence number of the most recently logged operation.
+     * 
+     * @return The last assigned sequence number
+     */
+    public long getLastSequenceNumber() {
+        return sequenceNumber.get();
+    }
+    
+    /**
+     * Ensures that subsequently assigned sequence numbers are greater than the given one.
+     * This is used at startup so that new operations sort after data that has already
+     * been flushed, even if the WAL files covering it have been cleaned up.
+     * 
+     * @param minSequence The sequence number to move past
+     */
+    public void ensureSequenceAtLeast(long minSequence) {
+        sequenceNumber.accumulateAndGet(minSequence, Math::max);
+    }
+    
+    /**
+     * Reserves a sequence number without logging an operation under it. Operations
+     * logged afterwards get greater sequence numbers.
+     * 
+     * @return The reserved sequence number
+     */
+    public long reserveSequence() {
+        return sequenceNumber.incrementAndGet();
+    }
+    
     /**
      * Creates a checkpoint for the current state of the WAL.
      * This is used to track which WAL files can be safely deleted.
@@ -261,34 +628,75 @@ public class WALManager implements AutoCloseable {
         // We can only delete WAL files up to the minimum of upToSequence and minCheckpoint
         long safeSequence = Math.min(upToSequence, minCheckpoint);
         
-        // List all WAL files
+        // List all WAL files in sequence order
+        List<Path> walFiles = listWalFiles();
+        
+        // Delete WAL files that are no longer needed
+        for (int i = 0; i < walFiles.size(); i++) {
+            Path walFile = walFiles.get(i);
+            if (walFile.equals(currentWalPath)) {
+                continue;
+            }
+            
+            // A file ends just before the first sequence number of the next file
+            long endSeq = i + 1 < walFiles.size()
+                    ? startSequenceOf(walFiles.get(i + 1)) - 1
+                    : sequenceNumber.get();
+            if (endSeq <= safeSequence) {
+                if (preallocateSegments && recycledSegments.size() < MAX_RECYCLED_SEGMENTS
+                        && Files.size(walFile) == maxWalSize) {
+                    Path recycled = walDirectory.resolve(RECYCLED_PREFIX + startSequenceOf(walFile) + RECYCLED_SUFFIX);
+                    Files.move(walFile, recycled, StandardCopyOption.ATOMIC_MOVE);
+                    recycledSegments.add(recycled);
+                    LOGGER.info("Recycled WAL file: " + walFile.getFileName());
+                } else {
+                    Files.delete(walFile);
+                    LOGGER.info("Deleted WAL file: " + walFile.getFileName());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Lists the WAL files in the WAL directory, ordered by the sequence number of
+     * their first record.
+     * 
+     * @return The WAL files
+     * @throws IOException If an I/O error occurs
+     */
+    private List<Path> listWalFiles() throws IOException {
         List<Path> walFiles = new ArrayList<>();
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(walDirectory, "wal-*.log")) {
             for (Path path : stream) {
-                walFiles.add(path);
-            }
-        }
-        
-        // Sort by creation time (which is encoded in the filename)
-        walFiles.sort(Comparator.comparing(p -> p.getFileName().toString()));
-        
-        // Delete WAL files that are no longer needed
-        for (Path walFile : walFiles) {
-            // Extract sequence range from filename
-            String filename = walFile.getFileName().toString();
-            String[] parts = filename.replace("wal-", "").replace(".log", "").split("-");
-            if (parts.length == 2) {
-                try {
-                    long endSeq = Long.parseLong(parts[1]);
-                    if (endSeq <= safeSequence && !walFile.equals(currentWalPath)) {
-                        Files.delete(walFile);
-                        LOGGER.info("Deleted WAL file: " + filename);
-                    }
-                } catch (NumberFormatException e) {
-                    LOGGER.warning("Invalid WAL filename format: " + filename);
+                if (startSequenceOf(path) >= 0) {
+                    walFiles.add(path);
+                } else {
+                    LOGGER.warning("Invalid WAL filename format: " + path.getFileName());
                 }
             }
         }
+        walFiles.sort(Comparator.comparingLong(WALManager::startSequenceOf)
+                .thenComparing(p -> p.getFileName().toString()));
+        return walFiles;
+    }
+    
+    /**
+     * Extracts the starting sequence number from a WAL file name
+     * (wal-&lt;timestamp&gt;-&lt;startSeq&gt;.log).
+     * 
+     * @param walFile The WAL file
+     * @return The starting sequence number, or -1 if the name is malformed
+     */
+    private static long startSequenceOf(Path walFile) {
+        String[] parts = walFile.getFileName().toString().replace("wal-", "").replace(".log", "").split("-");
+        if (parts.length != 2) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
     
     /**
@@ -298,191 +706,428 @@ public class WALManager implements AutoCloseable {
      * @throws IOException If an I/O error occurs
      */
     public void recover(WALRecoveryConsumer consumer) throws IOException {
+        recover(consumer, -1, 1);
+    }
+    
+    /**
+     * Replays WAL files, reading several of them at once.
+     * 
+     * Each file is read by its own task, which validates the checksums and decodes
+     * the records into memory. The startup thread hands the decoded operations to
+     * the consumer file by file in sequence-number order, so the consumer is only
+     * called from one thread and sees the same operations in the same order as a
+     * sequential replay. At most parallelism files, counting the one being applied,
+     * are read or held in memory at once, which bounds the memory used.
+     * 
+     * Operations up to afterSequence are skipped: files that end at or before it are
+     * not opened, and records that end at or before it are checksummed in place but
+     * not decoded. Progress and timing are reported to the {@link PerformanceProfiler}
+     * as the {@code wal.recovery-progress}, {@code wal.recovery-operations} and
+     * {@code wal.recovery-time} metrics of the {@code wal/recovery} operation.
+     * 
+     * @param consumer A function that processes each recovered operation
+     * @param afterSequence Highest sequence number that is already durable elsewhere, or -1
+     * @param parallelism Number of files read at once; 1 replays on the calling thread
+     * @throws IOException If an I/O error occurs
+     */
+    public void recover(WALRecoveryConsumer consumer, long afterSequence, int parallelism) throws IOException {
         LOGGER.info("Starting WAL recovery");
+        long startTime = System.nanoTime();
+        PerformanceProfiler profiler = PerformanceProfiler.getInstance();
         
-        // List all WAL files
-        List<Path> walFiles = new ArrayList<>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(walDirectory, "wal-*.log")) {
-            for (Path path : stream) {
-                walFiles.add(path);
+        // List all WAL files in sequence order
+        List<Path> walFiles = listWalFiles();
+        
+        // Track the highest sequence number seen
+        long highestSeqNum = 0;
+        long totalRecovered = 0;
+        
+        // Files that end before afterSequence need not be read at all
+        List<Path> toRead = new ArrayList<>();
+        long totalBytes = 0;
+        for (int i = 0; i < walFiles.size(); i++) {
+            Path walFile = walFiles.get(i);
+            if (i + 1 < walFiles.size()) {
+                long endSeq = startSequenceOf(walFiles.get(i + 1)) - 1;
+                if (endSeq <= afterSequence) {
+                    LOGGER.fine("Skipping flushed WAL file: " + walFile.getFileName());
+                    highestSeqNum = Math.max(highestSeqNum, endSeq);
+                    continue;
+                }
             }
+            toRead.add(walFile);
+            totalBytes += Files.size(walFile);
         }
         
-        // Sort by creation time (which is encoded in the filename)
-        walFiles.sort(Comparator.comparing(p -> p.getFileName().toString()));
+        long bytesRead = 0;
+        if (parallelism <= 1 || toRead.size() <= 1) {
+            for (Path walFile : toRead) {
+                FileReplay replay = replayFile(walFile, afterSequence, consumer);
+                highestSeqNum = Math.max(highestSeqNum, replay.highestSequence);
+                totalRecovered += replay.operations;
+                bytesRead += replay.size;
+                reportProgress(profiler, bytesRead, totalBytes);
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, toRead.size()), runnable -> {
+                Thread thread = new Thread(runnable, "wal-recovery-thread");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                Deque<Future<FileReplay>> pending = new ArrayDeque<>();
+                int submitted = 0;
+                for (int i = 0; i < toRead.size(); i++) {
+                    while (submitted < toRead.size() && submitted < i + parallelism) {
+                        final Path walFile = toRead.get(submitted++);
+                        pending.add(executor.submit(() -> {
+                            BufferedOperations operations = new BufferedOperations();
+                            FileReplay replay = replayFile(walFile, afterSequence, operations);
+                            replay.buffered = operations;
+                            return replay;
+                        }));
+                    }
+                    
+                    FileReplay replay = await(pending.poll());
+                    replay.buffered.replayTo(consumer);
+                    highestSeqNum = Math.max(highestSeqNum, replay.highestSequence);
+                    totalRecovered += replay.operations;
+                    bytesRead += replay.size;
+                    reportProgress(profiler, bytesRead, totalBytes);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
         
-        // Track the highest sequence number seen
-        long highestSeqNum = 0;
-        int totalRecovered = 0;
+        // Update sequence number to be higher than any recovered entry
+        ensureSequenceAtLeast(highestSeqNum);
+        
+        double elapsedMs = (System.nanoTime() - startTime) / 1_000_000.0;
+        profiler.recordCustomMetric("wal", "recovery", "wal.recovery-operations", totalRecovered, "operations");
+        profiler.recordLatency("wal", "recovery", "wal.recovery-time", elapsedMs);
+        LOGGER.info("WAL recovery completed. Recovered " + totalRecovered + " operations from " +
+                   toRead.size() + " files in " + Math.round(elapsedMs) + " ms. " +
+                   "Highest sequence number: " + highestSeqNum);
+    }
+    
+    private static void reportProgress(PerformanceProfiler profiler, long bytesRead, long totalBytes) {
+        double percent = totalBytes > 0 ? 100.0 * bytesRead / totalBytes : 100.0;
+        profiler.recordCustomMetric("wal", "recovery", "wal.recovery-progress", percent, "%");
+    }
+    
+    private static FileReplay await(Future<FileReplay> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during WAL recovery");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("WAL recovery failed", cause);
+        }
+    }
+    
+    /**
+     * Reads one WAL file, passing its operations to the consumer. Reading stops at
+     * the first record that is truncated, fails its checksum or is out of sequence;
+     * nothing after it can be trusted.
+     * 
+     * @param walFile The WAL file
+     * @param afterSequence Operations up to this sequence number are skipped
+     * @param consumer Receives the operations
+     * @return What was read
+     * @throws IOException If an I/O error occurs
+     */
+    private static FileReplay replayFile(Path walFile, long afterSequence, WALRecoveryConsumer consumer)
+            throws IOException {
+        LOGGER.info("Recovering from WAL file: " + walFile.getFileName());
+        FileReplay replay = new FileReplay();
         
-        // Process each WAL file
-        for (Path walFile : walFiles) {
-            LOGGER.info("Recovering from WAL file: " + walFile.getFileName());
+        try (FileChannel channel = FileChannel.open(walFile, StandardOpenOption.READ)) {
+            replay.size = channel.size();
             
-            try (FileChannel channel = FileChannel.open(walFile, StandardOpenOption.READ)) {
-                // Read and verify header
-                ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
-                channel.read(headerBuffer, 0);
-                headerBuffer.flip();
-                
-                int magic = headerBuffer.getInt();
-                if (magic != MAGIC) {
-                    LOGGER.warning("Invalid WAL file format in " + walFile.getFileName());
-                    continue;
+            // Read and verify header
+            ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(headerBuffer, 0);
+            headerBuffer.flip();
+            
+            if (headerBuffer.remaining() < HEADER_SIZE || headerBuffer.getInt() != MAGIC) {
+                LOGGER.warning("Invalid WAL file format in " + walFile.getFileName());
+                return replay;
+            }
+            
+            short version = headerBuffer.getShort();
+            if (version > VERSION) {
+                LOGGER.warning("Unsupported WAL version in " + walFile.getFileName());
+                return replay;
+            }
+            
+            // Skip flags and timestamp for now
+            headerBuffer.getShort(); // flags
+            headerBuffer.getLong(); // timestamp
+            
+            // Read records
+            long position = HEADER_SIZE;
+            long fileSize = replay.size;
+            long fileStartSeq = startSequenceOf(walFile);
+            long lastSeqNum = -1;
+            ByteBuffer recordHeader = ByteBuffer.allocate(17);
+            ByteBuffer payload = ByteBuffer.allocate(4096);
+            CRC32 crc = new CRC32();
+            while (position < fileSize) {
+                // Read record header: op_type(1) + seq_num(8) + key_len(4) + val_len(4)
+                if (position + 17 > fileSize) {
+                    LOGGER.warning("Truncated WAL record at position " + position + " in " + walFile.getFileName());
+                    break;
                 }
+                recordHeader.clear();
+                channel.read(recordHeader, position);
+                recordHeader.flip();
                 
-                short version = headerBuffer.getShort();
-                if (version > VERSION) {
-                    LOGGER.warning("Unsupported WAL version in " + walFile.getFileName());
-                    continue;
+                byte opType = recordHeader.get();
+                long seqNum = recordHeader.getLong();
+                int keyLength = recordHeader.getInt();
+                int valueLength = recordHeader.getInt();
+                
+                // Sequence numbers rise through a file from the one in its name. Anything
+                // else is the zeroed tail of a pre-allocated segment, or records left
+                // from an earlier use of a recycled one.
+                if (seqNum < fileStartSeq || seqNum <= lastSeqNum) {
+                    break;
                 }
                 
-                // Skip flags and timestamp for now
-                headerBuffer.getShort(); // flags
-                headerBuffer.getLong(); // timestamp
+                // A torn or corrupted tail can contain arbitrary lengths
+                int payloadLength = keyLength + (valueLength > 0 ? valueLength : 0);
+                if (keyLength < 0 || valueLength < -1 || payloadLength < 0
+                        || position + 17 + payloadLength + 4 > fileSize) {
+                    LOGGER.warning("Truncated WAL record at position " + position + " in " + walFile.getFileName());
+                    break;
+                }
                 
-                // Read records
-                long position = HEADER_SIZE;
-                while (position < channel.size()) {
-                    // Read record type and sequence number
-                    ByteBuffer recordHeader = ByteBuffer.allocate(13); // op_type(1) + seq_num(8) + key_len(4)
-                    channel.read(recordHeader, position);
-                    recordHeader.flip();
-                    
-                    byte opType = recordHeader.get();
-                    long seqNum = recordHeader.getLong();
-                    int keyLength = recordHeader.getInt();
-                    
-                    // Update highest sequence number
-                    highestSeqNum = Math.max(highestSeqNum, seqNum);
-                    
-                    // Read value length
-                    ByteBuffer valueLengthBuffer = ByteBuffer.allocate(4);
-                    channel.read(valueLengthBuffer, position + 13);
-                    valueLengthBuffer.flip();
-                    int valueLength = valueLengthBuffer.getInt();
-                    
-                    // Read key
-                    ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
-                    channel.read(keyBuffer, position + 17);
-                    keyBuffer.flip();
-                    byte[] key = new byte[keyLength];
-                    keyBuffer.get(key);
-                    
-                    // Read value if present
-                    byte[] value = null;
-                    if (valueLength > 0) {
-                        ByteBuffer valueBuffer = ByteBuffer.allocate(valueLength);
-                        channel.read(valueBuffer, position + 17 + keyLength);
-                        valueBuffer.flip();
-                        value = new byte[valueLength];
-                        valueBuffer.get(value);
-                    }
-                    
-                    // Read CRC
-                    ByteBuffer crcBuffer = ByteBuffer.allocate(4);
-                    channel.read(crcBuffer, position + 17 + keyLength + (valueLength > 0 ? valueLength : 0));
-                    crcBuffer.flip();
-                    int storedCrc = crcBuffer.getInt();
-                    
-                    // Verify CRC
-                    CRC32 crc = new CRC32();
-                    ByteBuffer dataForCrc = ByteBuffer.allocate(13 + 4 + keyLength + (valueLength > 0 ? valueLength : 0));
-                    dataForCrc.put(opType);
-                    dataForCrc.putLong(seqNum);
-                    dataForCrc.putInt(keyLength);
-                    dataForCrc.putInt(valueLength);
-                    dataForCrc.put(key);
-                    if (valueLength > 0) {
-                        dataForCrc.put(value);
-                    }
-                    dataForCrc.flip();
-                    byte[] dataBytes = new byte[dataForCrc.limit()];
-                    dataForCrc.get(dataBytes);
-                    crc.update(dataBytes);
-                    
-                    if (storedCrc != (int) crc.getValue()) {
-                        LOGGER.warning("CRC mismatch in WAL record at position " + position);
-                        // Skip to next record - in a production system, we might want to handle this more gracefully
-                        position += 17 + keyLength + (valueLength > 0 ? valueLength : 0) + 4;
-                        continue;
+                // Read key, value and CRC into the reused payload buffer
+                if (payload.capacity() < payloadLength + 4) {
+                    payload = ByteBuffer.allocate(payloadLength + 4);
+                }
+                payload.clear().limit(payloadLength + 4);
+                while (payload.hasRemaining()) {
+                    if (channel.read(payload, position + 17 + payload.position()) < 0) {
+                        break;
                     }
-                    
-                    // Process the record
+                }
+                
+                // Verify CRC
+                crc.reset();
+                crc.update(recordHeader.array(), 0, 17);
+                crc.update(payload.array(), 0, payloadLength);
+                if (payload.getInt(payloadLength) != (int) crc.getValue()) {
+                    // Nothing after a corrupted record can be trusted
+                    LOGGER.warning("CRC mismatch in WAL record at position " + position + " in " + walFile.getFileName());
+                    break;
+                }
+                
+                // A batch holds its operation count in the first four bytes of its key
+                int operations = 1;
+                if (opType == OP_BATCH) {
+                    operations = keyLength >= 4 ? payload.getInt(0) : -1;
+                }
+                if (operations < 0) {
+                    LOGGER.warning("Malformed batch in WAL record at position " + position + " in " + walFile.getFileName());
+                    break;
+                }
+                long recordLastSeq = seqNum + Math.max(operations, 1) - 1;
+                
+                // Process the record unless it is already durable elsewhere
+                if (recordLastSeq > afterSequence) {
+                    byte[] key = Arrays.copyOfRange(payload.array(), 0, keyLength);
                     switch (opType) {
                         case OP_PUT:
+                            byte[] value = valueLength > 0
+                                    ? Arrays.copyOfRange(payload.array(), keyLength, payloadLength)
+                                    : new byte[0];
                             consumer.onPut(seqNum, key, value);
                             break;
                         case OP_DELETE:
                             consumer.onDelete(seqNum, key);
                             break;
+                        case OP_BATCH:
+                            operations = replayBatch(seqNum, key, consumer);
+                            break;
+                        case OP_DELETE_RANGE:
+                            consumer.onDeleteRange(seqNum, key, valueLength >= 0
+                                    ? Arrays.copyOfRange(payload.array(), keyLength, payloadLength)
+                                    : null);
+                            break;
                         default:
                             LOGGER.warning("Unknown operation type in WAL: " + opType);
                     }
-                    
-                    totalRecovered++;
-                    
-                    // Move to next record
-                    position += 17 + keyLength + (valueLength > 0 ? valueLength : 0) + 4;
+                    if (operations < 0) {
+                        LOGGER.warning("Malformed batch in WAL record at position " + position + " in " + walFile.getFileName());
+                        break;
+                    }
+                    replay.operations += operations;
                 }
+                
+                // Update highest sequence number
+                lastSeqNum = recordLastSeq;
+                replay.highestSequence = Math.max(replay.highestSequence, lastSeqNum);
+                
+                // Move to next record
+                position += 17 + payloadLength + 4;
             }
         }
+        return replay;
+    }
+    
+    /**
+     * The outcome of reading one WAL file.
+     */
+    private static final class FileReplay {
+        long size;
+        long highestSequence;
+        int operations;
         
-        // Update sequence number to be higher than any recovered entry
-        if (highestSeqNum > 0) {
-            sequenceNumber.set(highestSeqNum);
+        // The decoded operations when the file was read ahead of being applied
+        BufferedOperations buffered;
+    }
+    
+    /**
+     * Holds decoded operations until they can be applied in order.
+     */
+    private static final class BufferedOperations implements WALRecoveryConsumer {
+        private long[] sequenceNumbers = new long[64];
+        private final List<byte[]> keys = new ArrayList<>();
+        
+        // Null marks a delete, unless this is a range delete
+        private final List<byte[]> values = new ArrayList<>();
+        
+        // Range deletes, whose end key is held in values
+        private final BitSet rangeDeletes = new BitSet();
+        
+        @Override
+        public void onPut(long sequenceNumber, byte[] key, byte[] value) {
+            add(sequenceNumber, key, value);
         }
         
-        LOGGER.info("WAL recovery completed. Recovered " + totalRecovered + " operations. " +
-                   "Highest sequence number: " + highestSeqNum);
+        @Override
+        public void onDelete(long sequenceNumber, byte[] key) {
+            add(sequenceNumber, key, null);
+        }
+        
+        @Override
+        public void onDeleteRange(long sequenceNumber, byte[] startKey, byte[] endKey) {
+            rangeDeletes.set(keys.size());
+            add(sequenceNumber, startKey, endKey);
+        }
+        
+        private void add(long sequenceNumber, byte[] key, byte[] value) {
+            if (keys.size() == sequenceNumbers.length) {
+                sequenceNumbers = Arrays.copyOf(sequenceNumbers, sequenceNumbers.length * 2);
+            }
+            sequenceNumbers[keys.size()] = sequenceNumber;
+            keys.add(key);
+            values.add(value);
+        }
+        
+        void replayTo(WALRecoveryConsumer consumer) {
+            for (int i = 0; i < keys.size(); i++) {
+                if (rangeDeletes.get(i)) {
+                    consumer.onDeleteRange(sequenceNumbers[i], keys.get(i), values.get(i));
+                } else if (values.get(i) != null) {
+                    consumer.onPut(sequenceNumbers[i], keys.get(i), values.get(i));
+                } else {
+                    consumer.onDelete(sequenceNumbers[i], keys.get(i));
+                }
+            }
+        }
     }
     
     /**
      * Checks if WAL rotation is needed and performs it if necessary.
+     * Also opens the first WAL file if none is open yet.
      * 
+     * @param nextSequence Sequence number of the next record to be written
      * @throws IOException If an I/O error occurs
      */
-    private synchronized void checkRotation() throws IOException {
-        if (currentWalSize >= maxWalSize) {
-            // Sync current WAL before rotation
-            sync();
-            
-            // Close current WAL file
-            if (walChannel != null && walChannel.isOpen()) {
-                walChannel.close();
-            }
-            
-            // Create new WAL file
-            createNewWalFile();
+    private synchronized void checkRotation(long nextSequence) throws IOException {
+        if (walChannel == null) {
+            createNewWalFile(nextSequence, 0);
+        } else if (segment == null && currentWalSize >= maxWalSize) {
+            rotate(nextSequence, 0);
+        }
+    }
+    
+    /**
+     * Syncs and closes the current WAL file and starts a new one.
+     * 
+     * @param nextSequence Sequence number of the first record in the new file
+     * @param recordSize Size of the first record, which a new segment must fit
+     * @throws IOException If an I/O error occurs
+     */
+    private synchronized void rotate(long nextSequence, int recordSize) throws IOException {
+        // Sync current WAL before rotation
+        forceChannel();
+        
+        // Close current WAL file
+        if (walChannel != null && walChannel.isOpen()) {
+            walChannel.close();
         }
+        segment = null;
+        
+        // Create new WAL file
+        createNewWalFile(nextSequence, recordSize);
     }
     
     /**
      * Creates a new WAL file.
      * 
+     * @param startSeq Sequence number of the first record in the file
+     * @param recordSize Size of the first record, which a new segment must fit
      * @throws IOException If an I/O error occurs
      */
-    private synchronized void createNewWalFile() throws IOException {
+    private synchronized void createNewWalFile(long startSeq, int recordSize) throws IOException {
         // Generate filename with timestamp and sequence range
         long timestamp = System.currentTimeMillis();
-        long startSeq = sequenceNumber.get() + 1;
         String filename = String.format("wal-%d-%d.log", timestamp, startSeq);
         currentWalPath = walDirectory.resolve(filename);
         
-        // Create file and open channel
-        walChannel = FileChannel.open(currentWalPath, 
-                StandardOpenOption.CREATE, 
-                StandardOpenOption.WRITE, 
-                StandardOpenOption.TRUNCATE_EXISTING);
-        
         // Write header
         ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
         headerBuffer.putInt(MAGIC);
         headerBuffer.putShort(VERSION);
-        headerBuffer.putShort((short) 0); // Flags
+        headerBuffer.putShort(preallocateSegments ? FLAG_PREALLOCATED : 0); // Flags
         headerBuffer.putLong(timestamp);
         headerBuffer.flip();
-        walChannel.write(headerBuffer, 0);
+        
+        if (preallocateSegments) {
+            long segmentSize = Math.max(maxWalSize, HEADER_SIZE + (long) recordSize);
+            Path recycled = segmentSize == maxWalSize ? recycledSegments.poll() : null;
+            if (recycled != null) {
+                // Records left in a recycled segment have lower sequence numbers
+                // than the new file's name, so recovery never mistakes them for new ones
+                Files.move(recycled, currentWalPath, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                preallocate(currentWalPath, segmentSize);
+            }
+            walChannel = FileChannel.open(currentWalPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segment = walChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            segment.put(headerBuffer);
+        } else {
+            // Create file and open channel
+            walChannel = FileChannel.open(currentWalPath, 
+                    StandardOpenOption.CREATE, 
+                    StandardOpenOption.WRITE, 
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            while (headerBuffer.hasRemaining()) {
+                walChannel.write(headerBuffer);
+            }
+        }
         
         // Reset state
         currentWalSize = HEADER_SIZE;
@@ -492,25 +1137,54 @@ public class WALManager implements AutoCloseable {
         LOGGER.info("Created new WAL file: " + filename);
     }
     
+    /**
+     * Creates a segment file at its full size, writing zeros so that its blocks
+     * are allocated now rather than by later commits.
+     * 
+     * @param path The segment file
+     * @param size The segment size in bytes
+     * @throws IOException If an I/O error occurs
+     */
+    private static void preallocate(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer zeros = ByteBuffer.allocateDirect(64 * 1024);
+            long position = 0;
+            while (position < size) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), size - position));
+                position += channel.write(zeros, position);
+            }
+            channel.force(true);
+        }
+    }
+    
     /**
      * Handles syncing the WAL based on the configured sync mode.
      * 
+     * @param group The records just written
      * @throws IOException If an I/O error occurs
      */
-    private synchronized void handleSync() throws IOException {
+    private synchronized void handleSync(List<PendingWrite> group) throws IOException {
         switch (syncMode) {
             case SYNC:
                 // Sync after every write
-                sync();
+                forceChannel();
                 break;
                 
             case GROUP:
-                // Sync after a group of writes or time interval
-                long currentTime = System.currentTimeMillis();
-                if (uncommittedWrites >= groupCommitSize || 
-                    (currentTime - lastSyncTime) >= groupCommitIntervalMs) {
-                    sync();
+                // The sync thread syncs within the group commit interval, or at once
+                // if a caller is waiting for durability or enough writes built up
+                boolean waiting = false;
+                synchronized (durabilityWaiters) {
+                    for (PendingWrite pending : group) {
+                        if (pending.durable != null) {
+                            durabilityWaiters.add(pending);
+                            waiting = true;
+                        }
+                    }
                 }
+                requestSync(waiting || uncommittedWrites >= groupCommitSize);
                 break;
                 
             case ASYNC:
@@ -519,17 +1193,216 @@ public class WALManager implements AutoCloseable {
         }
     }
     
+    /**
+     * Tells the sync thread that there are unsynced records.
+     * 
+     * @param immediately Whether to sync now rather than within the group commit interval
+     */
+    private void requestSync(boolean immediately) {
+        synchronized (syncLock) {
+            if (unsyncedSince < 0) {
+                unsyncedSince = System.currentTimeMillis();
+            }
+            if (immediately) {
+                syncRequested = true;
+            }
+            syncLock.notify();
+        }
+    }
+    
+    /**
+     * Background thread used in GROUP mode. It syncs the WAL once a sync is
+     * requested, or once the oldest unsynced record has waited for the group
+     * commit interval, so an idle tail of records is never left unsynced.
+     */
+    private void syncLoop() {
+        while (true) {
+            synchronized (syncLock) {
+                try {
+                    while (!closing && !syncRequested) {
+                        if (unsyncedSince < 0) {
+                            syncLock.wait();
+                            continue;
+                        }
+                        long remaining = unsyncedSince + groupCommitIntervalMs - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        syncLock.wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (closing) {
+                    // close() syncs whatever is left
+                    return;
+                }
+                syncRequested = false;
+                unsyncedSince = -1;
+            }
+            syncWritten();
+        }
+    }
+    
+    /**
+     * Syncs every record written so far and completes the futures waiting for
+     * them. The file is synced without holding the lock, so writers keep
+     * appending while the sync is in progress, and their records are covered by
+     * the next sync.
+     */
+    private void syncWritten() {
+        FileChannel channel;
+        MappedByteBuffer mapped;
+        long target;
+        synchronized (this) {
+            channel = walChannel;
+            mapped = segment;
+            target = writtenSequence;
+            uncommittedWrites = 0;
+            lastSyncTime = System.currentTimeMillis();
+        }
+        
+        if (channel != null && target > durableSequence.get()) {
+            try {
+                if (mapped != null) {
+                    // A mapping stays valid after its file is rotated or closed
+                    mapped.force();
+                } else {
+                    channel.force(true);
+                }
+            } catch (ClosedChannelException e) {
+                // Rotated or closed meanwhile, both of which sync the file first
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to sync WAL", e);
+                failDurabilityWaiters(target, e);
+                return;
+            }
+            durableSequence.accumulateAndGet(target, Math::max);
+        }
+        completeDurabilityWaiters();
+    }
+    
+    /**
+     * Completes the futures of all records up to the durable sequence number.
+     */
+    private void completeDurabilityWaiters() {
+        long durable = durableSequence.get();
+        List<PendingWrite> completed = new ArrayList<>();
+        synchronized (durabilityWaiters) {
+            while (!durabilityWaiters.isEmpty() && durabilityWaiters.peek().lastSequenceNumber <= durable) {
+                completed.add(durabilityWaiters.poll());
+            }
+        }
+        for (PendingWrite pending : completed) {
+            pending.durable.complete(pending.sequenceNumber);
+        }
+    }
+    
+    /**
+     * Fails the futures of all records up to a sequence number.
+     */
+    private void failDurabilityWaiters(long upToSequence, IOException error) {
+        List<PendingWrite> failed = new ArrayList<>();
+        synchronized (durabilityWaiters) {
+            while (!durabilityWaiters.isEmpty() && durabilityWaiters.peek().lastSequenceNumber <= upToSequence) {
+                failed.add(durabilityWaiters.poll());
+            }
+        }
+        for (PendingWrite pending : failed) {
+            pending.durable.completeExceptionally(error);
+        }
+    }
+    
     /**
      * Closes the WAL manager, ensuring all data is synced to disk.
      * 
      * @throws IOException If an I/O error occurs
      */
     @Override
-    public synchronized void close() throws IOException {
-        if (walChannel != null && walChannel.isOpen()) {
-            sync();
-            walChannel.close();
-            walChannel = null;
+    public void close() throws IOException {
+        if (syncThread != null) {
+            synchronized (syncLock) {
+                closing = true;
+                syncLock.notifyAll();
+            }
+            try {
+                syncThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        try {
+            synchronized (this) {
+                if (walChannel != null && walChannel.isOpen()) {
+                    forceChannel();
+                    walChannel.close();
+                    walChannel = null;
+                    segment = null;
+                }
+            }
+        } catch (IOException e) {
+            failDurabilityWaiters(Long.MAX_VALUE, e);
+            throw e;
+        }
+        completeDurabilityWaiters();
+    }
+    
+    /**
+     * A record waiting to be written by the group leader.
+     */
+    private static class PendingWrite {
+        final byte opType;
+        final byte[] key;
+        final byte[] value;
+        final List<byte[]> keys;
+        final List<byte[]> values;
+        final int count;
+        final CompletableFuture<Long> durable;
+        long sequenceNumber;
+        long lastSequenceNumber;
+        boolean done;
+        IOException error;
+        
+        /**
+         * A PUT, DELETE or DELETE_RANGE record. A range delete stores its end key as the value.
+         */
+        PendingWrite(byte opType, byte[] key, byte[] value, CompletableFuture<Long> durable) {
+            this.opType = opType;
+            this.key = key;
+            this.value = value;
+            this.keys = null;
+            this.values = null;
+            this.count = 1;
+            this.durable = durable;
+        }
+        
+        /**
+         * A batch record.
+         */
+        PendingWrite(List<byte[]> keys, List<byte[]> values, CompletableFuture<Long> durable) {
+            this.opType = OP_BATCH;
+            this.key = null;
+            this.value = null;
+            this.keys = keys;
+            this.values = values;
+            this.count = keys.size();
+            this.durable = durable;
+        }
+        
+        int recordSize() {
+            return keys != null
+                    ? WALRecordEncoder.batchRecordSize(keys, values)
+                    : WALRecordEncoder.recordSize(key, value);
+        }
+        
+        void encodeTo(WALRecordEncoder encoder) {
+            if (keys != null) {
+                encoder.encodeBatch(sequenceNumber, keys, values);
+            } else {
+                encoder.encode(opType, sequenceNumber, key, value);
+            }
         }
     }
     
@@ -553,5 +1426,16 @@ public class WALManager implements AutoCloseable {
          * @param key The key as a byte array
          */
         void onDelete(long sequenceNumber, byte[] key);
+        
+        /**
+         * Called for each DELETE_RANGE operation recovered from the WAL. Consumers
+         * that predate range deletes ignore them.
+         * 
+         * @param sequenceNumber The sequence number of the operation
+         * @param startKey The first key deleted (inclusive)
+         * @param endKey The key the range stops before (exclusive), or null if it runs to the last key
+         */
+        default void onDeleteRange(long sequenceNumber, byte[] startKey, byte[] endKey) {
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,205 @@
+package com.ataiva.serengeti.storage.wal;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * WALRecordEncoder encodes WAL records into a reusable direct buffer.
+ *
+ * <p>Records are appended one after another, so a whole group of records can be
+ * handed to the file channel in a single write. Because the buffer is direct the
+ * channel writes it without first copying it into a temporary direct buffer, and
+ * the checksum is computed over the encoded bytes in place, so encoding a record
+ * allocates nothing once the buffer has grown to fit the largest group.</p>
+ *
+ * <p>An encoder is not thread-safe; WALManager uses one from its group leader.</p>
+ */
+public final class WALRecordEncoder {
+
+    /**
+     * Default capacity of the encode buffer.
+     */
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    // A buffer grown beyond this for a large group is released afterwards
+    private static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+
+    static final int RECORD_HEADER_SIZE = 17; // Op type(1) + Seq num(8) + Key len(4) + Val len(4)
+
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer;
+
+    /**
+     * Creates an encoder with the default capacity.
+     */
+    public WALRecordEncoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an encoder.
+     *
+     * @param capacity Initial capacity of the buffer in bytes
+     */
+    public WALRecordEncoder(int capacity) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Gets the encoded size of a PUT or DELETE record.
+     *
+     * @param key The key
+     * @param value The value, or null for a delete
+     * @return The record size in bytes
+     */
+    public static int recordSize(byte[] key, byte[] value) {
+        return RECORD_HEADER_SIZE + key.length + (value != null ? value.length : 0) + 4;
+    }
+
+    /**
+     * Gets the encoded size of a batch record.
+     *
+     * @param keys The keys
+     * @param values The values, with null marking a delete
+     * @return The record size in bytes
+     */
+    public static int batchRecordSize(List<byte[]> keys, List<byte[]> values) {
+        return RECORD_HEADER_SIZE + batchPayloadSize(keys, values) + 4;
+    }
+
+    private static int batchPayloadSize(List<byte[]> keys, List<byte[]> values) {
+        int size = 4;
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] value = values.get(i);
+            size += 1 + 4 + 4 + keys.get(i).length + (value != null ? value.length : 0);
+        }
+        return size;
+    }
+
+    /**
+     * Appends a PUT or DELETE record.
+     * Format: op_type(1) + seq_num(8) + key_len(4) + val_len(4) + key + value + crc(4),
+     * where val_len is -1 for a delete.
+     *
+     * @param opType {@link WALManager#OP_PUT}, {@link WALManager#OP_DELETE} or {@link WALManager#OP_DELETE_RANGE}
+     * @param seqNum The sequence number
+     * @param key The key, or the start key of a range delete
+     * @param value The value, null for a delete, or the end key of a range delete
+     */
+    public void encode(byte opType, long seqNum, byte[] key, byte[] value) {
+        int start = reserve(recordSize(key, value));
+        buffer.put(opType);
+        buffer.putLong(seqNum);
+        buffer.putInt(key.length);
+        buffer.putInt(value != null ? value.length : -1);
+        buffer.put(key);
+        if (value != null) {
+            buffer.put(value);
+        }
+        putCrc(start);
+    }
+
+    /**
+     * Appends a batch record. It has the layout of a single-operation record whose
+     * key holds the operations:
+     * count(4) + [op_type(1) + key_len(4) + val_len(4) + key + value] per operation
+     *
+     * @param seqNum The sequence number of the first operation
+     * @param keys The keys
+     * @param values The values, with null marking a delete
+     */
+    public void encodeBatch(long seqNum, List<byte[]> keys, List<byte[]> values) {
+        int payloadSize = batchPayloadSize(keys, values);
+        int start = reserve(RECORD_HEADER_SIZE + payloadSize + 4);
+        buffer.put(WALManager.OP_BATCH);
+        buffer.putLong(seqNum);
+        buffer.putInt(payloadSize);
+        buffer.putInt(-1);
+        buffer.putInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            byte[] value = values.get(i);
+            buffer.put(value != null ? WALManager.OP_PUT : WALManager.OP_DELETE);
+            buffer.putInt(key.length);
+            buffer.putInt(value != null ? value.length : -1);
+            buffer.put(key);
+            if (value != null) {
+                buffer.put(value);
+            }
+        }
+        putCrc(start);
+    }
+
+    /**
+     * @return The number of encoded bytes waiting to be written
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * @return The number of bytes that can be appended without growing the buffer
+     */
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Prepares the encoded records for writing. The returned buffer is positioned
+     * at the first record and limited to the end of the last one; call
+     * {@link #reset()} once it has been written.
+     *
+     * @return The encoded records
+     */
+    public ByteBuffer flip() {
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Discards the encoded records so the buffer can be reused.
+     */
+    public void reset() {
+        if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            buffer = ByteBuffer.allocateDirect(DEFAULT_CAPACITY);
+        } else {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Makes room for a record, growing the buffer if needed.
+     *
+     * @return The position where the record starts
+     */
+    private int reserve(int recordSize) {
+        if (buffer.remaining() < recordSize) {
+            int capacity = buffer.capacity();
+            while (capacity - buffer.position() < recordSize) {
+                capacity = (int) Math.min(Integer.MAX_VALUE - 8, 2L * capacity);
+                if (capacity - buffer.position() < recordSize && capacity == Integer.MAX_VALUE - 8) {
+                    throw new IllegalArgumentException("WAL record too large: " + recordSize + " bytes");
+                }
+            }
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Appends the CRC of the record that starts at the given position, computed
+     * over the encoded bytes in place.
+     */
+    private void putCrc(int start) {
+        int end = buffer.position();
+        buffer.limit(end).position(start);
+        crc.reset();
+        crc.update(buffer);
+        buffer.limit(buffer.capacity());
+        buffer.putInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,118 @@
+package com.ataiva.serengeti.benchmark;
+
+import com.ataiva.serengeti.storage.wal.WALManager;
+import com.ataiva.serengeti.storage.wal.WALRecordEncoder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * JMH Benchmark comparing WAL record encoders.
+ *
+ * The heap encoder is the encoding WALManager used before: a new heap buffer per
+ * record and a checksum over its backing array. The direct encoder is
+ * WALRecordEncoder, which appends records to a reusable direct buffer and
+ * checksums them in place. Each invocation encodes a group of records, as the
+ * group leader in WALManager does.
+ *
+ * To compare allocation rates as well as time, run with the GC profiler:
+ * mvn clean test -Pbenchmark -Djmh.includes=WALEncodingBenchmark -Djmh.args="-prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(value = 1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+public class WALEncodingBenchmark {
+
+    private static final int GROUP_SIZE = 16;
+
+    @Param({"16", "100", "1000"})
+    private int valueSize;
+
+    private byte[][] keys;
+    private byte[][] values;
+    private WALRecordEncoder encoder;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        keys = new byte[GROUP_SIZE][];
+        values = new byte[GROUP_SIZE][];
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            keys[i] = new byte[24];
+            values[i] = new byte[valueSize];
+            random.nextBytes(keys[i]);
+            random.nextBytes(values[i]);
+        }
+        encoder = new WALRecordEncoder();
+    }
+
+    @Benchmark
+    public void heapEncoder(Blackhole blackhole) {
+        ByteBuffer[] buffers = new ByteBuffer[GROUP_SIZE];
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            buffers[i] = encodeHeap(WALManager.OP_PUT, i, keys[i], values[i]);
+        }
+        blackhole.consume(buffers);
+    }
+
+    @Benchmark
+    public void directEncoder(Blackhole blackhole) {
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            encoder.encode(WALManager.OP_PUT, i, keys[i], values[i]);
+        }
+        blackhole.consume(encoder.flip());
+        encoder.reset();
+    }
+
+    /**
+     * The previous per-record encoding, as WALManager.logPut did it, down to the
+     * array the record was copied into for the CRC.
+     */
+    private static ByteBuffer encodeHeap(byte opType, long seqNum, byte[] key, byte[] value) {
+        int keyLength = key.length;
+        int valueLength = value != null ? value.length : -1;
+        int recordSize = 1 + 8 + 4 + 4 + keyLength + (valueLength > 0 ? valueLength : 0) + 4;
+
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+        buffer.put(opType);
+        buffer.putLong(seqNum);
+        buffer.putInt(keyLength);
+        buffer.putInt(valueLength);
+        buffer.put(key);
+        if (valueLength > 0) {
+            buffer.put(value);
+        }
+
+        CRC32 crc = new CRC32();
+        buffer.flip();
+        byte[] dataForCrc = new byte[buffer.limit() - 4]; // Exclude space for CRC
+        buffer.get(dataForCrc);
+        crc.update(dataForCrc);
+        buffer.position(buffer.limit() - 4);
+        buffer.putInt((int) crc.getValue());
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Main method to run the benchmark from the command line.
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(WALEncodingBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,116 @@
+package com.ataiva.serengeti.storage;
+
+import com.ataiva.serengeti.storage.StorageImpl.WriteAheadLog;
+import com.ataiva.serengeti.storage.StorageImpl.WriteAheadLog.LogEntry;
+import com.ataiva.serengeti.storage.StorageImpl.WriteAheadLog.OperationType;
+import com.ataiva.serengeti.storage.wal.WALManager;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the write-ahead log of StorageImpl.
+ */
+@DisplayName("StorageImpl Write-Ahead Log Tests")
+@Tag("fast")
+public class StorageImplWriteAheadLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @DisplayName("Every operation type is recovered as it was logged after a reopen")
+    void testRoundTrip() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(tempDir, WALManager.SyncMode.SYNC);
+        wal.init();
+        wal.applied(wal.logOperation(OperationType.INSERT, "db", "users", "{\"id\":\"1\"}"));
+        wal.applied(wal.logOperation(OperationType.UPDATE, "db", "users", "name", "Ann", "id", "1"));
+        wal.applied(wal.logOperation(OperationType.DELETE, "db", "users", "id", "1"));
+        wal.applied(wal.logOperation(OperationType.DELETE, "db", "orders", null, null));
+        wal.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(tempDir, WALManager.SyncMode.SYNC);
+        reopened.init();
+        List<LogEntry> entries = new ArrayList<>();
+        try {
+            assertEquals(4, reopened.recover(entries::add));
+        } finally {
+            reopened.close();
+        }
+
+        assertEquals(4, entries.size());
+        assertEntry(entries.get(0), OperationType.INSERT, "users", "{\"id\":\"1\"}");
+        assertEntry(entries.get(1), OperationType.UPDATE, "users", "name", "Ann", "id", "1");
+        assertEntry(entries.get(2), OperationType.DELETE, "users", "id", "1");
+        assertEntry(entries.get(3), OperationType.DELETE, "orders", null, null);
+        for (int i = 1; i < entries.size(); i++) {
+            assertTrue(entries.get(i).sequenceNumber > entries.get(i - 1).sequenceNumber);
+        }
+    }
+
+    @Test
+    @DisplayName("Operation types keep their codes")
+    void testOperationCodes() {
+        assertEquals(1, OperationType.INSERT.getCode());
+        assertEquals(2, OperationType.UPDATE.getCode());
+        assertEquals(3, OperationType.DELETE.getCode());
+        for (OperationType type : OperationType.values()) {
+            assertEquals(type, OperationType.fromCode(type.getCode()));
+        }
+        assertNull(OperationType.fromCode((byte) 0));
+    }
+
+    @Test
+    @DisplayName("The applied sequence stops before the oldest operation still writing its table")
+    void testAppliedSequence() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(tempDir, WALManager.SyncMode.SYNC);
+        wal.init();
+        try {
+            long first = wal.logOperation(OperationType.INSERT, "db", "users", "{}");
+            long second = wal.logOperation(OperationType.INSERT, "db", "users", "{}");
+            assertEquals(first, wal.appliedSequence());
+
+            wal.applied(second);
+            assertEquals(first, wal.appliedSequence());
+            wal.applied(first);
+            assertEquals(second + 1, wal.appliedSequence());
+        } finally {
+            wal.close();
+        }
+    }
+
+    @Test
+    @DisplayName("The legacy text log is kept after recovery")
+    void testLegacyLogKept() throws IOException {
+        Path legacyLog = tempDir.resolve("wal.log");
+        Files.write(legacyLog, Collections.singletonList("{\"operation\":\"INSERT\"}"), StandardCharsets.UTF_8);
+
+        WriteAheadLog wal = new WriteAheadLog(tempDir, WALManager.SyncMode.SYNC);
+        wal.init();
+        try {
+            assertEquals(0, wal.recover(entry -> fail("Unexpected entry " + entry)));
+        } finally {
+            wal.close();
+        }
+        assertTrue(Files.exists(legacyLog));
+    }
+
+    private static void assertEntry(LogEntry entry, OperationType type, String table, String... fields) {
+        assertEquals(type, entry.type);
+        assertEquals("db", entry.database);
+        assertEquals(table, entry.table);
+        assertEquals(Arrays.asList(fields), entry.fields);
+    }
+}
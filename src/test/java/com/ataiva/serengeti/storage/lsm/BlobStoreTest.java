@@ -0,0 +1,145 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the BlobStore class.
+ */
+@DisplayName("Blob Store Tests")
+@Tag("fast")
+public class BlobStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private BlobStore blobStore;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // Small files, so a writer rotates through several of them
+        blobStore = new BlobStore(tempDir, 16 * 1024);
+    }
+
+    @AfterEach
+    void tearDown() {
+        blobStore.close();
+    }
+
+    private static byte[] value(Random random, int length) {
+        byte[] value = new byte[length];
+        random.nextBytes(value);
+        return value;
+    }
+
+    @Test
+    @DisplayName("Values read back through their pointers across several files")
+    void testWriteAndRead() throws IOException {
+        Random random = new Random(42);
+        List<byte[]> values = new ArrayList<>();
+        List<byte[]> pointers = new ArrayList<>();
+        try (BlobStore.Writer writer = blobStore.newWriter(null)) {
+            for (int i = 0; i < 40; i++) {
+                byte[] value = value(random, 1000 + i * 17);
+                values.add(value);
+                pointers.add(writer.add(value));
+            }
+            writer.finish();
+            assertTrue(writer.getFileCount() > 1);
+        }
+
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(BlobStore.POINTER_SIZE, pointers.get(i).length);
+            assertArrayEquals(values.get(i), blobStore.read(pointers.get(i)), "Value " + i);
+        }
+
+        // A new store over the same directory continues the file numbers
+        BlobStore reopened = new BlobStore(tempDir);
+        try (BlobStore.Writer writer = reopened.newWriter(null)) {
+            byte[] pointer = writer.add(values.get(0));
+            writer.finish();
+            assertTrue(BlobStore.fileNumber(pointer) > BlobStore.fileNumber(pointers.get(values.size() - 1)));
+            assertArrayEquals(values.get(0), reopened.read(pointer));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    @DisplayName("A writer closed before finishing deletes its files")
+    void testUnfinishedWriter() throws IOException {
+        try (BlobStore.Writer writer = blobStore.newWriter(null)) {
+            writer.add(new byte[5000]);
+        }
+        assertTrue(blobStore.getFileSizes().isEmpty());
+    }
+
+    @Test
+    @DisplayName("Corrupt records are detected by their checksum")
+    void testCorruption() throws IOException {
+        byte[] pointer;
+        try (BlobStore.Writer writer = blobStore.newWriter(null)) {
+            pointer = writer.add(value(new Random(7), 2000));
+            writer.finish();
+        }
+
+        Path file = tempDir.resolve(BlobStore.fileName(BlobStore.fileNumber(pointer)));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 1, 2, 3}), BlobStore.HEADER_SIZE + 100);
+        }
+
+        BlobStore reopened = new BlobStore(tempDir);
+        try {
+            assertThrows(IOException.class, () -> reopened.read(pointer));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Only files without live references are deleted")
+    void testDeleteObsoleteFiles() throws IOException {
+        byte[] first;
+        byte[] second;
+        try (BlobStore.Writer writer = blobStore.newWriter(null)) {
+            first = writer.add(new byte[3000]);
+            writer.finish();
+        }
+        try (BlobStore.Writer writer = blobStore.newWriter(null)) {
+            second = writer.add(new byte[3000]);
+            writer.finish();
+        }
+        Map<Long, Long> sizes = blobStore.getFileSizes();
+        assertEquals(2, sizes.size());
+        assertEquals(BlobStore.HEADER_SIZE + BlobStore.recordSize(first),
+                (long) sizes.get(BlobStore.fileNumber(first)));
+
+        blobStore.read(first);
+        assertEquals(1, blobStore.deleteObsoleteFiles(Collections.singleton(BlobStore.fileNumber(second))));
+        assertFalse(Files.exists(tempDir.resolve(BlobStore.fileName(BlobStore.fileNumber(first)))));
+        assertArrayEquals(new byte[3000], blobStore.read(second));
+
+        // Readers that started before the deletion can still finish
+        assertArrayEquals(new byte[3000], blobStore.read(first));
+        blobStore.deleteObsoleteFiles(Collections.singleton(BlobStore.fileNumber(second)));
+        assertThrows(IOException.class, () -> blobStore.read(first));
+    }
+}
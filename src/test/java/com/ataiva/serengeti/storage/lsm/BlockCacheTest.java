@@ -0,0 +1,154 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the BlockCache class.
+ */
+@DisplayName("Block Cache Tests")
+@Tag("fast")
+public class BlockCacheTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    @TempDir
+    Path tempDir;
+
+    private static ByteBuffer block(int fill) {
+        byte[] contents = new byte[BLOCK_SIZE];
+        Arrays.fill(contents, (byte) fill);
+        return ByteBuffer.wrap(contents);
+    }
+
+    private static int firstByte(BlockCache cache, long tableId, long offset) throws IOException {
+        return cache.read(tableId, offset, () -> block((int) offset), b -> (int) b.get(0));
+    }
+
+    @Test
+    @DisplayName("Blocks are loaded once and then served from the cache")
+    void testHitsAndMisses() throws IOException {
+        BlockCache cache = new BlockCache(1024 * 1024);
+        AtomicInteger loads = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            int value = cache.read(1, 0, () -> {
+                loads.incrementAndGet();
+                return block(7);
+            }, b -> (int) b.get(BLOCK_SIZE - 1));
+            assertEquals(7, value);
+        }
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+        assertTrue(cache.contains(1, 0));
+        assertFalse(cache.contains(2, 0));
+    }
+
+    @Test
+    @DisplayName("Usage stays within capacity and frequently read blocks survive a scan")
+    void testEvictionIsScanResistant() throws IOException {
+        long capacity = 64 * BLOCK_SIZE;
+        BlockCache cache = new BlockCache(capacity, 1);
+
+        // Build up a frequently read working set
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 16; i++) {
+                firstByte(cache, 1, i);
+            }
+        }
+
+        // A long scan over blocks that are read only once, interleaved with reads of
+        // the working set. Between two reads of a hot block more distinct blocks are
+        // read than fit in the cache, so an LRU cache would miss on every hot read.
+        long hotMisses = 0;
+        for (int i = 0; i < 2000; i++) {
+            firstByte(cache, 2, i);
+            if (i % 4 == 0) {
+                long missesBefore = cache.getMissCount();
+                firstByte(cache, 1, (i / 4) % 16);
+                hotMisses += cache.getMissCount() - missesBefore;
+            }
+            assertTrue(cache.getUsage() <= capacity + BLOCK_SIZE, "Usage: " + cache.getUsage());
+        }
+
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(hotMisses < 10, "Hot blocks missed " + hotMisses + " times");
+    }
+
+    @Test
+    @DisplayName("Pinned blocks are not overwritten while they are being read")
+    void testPinnedBlockIsNotReused() throws IOException {
+        BlockCache cache = new BlockCache(16 * BLOCK_SIZE, 1);
+
+        boolean intact = cache.read(1, 0, () -> block(42), b -> {
+            try {
+                // Churn through enough blocks to evict the pinned one
+                for (int i = 1; i < 200; i++) {
+                    firstByte(cache, 2, i);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                if (b.get(i) != 42) {
+                    return false;
+                }
+            }
+            return true;
+        });
+
+        assertTrue(intact);
+    }
+
+    @Test
+    @DisplayName("Closing an SSTable drops its blocks from the cache")
+    void testSSTableReadsThroughCache() throws IOException {
+        BlockCache cache = new BlockCache(1024 * 1024);
+        MemTable memTable = new MemTable(1024 * 1024);
+        for (int i = 0; i < 500; i++) {
+            memTable.put(String.format("key%04d", i).getBytes(StandardCharsets.UTF_8),
+                    ("value" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        SSTable ssTable = SSTable.create(memTable, tempDir, "cached", 1);
+        ssTable.setBlockCache(cache);
+
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 500; i++) {
+                assertArrayEquals(("value" + i).getBytes(StandardCharsets.UTF_8),
+                        ssTable.get(String.format("key%04d", i).getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        int blocks = ssTable.getMetadata().getBlockCount();
+        assertEquals(blocks, cache.getMissCount());
+        assertEquals(1000 - blocks, cache.getHitCount());
+
+        assertEquals(blocks, cache.getBlockCount());
+
+        ssTable.close();
+        assertEquals(0, cache.getBlockCount());
+    }
+
+    @Test
+    @DisplayName("Block sizes round up to size classes with little waste")
+    void testSizeClasses() {
+        assertEquals(1024, BlockCache.sizeClass(1));
+        assertEquals(4096, BlockCache.sizeClass(4096));
+        assertEquals(5120, BlockCache.sizeClass(4097));
+        for (int size = 1025; size < 100000; size += 97) {
+            int chunk = BlockCache.sizeClass(size);
+            assertTrue(chunk >= size);
+            assertTrue(chunk - size < size / 4 + 1, "Too much waste for " + size);
+        }
+    }
+}
@@ -1,16 +1,30 @@
 package com.ataiva.serengeti.storage.lsm;
 
+import com.ataiva.serengeti.storage.compression.StorageCompressor;
+import com.ataiva.serengeti.storage.wal.WALManager;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -141,6 +155,61 @@ public class LSMStorageEngineTest {
         assertTrue(foundAtLeastOne, "Should be able to read at least one value");
     }
     
+    @Test
+    @DisplayName("A write batch applies its puts and deletes in order")
+    void testWriteBatch() throws Exception {
+        byte[] key1 = "key1".getBytes(StandardCharsets.UTF_8);
+        byte[] key2 = "key2".getBytes(StandardCharsets.UTF_8);
+        byte[] key3 = "key3".getBytes(StandardCharsets.UTF_8);
+        engine.put(key3, "old".getBytes(StandardCharsets.UTF_8));
+        
+        WriteBatch batch = new WriteBatch()
+                .put(key1, "value1".getBytes(StandardCharsets.UTF_8))
+                .put(key2, "value2".getBytes(StandardCharsets.UTF_8))
+                .delete(key3)
+                .put(key1, "value1b".getBytes(StandardCharsets.UTF_8))
+                .delete(key2);
+        assertEquals(5, batch.size());
+        engine.write(batch);
+        
+        assertArrayEquals("value1b".getBytes(StandardCharsets.UTF_8), engine.get(key1));
+        assertNull(engine.get(key2));
+        assertNull(engine.get(key3));
+        
+        // Batches over overlapping keys, in different orders, from many threads
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int threadId = t;
+            futures.add(executor.submit(() -> {
+                WriteBatch threadBatch = new WriteBatch();
+                for (int i = 0; i < 200; i++) {
+                    threadBatch.clear();
+                    for (int k = 0; k < 10; k++) {
+                        int keyIndex = (threadId % 2 == 0) ? k : 9 - k;
+                        threadBatch.put(("shared" + keyIndex).getBytes(StandardCharsets.UTF_8),
+                                ("value-" + threadId + "-" + i).getBytes(StandardCharsets.UTF_8));
+                    }
+                    engine.write(threadBatch);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        for (int k = 0; k < 10; k++) {
+            assertNotNull(engine.get(("shared" + k).getBytes(StandardCharsets.UTF_8)));
+        }
+        
+        // The batches survive a reopen
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES);
+        assertArrayEquals("value1b".getBytes(StandardCharsets.UTF_8), engine.get(key1));
+        assertNull(engine.get(key3));
+    }
+    
     @Test
     @DisplayName("Engine can handle concurrent operations")
     void testConcurrentOperations() throws Exception {
@@ -195,24 +264,989 @@ public class LSMStorageEngineTest {
         assertArrayEquals(testValue, engine.get(testKey));
     }
     
+    @Test
+    @DisplayName("Compaction keeps the newest version of each key")
+    void testCompactionKeepsNewestVersions() throws Exception {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 2 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        engine.setCompactionTargetFileSize(4 * 1024);
+        
+        for (int round = 1; round <= 3; round++) {
+            for (int i = 0; i < 200; i++) {
+                byte[] key = String.format("key%04d", i).getBytes(StandardCharsets.UTF_8);
+                if (round == 3 && i % 3 == 0) {
+                    engine.delete(key);
+                } else if (round == 1 || i % 2 == 0) {
+                    engine.put(key, ("value-" + round + "-" + i).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        
+        // Wait until compaction has merged the small SSTables
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSmallSSTables(4 * 1024) >= 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(countSmallSSTables(4 * 1024) < 3, "Small SSTables should have been compacted");
+        
+        for (int i = 0; i < 200; i++) {
+            byte[] value = engine.get(String.format("key%04d", i).getBytes(StandardCharsets.UTF_8));
+            if (i % 3 == 0) {
+                assertNull(value, "Deleted key " + i);
+            } else {
+                int round = i % 2 == 0 ? 3 : 1;
+                assertArrayEquals(("value-" + round + "-" + i).getBytes(StandardCharsets.UTF_8), value, "Key " + i);
+            }
+        }
+    }
+    
+    @Test
+    @DisplayName("Subcompactions merge key ranges in parallel without losing or repeating keys")
+    void testSubcompactions() throws Exception {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 3 * 1024, MAX_IMMUTABLE_MEM_TABLES, 10, 10, 100);
+        engine.setCompactionTargetFileSize(4 * 1024);
+        engine.setMaxSubcompactions(4);
+        
+        // Each round overwrites the keys of the one before, so each range merges several versions
+        for (int round = 1; round <= 3; round++) {
+            for (int i = 0; i < 400; i++) {
+                byte[] key = String.format("key%04d", i).getBytes(StandardCharsets.UTF_8);
+                if (round == 3 && i % 5 == 0) {
+                    engine.delete(key);
+                } else {
+                    engine.put(key, value(round, i));
+                }
+            }
+        }
+        
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSmallSSTables(4 * 1024) >= 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(countSmallSSTables(4 * 1024) < 10, "Small SSTables should have been compacted");
+        
+        // Keys next to the range boundaries appear exactly once, with their newest value
+        int expected = 0;
+        Iterator<Map.Entry<byte[], byte[]>> iterator = engine.scan(null, null);
+        while (iterator.hasNext()) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            while (expected % 5 == 0) {
+                expected++;
+            }
+            assertEquals(String.format("key%04d", expected), new String(entry.getKey(), StandardCharsets.UTF_8));
+            assertArrayEquals(value(3, expected), entry.getValue());
+            expected++;
+        }
+        assertEquals(400, expected);
+    }
+    
+    @Test
+    @DisplayName("Large values are kept in blob files that compaction garbage collects")
+    void testBlobFiles() throws Exception {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 16 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        engine.setCompactionTargetFileSize(4 * 1024);
+        engine.setMinBlobSize(1024);
+        
+        // Each round overwrites the large values of the one before, leaving garbage behind
+        Random random = new Random(42);
+        byte[][] values = new byte[100][];
+        for (int round = 1; round <= 4; round++) {
+            for (int i = 0; i < 100; i++) {
+                byte[] key = String.format("key%04d", i).getBytes(StandardCharsets.UTF_8);
+                values[i] = new byte[i % 4 == 0 ? 100 : 2000];
+                random.nextBytes(values[i]);
+                engine.put(key, values[i]);
+            }
+        }
+        
+        // Only about the last round's values stay once compaction has caught up
+        long written = 4L * 75 * 2000;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (blobBytes() > written / 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(blobBytes() > 0, "Large values should be in blob files");
+        assertTrue(blobBytes() <= written / 2, "Obsolete blob files should have been deleted");
+        
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(values[i], engine.get(String.format("key%04d", i).getBytes(StandardCharsets.UTF_8)), "Key " + i);
+        }
+        
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 16 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        Iterator<Map.Entry<byte[], byte[]>> iterator = engine.scan(null, null);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(iterator.hasNext());
+            assertArrayEquals(values[i], iterator.next().getValue(), "Key " + i);
+        }
+        assertFalse(iterator.hasNext());
+    }
+    
+    @Test
+    @DisplayName("SSTables at the target size are compacted again when their blob files are mostly garbage")
+    void testBlobGarbageTriggersCompaction() throws Exception {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 16 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        // Uncompressed, the outputs of a compaction are split once they reach the target size
+        engine.setCompression(StorageCompressor.CompressionAlgorithm.NONE);
+        engine.setCompactionTargetFileSize(4 * 1024);
+        engine.setMinBlobSize(1024);
+        engine.setBlobGarbageCollectionThreshold(2);
+        
+        // Later rounds overwrite three values in four, so the blob files of the first
+        // one end up mostly garbage, but still hold values that are live
+        Random random = new Random(42);
+        byte[][] values = new byte[240][];
+        for (int round = 0; round <= 4; round++) {
+            for (int i = 0; i < 240; i++) {
+                if (round == 0 || i % 4 != 0) {
+                    values[i] = new byte[2000];
+                    random.nextBytes(values[i]);
+                    engine.put(String.format("key%04d", i).getBytes(StandardCharsets.UTF_8), values[i]);
+                }
+            }
+        }
+        
+        // Values are not moved until compaction has caught up, so only the garbage
+        // left in the blob files can trigger the compactions that move them
+        long live = 240L * 2000;
+        long stableSince = System.currentTimeMillis();
+        long deadline = stableSince + 10000;
+        for (long bytes = -1; System.currentTimeMillis() - stableSince < 1000 && System.currentTimeMillis() < deadline; ) {
+            Thread.sleep(100);
+            if (blobBytes() != bytes) {
+                bytes = blobBytes();
+                stableSince = System.currentTimeMillis();
+            }
+        }
+        assertTrue(blobBytes() > live * 5 / 4, "The first round's blob files should still be kept");
+        
+        engine.setBlobGarbageCollectionThreshold(0.5);
+        deadline = System.currentTimeMillis() + 10000;
+        while (blobBytes() > live * 5 / 4 && System.currentTimeMillis() < deadline) {
+            engine.triggerCompactionCheck();
+            Thread.sleep(50);
+        }
+        assertTrue(countSmallSSTables(Long.MAX_VALUE) > countSmallSSTables(4 * 1024),
+                "Some SSTables should be at the target size");
+        assertTrue(blobBytes() <= live * 5 / 4, "Live values should have been moved out of mostly garbage blob files");
+        for (int i = 0; i < 240; i++) {
+            assertArrayEquals(values[i], engine.get(String.format("key%04d", i).getBytes(StandardCharsets.UTF_8)), "Key " + i);
+        }
+    }
+    
+    @Test
+    @DisplayName("Blob files stay while a scan still reads SSTables that compactions replaced")
+    void testScanKeepsBlobFiles() throws Exception {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 16 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        engine.setCompactionTargetFileSize(4 * 1024);
+        engine.setMinBlobSize(1024);
+        
+        Random random = new Random(42);
+        byte[][] first = new byte[50][];
+        for (int i = 0; i < 50; i++) {
+            first[i] = new byte[2000];
+            random.nextBytes(first[i]);
+            engine.put(key(i), first[i]);
+        }
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 16 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        engine.setCompactionTargetFileSize(4 * 1024);
+        engine.setMinBlobSize(1024);
+        Set<Long> firstBlobFiles = engine.getBlobStore().getFileSizes().keySet();
+        assertFalse(firstBlobFiles.isEmpty());
+        
+        // Later rounds overwrite every value, so compactions drop all pointers
+        // into the first round's blob files
+        CloseableIterator<Map.Entry<byte[], byte[]>> scan = engine.scan(null, null);
+        List<Path> scanned = listSSTables();
+        for (int round = 2; round <= 4; round++) {
+            for (int i = 0; i < 50; i++) {
+                byte[] value = new byte[2000];
+                random.nextBytes(value);
+                engine.put(key(i), value);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (listSSTables().size() - scanned.size() >= 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        
+        for (int i = 0; i < 50; i++) {
+            assertTrue(scan.hasNext());
+            assertArrayEquals(first[i], scan.next().getValue(), "Key " + i);
+        }
+        assertFalse(scan.hasNext());
+        
+        // Deleted once the scan has let go of them
+        deadline = System.currentTimeMillis() + 10000;
+        while (!Collections.disjoint(engine.getBlobStore().getFileSizes().keySet(), firstBlobFiles)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(Collections.disjoint(engine.getBlobStore().getFileSizes().keySet(), firstBlobFiles),
+                "The first round's blob files should have been deleted");
+    }
+    
+    private long blobBytes() throws IOException {
+        long total = 0;
+        for (long size : engine.getBlobStore().getFileSizes().values()) {
+            total += size;
+        }
+        return total;
+    }
+    
+    // Values that do not compress, so the SSTables are large enough to split
+    private static byte[] value(int round, int i) {
+        Random random = new Random(round * 1000L + i);
+        return (round + "-" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()))
+                .getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private List<Path> listSSTables() throws IOException {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.filter(path -> path.toString().endsWith(".db")).collect(Collectors.toList());
+        }
+    }
+    
+    private long countSmallSSTables(long maxSize) throws IOException {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.filter(path -> path.toString().endsWith(".db"))
+                    .filter(path -> path.toFile().length() < maxSize)
+                    .count();
+        }
+    }
+    
+    @Test
+    @DisplayName("Sorted ingestion goes on top of the existing data")
+    void testIngestSorted() throws Exception {
+        engine.setCompactionTargetFileSize(16 * 1024);
+        for (int i = 0; i < 100; i++) {
+            engine.put(key(i), ("written-" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        
+        // A range nobody has written to is split into files of the target size
+        List<Map.Entry<byte[], byte[]>> load = new ArrayList<>();
+        for (int i = 1000; i < 3000; i++) {
+            load.add(new AbstractMap.SimpleImmutableEntry<>(key(i), value(1, i)));
+        }
+        assertEquals(2000, engine.ingestSorted(load.iterator()));
+        assertTrue(countSmallSSTables(Long.MAX_VALUE) > 1, "Ingested entries should be split into several files");
+        
+        // Overlapping entries replace the ones written before, even those still in the MemTable
+        load.clear();
+        for (int i = 50; i < 60; i++) {
+            load.add(new AbstractMap.SimpleImmutableEntry<>(key(i), value(2, i)));
+        }
+        load.add(new AbstractMap.SimpleImmutableEntry<>(key(60), null));
+        engine.ingestSorted(load.iterator());
+        
+        // Out-of-order input is rejected without leaving anything behind
+        long files = countSmallSSTables(Long.MAX_VALUE);
+        List<Map.Entry<byte[], byte[]>> unsorted = Arrays.asList(
+                new AbstractMap.SimpleImmutableEntry<>(key(5000), value(3, 5000)),
+                new AbstractMap.SimpleImmutableEntry<>(key(4000), value(3, 4000)));
+        assertThrows(IllegalArgumentException.class, () -> engine.ingestSorted(unsorted.iterator()));
+        assertEquals(files, countSmallSSTables(Long.MAX_VALUE));
+        
+        for (int reopen = 0; reopen < 2; reopen++) {
+            for (int i = 0; i < 100; i++) {
+                byte[] expected = i >= 50 && i < 60 ? value(2, i)
+                        : i == 60 ? null : ("written-" + i).getBytes(StandardCharsets.UTF_8);
+                assertArrayEquals(expected, engine.get(key(i)), "Key " + i);
+            }
+            for (int i = 1000; i < 3000; i += 7) {
+                assertArrayEquals(value(1, i), engine.get(key(i)), "Key " + i);
+            }
+            assertNull(engine.get(key(4000)));
+            
+            // The order of the SSTables is kept in the MANIFEST
+            engine.close();
+            engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES);
+        }
+    }
+    
+    @Test
+    @DisplayName("External SSTables are linked into the data directory and become readable")
+    void testIngestExternalFile() throws Exception {
+        Path exportDirectory = Files.createDirectories(tempDir.resolve("export"));
+        Path external = exportDirectory.resolve("export.sst");
+        try (SSTableWriter writer = new SSTableWriter(external)) {
+            for (int i = 0; i < 500; i++) {
+                writer.add(key(i), value(1, i));
+            }
+            writer.finish("export", 12345);
+        }
+        
+        engine.put(key(10), "older".getBytes(StandardCharsets.UTF_8));
+        engine.ingestExternalFile(external);
+        
+        assertTrue(Files.exists(external), "The original file should be left in place");
+        for (int i = 0; i < 500; i++) {
+            assertArrayEquals(value(1, i), engine.get(key(i)), "Key " + i);
+        }
+        
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES);
+        assertArrayEquals(value(1, 10), engine.get(key(10)));
+        
+        assertThrows(IOException.class, () -> engine.ingestExternalFile(exportDirectory.resolve("missing.sst")));
+    }
+    
+    @Test
+    @DisplayName("Ingested SSTables keep their place when compacted with older ones and reopened")
+    void testIngestThenCompact() throws Exception {
+        // Two SSTables holding two versions of the same key
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES, 1000, 2, 100);
+        engine.put(key(1), value(1, 1));
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES, 1000, 2, 100);
+        engine.put(key(1), value(2, 1));
+        engine.close();
+        
+        // A third one, overlapping neither, brings compaction on
+        engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES, 3, 2, 100);
+        engine.ingestSorted(Arrays.<Map.Entry<byte[], byte[]>>asList(
+                new AbstractMap.SimpleImmutableEntry<>(key(1000), value(1, 1000))).iterator());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSmallSSTables(Long.MAX_VALUE) > 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(2, countSmallSSTables(Long.MAX_VALUE));
+        
+        for (int reopen = 0; reopen < 2; reopen++) {
+            assertArrayEquals(value(2, 1), engine.get(key(1)));
+            assertArrayEquals(value(1, 1000), engine.get(key(1000)));
+            engine.close();
+            engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES, 1000, 2, 100);
+        }
+    }
+    
+    @Test
+    @DisplayName("Snapshots taken before an ingest do not see the ingested entries")
+    void testSnapshotBeforeIngest() throws Exception {
+        engine.put(key(1), value(1, 1));
+        Snapshot before = engine.getSnapshot();
+        
+        // Next to the existing data, and over it
+        engine.ingestSorted(Arrays.<Map.Entry<byte[], byte[]>>asList(
+                new AbstractMap.SimpleImmutableEntry<>(key(1000), value(2, 1000))).iterator());
+        engine.ingestSorted(Arrays.<Map.Entry<byte[], byte[]>>asList(
+                new AbstractMap.SimpleImmutableEntry<>(key(1), value(2, 1))).iterator());
+        
+        assertNull(engine.get(key(1000), before));
+        assertArrayEquals(value(1, 1), engine.get(key(1), before));
+        assertEquals(1, count(engine.scan(null, null, before)));
+        assertArrayEquals(value(2, 1000), engine.get(key(1000)));
+        assertArrayEquals(value(2, 1), engine.get(key(1)));
+        assertEquals(2, count(engine.scan(null, null)));
+        engine.releaseSnapshot(before);
+    }
+    
+    private static byte[] key(int i) {
+        return String.format("key%04d", i).getBytes(StandardCharsets.UTF_8);
+    }
+    
+    @Test
+    @DisplayName("Range and prefix scans merge MemTables and SSTables")
+    void testScan() throws IOException {
+        // Older versions end up in an SSTable
+        for (int i = 0; i < 20; i++) {
+            engine.put(String.format("a%02d", i).getBytes(StandardCharsets.UTF_8),
+                    ("old" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        engine.put("b00".getBytes(StandardCharsets.UTF_8), "b".getBytes(StandardCharsets.UTF_8));
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES);
+        
+        // Newer versions and deletes stay in the MemTable
+        engine.put("a05".getBytes(StandardCharsets.UTF_8), "new5".getBytes(StandardCharsets.UTF_8));
+        engine.delete("a06".getBytes(StandardCharsets.UTF_8));
+        engine.put("a055".getBytes(StandardCharsets.UTF_8), "added".getBytes(StandardCharsets.UTF_8));
+        
+        List<String> range = new ArrayList<>();
+        Iterator<Map.Entry<byte[], byte[]>> iterator = engine.scan(
+                "a04".getBytes(StandardCharsets.UTF_8), "a08".getBytes(StandardCharsets.UTF_8));
+        while (iterator.hasNext()) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            range.add(new String(entry.getKey(), StandardCharsets.UTF_8) + "="
+                    + new String(entry.getValue(), StandardCharsets.UTF_8));
+        }
+        assertEquals(Arrays.asList("a04=old4", "a05=new5", "a055=added", "a07=old7"), range);
+        
+        int count = 0;
+        iterator = engine.prefixScan("a".getBytes(StandardCharsets.UTF_8));
+        while (iterator.hasNext()) {
+            assertEquals('a', (char) iterator.next().getKey()[0]);
+            count++;
+        }
+        assertEquals(20, count);
+        
+        iterator = engine.scan(null, null);
+        count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertEquals(21, count);
+    }
+    
+    @Test
+    @DisplayName("Snapshots read the same data across overwrites, deletes, flushes and compactions")
+    void testSnapshots() throws Exception {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 2 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        engine.setCompactionTargetFileSize(64 * 1024);
+        
+        for (int i = 0; i < 200; i++) {
+            engine.put(key(i), value(1, i));
+        }
+        Snapshot first = engine.getSnapshot();
+        for (int i = 0; i < 200; i++) {
+            if (i % 3 == 0) {
+                engine.delete(key(i));
+            } else if (i % 2 == 0) {
+                engine.put(key(i), value(2, i));
+            }
+        }
+        Snapshot second = engine.getSnapshot();
+        assertTrue(second.getSequence() > first.getSequence());
+        assertEquals(2, engine.getSnapshotCount());
+        for (int i = 0; i < 200; i++) {
+            engine.put(key(i), value(3, i));
+        }
+        
+        // Wait until compaction has merged the SSTables, keeping the versions the snapshots read
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSmallSSTables(64 * 1024) >= 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(countSmallSSTables(64 * 1024) < 3, "Small SSTables should have been compacted");
+        
+        for (int i = 0; i < 200; i++) {
+            assertArrayEquals(value(1, i), engine.get(key(i), first), "Key " + i + " at the first snapshot");
+            if (i % 3 == 0) {
+                assertNull(engine.get(key(i), second), "Key " + i + " at the second snapshot");
+            } else {
+                assertArrayEquals(value(i % 2 == 0 ? 2 : 1, i), engine.get(key(i), second),
+                        "Key " + i + " at the second snapshot");
+            }
+            assertArrayEquals(value(3, i), engine.get(key(i)), "Key " + i);
+        }
+        
+        // Scans see the snapshot's versions and skip the keys it had deleted
+        int count = 0;
+        Iterator<Map.Entry<byte[], byte[]>> iterator = engine.scan(null, null, second);
+        while (iterator.hasNext()) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            int i = Integer.parseInt(new String(entry.getKey(), StandardCharsets.UTF_8).substring(3));
+            assertTrue(i % 3 != 0, "Deleted key " + i);
+            assertArrayEquals(value(i % 2 == 0 ? 2 : 1, i), entry.getValue(), "Key " + i);
+            count++;
+        }
+        assertEquals(133, count);
+        iterator = engine.prefixScan("key01".getBytes(StandardCharsets.UTF_8), first);
+        count = 0;
+        while (iterator.hasNext()) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            assertArrayEquals(value(1, 100 + count), entry.getValue());
+            count++;
+        }
+        assertEquals(100, count);
+        
+        // Released snapshots can no longer be read, and the others are unaffected
+        first.close();
+        first.close();
+        assertEquals(1, engine.getSnapshotCount());
+        assertThrows(IllegalStateException.class, () -> engine.get(key(0), first));
+        for (int i = 0; i < 200; i++) {
+            engine.put(key(i), value(4, i));
+        }
+        assertArrayEquals(value(2, 2), engine.get(key(2), second));
+        assertArrayEquals(value(4, 2), engine.get(key(2)));
+        engine.releaseSnapshot(second);
+        assertEquals(0, engine.getSnapshotCount());
+    }
+    
+    @Test
+    @DisplayName("Range deletes hide older versions in MemTables and SSTables, also after a restart")
+    void testDeleteRange() throws Exception {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 2 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        engine.setCompactionTargetFileSize(64 * 1024);
+        
+        for (int i = 0; i < 300; i++) {
+            engine.put(key(i), value(1, i));
+        }
+        Snapshot before = engine.getSnapshot();
+        engine.deleteRange(key(100), key(200));
+        engine.put(key(150), value(2, 150));
+        engine.deletePrefix("key02".getBytes(StandardCharsets.UTF_8));
+        engine.deleteRange(key(50), key(50)); // Empty
+        
+        for (int i = 0; i < 300; i++) {
+            if (i == 150) {
+                assertArrayEquals(value(2, i), engine.get(key(i)));
+            } else if (i >= 100) {
+                assertNull(engine.get(key(i)), "Key " + i);
+            } else {
+                assertArrayEquals(value(1, i), engine.get(key(i)), "Key " + i);
+            }
+            assertArrayEquals(value(1, i), engine.get(key(i), before), "Key " + i + " at the snapshot");
+        }
+        assertEquals(101, count(engine.scan(null, null)));
+        assertEquals(300, count(engine.scan(null, null, before)));
+        assertEquals(1, count(engine.prefixScan("key01".getBytes(StandardCharsets.UTF_8))));
+        engine.releaseSnapshot(before);
+        
+        // Once compacted and reopened, the range tombstones are read from SSTables
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSmallSSTables(64 * 1024) >= 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 2 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        assertEquals(101, count(engine.scan(null, null)));
+        assertNull(engine.get(key(199)));
+        assertArrayEquals(value(2, 150), engine.get(key(150)));
+        
+        // Writes after a range delete are not affected by it
+        engine.put(key(199), value(3, 199));
+        assertArrayEquals(value(3, 199), engine.get(key(199)));
+    }
+    
+    @Test
+    @DisplayName("SSTables covered by a range delete are dropped without being compacted")
+    void testDeleteRangeDropsSSTables() throws Exception {
+        engine.close();
+        // Compaction never triggers on its own
+        engine = new LSMStorageEngine(tempDir, 2 * 1024, MAX_IMMUTABLE_MEM_TABLES, 1000, 3, 100);
+        
+        for (int i = 0; i < 300; i++) {
+            engine.put(key(i), value(1, i));
+        }
+        engine.put("other".getBytes(StandardCharsets.UTF_8), value(1, 0));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSmallSSTables(Long.MAX_VALUE) < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        List<Path> before = listSSTables();
+        assertTrue(before.size() >= 3, "Expected several SSTables, found " + before.size());
+        
+        // Everything from key0000 on; the range tombstone reaches an SSTable when
+        // its MemTable fills up. Flushes may still be adding SSTables meanwhile, so
+        // the ones that were there are checked rather than the count.
+        engine.deletePrefix("key".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 100; i++) {
+            engine.put(("padding" + i).getBytes(StandardCharsets.UTF_8), value(2, i));
+        }
+        deadline = System.currentTimeMillis() + 10000;
+        while (before.stream().allMatch(Files::exists) && System.currentTimeMillis() < deadline) {
+            engine.triggerCompactionCheck();
+            Thread.sleep(50);
+        }
+        assertFalse(before.stream().allMatch(Files::exists), "Covered SSTables should have been dropped");
+        
+        for (int i = 0; i < 300; i++) {
+            assertNull(engine.get(key(i)), "Key " + i);
+        }
+        assertArrayEquals(value(1, 0), engine.get("other".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0, count(engine.prefixScan("key".getBytes(StandardCharsets.UTF_8))));
+    }
+    
+    @Test
+    @DisplayName("A compaction filter drops and rewrites the entries compactions copy")
+    void testCompactionFilter() throws Exception {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 2 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        engine.setCompactionTargetFileSize(64 * 1024);
+        byte[] rewritten = "rewritten".getBytes(StandardCharsets.UTF_8);
+        engine.setCompactionFilter((key, value) -> {
+            String name = new String(key, StandardCharsets.UTF_8);
+            if (!name.startsWith("key")) {
+                return value;
+            }
+            int i = Integer.parseInt(name.substring(3));
+            if (i % 3 == 0) {
+                return null;
+            }
+            return i % 3 == 1 ? rewritten : value;
+        });
+        
+        for (int i = 0; i < 100; i++) {
+            engine.put(key(i), value(1, i));
+        }
+        // Later SSTables push the keys above into the oldest ones, which are compacted first
+        for (int i = 0; i < 300; i++) {
+            engine.put(("padding" + i).getBytes(StandardCharsets.UTF_8), value(2, i));
+        }
+        
+        long deadline = System.currentTimeMillis() + 10000;
+        while (engine.get(key(0)) != null && System.currentTimeMillis() < deadline) {
+            engine.triggerCompactionCheck();
+            Thread.sleep(50);
+        }
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0) {
+                assertNull(engine.get(key(i)), "Key " + i);
+            } else {
+                assertArrayEquals(i % 3 == 1 ? rewritten : value(1, i), engine.get(key(i)), "Key " + i);
+            }
+        }
+        assertArrayEquals(value(2, 0), engine.get("padding0".getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    @Test
+    @DisplayName("Expired SSTables are dropped whole, and time windows keep new data out of them")
+    void testTimeToLive() throws Exception {
+        engine.close();
+        engine = openTimeWindowEngine();
+        for (int i = 0; i < 200; i++) {
+            engine.put(key(i), value(1, i));
+        }
+        // Closing flushes the last of the keys too
+        engine.close();
+        engine = openTimeWindowEngine();
+        Thread.sleep(3000);
+        
+        // Written in a later window, so never merged with the keys above
+        for (int i = 0; i < 200; i++) {
+            engine.put(("fresh" + i).getBytes(StandardCharsets.UTF_8), value(2, i));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSmallSSTables(Long.MAX_VALUE) < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        
+        engine.setTimeToLive(2000);
+        deadline = System.currentTimeMillis() + 10000;
+        while (engine.get(key(0)) != null && System.currentTimeMillis() < deadline) {
+            engine.triggerCompactionCheck();
+            Thread.sleep(50);
+        }
+        for (int i = 0; i < 200; i++) {
+            assertNull(engine.get(key(i)), "Key " + i);
+        }
+        for (int i = 0; i < 200; i++) {
+            assertArrayEquals(value(2, i), engine.get(("fresh" + i).getBytes(StandardCharsets.UTF_8)), "Fresh key " + i);
+        }
+    }
+    
+    @Test
+    @DisplayName("Time-window compaction merges past windows and leaves each window in files of its own")
+    void testTimeWindowSelection() throws Exception {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        engine.setCompactionType(CompactionStrategy.CompactionType.TIME_WINDOW);
+        long hour = 60L * 60 * 1000;
+        long now = System.currentTimeMillis();
+        long pastWindow = (now / hour - 10) * hour;
+
+        // Two files of a past window, one of the window after it, and two of the
+        // current window, which are too few to compact before it has passed
+        long[] newestWriteTimes = {pastWindow + 1000, pastWindow + 2000, pastWindow + hour + 1000, now, now};
+        Path exportDirectory = Files.createDirectories(tempDir.resolve("export"));
+        for (int f = 0; f < newestWriteTimes.length; f++) {
+            Path external = exportDirectory.resolve("export" + f + ".sst");
+            try (SSTableWriter writer = new SSTableWriter(external)) {
+                for (int i = f * 100; i < f * 100 + 100; i++) {
+                    writer.add(key(i), value(1, i));
+                }
+                writer.setNewestWriteTime(newestWriteTimes[f]);
+                writer.finish("export" + f, 0).close();
+            }
+            engine.ingestExternalFile(external);
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSmallSSTables(Long.MAX_VALUE) > 4 && System.currentTimeMillis() < deadline) {
+            engine.triggerCompactionCheck();
+            Thread.sleep(50);
+        }
+        // Several more compaction checks must not merge anything else
+        for (int i = 0; i < 5; i++) {
+            engine.triggerCompactionCheck();
+            Thread.sleep(100);
+        }
+
+        List<Long> windows = new ArrayList<>();
+        try (Stream<Path> files = Files.list(tempDir)) {
+            for (Path path : (Iterable<Path>) files.filter(p -> p.toString().endsWith(".db"))::iterator) {
+                SSTable ssTable = new SSTable(path);
+                try {
+                    windows.add(ssTable.getNewestWriteTime() / hour);
+                } finally {
+                    ssTable.close();
+                }
+            }
+        }
+        windows.sort(null);
+        assertEquals(Arrays.asList(pastWindow / hour, pastWindow / hour + 1, now / hour, now / hour), windows);
+        for (int i = 0; i < 500; i++) {
+            assertArrayEquals(value(1, i), engine.get(key(i)), "Key " + i);
+        }
+    }
+
+    @Test
+    @DisplayName("The small SSTable that each past time window keeps does not stop writes")
+    void testTimeWindowsDoNotStopWrites() throws Exception {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 2 * 1024, MAX_IMMUTABLE_MEM_TABLES, 2, 3, 100);
+        engine.setCompactionTargetFileSize(64 * 1024);
+        engine.setCompactionType(CompactionStrategy.CompactionType.TIME_WINDOW);
+        long window = 200;
+        engine.setCompactionTimeWindow(window);
+        
+        // A few flushes in each of many windows, each of which ends up compacted
+        // into a single SSTable below the target size
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> writer = executor.submit(() -> {
+            for (int w = 0; w < 15; w++) {
+                for (int i = 0; i < 100; i++) {
+                    engine.put(key(w * 100 + i), value(1, w * 100 + i));
+                }
+                Thread.sleep(window - System.currentTimeMillis() % window + 10);
+            }
+            return null;
+        });
+        try {
+            writer.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        assertEquals(0, engine.getWriteController().getStopCount(), engine.getWriteController().toString());
+        for (int i = 0; i < 1500; i += 7) {
+            assertArrayEquals(value(1, i), engine.get(key(i)), "Key " + i);
+        }
+    }
+    
+    private LSMStorageEngine openTimeWindowEngine() throws IOException {
+        LSMStorageEngine timeWindowEngine = new LSMStorageEngine(tempDir, 2 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        timeWindowEngine.setCompactionTargetFileSize(64 * 1024);
+        timeWindowEngine.setCompactionType(CompactionStrategy.CompactionType.TIME_WINDOW);
+        timeWindowEngine.setCompactionTimeWindow(1000);
+        return timeWindowEngine;
+    }
+    
+    private static int count(Iterator<Map.Entry<byte[], byte[]>> iterator) {
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+    
+    @Test
+    @DisplayName("Reads find every key while flushes and compactions replace the SSTables")
+    void testReadsDuringCompaction() throws Exception {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 2 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        engine.setCompactionTargetFileSize(64 * 1024);
+        
+        for (int i = 0; i < 100; i++) {
+            engine.put(key(i), value(1, i));
+        }
+        
+        // Readers check the first keys, which are never deleted, while writers
+        // overwrite the rest and cause flushes and compactions
+        int numReaders = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(numReaders);
+        CountDownLatch done = new CountDownLatch(1);
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int t = 0; t < numReaders; t++) {
+            readers.add(executor.submit(() -> {
+                int reads = 0;
+                while (done.getCount() > 0) {
+                    for (int i = 0; i < 100; i++) {
+                        assertNotNull(engine.get(key(i)), "Key " + i);
+                        reads++;
+                    }
+                }
+                return reads;
+            }));
+        }
+        for (int round = 2; round <= 6; round++) {
+            for (int i = 100; i < 300; i++) {
+                engine.put(key(i), value(round, i));
+            }
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countSmallSSTables(64 * 1024) >= 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        done.countDown();
+        for (Future<Integer> reader : readers) {
+            assertTrue(reader.get(30, TimeUnit.SECONDS) > 0);
+        }
+        executor.shutdown();
+        assertTrue(countSmallSSTables(64 * 1024) < 3, "Small SSTables should have been compacted");
+        
+        for (int i = 100; i < 300; i++) {
+            assertArrayEquals(value(6, i), engine.get(key(i)), "Key " + i);
+        }
+        
+        // With no reader left, the SSTables compaction replaced have been deleted:
+        // reopening, which removes files missing from the MANIFEST, finds none
+        engine.close();
+        long files = countSmallSSTables(Long.MAX_VALUE);
+        engine = new LSMStorageEngine(tempDir, 2 * 1024, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        assertEquals(files, countSmallSSTables(Long.MAX_VALUE));
+        for (int i = 0; i < 300; i++) {
+            assertArrayEquals(value(i < 100 ? 1 : 6, i), engine.get(key(i)), "Key " + i);
+        }
+    }
+    
+    @Test
+    @DisplayName("An open scan keeps the SSTables it reads until it is exhausted or closed")
+    void testScanHoldsSSTables() throws Exception {
+        // Two SSTables, which a third one brings to compaction
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        for (int i = 0; i < 2; i++) {
+            engine.put(key(i), value(1, i));
+            engine.close();
+            engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES, 3, 3, 100);
+        }
+        List<Path> scanned = listSSTables();
+        assertEquals(2, scanned.size());
+        
+        CloseableIterator<Map.Entry<byte[], byte[]>> scan = engine.scan(null, null);
+        CloseableIterator<Map.Entry<byte[], byte[]>> closed = engine.scan(null, null);
+        assertArrayEquals(key(0), scan.next().getKey());
+        assertArrayEquals(key(0), closed.next().getKey());
+        engine.ingestSorted(Arrays.<Map.Entry<byte[], byte[]>>asList(
+                new AbstractMap.SimpleImmutableEntry<>(key(1000), value(1, 1000))).iterator());
+        // Only the scanned SSTables stay small; the compaction output holds all three keys
+        long largest = scanned.stream().mapToLong(path -> path.toFile().length()).max().getAsLong();
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((countSmallSSTables(largest + 16) > 2 || listSSTables().size() < 3)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(2, countSmallSSTables(largest + 16), "The ingested SSTable should have been compacted");
+        assertEquals(3, listSSTables().size());
+        
+        // Compacted, but still there for the scans
+        assertTrue(scanned.stream().allMatch(Files::exists), "Scanned SSTables should be kept");
+        closed.close();
+        assertFalse(closed.hasNext());
+        assertTrue(scan.hasNext());
+        Map.Entry<byte[], byte[]> entry = scan.next();
+        assertArrayEquals(key(1), entry.getKey());
+        assertArrayEquals(value(1, 1), entry.getValue());
+        assertFalse(scan.hasNext(), "The scan should not see later writes");
+        
+        for (Path path : scanned) {
+            assertFalse(Files.exists(path), "Exhausted and closed scans should release " + path.getFileName());
+        }
+        assertEquals(3, count(engine.scan(null, null)));
+    }
+    
     @Test
     @DisplayName("Engine can be closed and reopened")
     void testCloseAndReopen() throws IOException, InterruptedException {
-        // Skip this test for now as persistence is not fully implemented
-        // In a real implementation, we would test that data persists across restarts
-        
         // Create test data
         byte[] key1 = "key1".getBytes(StandardCharsets.UTF_8);
         byte[] value1 = "value1".getBytes(StandardCharsets.UTF_8);
         byte[] key2 = "key2".getBytes(StandardCharsets.UTF_8);
         byte[] value2 = "value2".getBytes(StandardCharsets.UTF_8);
+        byte[] key3 = "key3".getBytes(StandardCharsets.UTF_8);
         
         // Put data
         engine.put(key1, value1);
         engine.put(key2, value2);
+        engine.put(key3, value1);
+        engine.delete(key3);
         
         // Verify data can be read
         assertArrayEquals(value1, engine.get(key1));
         assertArrayEquals(value2, engine.get(key2));
+        
+        // Close the engine, which flushes the MemTable to an SSTable file
+        engine.close();
+        
+        // Reopen and verify the data was loaded from disk
+        engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES);
+        assertArrayEquals(value1, engine.get(key1));
+        assertArrayEquals(value2, engine.get(key2));
+        assertNull(engine.get(key3));
+        
+        // Newer writes shadow the data loaded from disk
+        engine.put(key1, value2);
+        engine.delete(key2);
+        assertArrayEquals(value2, engine.get(key1));
+        assertNull(engine.get(key2));
+    }
+    
+    @Test
+    @DisplayName("An engine with off-heap MemTables flushes, scans and recovers")
+    void testOffHeapMemTables() throws IOException, InterruptedException {
+        engine.close();
+        engine = new LSMStorageEngine(tempDir, 64 * 1024, MAX_IMMUTABLE_MEM_TABLES, 10, 4, 60000,
+                WALManager.SyncMode.SYNC, null, MemTable.Type.OFF_HEAP);
+        
+        // Enough data to fill several MemTables
+        byte[] value = new byte[500];
+        for (int i = 0; i < 1000; i++) {
+            Arrays.fill(value, (byte) i);
+            engine.put(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8), value);
+        }
+        engine.delete("key00007".getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(500);
+        
+        assertNull(engine.get("key00007".getBytes(StandardCharsets.UTF_8)));
+        assertEquals((byte) 999, engine.get("key00999".getBytes(StandardCharsets.UTF_8))[0]);
+        int scanned = 0;
+        Iterator<Map.Entry<byte[], byte[]>> entries = engine.scan(null, null);
+        while (entries.hasNext()) {
+            entries.next();
+            scanned++;
+        }
+        assertEquals(999, scanned);
+        engine.close();
+        
+        engine = new LSMStorageEngine(tempDir, 64 * 1024, MAX_IMMUTABLE_MEM_TABLES, 10, 4, 60000,
+                WALManager.SyncMode.SYNC, null, MemTable.Type.OFF_HEAP);
+        assertEquals((byte) 123, engine.get("key00123".getBytes(StandardCharsets.UTF_8))[0]);
+        assertNull(engine.get("key00007".getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    @Test
+    @DisplayName("Startup opens the SSTables listed in the MANIFEST and removes any others")
+    void testReopenFromManifest() throws IOException {
+        byte[] key = "key1".getBytes(StandardCharsets.UTF_8);
+        byte[] value = "value1".getBytes(StandardCharsets.UTF_8);
+        engine.put(key, value);
+        engine.close();
+        assertTrue(Files.exists(tempDir.resolve(VersionSet.CURRENT_FILE)));
+        
+        // A file the MANIFEST does not list, like the output of an interrupted flush
+        Path orphan = tempDir.resolve(SSTable.fileName("7fffffffffffffff"));
+        try (Stream<Path> paths = Files.list(tempDir)) {
+            Path ssTablePath = paths.filter(p -> p.getFileName().toString().endsWith(".db")).findFirst().get();
+            Files.copy(ssTablePath, orphan);
+        }
+        
+        engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES);
+        assertArrayEquals(value, engine.get(key));
+        assertFalse(Files.exists(orphan));
+        engine.close();
+        
+        // A directory written before the MANIFEST existed is scanned and upgraded
+        try (Stream<Path> paths = Files.list(tempDir)) {
+            for (Path path : paths.filter(p -> p.getFileName().toString().startsWith("MANIFEST-")
+                    || p.getFileName().toString().equals(VersionSet.CURRENT_FILE)).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+        engine = new LSMStorageEngine(tempDir, MEM_TABLE_MAX_SIZE, MAX_IMMUTABLE_MEM_TABLES);
+        assertArrayEquals(value, engine.get(key));
+        assertTrue(Files.exists(tempDir.resolve(VersionSet.CURRENT_FILE)));
     }
-}
\ No newline at end of file
+}
@@ -6,6 +6,8 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Tag;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.NavigableMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -201,4 +203,40 @@ public class MemTableTest {
         // Verify count
         assertEquals(2, count.get());
     }
+    
+    @Test
+    @DisplayName("Versions kept for snapshots are found by sequence number and iterated newest first")
+    void testVersions() {
+        byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+        byte[] value1 = "value1".getBytes(StandardCharsets.UTF_8);
+        byte[] value2 = "value2".getBytes(StandardCharsets.UTF_8);
+        byte[] value3 = "value3".getBytes(StandardCharsets.UTF_8);
+        
+        memTable.put(key, value1, 10, false);
+        memTable.put(key, value2, 20, true);
+        memTable.delete(key, 30, true);
+        
+        // A version older than the newest one is ignored
+        memTable.put(key, "stale".getBytes(StandardCharsets.UTF_8), 25, true);
+        
+        assertNull(memTable.get(key));
+        assertNull(memTable.lookup(key, 5));
+        assertArrayEquals(value1, memTable.lookup(key, 19));
+        assertArrayEquals(value2, memTable.lookup(key, 29));
+        assertEquals(0, memTable.lookup(key, 30).length);
+        assertEquals(1, memTable.size());
+        
+        Iterator<Map.Entry<byte[], byte[]>> versions = memTable.iterator();
+        assertEquals(30, SequencedEntry.sequenceOf(versions.next()));
+        assertEquals(20, SequencedEntry.sequenceOf(versions.next()));
+        assertEquals(10, SequencedEntry.sequenceOf(versions.next()));
+        assertFalse(versions.hasNext());
+        
+        // A write no snapshot needs the older versions of drops them
+        memTable.put(key, value3, 40, false);
+        versions = memTable.iterator();
+        assertArrayEquals(value3, versions.next().getValue());
+        assertFalse(versions.hasNext());
+        assertEquals(key.length + value3.length, memTable.getSizeInBytes());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import org.junit.jupiter.api.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the MergingIterator class.
+ */
+@DisplayName("Merging Iterator Tests")
+@Tag("fast")
+public class MergingIteratorTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Iterator<Map.Entry<byte[], byte[]>> source(String... keyValues) {
+        NavigableMap<byte[], byte[]> map = new TreeMap<>(new ByteArrayComparator());
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map.put(bytes(keyValues[i]), bytes(keyValues[i + 1]));
+        }
+        return map.entrySet().iterator();
+    }
+
+    private static List<String> drain(Iterator<Map.Entry<byte[], byte[]>> iterator) {
+        List<String> result = new ArrayList<>();
+        while (iterator.hasNext()) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            result.add(new String(entry.getKey(), StandardCharsets.UTF_8) + "="
+                    + new String(entry.getValue(), StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    @Test
+    @DisplayName("Sources are merged in key order")
+    void testMergeOrder() {
+        MergingIterator iterator = new MergingIterator(Arrays.asList(
+                source("b", "1", "e", "1"),
+                source("a", "2", "d", "2"),
+                source("c", "3", "f", "3")));
+
+        assertEquals(Arrays.asList("a=2", "b=1", "c=3", "d=2", "e=1", "f=3"), drain(iterator));
+    }
+
+    @Test
+    @DisplayName("Newest source wins for duplicate keys")
+    void testNewestWins() {
+        MergingIterator iterator = new MergingIterator(Arrays.asList(
+                source("a", "new", "c", ""),
+                source("a", "mid", "b", "mid", "c", "mid"),
+                source("a", "old", "b", "old", "d", "old")));
+
+        // Tombstones (empty values) are passed through
+        assertEquals(Arrays.asList("a=new", "b=mid", "c=", "d=old"), drain(iterator));
+    }
+
+    @Test
+    @DisplayName("Empty sources are handled")
+    void testEmptySources() {
+        assertFalse(new MergingIterator(Collections.emptyList()).hasNext());
+
+        MergingIterator iterator = new MergingIterator(Arrays.asList(source(), source("a", "1"), source()));
+        assertEquals(Collections.singletonList("a=1"), drain(iterator));
+    }
+}
@@ -0,0 +1,158 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the OffHeapMemTable class.
+ */
+@DisplayName("Off-Heap MemTable Tests")
+@Tag("fast")
+public class OffHeapMemTableTest {
+
+    private OffHeapMemTable memTable;
+    private static final long MAX_SIZE = 1024 * 1024; // 1MB
+
+    @BeforeEach
+    void setUp() {
+        // Small chunks, so entries span several of them
+        memTable = new OffHeapMemTable(MAX_SIZE, 256);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    @DisplayName("Puts, updates and deletes read back like a heap MemTable")
+    void testMatchesHeapMemTable() {
+        MemTable heap = new MemTable(MAX_SIZE);
+        for (int i = 0; i < 500; i++) {
+            byte[] key = bytes("key" + (i % 120));
+            if (i % 9 == 0) {
+                memTable.delete(key);
+                heap.delete(key);
+            } else {
+                byte[] value = bytes("value" + i);
+                memTable.put(key, value);
+                heap.put(key, value);
+            }
+        }
+        // Keys with negative bytes sort before positive ones, as in ByteArrayComparator
+        memTable.put(new byte[]{(byte) 0x80}, bytes("negative"));
+        heap.put(new byte[]{(byte) 0x80}, bytes("negative"));
+
+        assertEquals(heap.size(), memTable.size());
+        for (int i = 0; i < 120; i++) {
+            byte[] key = bytes("key" + i);
+            assertArrayEquals(heap.get(key), memTable.get(key));
+            assertArrayEquals(heap.lookup(key), memTable.lookup(key));
+        }
+        assertNull(memTable.get(bytes("missing")));
+        assertFalse(memTable.containsKey(bytes("missing")));
+        assertTrue(memTable.getChunkCount() > 1);
+
+        Iterator<Map.Entry<byte[], byte[]>> expected = heap.iterator();
+        Iterator<Map.Entry<byte[], byte[]>> actual = memTable.iterator();
+        while (expected.hasNext()) {
+            Map.Entry<byte[], byte[]> expectedEntry = expected.next();
+            Map.Entry<byte[], byte[]> actualEntry = actual.next();
+            assertArrayEquals(expectedEntry.getKey(), actualEntry.getKey());
+            assertArrayEquals(expectedEntry.getValue(), actualEntry.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    @Test
+    @DisplayName("Range iterators honour their bounds")
+    void testRangeIterator() {
+        for (int i = 0; i < 100; i++) {
+            memTable.put(bytes(String.format("key%03d", i)), bytes("value" + i));
+        }
+
+        List<String> keys = new ArrayList<>();
+        Iterator<Map.Entry<byte[], byte[]>> range = memTable.iterator(bytes("key010"), bytes("key015"));
+        while (range.hasNext()) {
+            keys.add(new String(range.next().getKey(), StandardCharsets.UTF_8));
+        }
+        assertEquals(5, keys.size());
+        assertEquals("key010", keys.get(0));
+        assertEquals("key014", keys.get(4));
+
+        assertFalse(memTable.iterator(bytes("key050"), bytes("key050")).hasNext());
+        NavigableMap<byte[], byte[]> snapshot = memTable.getSnapshot();
+        assertEquals(100, snapshot.size());
+        assertArrayEquals(bytes("value99"), snapshot.lastEntry().getValue());
+    }
+
+    @Test
+    @DisplayName("Arena space, including overwritten entries, counts towards the flush threshold")
+    void testSizeTracksArena() {
+        OffHeapMemTable small = new OffHeapMemTable(1000, 4096);
+        byte[] value = new byte[100];
+        boolean shouldFlush = false;
+        int puts = 0;
+        while (!shouldFlush) {
+            shouldFlush = small.put(bytes("same-key"), value);
+            puts++;
+        }
+        assertEquals(1, small.size());
+        assertEquals(8, puts); // 132 bytes per entry
+        assertTrue(small.getSizeInBytes() >= 1000);
+
+        // Entries larger than a chunk get a chunk of their own
+        small.put(bytes("large"), new byte[10000]);
+        assertEquals(10000, small.get(bytes("large")).length);
+
+        small.clear();
+        assertTrue(small.isEmpty());
+        assertEquals(0, small.getSizeInBytes());
+    }
+
+    @Test
+    @DisplayName("Concurrent writers and readers see complete entries")
+    void testConcurrentAccess() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        byte[] key = bytes("thread" + thread + "-" + i);
+                        memTable.put(key, key);
+                        assertArrayEquals(key, memTable.get(key));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(4000, memTable.size());
+        TreeMap<byte[], byte[]> sorted = new TreeMap<>(new ByteArrayComparator());
+        memTable.forEach(sorted::put);
+        assertEquals(4000, sorted.size());
+        for (Map.Entry<byte[], byte[]> entry : sorted.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue());
+        }
+    }
+}
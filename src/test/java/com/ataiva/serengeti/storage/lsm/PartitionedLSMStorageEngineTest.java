@@ -0,0 +1,183 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the PartitionedLSMStorageEngine class.
+ */
+@DisplayName("Partitioned LSM Storage Engine Tests")
+@Tag("fast")
+public class PartitionedLSMStorageEngineTest {
+
+    @TempDir
+    Path tempDir;
+
+    private PartitionedLSMStorageEngine engine;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        engine = new PartitionedLSMStorageEngine(tempDir, 4, 4 * 1024, 2);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key%04d", i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> keys(Iterator<Map.Entry<byte[], byte[]>> entries) {
+        List<String> keys = new ArrayList<>();
+        while (entries.hasNext()) {
+            keys.add(new String(entries.next().getKey(), StandardCharsets.UTF_8));
+        }
+        return keys;
+    }
+
+    @Test
+    @DisplayName("Keys are spread over every partition and read back from their own")
+    void testPutGetDelete() throws IOException {
+        for (int i = 0; i < 400; i++) {
+            engine.put(key(i), value(i));
+        }
+        engine.delete(key(7));
+
+        int[] counts = new int[engine.getPartitionCount()];
+        for (int i = 0; i < 400; i++) {
+            int partition = engine.partitionOf(key(i));
+            counts[partition]++;
+            if (i == 7) {
+                assertNull(engine.get(key(i)));
+            } else {
+                assertArrayEquals(value(i), engine.get(key(i)), "Key " + i);
+                assertArrayEquals(value(i), engine.getPartitions().get(partition).get(key(i)), "Key " + i);
+            }
+        }
+        for (int count : counts) {
+            assertTrue(count > 50, "Partitions should get similar shares of the keys");
+        }
+    }
+
+    @Test
+    @DisplayName("Scans merge the partitions in key order")
+    void testScan() throws IOException {
+        for (int i = 0; i < 200; i++) {
+            engine.put(key(i), value(i));
+        }
+        engine.put("other".getBytes(StandardCharsets.UTF_8), value(0));
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 50; i < 150; i++) {
+            expected.add(new String(key(i), StandardCharsets.UTF_8));
+        }
+        assertEquals(expected, keys(engine.scan(key(50), key(150))));
+        assertEquals(200, keys(engine.prefixScan("key".getBytes(StandardCharsets.UTF_8))).size());
+        assertEquals(201, keys(engine.scan(null, null)).size());
+
+        engine.deleteRange(key(0), key(100));
+        assertEquals(100, keys(engine.prefixScan("key".getBytes(StandardCharsets.UTF_8))).size());
+        engine.deletePrefix("key".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, keys(engine.scan(null, null)).size());
+    }
+
+    @Test
+    @DisplayName("Write batches are split over the partitions")
+    void testWriteBatch() throws IOException {
+        engine.put(key(1), value(1));
+        WriteBatch batch = new WriteBatch();
+        for (int i = 10; i < 50; i++) {
+            batch.put(key(i), value(i));
+        }
+        batch.delete(key(1));
+        engine.write(batch);
+
+        assertNull(engine.get(key(1)));
+        for (int i = 10; i < 50; i++) {
+            assertArrayEquals(value(i), engine.get(key(i)), "Key " + i);
+        }
+    }
+
+    @Test
+    @DisplayName("Null keys and batches are handled as by an unpartitioned engine")
+    void testNullKeysMatchSingleEngine() throws IOException {
+        try (LSMStorageEngine single = new LSMStorageEngine(tempDir.resolve("single"), 4 * 1024, 2)) {
+            single.put(null, value(1));
+            engine.put(null, value(1));
+            assertEquals(single.get(null), engine.get(null));
+            assertNull(engine.get(null));
+
+            single.delete(null);
+            engine.delete(null);
+            single.write(null);
+            engine.write(null);
+            assertEquals(keys(single.scan(null, null)), keys(engine.scan(null, null)));
+        }
+    }
+
+    @Test
+    @DisplayName("Writers on many threads fill every partition, and a reopened database keeps its partitions")
+    void testConcurrentWritesAndReopen() throws Exception {
+        int numThreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            int thread = t;
+            writers.add(executor.submit(() -> {
+                for (int i = thread; i < 2000; i += numThreads) {
+                    engine.put(key(i), value(i));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        executor.shutdown();
+
+        // The stored number of partitions wins over the one asked for
+        engine.close();
+        engine = new PartitionedLSMStorageEngine(tempDir, 2, 4 * 1024, 2);
+        assertEquals(4, engine.getPartitionCount());
+        for (int i = 0; i < 2000; i++) {
+            assertArrayEquals(value(i), engine.get(key(i)), "Key " + i);
+        }
+    }
+
+    @Test
+    @DisplayName("A directory holding an unpartitioned database is not opened as a partitioned one")
+    void testRejectsUnpartitionedDatabase() throws IOException {
+        Path single = tempDir.resolve("single");
+        try (LSMStorageEngine unpartitioned = new LSMStorageEngine(single, 4 * 1024, 2)) {
+            unpartitioned.put(key(1), value(1));
+        }
+        assertTrue(Files.exists(single));
+        assertThrows(IOException.class, () -> new PartitionedLSMStorageEngine(single, 4, 4 * 1024, 2));
+    }
+}
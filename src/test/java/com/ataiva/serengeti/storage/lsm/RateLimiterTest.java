@@ -0,0 +1,59 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the RateLimiter class.
+ */
+@DisplayName("Rate Limiter Tests")
+@Tag("fast")
+public class RateLimiterTest {
+
+    @Test
+    @DisplayName("An unlimited limiter only counts requests")
+    void testUnlimited() throws Exception {
+        RateLimiter limiter = new RateLimiter(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            limiter.request(1024 * 1024);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(100L * 1024 * 1024, limiter.getTotalBytes());
+        assertEquals(100, limiter.getTotalRequests());
+        assertEquals(0, limiter.getThrottledNanos());
+    }
+
+    @Test
+    @DisplayName("Requests beyond the burst are held to the rate")
+    void testLimitsRate() throws Exception {
+        RateLimiter limiter = new RateLimiter(1024 * 1024); // 1MB/s, 102KB burst
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            limiter.request(64 * 1024);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // 640KB less the initial burst takes about half a second
+        assertTrue(elapsedMs >= 400, "Elapsed " + elapsedMs + "ms");
+        assertTrue(limiter.getThrottledNanos() > 0);
+    }
+
+    @Test
+    @DisplayName("Lifting the limit lets later requests through at once")
+    void testChangeRate() throws Exception {
+        RateLimiter limiter = new RateLimiter(64 * 1024);
+        limiter.request(64 * 1024);
+        limiter.setBytesPerSecond(0);
+
+        long start = System.nanoTime();
+        limiter.request(10 * 1024 * 1024);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, limiter.getBytesPerSecond());
+    }
+}
@@ -139,7 +139,7 @@ public class SSTableFastTest extends LSMFastTestBase {
         
         // Verify metadata
         assertEquals(2, metadata.getEntryCount());
-        assertEquals(1, metadata.getVersion());
+        assertEquals(3, metadata.getVersion());
         assertTrue(metadata.getFileSize() > 0);
         
         // Close the SSTable
@@ -0,0 +1,355 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import com.ataiva.serengeti.storage.compression.StorageCompressor.CompressionAlgorithm;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the SSTableWriter class and the on-disk SSTable format.
+ */
+@DisplayName("SSTable Writer Tests")
+@Tag("fast")
+public class SSTableWriterTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    @DisplayName("Entries spanning many blocks can be read back")
+    void testMultipleBlocks() throws IOException {
+        Path path = tempDir.resolve(SSTable.fileName("multi"));
+        SSTable ssTable;
+        try (SSTableWriter writer = new SSTableWriter(path, 256)) {
+            for (int i = 0; i < 1000; i++) {
+                writer.add(bytes(String.format("key%05d", i)), bytes("value" + i));
+            }
+            ssTable = writer.finish("multi", 42);
+        }
+
+        assertTrue(ssTable.getMetadata().getBlockCount() > 1);
+        assertEquals(1000, ssTable.getMetadata().getEntryCount());
+        assertEquals(42, ssTable.getMaxSequence());
+        assertEquals("key00000", ssTable.getMinKey());
+        assertEquals("key00999", ssTable.getMaxKey());
+
+        for (int i = 0; i < 1000; i++) {
+            assertArrayEquals(bytes("value" + i), ssTable.get(bytes(String.format("key%05d", i))));
+        }
+        assertNull(ssTable.get(bytes("key")));
+        assertNull(ssTable.get(bytes("key00500a")));
+        assertNull(ssTable.get(bytes("zzz")));
+
+        ssTable.close();
+        assertFalse(Files.exists(tempDir.resolve(SSTable.fileName("multi") + ".tmp")));
+    }
+
+    @Test
+    @DisplayName("Bloom filter is stored in the file and rejects absent keys")
+    void testPersistedBloomFilter() throws IOException {
+        Path path = tempDir.resolve(SSTable.fileName("filter"));
+        try (SSTableWriter writer = new SSTableWriter(path)) {
+            for (int i = 0; i < 2000; i += 2) {
+                writer.add(bytes(String.format("key%05d", i)), bytes("value" + i));
+            }
+            writer.finish("filter", 1).close();
+        }
+
+        SSTable ssTable = new SSTable(path);
+        int falsePositives = 0;
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = bytes(String.format("key%05d", i));
+            if (i % 2 == 0) {
+                assertTrue(ssTable.mightContain(key));
+            } else if (ssTable.mightContain(key)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 30, "Too many false positives: " + falsePositives);
+        ssTable.close();
+    }
+
+    @Test
+    @DisplayName("Iterator returns entries in order, including tombstones")
+    void testIterator() throws IOException {
+        MemTable memTable = new MemTable(1024 * 1024);
+        memTable.put(bytes("b"), bytes("2"));
+        memTable.put(bytes("a"), bytes("1"));
+        memTable.delete(bytes("c"));
+
+        SSTable ssTable = SSTable.create(memTable, tempDir, "iter", 3);
+        Iterator<Map.Entry<byte[], byte[]>> entries = ssTable.iterator();
+
+        Map.Entry<byte[], byte[]> entry = entries.next();
+        assertArrayEquals(bytes("a"), entry.getKey());
+        assertArrayEquals(bytes("1"), entry.getValue());
+        entry = entries.next();
+        assertArrayEquals(bytes("b"), entry.getKey());
+        entry = entries.next();
+        assertArrayEquals(bytes("c"), entry.getKey());
+        assertEquals(0, entry.getValue().length);
+        assertFalse(entries.hasNext());
+
+        assertNull(ssTable.get(bytes("c")));
+        ssTable.close();
+    }
+
+    @Test
+    @DisplayName("Iterator can start from a key in the middle of the table")
+    void testIteratorFromKey() throws IOException {
+        Path path = tempDir.resolve(SSTable.fileName("seek"));
+        SSTable ssTable;
+        try (SSTableWriter writer = new SSTableWriter(path, 128)) {
+            for (int i = 0; i < 500; i += 2) {
+                writer.add(bytes(String.format("key%04d", i)), bytes("value" + i));
+            }
+            ssTable = writer.finish("seek", 1);
+        }
+
+        // Starting at an absent key begins at the next key
+        Iterator<Map.Entry<byte[], byte[]>> entries = ssTable.iterator(bytes("key0251"));
+        assertArrayEquals(bytes("key0252"), entries.next().getKey());
+        assertArrayEquals(bytes("key0254"), entries.next().getKey());
+
+        entries = ssTable.iterator(bytes("key0000"));
+        int count = 0;
+        while (entries.hasNext()) {
+            entries.next();
+            count++;
+        }
+        assertEquals(250, count);
+
+        assertFalse(ssTable.iterator(bytes("zzz")).hasNext());
+
+        // An open iterator keeps working after the table is closed
+        entries = ssTable.iterator(bytes("key0400"));
+        ssTable.close();
+        count = 0;
+        while (entries.hasNext()) {
+            entries.next();
+            count++;
+        }
+        assertEquals(50, count);
+    }
+
+    @Test
+    @DisplayName("Data blocks are compressed and read back with every algorithm")
+    void testCompressedBlocks() throws IOException {
+        long uncompressedSize = 0;
+        for (CompressionAlgorithm algorithm : CompressionAlgorithm.values()) {
+            String id = algorithm.name().toLowerCase();
+            Path path = tempDir.resolve(SSTable.fileName(id));
+            SSTable ssTable;
+            try (SSTableWriter writer = new SSTableWriter(path, SSTableWriter.DEFAULT_BLOCK_SIZE, algorithm)) {
+                for (int i = 0; i < 2000; i++) {
+                    writer.add(bytes(String.format("user%05d", i)),
+                            bytes("{\"id\":" + i + ",\"name\":\"user" + i + "\",\"active\":true,\"roles\":[\"reader\"]}"));
+                }
+                ssTable = writer.finish(id, 1);
+            }
+
+            if (algorithm == CompressionAlgorithm.NONE) {
+                uncompressedSize = Files.size(path);
+            } else {
+                assertTrue(Files.size(path) < uncompressedSize / 2,
+                        algorithm + " file is " + Files.size(path) + " bytes, uncompressed " + uncompressedSize);
+            }
+
+            for (int i = 0; i < 2000; i += 7) {
+                assertArrayEquals(bytes("{\"id\":" + i + ",\"name\":\"user" + i + "\",\"active\":true,\"roles\":[\"reader\"]}"),
+                        ssTable.get(bytes(String.format("user%05d", i))));
+            }
+            int count = 0;
+            Iterator<Map.Entry<byte[], byte[]>> entries = ssTable.iterator();
+            while (entries.hasNext()) {
+                entries.next();
+                count++;
+            }
+            assertEquals(2000, count);
+            ssTable.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Blocks that do not compress are stored uncompressed")
+    void testIncompressibleBlocks() throws IOException {
+        Random random = new Random(1);
+        Path path = tempDir.resolve(SSTable.fileName("random"));
+        try (SSTableWriter writer = new SSTableWriter(path, SSTableWriter.DEFAULT_BLOCK_SIZE, CompressionAlgorithm.LZ4)) {
+            for (int i = 0; i < 100; i++) {
+                byte[] value = new byte[200];
+                random.nextBytes(value);
+                writer.add(bytes(String.format("key%03d", i)), value);
+            }
+            writer.finish("random", 1).close();
+        }
+
+        // The first data block starts at offset 0 and its trailer follows it
+        SSTable ssTable = new SSTable(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // type, shared length 0, unshared length 6, value length 200 (two varint bytes),
+            // no sequence number of its own, key
+            ByteBuffer firstEntry = ByteBuffer.allocate(12);
+            channel.read(firstEntry, 0);
+            assertEquals(SSTable.TYPE_PUT, firstEntry.get(0));
+            assertEquals(0, firstEntry.get(1));
+            assertEquals(6, firstEntry.get(2));
+            assertEquals(0, firstEntry.get(5));
+            assertArrayEquals(bytes("key000"), Arrays.copyOfRange(firstEntry.array(), 6, 12));
+        }
+        assertEquals(100, ssTable.getMetadata().getEntryCount());
+        ssTable.close();
+    }
+
+    @Test
+    @DisplayName("Keys with long shared prefixes are stored compactly and found across restart points")
+    void testPrefixCompressedKeys() throws IOException {
+        String prefix = "inventory#products#6f1c4a2b-9d3e-4a2b-1b2c3d4e5f60#";
+        Path path = tempDir.resolve(SSTable.fileName("prefix"));
+        SSTable ssTable;
+        long keyBytes = 0;
+        try (SSTableWriter writer = new SSTableWriter(path, SSTableWriter.DEFAULT_BLOCK_SIZE, CompressionAlgorithm.NONE)) {
+            for (int i = 0; i < 5000; i += 2) {
+                byte[] key = bytes(prefix + String.format("%08d", i));
+                keyBytes += key.length;
+                writer.add(key, bytes("v" + i));
+            }
+            ssTable = writer.finish("prefix", 1);
+        }
+
+        // Without compression the file would hold every key in full
+        assertTrue(Files.size(path) < keyBytes / 2, "File is " + Files.size(path) + " bytes for " + keyBytes + " key bytes");
+
+        for (int i = 0; i < 5000; i++) {
+            byte[] key = bytes(prefix + String.format("%08d", i));
+            if (i % 2 == 0) {
+                assertArrayEquals(bytes("v" + i), ssTable.get(key), "Key " + i);
+            } else {
+                assertNull(ssTable.get(key), "Key " + i);
+            }
+        }
+        assertNull(ssTable.get(bytes(prefix)));
+        assertNull(ssTable.get(bytes(prefix + "z")));
+
+        // Seeking to every position returns the following keys in order
+        for (int i = 0; i < 5000; i += 37) {
+            Iterator<Map.Entry<byte[], byte[]>> entries =
+                    ssTable.iterator(bytes(prefix + String.format("%08d", i)));
+            int expected = i + (i % 2);
+            for (int n = 0; n < 20 && expected < 5000; n++, expected += 2) {
+                assertArrayEquals(bytes("v" + expected), entries.next().getValue());
+            }
+        }
+        ssTable.close();
+    }
+
+    @Test
+    @DisplayName("Keys must be added in increasing order")
+    void testOutOfOrderKeys() throws IOException {
+        try (SSTableWriter writer = new SSTableWriter(tempDir.resolve(SSTable.fileName("order")))) {
+            writer.add(bytes("b"), bytes("1"));
+            assertThrows(IllegalArgumentException.class, () -> writer.add(bytes("a"), bytes("2")));
+            assertThrows(IllegalArgumentException.class, () -> writer.add(bytes("b"), bytes("3")));
+        }
+
+        // An abandoned writer leaves no files behind
+        assertFalse(Files.exists(tempDir.resolve(SSTable.fileName("order"))));
+        assertFalse(Files.exists(tempDir.resolve(SSTable.fileName("order") + ".tmp")));
+    }
+
+    @Test
+    @DisplayName("Older versions of a key are kept newest first and found by sequence number")
+    void testVersions() throws IOException {
+        Path path = tempDir.resolve(SSTable.fileName("versions"));
+        SSTable ssTable;
+        try (SSTableWriter writer = new SSTableWriter(path, 256)) {
+            // Enough versions that they run on across several blocks
+            for (int sequence = 100; sequence > 0; sequence--) {
+                writer.add(bytes("key"), sequence % 10 == 0 ? new byte[0] : bytes("value" + sequence), sequence);
+            }
+            writer.add(bytes("other"), bytes("value"));
+            assertThrows(IllegalArgumentException.class, () -> writer.add(bytes("other"), bytes("older"), 5));
+            ssTable = writer.finish("versions", 200);
+        }
+        assertTrue(ssTable.getMetadata().getBlockCount() > 1);
+        assertEquals(101, ssTable.getMetadata().getEntryCount());
+
+        assertNull(ssTable.get(bytes("key")));
+        assertArrayEquals(bytes("value99"), ssTable.lookup(bytes("key"), 99));
+        assertEquals(0, ssTable.lookup(bytes("key"), 50).length);
+        assertArrayEquals(bytes("value1"), ssTable.lookup(bytes("key"), 1));
+        assertNull(ssTable.lookup(bytes("key"), 0));
+
+        // An entry without a sequence number of its own takes the table's
+        assertNull(ssTable.lookup(bytes("other"), 199));
+        assertArrayEquals(bytes("value"), ssTable.lookup(bytes("other"), 200));
+
+        Iterator<Map.Entry<byte[], byte[]>> entries = ssTable.iterator();
+        for (int sequence = 100; sequence > 0; sequence--) {
+            assertEquals(sequence, SequencedEntry.sequenceOf(entries.next()));
+        }
+        assertEquals(200, SequencedEntry.sequenceOf(entries.next()));
+        assertFalse(entries.hasNext());
+        ssTable.close();
+    }
+
+    @Test
+    @DisplayName("A file that cannot be moved into place is deleted on close")
+    void testFailedFinish() throws IOException {
+        Path path = tempDir.resolve(SSTable.fileName("failed"));
+        try (SSTableWriter writer = new SSTableWriter(path)) {
+            writer.add(bytes("key"), bytes("value"));
+            // A non-empty directory cannot be replaced by the file
+            Files.createDirectories(path.resolve("occupied"));
+            assertThrows(IOException.class, () -> writer.finish("failed", 1));
+        }
+        assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".tmp")));
+    }
+
+    @Test
+    @DisplayName("Corrupted blocks are detected")
+    void testCorruptedBlock() throws IOException {
+        MemTable memTable = new MemTable(1024 * 1024);
+        memTable.put(bytes("key1"), bytes("value1"));
+        SSTable.create(memTable, tempDir, "corrupt").close();
+
+        // Flip a byte in the first data block
+        Path path = tempDir.resolve(SSTable.fileName("corrupt"));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            channel.read(buffer, 10);
+            buffer.put(0, (byte) (buffer.get(0) ^ 0xFF));
+            buffer.rewind();
+            channel.write(buffer, 10);
+        }
+
+        SSTable ssTable = new SSTable(path);
+        assertThrows(IOException.class, () -> ssTable.get(bytes("key1")));
+        ssTable.close();
+    }
+
+    @Test
+    @DisplayName("Files that are not SSTables are rejected")
+    void testInvalidFile() throws IOException {
+        Path path = tempDir.resolve(SSTable.fileName("invalid"));
+        Files.write(path, new byte[SSTable.FOOTER_SIZE * 2]);
+        assertThrows(IOException.class, () -> new SSTable(path));
+    }
+}
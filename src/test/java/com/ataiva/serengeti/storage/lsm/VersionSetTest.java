@@ -0,0 +1,133 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import com.ataiva.serengeti.storage.lsm.VersionEdit.FileMetadata;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the VersionSet class.
+ */
+@DisplayName("Version Set Tests")
+@Tag("fast")
+public class VersionSetTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static FileMetadata file(long id, int level, long maxSequence) {
+        return new FileMetadata(String.format("%016x", id), level, maxSequence, 1000 + id, 10,
+                ("min" + id).getBytes(StandardCharsets.UTF_8), ("max" + id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> ids(VersionSet versionSet) {
+        return versionSet.getFiles().stream().map(FileMetadata::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    @DisplayName("Flush and compaction edits survive a reopen")
+    void testRecoverEdits() throws IOException {
+        try (VersionSet versionSet = new VersionSet(tempDir)) {
+            assertFalse(versionSet.recover());
+            for (int i = 1; i <= 3; i++) {
+                VersionEdit flush = new VersionEdit();
+                flush.addFile(file(i, 0, i * 100));
+                flush.setFlushedSequence(i * 100);
+                versionSet.logAndApply(flush);
+            }
+
+            VersionEdit compaction = new VersionEdit();
+            compaction.deleteFile(String.format("%016x", 1));
+            compaction.deleteFile(String.format("%016x", 2));
+            compaction.addFile(file(4, 1, 200));
+            versionSet.logAndApply(compaction);
+        }
+
+        try (VersionSet versionSet = new VersionSet(tempDir)) {
+            assertTrue(versionSet.recover());
+            assertEquals(Arrays.asList(String.format("%016x", 4), String.format("%016x", 3)), ids(versionSet));
+            assertEquals(300, versionSet.getFlushedSequence());
+            assertEquals(4, versionSet.getLastFileId());
+
+            FileMetadata compacted = versionSet.getFiles().get(0);
+            assertEquals(1, compacted.getLevel());
+            assertEquals(1004, compacted.getFileSize());
+            assertArrayEquals("min4".getBytes(StandardCharsets.UTF_8), compacted.getMinKey());
+            assertArrayEquals("max4".getBytes(StandardCharsets.UTF_8), compacted.getMaxKey());
+        }
+    }
+
+    @Test
+    @DisplayName("A torn edit at the end of the MANIFEST is ignored")
+    void testTornEditIsIgnored() throws IOException {
+        Path manifestPath;
+        try (VersionSet versionSet = new VersionSet(tempDir)) {
+            versionSet.recover();
+            VersionEdit first = new VersionEdit();
+            first.addFile(file(1, 0, 100));
+            versionSet.logAndApply(first);
+            VersionEdit second = new VersionEdit();
+            second.addFile(file(2, 0, 200));
+            versionSet.logAndApply(second);
+            manifestPath = versionSet.getManifestPath();
+        }
+
+        // Cut the last edit short, as a crash in the middle of the write would
+        try (FileChannel channel = FileChannel.open(manifestPath, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        try (VersionSet versionSet = new VersionSet(tempDir)) {
+            assertTrue(versionSet.recover());
+            assertEquals(Collections.singletonList(String.format("%016x", 1)), ids(versionSet));
+
+            // Edits logged after recovery are kept
+            VersionEdit third = new VersionEdit();
+            third.addFile(file(3, 0, 300));
+            versionSet.logAndApply(third);
+        }
+
+        try (VersionSet versionSet = new VersionSet(tempDir)) {
+            assertTrue(versionSet.recover());
+            assertEquals(2, versionSet.getFiles().size());
+        }
+    }
+
+    @Test
+    @DisplayName("The MANIFEST is rewritten as a snapshot when it grows too large")
+    void testManifestRollover() throws IOException {
+        try (VersionSet versionSet = new VersionSet(tempDir, 512)) {
+            versionSet.recover();
+            for (int i = 1; i <= 100; i++) {
+                VersionEdit edit = new VersionEdit();
+                if (i > 1) {
+                    edit.deleteFile(String.format("%016x", i - 1));
+                }
+                edit.addFile(file(i, 0, i));
+                versionSet.logAndApply(edit);
+                assertTrue(Files.size(versionSet.getManifestPath()) < 1024);
+            }
+        }
+
+        try (Stream<Path> paths = Files.list(tempDir)) {
+            assertEquals(1, paths.filter(p -> p.getFileName().toString().startsWith("MANIFEST-")).count());
+        }
+        try (VersionSet versionSet = new VersionSet(tempDir)) {
+            assertTrue(versionSet.recover());
+            assertEquals(Collections.singletonList(String.format("%016x", 100)), ids(versionSet));
+        }
+    }
+}
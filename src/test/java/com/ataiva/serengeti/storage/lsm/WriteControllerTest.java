@@ -0,0 +1,108 @@
+package com.ataiva.serengeti.storage.lsm;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the WriteController class.
+ */
+@DisplayName("Write Controller Tests")
+@Tag("fast")
+public class WriteControllerTest {
+
+    private static final long RATE = 16 * 1024 * 1024;
+
+    private static WriteController newController() {
+        return new WriteController(2, 4, 8, 16, 1000, 2000, RATE);
+    }
+
+    @Test
+    @DisplayName("Each signal delays and then stops writes at its thresholds")
+    void testStates() {
+        WriteController controller = newController();
+        assertEquals(WriteController.State.NORMAL, controller.update(1, 7, 999));
+        assertEquals(WriteController.State.DELAYED, controller.update(2, 0, 0));
+        assertEquals(WriteController.State.DELAYED, controller.update(0, 8, 0));
+        assertEquals(WriteController.State.DELAYED, controller.update(0, 0, 1000));
+        assertEquals(WriteController.State.STOPPED, controller.update(4, 0, 0));
+        assertEquals(WriteController.State.STOPPED, controller.update(0, 16, 0));
+        assertEquals(WriteController.State.STOPPED, controller.update(0, 0, 2000));
+        assertEquals(WriteController.State.NORMAL, controller.update(0, 0, 0));
+
+        // Only changes of state are counted
+        assertEquals(1, controller.getStopCount());
+        assertEquals(1, controller.getDelayCount());
+        assertThrows(IllegalArgumentException.class,
+                () -> new WriteController(2, 2, 8, 16, 1000, 2000, RATE));
+    }
+
+    @Test
+    @DisplayName("The delayed write rate falls as signals approach their stop thresholds")
+    void testDelayedRate() {
+        WriteController controller = newController();
+        controller.update(0, 8, 0);
+        assertEquals(RATE, controller.getDelayedWriteRate());
+
+        controller.update(0, 12, 0);
+        assertEquals(RATE / 2, controller.getDelayedWriteRate());
+
+        // Never below a sixteenth of the delayed write rate
+        controller.update(3, 15, 1999);
+        assertEquals(RATE / 16, controller.getDelayedWriteRate());
+    }
+
+    @Test
+    @DisplayName("Stopped writers resume once background work catches up")
+    void testStoppedWritersResume() throws Exception {
+        WriteController controller = newController();
+        controller.update(4, 0, 0);
+
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean written = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            try {
+                started.countDown();
+                controller.beforeWrite(100);
+                written.set(true);
+            } catch (Exception e) {
+                fail("Write was not admitted", e);
+            }
+        });
+        writer.start();
+        started.await();
+        Thread.sleep(200);
+        assertFalse(written.get());
+
+        controller.update(1, 0, 0);
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+        assertTrue(written.get());
+        assertTrue(controller.getStalledNanos() > 0);
+    }
+
+    @Test
+    @DisplayName("Closing lets stopped writers through")
+    void testClose() throws Exception {
+        WriteController controller = newController();
+        controller.update(0, 16, 0);
+
+        Thread writer = new Thread(() -> {
+            try {
+                controller.beforeWrite(100);
+            } catch (Exception e) {
+                fail("Write was not admitted", e);
+            }
+        });
+        writer.start();
+        controller.close();
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(writer.isAlive());
+        assertEquals(WriteController.State.NORMAL, controller.update(4, 16, 2000));
+    }
+}
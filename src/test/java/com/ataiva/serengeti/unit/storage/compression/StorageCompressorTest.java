@@ -3,6 +3,8 @@ package com.ataiva.serengeti.unit.storage.compression;
 import com.ataiva.serengeti.storage.compression.StorageCompressor;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
@@ -407,4 +409,66 @@ public class StorageCompressorTest {
         assertEquals("Low decompressed data should match original data", originalData, lowDecompressedData);
         assertEquals("High decompressed data should match original data", originalData, highDecompressedData);
     }
-}
\ No newline at end of file
+    
+    /**
+     * Test the ByteBuffer API with every algorithm and with heap and direct buffers.
+     */
+    @Test
+    public void testByteBufferRoundTrip() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"user").append(i).append("\",\"active\":true}");
+        }
+        byte[] originalBytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        
+        for (StorageCompressor.CompressionAlgorithm algorithm : StorageCompressor.CompressionAlgorithm.values()) {
+            StorageCompressor compressor = new StorageCompressor(algorithm);
+            for (boolean direct : new boolean[] {false, true}) {
+                ByteBuffer src = direct ? ByteBuffer.allocateDirect(originalBytes.length) : ByteBuffer.allocate(originalBytes.length);
+                src.put(originalBytes).flip();
+                int maxLength = compressor.maxCompressedLength(originalBytes.length);
+                ByteBuffer compressed = direct ? ByteBuffer.allocateDirect(maxLength) : ByteBuffer.allocate(maxLength);
+                
+                int compressedLength = compressor.compress(src, compressed);
+                assertEquals(algorithm + ": source should be consumed", 0, src.remaining());
+                assertEquals(algorithm + ": position should advance", compressedLength, compressed.position());
+                if (algorithm != StorageCompressor.CompressionAlgorithm.NONE) {
+                    assertTrue(algorithm + ": JSON should compress", compressedLength < originalBytes.length / 2);
+                }
+                
+                compressed.flip();
+                ByteBuffer decompressed = direct
+                        ? ByteBuffer.allocateDirect(originalBytes.length)
+                        : ByteBuffer.allocate(originalBytes.length);
+                assertEquals(originalBytes.length, compressor.decompress(compressed, decompressed));
+                decompressed.flip();
+                byte[] result = new byte[decompressed.remaining()];
+                decompressed.get(result);
+                assertArrayEquals(algorithm + ": round trip should match", originalBytes, result);
+            }
+        }
+    }
+    
+    /**
+     * Test that a destination buffer that is too small is reported as an error.
+     */
+    @Test
+    public void testByteBufferDestinationTooSmall() throws IOException {
+        byte[] originalBytes = new byte[4096];
+        new Random(42).nextBytes(originalBytes);
+        
+        for (StorageCompressor.CompressionAlgorithm algorithm : StorageCompressor.CompressionAlgorithm.values()) {
+            StorageCompressor compressor = new StorageCompressor(algorithm);
+            ByteBuffer compressed = ByteBuffer.allocate(compressor.maxCompressedLength(originalBytes.length));
+            compressor.compress(ByteBuffer.wrap(originalBytes), compressed);
+            compressed.flip();
+            
+            try {
+                compressor.decompress(compressed, ByteBuffer.allocate(originalBytes.length / 2));
+                fail(algorithm + ": decompressing into a small buffer should fail");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+}
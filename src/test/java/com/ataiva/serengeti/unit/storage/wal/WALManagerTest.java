@@ -1,6 +1,7 @@
 package com.ataiva.serengeti.unit.storage.wal;
 
 import com.ataiva.serengeti.storage.wal.WALManager;
+import com.ataiva.serengeti.storage.wal.WALRecordEncoder;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -11,9 +12,14 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
@@ -241,6 +247,158 @@ public class WALManagerTest {
         }
     }
     
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        int numThreads = 8;
+        int writesPerThread = 200;
+        
+        // Many threads append at once; their records are written in groups
+        List<Thread> threads = new ArrayList<>();
+        final Map<Long, Boolean> sequenceNumbers = new ConcurrentHashMap<>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < numThreads; t++) {
+            final int threadId = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < writesPerThread; i++) {
+                        byte[] key = ("key-" + threadId + "-" + i).getBytes(StandardCharsets.UTF_8);
+                        byte[] value = ("value-" + threadId + "-" + i).getBytes(StandardCharsets.UTF_8);
+                        sequenceNumbers.put(walManager.logPut(key, value), Boolean.TRUE);
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(numThreads * writesPerThread, sequenceNumbers.size());
+        walManager.close();
+        
+        // Every record is recovered, in sequence order
+        final Map<String, String> recoveredData = new HashMap<>();
+        final List<Long> recoveredSequences = new ArrayList<>();
+        walManager = new WALManager(tempDir);
+        walManager.recover(new WALManager.WALRecoveryConsumer() {
+            @Override
+            public void onPut(long sequenceNumber, byte[] key, byte[] value) {
+                recoveredSequences.add(sequenceNumber);
+                recoveredData.put(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+            }
+            
+            @Override
+            public void onDelete(long sequenceNumber, byte[] key) {
+                recoveredSequences.add(sequenceNumber);
+            }
+        });
+        
+        assertEquals(numThreads * writesPerThread, recoveredData.size());
+        assertEquals("value-3-17", recoveredData.get("key-3-17"));
+        for (int i = 1; i < recoveredSequences.size(); i++) {
+            assertTrue(recoveredSequences.get(i) > recoveredSequences.get(i - 1));
+        }
+    }
+    
+    @Test
+    public void testInterruptedWriterStillWaitsForItsRecord() throws Exception {
+        byte[] leaderKey = "leader".getBytes(StandardCharsets.UTF_8);
+        byte[] followerKey = "follower".getBytes(StandardCharsets.UTF_8);
+        byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger interruptedAfterwards = new AtomicInteger();
+        Thread leader;
+        Thread follower;
+        
+        // Holding the WAL manager's monitor keeps the leader from writing, so the
+        // follower's record stays queued
+        synchronized (walManager) {
+            leader = new Thread(() -> {
+                try {
+                    walManager.logPut(leaderKey, value);
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            leader.start();
+            while (leader.getState() != Thread.State.BLOCKED) {
+                Thread.sleep(10);
+            }
+            follower = new Thread(() -> {
+                try {
+                    walManager.logPut(followerKey, value);
+                    if (Thread.currentThread().isInterrupted()) {
+                        interruptedAfterwards.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            follower.start();
+            while (follower.getState() != Thread.State.WAITING) {
+                Thread.sleep(10);
+            }
+            
+            // The follower keeps waiting for its record, which is written anyway
+            follower.interrupt();
+            Thread.sleep(100);
+            assertTrue(follower.isAlive());
+        }
+        leader.join(10000);
+        follower.join(10000);
+        assertEquals(0, failures.get());
+        assertEquals(1, interruptedAfterwards.get());
+        walManager.close();
+        
+        final List<String> recovered = new ArrayList<>();
+        walManager = new WALManager(tempDir);
+        walManager.recover(new WALManager.WALRecoveryConsumer() {
+            @Override
+            public void onPut(long sequenceNumber, byte[] key, byte[] value) {
+                recovered.add(new String(key, StandardCharsets.UTF_8));
+            }
+            
+            @Override
+            public void onDelete(long sequenceNumber, byte[] key) {
+            }
+        });
+        assertEquals(Arrays.asList("leader", "follower"), recovered);
+    }
+    
+    @Test
+    public void testDeleteRangeRecovery() throws IOException {
+        walManager.logPut("a".getBytes(StandardCharsets.UTF_8), "1".getBytes(StandardCharsets.UTF_8));
+        long bounded = walManager.logDeleteRange("a".getBytes(StandardCharsets.UTF_8), "m".getBytes(StandardCharsets.UTF_8));
+        long unbounded = walManager.logDeleteRange("x".getBytes(StandardCharsets.UTF_8), null);
+        walManager.close();
+        
+        final List<String> recovered = new ArrayList<>();
+        walManager = new WALManager(tempDir);
+        walManager.recover(new WALManager.WALRecoveryConsumer() {
+            @Override
+            public void onPut(long sequenceNumber, byte[] key, byte[] value) {
+                recovered.add("put " + new String(key, StandardCharsets.UTF_8));
+            }
+            
+            @Override
+            public void onDelete(long sequenceNumber, byte[] key) {
+                recovered.add("delete " + new String(key, StandardCharsets.UTF_8));
+            }
+            
+            @Override
+            public void onDeleteRange(long sequenceNumber, byte[] startKey, byte[] endKey) {
+                recovered.add("deleteRange " + sequenceNumber + " " + new String(startKey, StandardCharsets.UTF_8)
+                        + ".." + (endKey != null ? new String(endKey, StandardCharsets.UTF_8) : "end"));
+            }
+        });
+        
+        assertEquals(Arrays.asList("put a", "deleteRange " + bounded + " a..m", "deleteRange " + unbounded + " x..end"),
+                recovered);
+    }
+    
     @Test
     public void testCorruptedWALRecovery() throws IOException {
         // Write some operations to the WAL
@@ -294,4 +452,285 @@ public class WALManagerTest {
             assertEquals(valueStr, recoveredData.get(keyStr));
         }
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void testBatchRecoveredAllOrNothing() throws IOException {
+        walManager.close();
+        walManager = new WALManager(tempDir, 1024 * 1024, WALManager.SyncMode.SYNC, 10, 100);
+        
+        walManager.logPut("before".getBytes(StandardCharsets.UTF_8), "value".getBytes(StandardCharsets.UTF_8));
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            keys.add(("key" + i).getBytes(StandardCharsets.UTF_8));
+            values.add(i == 5 ? null : ("value" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        long firstSequence = walManager.logBatch(keys, values);
+        assertEquals(2, firstSequence);
+        assertEquals(11, walManager.getLastSequenceNumber());
+        walManager.close();
+        
+        // Every operation of the batch is recovered with its own sequence number
+        final List<Long> sequences = new ArrayList<>();
+        final Map<String, String> recoveredData = new HashMap<>();
+        WALManager.WALRecoveryConsumer consumer = new WALManager.WALRecoveryConsumer() {
+            @Override
+            public void onPut(long sequenceNumber, byte[] key, byte[] value) {
+                sequences.add(sequenceNumber);
+                recoveredData.put(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+            }
+            
+            @Override
+            public void onDelete(long sequenceNumber, byte[] key) {
+                sequences.add(sequenceNumber);
+                recoveredData.remove(new String(key, StandardCharsets.UTF_8));
+            }
+        };
+        walManager = new WALManager(tempDir);
+        walManager.recover(consumer);
+        walManager.close();
+        assertEquals(11, sequences.size());
+        assertEquals(Long.valueOf(11), sequences.get(10));
+        assertEquals(10, recoveredData.size());
+        assertFalse(recoveredData.containsKey("key5"));
+        
+        // A batch torn by a crash is dropped entirely
+        Path walFile = Files.list(tempDir)
+            .filter(path -> path.getFileName().toString().startsWith("wal-"))
+            .findFirst()
+            .orElseThrow(() -> new AssertionError("No WAL file found"));
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(walFile,
+                java.nio.file.StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 10);
+        }
+        sequences.clear();
+        recoveredData.clear();
+        walManager = new WALManager(tempDir);
+        walManager.recover(consumer);
+        assertEquals(1, sequences.size());
+        assertEquals("value", recoveredData.get("before"));
+    }
+    
+    @Test
+    public void testDurabilityFutures() throws Exception {
+        walManager.close();
+        
+        // A long interval and group size, so only waiting callers trigger syncs
+        walManager = new WALManager(tempDir, 1024 * 1024, WALManager.SyncMode.GROUP, 1000000, 60000);
+        int numThreads = 8;
+        int writesPerThread = 100;
+        List<Thread> threads = new ArrayList<>();
+        final List<CompletableFuture<Long>> futures = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < numThreads; t++) {
+            final int threadId = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < writesPerThread; i++) {
+                    byte[] key = ("key-" + threadId + "-" + i).getBytes(StandardCharsets.UTF_8);
+                    byte[] value = ("value-" + threadId + "-" + i).getBytes(StandardCharsets.UTF_8);
+                    futures.add(walManager.logPutAsync(key, value));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        long highest = 0;
+        for (CompletableFuture<Long> future : futures) {
+            highest = Math.max(highest, future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(numThreads * writesPerThread, highest);
+        assertTrue(walManager.getDurableSequenceNumber() >= highest);
+        
+        // In SYNC mode the record is already durable when the call returns
+        WALManager syncManager = new WALManager(tempDir.resolve("sync"), 1024 * 1024, WALManager.SyncMode.SYNC, 10, 100);
+        CompletableFuture<Long> future = syncManager.logDeleteAsync("key".getBytes(StandardCharsets.UTF_8));
+        assertTrue(future.isDone());
+        assertEquals(Long.valueOf(1), future.get());
+        syncManager.close();
+    }
+    
+    @Test
+    public void testIdleTailIsSynced() throws Exception {
+        walManager.close();
+        walManager = new WALManager(tempDir, 1024 * 1024, WALManager.SyncMode.GROUP, 100, 50);
+        
+        // A single write never reaches the group size, but is synced within the interval
+        long sequence = walManager.logPut("key".getBytes(StandardCharsets.UTF_8), "value".getBytes(StandardCharsets.UTF_8));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (walManager.getDurableSequenceNumber() < sequence && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(sequence, walManager.getDurableSequenceNumber());
+    }
+    
+    @Test
+    public void testRecordsLargerThanEncodeBuffer() throws Exception {
+        walManager.close();
+        walManager = new WALManager(tempDir, 64 * 1024 * 1024, WALManager.SyncMode.ASYNC, 10, 100);
+        
+        // Concurrent writers, so groups mix small records with ones that do not fit the buffer
+        final int largeSize = WALRecordEncoder.DEFAULT_CAPACITY * 2 + 17;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int threadId = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 20; i++) {
+                        byte[] value = new byte[i % 5 == 0 ? largeSize : 100];
+                        Arrays.fill(value, (byte) (threadId * 20 + i));
+                        walManager.logPut(("key-" + threadId + "-" + i).getBytes(StandardCharsets.UTF_8), value);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        walManager.close();
+        
+        final Map<String, byte[]> recovered = new HashMap<>();
+        walManager = new WALManager(tempDir);
+        walManager.recover(new WALManager.WALRecoveryConsumer() {
+            @Override
+            public void onPut(long sequenceNumber, byte[] key, byte[] value) {
+                recovered.put(new String(key, StandardCharsets.UTF_8), value);
+            }
+            
+            @Override
+            public void onDelete(long sequenceNumber, byte[] key) {
+            }
+        });
+        
+        assertEquals(80, recovered.size());
+        for (int t = 0; t < 4; t++) {
+            for (int i = 0; i < 20; i++) {
+                byte[] value = recovered.get("key-" + t + "-" + i);
+                assertEquals(i % 5 == 0 ? largeSize : 100, value.length);
+                assertEquals((byte) (t * 20 + i), value[value.length - 1]);
+            }
+        }
+    }
+    
+    @Test
+    public void testPreallocatedSegmentsAreRecycled() throws Exception {
+        walManager.close();
+        final int segmentSize = 4096;
+        walManager = new WALManager(tempDir, segmentSize, WALManager.SyncMode.SYNC, 10, 100, true);
+        
+        // Fill several segments, each created at its full size
+        byte[] value = new byte[200];
+        for (int i = 0; i < 60; i++) {
+            walManager.logPut(("old-" + i).getBytes(StandardCharsets.UTF_8), value);
+        }
+        List<Path> segments = listFiles("wal-");
+        assertTrue("Expected several segments", segments.size() > 2);
+        for (Path segment : segments) {
+            assertEquals(segmentSize, Files.size(segment));
+        }
+        
+        // Freed segments are kept for reuse rather than deleted
+        walManager.cleanupWAL(walManager.getLastSequenceNumber());
+        assertEquals(1, listFiles("wal-").size());
+        int recycled = listFiles("recycled-").size();
+        assertTrue("Expected recycled segments", recycled > 0);
+        
+        // New segments reuse them, and their old records are not replayed
+        for (int i = 0; i < 30; i++) {
+            walManager.logPut(("new-" + i).getBytes(StandardCharsets.UTF_8), value);
+        }
+        assertTrue(listFiles("recycled-").size() < recycled);
+        walManager.close();
+        
+        final List<String> replayed = new ArrayList<>();
+        walManager = new WALManager(tempDir, segmentSize, WALManager.SyncMode.SYNC, 10, 100, true);
+        walManager.recover(new WALManager.WALRecoveryConsumer() {
+            @Override
+            public void onPut(long sequenceNumber, byte[] key, byte[] value) {
+                replayed.add(new String(key, StandardCharsets.UTF_8));
+            }
+            
+            @Override
+            public void onDelete(long sequenceNumber, byte[] key) {
+            }
+        });
+        
+        // Only the segment that was current at cleanup still holds old records
+        int oldCount = replayed.size() - 30;
+        assertTrue(oldCount > 0 && oldCount < 60);
+        List<String> expected = new ArrayList<>();
+        for (int i = 60 - oldCount; i < 60; i++) {
+            expected.add("old-" + i);
+        }
+        for (int i = 0; i < 30; i++) {
+            expected.add("new-" + i);
+        }
+        assertEquals(expected, replayed);
+        assertEquals(90, walManager.getLastSequenceNumber());
+    }
+    
+    @Test
+    public void testParallelRecoveryMatchesSequential() throws Exception {
+        // Small files, so the log spans many of them
+        for (int i = 0; i < 200; i++) {
+            byte[] key = ("key" + (i % 50)).getBytes(StandardCharsets.UTF_8);
+            if (i % 7 == 0) {
+                walManager.logDelete(key);
+            } else if (i % 11 == 0) {
+                walManager.logBatch(Arrays.asList(key, ("batch" + i).getBytes(StandardCharsets.UTF_8)),
+                        Arrays.asList(("value" + i).getBytes(StandardCharsets.UTF_8), null));
+            } else {
+                walManager.logPut(key, ("value" + i).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        long lastSequence = walManager.getLastSequenceNumber();
+        walManager.close();
+        
+        List<String> sequential = recordRecovery(-1, 1);
+        List<String> parallel = recordRecovery(-1, 4);
+        assertEquals(lastSequence, sequential.size());
+        assertEquals(sequential, parallel);
+        assertEquals(lastSequence, walManager.getLastSequenceNumber());
+        
+        // Operations up to the flushed sequence number are skipped, but still advance the sequence
+        List<String> unflushed = recordRecovery(150, 4);
+        assertEquals(sequential.subList(150, sequential.size()), unflushed);
+        assertEquals(lastSequence, walManager.getLastSequenceNumber());
+    }
+    
+    private List<String> recordRecovery(long afterSequence, int parallelism) throws IOException {
+        walManager.close();
+        walManager = new WALManager(tempDir, 1024, WALManager.SyncMode.SYNC, 10, 100);
+        final List<String> operations = new ArrayList<>();
+        final Thread caller = Thread.currentThread();
+        walManager.recover(new WALManager.WALRecoveryConsumer() {
+            @Override
+            public void onPut(long sequenceNumber, byte[] key, byte[] value) {
+                assertEquals(caller, Thread.currentThread());
+                operations.add(sequenceNumber + ":put:" + new String(key, StandardCharsets.UTF_8)
+                        + "=" + new String(value, StandardCharsets.UTF_8));
+            }
+            
+            @Override
+            public void onDelete(long sequenceNumber, byte[] key) {
+                assertEquals(caller, Thread.currentThread());
+                operations.add(sequenceNumber + ":delete:" + new String(key, StandardCharsets.UTF_8));
+            }
+        }, afterSequence, parallelism);
+        return operations;
+    }
+    
+    private List<Path> listFiles(String prefix) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (java.util.stream.Stream<Path> paths = Files.list(tempDir)) {
+            paths.filter(path -> path.getFileName().toString().startsWith(prefix)).forEach(files::add);
+        }
+        return files;
+    }
+}